@@ -10,6 +10,7 @@ import org.multibit.hd.hardware.core.domain.Identity;
 import org.multibit.hd.hardware.core.events.MessageEvent;
 import org.multibit.hd.hardware.core.messages.Features;
 import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
 import org.multibit.hd.hardware.core.wallets.Connectable;
 
 import java.net.URI;
@@ -41,6 +42,19 @@ public interface HardwareWalletClient extends Connectable {
    */
   Optional<MessageEvent> initialise();
 
+  /**
+   * <p>Ask for device details without resetting the device session</p>
+   * <p>Send the GET_FEATURES message to the device. Unlike INITIALISE any cached PIN or passphrase is retained
+   * so this is suitable for validating a device that has briefly detached.</p>
+   * <p>Expected response events are:</p>
+   * <ul>
+   * <li>FEATURES containing the available feature set</li>
+   * </ul>
+   *
+   * @return The response event if implementation is blocking. Absent if non-blocking or device failure.
+   */
+  Optional<MessageEvent> getFeatures();
+
   /**
    * <p>Send the PING message to the device</p>
    * <p>Expected response events are:</p>
@@ -234,6 +248,32 @@ public interface HardwareWalletClient extends Connectable {
    */
   Optional<MessageEvent> signTx(Transaction tx);
 
+  /**
+   * <p>Send the SIGN_TX message to the device for the transaction in the signing session. The responses to the
+   * TxRequests that follow are prepared in parallel while the device awaits confirmation so that
+   * {@link #txAck(TxRequest, TxSigningSession)} only needs to look them up.</p>
+   * <p>Expected response events are:</p>
+   * <ul>
+   * <li>PASSPHRASE_REQUEST if the passphrase is needed</li>
+   * <li>PIN_MATRIX_REQUEST if the PIN is needed</li>
+   * <li>FAILURE if the operation was unsuccessful</li>
+   * </ul>
+   *
+   * @param session The signing session providing the transaction, its parents and the address paths
+   *
+   * @return The response event if implementation is blocking. Absent if non-blocking or device failure.
+   */
+  Optional<MessageEvent> signTx(TxSigningSession session);
+
+  /**
+   * <p>Prepare the responses for a signing session that will be started after the current one. Nothing is sent
+   * to the device so this can be called while the user is confirming another transaction. A later call to
+   * {@link #signTx(TxSigningSession)} with the same session uses the prepared responses.</p>
+   *
+   * @param session The signing session that will follow the current one
+   */
+  void prepareSignTx(TxSigningSession session);
+
   /**
    * <p>Send the SIMPLE_SIGN_TX message to the device. This will use the supplied transaction object and attempt
    * to deliver it to the device in a single request. This limits the size of the transaction but simplifies the
@@ -251,6 +291,23 @@ public interface HardwareWalletClient extends Connectable {
    */
   Optional<MessageEvent> simpleSignTx(Transaction tx);
 
+  /**
+   * <p>Send the SIMPLE_SIGN_TX message to the device. This will describe each input by the path to its receiving
+   * address and each known change output by its path so the device can sign the inputs and avoid asking the user
+   * to confirm the change.</p>
+   * <p>Expected response events are:</p>
+   * <ul>
+   * <li>PASSPHRASE_REQUEST if the passphrase is needed</li>
+   * <li>PIN_MATRIX_REQUEST if the PIN is needed</li>
+   * <li>FAILURE if the operation was unsuccessful</li>
+   * </ul>
+   *
+   * @param session The signing session providing the transaction, its parents and the address paths
+   *
+   * @return The response event if implementation is blocking. Absent if non-blocking or device failure.
+   */
+  Optional<MessageEvent> simpleSignTx(TxSigningSession session);
+
   /**
    * <p>Send the TX_ACK message to the device. This contains a description of an input or output depending
    * on the contents of an earlier TX_REQUEST message.</p>
@@ -269,6 +326,24 @@ public interface HardwareWalletClient extends Connectable {
    */
   Optional<MessageEvent> txAck(TxRequest txRequest, Transaction tx, Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap, Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap);
 
+  /**
+   * <p>Send the TX_ACK message to the device. This contains a description of an input or output depending
+   * on the contents of an earlier TX_REQUEST message.</p>
+   * <p>The session provides constant time lookup of any parent transaction requested by the device so this
+   * is preferred over {@link #txAck(TxRequest, Transaction, Map, Map)} for large transactions.</p>
+   * <p>Expected response events are:</p>
+   * <ul>
+   * <li>TX_REQUEST if more transaction information is required or to notify completion of workflow</li>
+   * <li>FAILURE if the operation was unsuccessful</li>
+   * </ul>
+   *
+   * @param txRequest The transaction request describing what is required
+   * @param session   The signing session providing the transaction, its parents and the address paths
+   *
+   * @return The response event if implementation is blocking. Absent if non-blocking or device failure.
+   */
+  Optional<MessageEvent> txAck(TxRequest txRequest, TxSigningSession session);
+
   /**
    * <p>Send the PIN_MATRIX_ACK message to the device in response to a PIN_MATRIX_REQUEST.</p>
    * <p>Implementers are expected to show a PIN matrix on the UI.</p>
@@ -507,6 +582,8 @@ public interface HardwareWalletClient extends Connectable {
   /**
    * <p>Send the ESTIMATE_TX_SIZE message to the device to estimate the size of the transaction. This behaves
    * exactly like the SignTx in that it uses the TxRequest mechanism to describe the transaction.</p>
+   * <p>Fee calculations should prefer {@link org.multibit.hd.hardware.core.signing.TxSizeEstimator} which
+   * provides the same answer on the host without a device round trip.</p>
    * <p>Expected response events are:</p>
    * <ul>
    * <li>TX_SIZE if the operation succeeded</li>
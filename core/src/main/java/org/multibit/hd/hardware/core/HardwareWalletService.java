@@ -1,5 +1,6 @@
 package org.multibit.hd.hardware.core;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -12,9 +13,16 @@ import org.multibit.commons.concurrent.SafeExecutors;
 import org.multibit.hd.hardware.core.domain.Identity;
 import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
 import org.multibit.hd.hardware.core.events.MessageEvents;
+import org.multibit.hd.hardware.core.fsm.AddressBatchSpecification;
 import org.multibit.hd.hardware.core.fsm.CreateWalletSpecification;
 import org.multibit.hd.hardware.core.fsm.HardwareWalletContext;
 import org.multibit.hd.hardware.core.fsm.LoadWalletSpecification;
+import org.multibit.hd.hardware.core.fsm.UseCaseDeadlines;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.metrics.HardwareWalletMetrics;
+import org.multibit.hd.hardware.core.signing.SignTxMode;
+import org.multibit.hd.hardware.core.signing.SignTxModePolicy;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,14 +52,20 @@ public class HardwareWalletService {
 
   /**
    * Monitors the hardware client to manage state transitions in response to incoming messages
+   * A new one is required after each stop or restart
    */
-  private final ListeningScheduledExecutorService clientMonitorService = SafeExecutors.newSingleThreadScheduledExecutor("monitor-hw-client");
+  private ListeningScheduledExecutorService clientMonitorService = null;
 
   /**
    * The current hardware wallet context
    */
   private final HardwareWalletContext context;
 
+  /**
+   * Chooses between SIMPLE_SIGN_TX and streaming SIGN_TX
+   */
+  private final SignTxModePolicy signTxModePolicy = new SignTxModePolicy();
+
   /**
    * True if the service has stopped
    */
@@ -70,13 +84,22 @@ public class HardwareWalletService {
   /**
    * <p>Start the service and await the connection of a hardware wallet</p>
    */
-  public void start() {
+  public synchronized void start() {
 
     if (stopped) {
       throw new IllegalStateException("Once stopped the service must be started with a fresh instance");
     }
 
+    if (clientMonitorService != null && !clientMonitorService.isShutdown()) {
+      log.debug("Service {} is already started", this.getClass().getSimpleName());
+      return;
+    }
+
+    // Expose the FSM latency metrics
+    context.getMetrics().registerMBean(context.getClient().name());
+
     // Start the hardware wallet state machine
+    clientMonitorService = SafeExecutors.newSingleThreadScheduledExecutor("monitor-hw-client");
     clientMonitorService.scheduleWithFixedDelay(
       new Runnable() {
         @Override
@@ -93,6 +116,9 @@ public class HardwareWalletService {
             // call (e.g. initialise()) to poke the device to elicit
             // a low level message response
             context.getState().await(context);
+
+            // Recover from a device that has stopped responding
+            context.checkDeadline();
           } catch (RuntimeException e) {
             log.error("Unexpected error transitioning between states", e);
             // Trigger a failure mode
@@ -113,25 +139,83 @@ public class HardwareWalletService {
 
   /**
    * <p>Stop the service</p>
+   *
+   * <p>The state machine is stopped first and any state progression in flight is allowed to
+   * complete before the device is hard detached. This returns as soon as that work is done.</p>
+   *
+   * <p>A hard detach releases the HID services so the service cannot be started again. Use
+   * {@link #restart()} if the service is to continue with the same device.</p>
    */
-  public void stopAndWait() {
+  public synchronized void stopAndWait() {
 
     log.debug("Service {} stopping...", this.getClass().getSimpleName());
 
+    // Prevent further state progression and drain any in flight
+    shutdownMonitor();
+
+    context.getMetrics().unregisterMBean();
+
+    // Issue the hard detach
     context.resetToStopped();
 
     // Ensure downstream subscribers are purged
     HardwareWalletEvents.unsubscribeAll();
     MessageEvents.unsubscribeAll();
 
+    stopped = true;
+
+    log.debug("Service {} stopped", this.getClass().getSimpleName());
+
+  }
+
+  /**
+   * <p>Restart the service while retaining the context, client and HID services</p>
+   *
+   * <p>The state machine is stopped, the device is soft detached and then reconnected. The current
+   * session is retained so that the device can skip initialisation if it reconnects promptly.
+   * Any operation in progress is abandoned.</p>
+   */
+  public synchronized void restart() {
+
+    if (stopped) {
+      throw new IllegalStateException("Once stopped the service must be started with a fresh instance");
+    }
+
+    log.debug("Service {} restarting...", this.getClass().getSimpleName());
+
+    // Prevent further state progression and drain any in flight
+    shutdownMonitor();
+
+    // Release the device but keep the HID services
+    context.resetForRestart();
+
+    start();
+
+  }
+
+  /**
+   * <p>Shut down the client monitor and wait for any state progression in flight to complete</p>
+   */
+  private void shutdownMonitor() {
+
+    if (clientMonitorService == null) {
+      return;
+    }
+
+    // Periodic executions are cancelled on shutdown
+    clientMonitorService.shutdown();
+
     try {
-      clientMonitorService.awaitTermination(1, TimeUnit.SECONDS);
+      if (!clientMonitorService.awaitTermination(1, TimeUnit.SECONDS)) {
+        log.warn("Client monitor thread did not terminate within the allowed time");
+        clientMonitorService.shutdownNow();
+      }
     } catch (InterruptedException e) {
-      log.warn("Client monitor thread did not terminate within the allowed time");
+      log.warn("Interrupted while awaiting client monitor termination");
+      clientMonitorService.shutdownNow();
+      Thread.currentThread().interrupt();
     }
 
-    stopped = true;
-
   }
 
   /**
@@ -149,6 +233,27 @@ public class HardwareWalletService {
     return context;
   }
 
+  /**
+   * @return The latency metrics for the device (also available through JMX while the service is running)
+   */
+  public HardwareWalletMetrics getMetrics() {
+    return context.getMetrics();
+  }
+
+  /**
+   * @return The deadlines for device responses and the retry policy following a timeout
+   */
+  public UseCaseDeadlines getDeadlines() {
+    return context.getDeadlines();
+  }
+
+  /**
+   * @return The policy used by {@link #signTxAutoMode(Transaction, Map, Map)} to choose how the transaction is delivered
+   */
+  public SignTxModePolicy getSignTxModePolicy() {
+    return signTxModePolicy;
+  }
+
   /**
    * @return True if the hardware wallet has been attached and a successful connection made
    */
@@ -173,6 +278,22 @@ public class HardwareWalletService {
 
   }
 
+  /**
+   * <p>Begin a use case immediately or queue it until a briefly detached device has resumed its session</p>
+   *
+   * @param useCase The use case calling one of the context <code>begin</code> methods
+   */
+  private void beginUseCase(Runnable useCase) {
+
+    // Allow a retry following a timeout
+    context.trackUseCase(useCase);
+
+    if (!context.queueUseCaseIfResuming(useCase)) {
+      useCase.run();
+    }
+
+  }
+
   /**
    * <p>Ping the device</p>
    *
@@ -181,6 +302,7 @@ public class HardwareWalletService {
   public void requestPing() {
 
     // Let the state changes occur as a result of the internal messages
+    context.markHostRequest();
     context.getClient().ping();
 
   }
@@ -193,6 +315,7 @@ public class HardwareWalletService {
   public void requestCancel() {
 
     // Let the state changes occur as a result of the internal messages
+    context.markHostRequest();
     context.getClient().cancel();
 
   }
@@ -202,8 +325,13 @@ public class HardwareWalletService {
    */
   public void wipeDevice() {
 
-    // Set the FSM context
-    context.beginWipeDeviceUseCase();
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginWipeDeviceUseCase();
+      }
+    });
 
   }
 
@@ -212,10 +340,15 @@ public class HardwareWalletService {
    *
    * @param remove True if an existing PIN should be removed
    */
-  public void changePIN(boolean remove) {
-
-    // Set the FSM context
-    context.beginChangePIN(remove);
+  public void changePIN(final boolean remove) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginChangePIN(remove);
+      }
+    });
   }
 
   /**
@@ -237,7 +370,7 @@ public class HardwareWalletService {
   ) {
 
     // Create the specification
-    CreateWalletSpecification specification = new CreateWalletSpecification(
+    final CreateWalletSpecification specification = new CreateWalletSpecification(
       language,
       label,
       displayRandom,
@@ -245,8 +378,13 @@ public class HardwareWalletService {
       strength
     );
 
-    // Set the FSM context
-    context.beginCreateWallet(specification);
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginCreateWallet(specification);
+      }
+    });
 
   }
 
@@ -267,15 +405,20 @@ public class HardwareWalletService {
   ) {
 
     // Create the specification
-    LoadWalletSpecification specification = new LoadWalletSpecification(
+    final LoadWalletSpecification specification = new LoadWalletSpecification(
       language,
       label,
       seedPhrase,
       pin
     );
 
-    // Set the FSM context
-    context.beginLoadWallet(specification);
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginLoadWallet(specification);
+      }
+    });
 
   }
 
@@ -299,6 +442,9 @@ public class HardwareWalletService {
       case SIGN_TX:
         context.continueSignTx_PIN(pin);
         break;
+      case REQUEST_ADDRESSES:
+        context.continueGetAddressBatchUseCase_PIN(pin);
+        break;
       case REQUEST_PUBLIC_KEY:
         context.continueGetPublicKeyUseCase_PIN(pin);
         break;
@@ -337,6 +483,9 @@ public class HardwareWalletService {
         switch (context.getCurrentUseCase()) {
             case DETACHED:
                 break;
+            case REQUEST_ADDRESSES:
+                context.continueGetAddressBatchUseCase_Passphrase(passphrase);
+                break;
             case REQUEST_PUBLIC_KEY_FOR_IDENTITY:
                 context.continueGetPublicKeyForIdentityUseCase_Passphrase(passphrase);
                 break;                        
@@ -380,10 +529,61 @@ public class HardwareWalletService {
    * @param index       The plain index of the required address
    * @param showDisplay True if the device should display the same address to allow the user to verify no tampering has occurred (recommended).
    */
-  public void requestAddress(int account, KeyChain.KeyPurpose keyPurpose, int index, boolean showDisplay) {
+  public void requestAddress(final int account, final KeyChain.KeyPurpose keyPurpose, final int index, final boolean showDisplay) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetAddressUseCase(account, keyPurpose, index, showDisplay);
+      }
+    });
+
+  }
+
+  /**
+   * <p>Request a contiguous range of addresses from the device without display. The addresses are derived as
+   * described in {@link #requestAddress(int, KeyChain.KeyPurpose, int, boolean)}.</p>
+   *
+   * <p>Each GetAddress request is issued as soon as the previous address arrives so the whole range is
+   * covered by a single use case. An ADDRESS event is fired for each address in index order followed by
+   * a single ADDRESS_BATCH event containing all of them.</p>
+   *
+   * @param account    The plain account number (0 gives maximum compatibility)
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param fromIndex  The plain index of the first required address
+   * @param count      The number of consecutive addresses required
+   */
+  public void requestAddresses(final int account, final KeyChain.KeyPurpose keyPurpose, final int fromIndex, final int count) {
+
+    // Create the specification
+    final AddressBatchSpecification specification = new AddressBatchSpecification(
+      account,
+      keyPurpose,
+      fromIndex,
+      count
+    );
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetAddressBatchUseCase(specification);
+      }
+    });
+
+  }
+
+  /**
+   * <p>Cancel an ongoing "request addresses" operation</p>
+   *
+   * <p>The request in flight is allowed to complete and an ADDRESS_BATCH event containing the partial
+   * results is then fired</p>
+   */
+  public void requestCancelAddresses() {
 
     // Set the FSM context
-    context.beginGetAddressUseCase(account, keyPurpose, index, showDisplay);
+    context.cancelGetAddressBatchUseCase();
 
   }
 
@@ -406,10 +606,15 @@ public class HardwareWalletService {
    * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
    * @param index      The plain index of the required address
    */
-  public void requestPublicKey(int account, KeyChain.KeyPurpose keyPurpose, int index) {
+  public void requestPublicKey(final int account, final KeyChain.KeyPurpose keyPurpose, final int index) {
 
-    // Set the FSM context
-    context.beginGetPublicKeyUseCase(account, keyPurpose, index);
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetPublicKeyUseCase(account, keyPurpose, index);
+      }
+    });
 
   }
 
@@ -432,14 +637,17 @@ public class HardwareWalletService {
    * @param ecdsaCurveName The ECDSA curve name to use for TLS (e.g. "nist256p1") leave null to use default
    * @param showDisplay    True if the result should only be given on the device display
    */
-  public void requestPublicKeyForIdentity(URI identityUri, int index, String ecdsaCurveName, boolean showDisplay) {
+  public void requestPublicKeyForIdentity(final URI identityUri, final int index, final String ecdsaCurveName, final boolean showDisplay) {
 
-    if (Strings.isNullOrEmpty(ecdsaCurveName)) {
-      ecdsaCurveName = "nist256p1";
-    }
+    final String curveName = Strings.isNullOrEmpty(ecdsaCurveName) ? "nist256p1" : ecdsaCurveName;
 
-    // Set the FSM context
-    context.beginGetPublicKeyForIdentityUseCase(identityUri, index, ecdsaCurveName, showDisplay);
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetPublicKeyForIdentityUseCase(identityUri, index, curveName, showDisplay);
+      }
+    });
 
   }
 
@@ -451,10 +659,15 @@ public class HardwareWalletService {
    *
    * @param childNumbers The list of child numbers representing a path that may include hardened entries
    */
-  public void requestDeterministicHierarchy(List<ChildNumber> childNumbers) {
+  public void requestDeterministicHierarchy(final List<ChildNumber> childNumbers) {
 
-    // Set the FSM context
-    context.beginGetDeterministicHierarchyUseCase(childNumbers);
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetDeterministicHierarchyUseCase(childNumbers);
+      }
+    });
 
   }
 
@@ -483,27 +696,32 @@ public class HardwareWalletService {
    * @param askOnEncrypt True if device should ask on encrypting
    */
   public void requestCipherKey(
-    int account,
-    KeyChain.KeyPurpose keyPurpose,
-    int index,
-    byte[] displayText,
-    byte[] keyValue,
-    boolean isEncrypting,
-    boolean askOnDecrypt,
-    boolean askOnEncrypt
+    final int account,
+    final KeyChain.KeyPurpose keyPurpose,
+    final int index,
+    final byte[] displayText,
+    final byte[] keyValue,
+    final boolean isEncrypting,
+    final boolean askOnDecrypt,
+    final boolean askOnEncrypt
   ) {
 
-    // Set the FSM context
-    context.beginCipherKeyUseCase(
-      account,
-      keyPurpose,
-      index,
-      displayText,
-      keyValue,
-      isEncrypting,
-      askOnDecrypt,
-      askOnEncrypt
-    );
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginCipherKeyUseCase(
+          account,
+          keyPurpose,
+          index,
+          displayText,
+          keyValue,
+          isEncrypting,
+          askOnDecrypt,
+          askOnEncrypt
+        );
+      }
+    });
   }
 
   /**
@@ -526,15 +744,20 @@ public class HardwareWalletService {
    * @param index      The plain index of the required address
    * @param message    The message for signing
    */
-  public void signMessage(int account, KeyChain.KeyPurpose keyPurpose, int index, byte[] message) {
-
-    // Set the FSM context
-    context.beginSignMessageUseCase(
-      account,
-      keyPurpose,
-      index,
-      message
-    );
+  public void signMessage(final int account, final KeyChain.KeyPurpose keyPurpose, final int index, final byte[] message) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginSignMessageUseCase(
+          account,
+          keyPurpose,
+          index,
+          message
+        );
+      }
+    });
   }
 
   /**
@@ -545,12 +768,54 @@ public class HardwareWalletService {
    * @param changeAddressPathMap    The paths to the change address for this transaction keyed by Address
    */
   public void simpleSignTx(
+    final Transaction transaction,
+    final Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
+    final Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginSimpleSignTxUseCase(transaction, receivingAddressPathMap, changeAddressPathMap);
+      }
+    });
+
+  }
+
+  /**
+   * <p>Request that the device signs the given transaction using SIMPLE_SIGN_TX if the estimated payload fits the
+   * firmware limits in the {@link SignTxModePolicy} and streaming SIGN_TX otherwise. Both modes fire the same events.</p>
+   *
+   * @param transaction             The transaction containing all the inputs and outputs
+   * @param receivingAddressPathMap The paths to the receiving addresses for this transaction keyed by input index
+   * @param changeAddressPathMap    The paths to the change address for this transaction keyed by Address
+   *
+   * @return The mode that was selected
+   */
+  public SignTxMode signTxAutoMode(
     Transaction transaction,
     Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
     Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
 
-    throw new UnsupportedOperationException("Not yet supported. Use signTx instead.");
+    // Built once for both the mode selection and the use case
+    final TxSigningSession session = new TxSigningSession(transaction, receivingAddressPathMap, changeAddressPathMap);
+
+    Optional<Features> features = context.getFeatures();
+    final SignTxMode mode = features.isPresent() ? signTxModePolicy.select(features.get(), session) : SignTxMode.STREAMING;
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        if (mode == SignTxMode.SIMPLE) {
+          context.beginSimpleSignTxUseCase(session);
+        } else {
+          context.beginSignTxUseCase(session);
+        }
+      }
+    });
 
+    return mode;
   }
 
   /**
@@ -560,10 +825,57 @@ public class HardwareWalletService {
    * @param receivingAddressPathMap The paths to the receiving addresses for this transaction keyed by input index
    * @param changeAddressPathMap    The paths to the change address for this transaction keyed by Address
    */
-  public void signTx(Transaction transaction, Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap, Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+  public void signTx(final Transaction transaction, final Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap, final Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginSignTxUseCase(transaction, receivingAddressPathMap, changeAddressPathMap);
+      }
+    });
+
+  }
+
+  /**
+   * <p>Request that the device signs a batch of transactions within a single session. Each transaction is
+   * presented in turn as described in {@link #signTx(Transaction, Map, Map)} but the PIN and passphrase are only
+   * requested once and the next SIGN_TX is issued as soon as the previous transaction finishes.</p>
+   *
+   * <p>A SIGNED_TX event is fired for each transaction (signed, rejected by the user or failed verification)
+   * followed by a single SIGNED_TX_BATCH event containing all the results. A device timeout or detachment ends
+   * the batch with SHOW_OPERATION_FAILED as for a single transaction.</p>
+   *
+   * @param sessions The signing sessions (transaction and address paths) in the order they should be signed
+   */
+  public void signTxBatch(final List<TxSigningSession> sessions) {
+
+    Preconditions.checkNotNull(sessions, "'sessions' must be present");
+    Preconditions.checkArgument(!sessions.isEmpty(), "'sessions' must not be empty");
+
+    // Copy so the caller cannot change the batch once queued
+    final List<TxSigningSession> batch = ImmutableList.copyOf(sessions);
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginSignTxBatchUseCase(batch);
+      }
+    });
+
+  }
+
+  /**
+   * <p>Cancel an ongoing "sign transaction batch" operation</p>
+   *
+   * <p>The transaction in progress is allowed to complete and a SIGNED_TX_BATCH event containing the partial
+   * results is then fired</p>
+   */
+  public void requestCancelSignTxBatch() {
 
     // Set the FSM context
-    context.beginSignTxUseCase(transaction, receivingAddressPathMap, changeAddressPathMap);
+    context.cancelSignTxBatchUseCase();
 
   }
 
@@ -612,10 +924,15 @@ public class HardwareWalletService {
    *
    * @param identity The identity information to sign
    */
-  public void signIdentity(Identity identity) {
-
-    // Set the FSM context
-    context.beginSignIdentityUseCase(identity);
+  public void signIdentity(final Identity identity) {
+
+    // Set the FSM context (queued if a session is being resumed)
+    beginUseCase(new Runnable() {
+      @Override
+      public void run() {
+        context.beginSignIdentityUseCase(identity);
+      }
+    });
   }
 
 }
@@ -71,6 +71,12 @@ public enum HardwareWalletEventType {
    */
   SHOW_OPERATION_FAILED,
 
+  /**
+   * The device did not respond within the deadline for the current operation. The message describes the
+   * reason and whether the operation will be retried (a SHOW_OPERATION_FAILED follows if not).
+   */
+  OPERATION_TIMED_OUT,
+
   /**
    * An additional source of entropy should be provided that will be combined with that shown on the device to
    * yield a seed phrase that can be proved to contain both values. This reduces the chances of compromised hardware.
@@ -82,6 +88,11 @@ public enum HardwareWalletEventType {
    */
   ADDRESS,
 
+  /**
+   * A range of addresses has been generated by the device in response to an earlier request (may be partial if cancelled)
+   */
+  ADDRESS_BATCH,
+
   /**
    * A public key been generated by the device in response to an earlier request
    */
@@ -107,6 +118,16 @@ public enum HardwareWalletEventType {
    */
   SIGNED_IDENTITY,
 
+  /**
+   * A transaction within a batch has been signed (or has failed) in response to an earlier request
+   */
+  SIGNED_TX,
+
+  /**
+   * A batch of transactions has been signed in response to an earlier request (may be partial if cancelled)
+   */
+  SIGNED_TX_BATCH,
+
   // End of enum
   ;
 
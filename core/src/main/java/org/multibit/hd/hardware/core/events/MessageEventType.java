@@ -39,6 +39,10 @@ public enum MessageEventType {
    * Notification. Received when a device is detached permanently (no device present, native libraries shut down)
    */
   DEVICE_DETACHED_HARD,
+  /**
+   * Notification. Raised by the host when a device has not responded within the deadline for the current use case
+   */
+  DEVICE_TIMEOUT,
 
   // Connection
   /**
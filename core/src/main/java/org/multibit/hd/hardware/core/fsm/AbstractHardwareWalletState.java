@@ -33,6 +33,24 @@ public abstract class AbstractHardwareWalletState implements HardwareWalletState
   @Override
   public void transition(HardwareWalletClient client, HardwareWalletContext context, MessageEvent event) {
 
+    long start = System.nanoTime();
+    try {
+      handleTransition(client, context, event);
+    } finally {
+      context.getMetrics().recordTransition(getClass().getSimpleName(), event.getEventType().name(), System.nanoTime() - start);
+    }
+
+  }
+
+  /**
+   * <p>Handle device lifecycle events common to all states and delegate the remainder to the implementation</p>
+   *
+   * @param client  The hardware wallet client for sending messages
+   * @param context The current context providing parameters for decisions
+   * @param event   The event driving the transition
+   */
+  private void handleTransition(HardwareWalletClient client, HardwareWalletContext context, MessageEvent event) {
+
     // Handle low level message events for the device
     switch (event.getEventType()) {
       case DEVICE_ATTACHED:
@@ -51,6 +69,9 @@ public abstract class AbstractHardwareWalletState implements HardwareWalletState
       case DEVICE_FAILED:
         context.resetToFailed();
         return;
+      case DEVICE_TIMEOUT:
+        context.handleTimeout();
+        return;
     }
 
     // Must be unhandled to be here so rely on internal handler
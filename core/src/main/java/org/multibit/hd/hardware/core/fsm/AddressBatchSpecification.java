@@ -0,0 +1,72 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Preconditions;
+import org.bitcoinj.wallet.KeyChain;
+
+/**
+ * <p>Value object to provide the following to hardware wallet FSM:</p>
+ * <ul>
+ * <li>Context state for requesting a contiguous range of addresses from the device</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class AddressBatchSpecification {
+
+  private final int account;
+  private final KeyChain.KeyPurpose keyPurpose;
+  private final int fromIndex;
+  private final int count;
+
+  /**
+   * @param account    The plain account number (0 gives maximum compatibility)
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param fromIndex  The plain index of the first required address
+   * @param count      The number of consecutive addresses required (must be at least 1)
+   */
+  public AddressBatchSpecification(
+    int account,
+    KeyChain.KeyPurpose keyPurpose,
+    int fromIndex,
+    int count
+  ) {
+
+    Preconditions.checkNotNull(keyPurpose, "'keyPurpose' must be present");
+    Preconditions.checkArgument(fromIndex >= 0, "'fromIndex' must not be negative");
+    Preconditions.checkArgument(count > 0, "'count' must be at least 1");
+
+    this.account = account;
+    this.keyPurpose = keyPurpose;
+    this.fromIndex = fromIndex;
+    this.count = count;
+  }
+
+  /**
+   * @return The plain account number
+   */
+  public int getAccount() {
+    return account;
+  }
+
+  /**
+   * @return The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   */
+  public KeyChain.KeyPurpose getKeyPurpose() {
+    return keyPurpose;
+  }
+
+  /**
+   * @return The plain index of the first required address
+   */
+  public int getFromIndex() {
+    return fromIndex;
+  }
+
+  /**
+   * @return The number of consecutive addresses required
+   */
+  public int getCount() {
+    return count;
+  }
+}
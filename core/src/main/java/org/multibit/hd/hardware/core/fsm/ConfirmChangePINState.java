@@ -36,6 +36,7 @@ public class ConfirmChangePINState extends AbstractHardwareWalletState {
       case BUTTON_REQUEST:
         // Device is requesting a button press
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
         client.buttonAck();
         break;
       case SUCCESS:
@@ -26,6 +26,7 @@ public class ConfirmEntropyState extends AbstractHardwareWalletState {
       case BUTTON_REQUEST:
         // Device is asking for the user to acknowledge a word display
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
         client.buttonAck();
         break;
       case SUCCESS:
@@ -0,0 +1,75 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import org.multibit.hd.hardware.core.HardwareWalletClient;
+import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.messages.MainNetAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>State to provide the following to hardware wallet clients:</p>
+ * <ul>
+ * <li>State transitions based on low level message events</li>
+ * </ul>
+ * <p>The "confirm get address batch" state occurs in response to the first GET_ADDRESS message
+ * of a "request addresses" use case. Each ADDRESS response is passed on immediately as an
+ * ADDRESS event and the next GET_ADDRESS is issued straight away without waiting on the
+ * service. The final ADDRESS_BATCH event is fired once the range is exhausted or the batch
+ * has been cancelled, or with the addresses collected so far if the device fails.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class ConfirmGetAddressBatchState extends AbstractHardwareWalletState {
+
+  private static final Logger log = LoggerFactory.getLogger(ConfirmGetAddressBatchState.class);
+
+  @Override
+  protected void internalTransition(HardwareWalletClient client, HardwareWalletContext context, MessageEvent event) {
+
+    switch (event.getEventType()) {
+      case BUTTON_REQUEST:
+        // Device is asking for button press (should not occur without display but handle anyway)
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
+        client.buttonAck();
+        break;
+      case PIN_MATRIX_REQUEST:
+        // Device is asking for a PIN matrix to be displayed (user must read the screen carefully)
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_PIN_ENTRY, event.getMessage().get(), client.name());
+        // Further state transitions will occur after the user has provided the PIN via the service
+        break;
+      case PASSPHRASE_REQUEST:
+        // Device is asking for a passphrase screen to be displayed
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_PASSPHRASE_ENTRY, client.name());
+        // Further state transitions will occur after the user has provided the passphrase via the service
+        break;
+      case ADDRESS:
+        // Device has provided the next address in the range
+        MainNetAddress address = (MainNetAddress) event.getMessage().get();
+        if (!address.getAddress().isPresent()) {
+          log.warn("Device provided an invalid address. Abandoning batch.");
+          context.cancelGetAddressBatchUseCase();
+        } else {
+          context.getAddressBatch().add(address.getAddress().get());
+          // Stream the individual result
+          HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.ADDRESS, address, client.name());
+        }
+        // Issue the next request immediately or complete the batch
+        context.continueGetAddressBatchUseCase();
+        break;
+      case FAILURE:
+        // Pass on the addresses collected before the failure
+        context.fireAddressBatch();
+        // User has cancelled or operation failed
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_FAILED, event.getMessage().get(), client.name());
+        context.resetToInitialised();
+        break;
+      default:
+        handleUnexpectedMessageEvent(context, event);
+    }
+
+  }
+}
@@ -1,6 +1,10 @@
 package org.multibit.hd.hardware.core.fsm;
 
-import com.google.common.collect.Lists;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
 import org.bitcoinj.crypto.ChildNumber;
 import org.bitcoinj.crypto.DeterministicHierarchy;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -9,10 +13,15 @@ import org.multibit.hd.hardware.core.HardwareWalletClient;
 import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
 import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
 import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.messages.Failure;
+import org.multibit.hd.hardware.core.messages.FailureType;
+import org.multibit.hd.hardware.core.messages.HDNodeType;
 import org.multibit.hd.hardware.core.messages.PublicKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.math.ec.ECPoint;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -25,6 +34,9 @@ import java.util.List;
  * failure messages coming from the device as it provides the public key generated from
  * the seed phrase.</p>
  *
+ * <p>A single GET_PUBLIC_KEY at the target path is sufficient since the key is built
+ * locally with an explicit path rather than from a chain of parents.</p>
+ *
  * @since 0.0.1
  *  
  */
@@ -32,6 +44,16 @@ public class ConfirmGetDeterministicHierarchyState extends AbstractHardwareWalle
 
   private static final Logger log = LoggerFactory.getLogger(ConfirmGetDeterministicHierarchyState.class);
 
+  /**
+   * BIP-32 version bytes for a main net extended public key ("xpub")
+   */
+  private static final int XPUB_VERSION = 0x0488B21E;
+
+  /**
+   * Version, depth, parent fingerprint, child number, chain code and compressed public key
+   */
+  private static final int XPUB_LENGTH = 78;
+
   @Override
   protected void internalTransition(HardwareWalletClient client, HardwareWalletContext context, MessageEvent event) {
 
@@ -47,49 +69,31 @@ public class ConfirmGetDeterministicHierarchyState extends AbstractHardwareWalle
         // Further state transitions will occur after the user has provided the passphrase via the service
         break;
       case PUBLIC_KEY:
-        // Device has completed the operation and provided a public key
+        // Device has completed the operation and provided the public key at the target path
         PublicKey publicKey = (PublicKey) event.getMessage().get();
-
-        // Gather some info
-        int depth = publicKey.getHdNodeType().get().getDepth().get();
-        String base58Xpub = publicKey.getXpub().get();
         List<ChildNumber> childNumbers = context.getChildNumbers().get();
 
-        // Check current depth against the requirements
-        if (depth <= childNumbers.size()) {
-
-          // Update the current deterministic key forming the root of the hierarchy
-          DeterministicKey parent = context.getDeterministicKey().orNull();
-          log.debug("Parent key path: {}", parent == null ? "Root" : parent.getPathAsString());
-          DeterministicKey child = DeterministicKey.deserializeB58(parent, base58Xpub, MainNetParams.get());
-          log.debug("Child key path: {}", child.getPathAsString());
-          context.setDeterministicKey(child);
-
+        // Build the key locally with an explicit path rather than walking the parent chain on the device
+        Optional<DeterministicKey> deterministicKey = buildDeterministicKey(publicKey, childNumbers);
+        if (!deterministicKey.isPresent()) {
+          HardwareWalletEvents.fireHardwareWalletEvent(
+            HardwareWalletEventType.SHOW_OPERATION_FAILED,
+            new Failure(FailureType.OTHER, "Public key does not match the requested path"),
+            client.name()
+          );
+          context.resetToInitialised();
+          break;
         }
+        log.debug("Key path: {}", deterministicKey.get().getPathAsString());
 
-        if (depth == childNumbers.size()) {
-          // We have reached the correct depth so we can create the hierarchy
-          context.setDeterministicHierarchy(new DeterministicHierarchy(context.getDeterministicKey().get()));
-
-          // Inform downstream consumers that we are ready
-          // (deterministic hierarchy would require a wrapper for inclusion in the event itself)
-          HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.DETERMINISTIC_HIERARCHY, client.name());
-        }
+        // Update the current deterministic key forming the root of the hierarchy
+        context.setDeterministicKey(deterministicKey.get());
+        context.setDeterministicHierarchy(new DeterministicHierarchy(deterministicKey.get()));
+        context.setExtendedPublicKey(buildExtendedPublicKey(publicKey, deterministicKey.get()));
 
-        // Are further calls into the hierarchy required?
-        if (depth < childNumbers.size()) {
-
-          // Build up the child number list to include the next level
-          int nextDepth = depth + 1;
-          List<ChildNumber> nextChildNumbers = Lists.newArrayList();
-          for (int i = 0; i < childNumbers.size(); i++) {
-            if (i < nextDepth) {
-              nextChildNumbers.add(childNumbers.get(i));
-            }
-          }
-          client.getDeterministicHierarchy(nextChildNumbers);
-
-        }
+        // Inform downstream consumers that we are ready
+        // (deterministic hierarchy would require a wrapper for inclusion in the event itself)
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.DETERMINISTIC_HIERARCHY, client.name());
 
         break;
       case FAILURE:
@@ -102,4 +106,82 @@ public class ConfirmGetDeterministicHierarchyState extends AbstractHardwareWalle
     }
 
   }
+
+  /**
+   * <p>Build a public only deterministic key from the device response with an explicit path</p>
+   *
+   * <p>The parent is not available so the key itself serializes with a zero parent fingerprint. Derivation
+   * of children, addresses and watching wallets is unaffected. Use {@link #buildExtendedPublicKey(PublicKey, DeterministicKey)}
+   * for a serialized form that retains the fingerprint reported by the device.</p>
+   *
+   * @param publicKey    The public key provided by the device
+   * @param childNumbers The requested path
+   *
+   * @return The deterministic key, absent if the response does not match the requested depth
+   */
+  static Optional<DeterministicKey> buildDeterministicKey(PublicKey publicKey, List<ChildNumber> childNumbers) {
+
+    ImmutableList<ChildNumber> path = ImmutableList.copyOf(childNumbers);
+
+    if (publicKey.getHdNodeType().isPresent()) {
+
+      HDNodeType hdNodeType = publicKey.getHdNodeType().get();
+      if (hdNodeType.getDepth().isPresent() && hdNodeType.getDepth().get() != path.size()) {
+        log.warn("Expected depth {} but received {}", path.size(), hdNodeType.getDepth().get());
+        return Optional.absent();
+      }
+
+      if (hdNodeType.getChainCode().isPresent() && hdNodeType.getPublicKey().isPresent()) {
+        ECPoint point = ECKey.fromPublicOnly(hdNodeType.getPublicKey().get()).getPubKeyPoint();
+        return Optional.of(new DeterministicKey(path, hdNodeType.getChainCode().get(), point, null, null));
+      }
+    }
+
+    if (publicKey.getXpub().isPresent()) {
+
+      // Fall back to the serialized form for the chain code and point
+      DeterministicKey parsed = DeterministicKey.deserializeB58(null, publicKey.getXpub().get(), MainNetParams.get());
+      return Optional.of(new DeterministicKey(path, parsed.getChainCode(), parsed.getPubKeyPoint(), null, null));
+    }
+
+    return Optional.absent();
+
+  }
+
+  /**
+   * <p>Provide the base 58 xpub of the key with the parent fingerprint reported by the device</p>
+   *
+   * @param publicKey        The public key provided by the device
+   * @param deterministicKey The key built from the device response
+   *
+   * @return The xpub, absent if the device provided neither an xpub nor a parent fingerprint
+   */
+  static Optional<String> buildExtendedPublicKey(PublicKey publicKey, DeterministicKey deterministicKey) {
+
+    if (publicKey.getXpub().isPresent()) {
+      // The device serialization already carries the parent fingerprint
+      return publicKey.getXpub();
+    }
+
+    if (!publicKey.getHdNodeType().isPresent() || !publicKey.getHdNodeType().get().getFingerprint().isPresent()) {
+      return Optional.absent();
+    }
+
+    ImmutableList<ChildNumber> path = deterministicKey.getPath();
+
+    ByteBuffer xpub = ByteBuffer.allocate(XPUB_LENGTH + 4);
+    xpub.putInt(XPUB_VERSION);
+    xpub.put((byte) path.size());
+    xpub.putInt(publicKey.getHdNodeType().get().getFingerprint().get());
+    xpub.putInt(path.isEmpty() ? 0 : path.get(path.size() - 1).i());
+    xpub.put(deterministicKey.getChainCode());
+    xpub.put(deterministicKey.getPubKey());
+
+    // Base 58 check encoding
+    byte[] checksum = Hashing.sha256().hashBytes(Hashing.sha256().hashBytes(xpub.array(), 0, XPUB_LENGTH).asBytes()).asBytes();
+    xpub.put(checksum, 0, 4);
+
+    return Optional.of(Base58.encode(xpub.array()));
+
+  }
 }
@@ -25,6 +25,7 @@ public class ConfirmLoadState extends AbstractHardwareWalletState {
       case BUTTON_REQUEST:
         // Device is asking for button press (entropy display, confirmation of reset etc)
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
         client.buttonAck();
         break;
       case PIN_MATRIX_REQUEST:
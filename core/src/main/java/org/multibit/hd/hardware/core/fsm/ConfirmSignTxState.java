@@ -1,12 +1,18 @@
 package org.multibit.hd.hardware.core.fsm;
 
+import com.google.common.base.Optional;
 import org.bitcoinj.core.Transaction;
 import org.multibit.hd.hardware.core.HardwareWalletClient;
+import org.multibit.hd.hardware.core.HardwareWalletException;
 import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
 import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
 import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.messages.Failure;
+import org.multibit.hd.hardware.core.messages.FailureType;
 import org.multibit.hd.hardware.core.messages.TxRequest;
 import org.multibit.hd.hardware.core.messages.TxRequestSerializedType;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+import org.multibit.hd.hardware.core.signing.SignedTxAssembler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +45,13 @@ import java.io.IOException;
  *   <li>< TX_REQUEST (hash 0: output 1)</li>
  *   <li>> TX_ACK (hash 0: output 1: address, amount, script type)</li>
  * </ol>
+ *
+ * <p>The same state handles the "simple sign transaction" use case in which the device already holds every
+ * input and output so the TX_REQUEST messages only carry the serialized transaction.</p>
+ *
+ * <p>During a "sign transaction batch" the result of each transaction (including a failure) is recorded with
+ * the context which issues the next SIGN_TX straight away.</p>
+ *
  * @since 0.0.1
  *  
  */
@@ -61,45 +74,90 @@ public class ConfirmSignTxState extends AbstractHardwareWalletState {
         // Further state transitions will occur after the user has provided the passphrase via the service
         break;
       case TX_REQUEST:
+        if (context.getSignTxFailure().isPresent()) {
+          // Already in flight when the Cancel was issued
+          log.debug("Ignoring TX_REQUEST while awaiting the response to Cancel");
+          break;
+        }
+
         // Device is requesting a transaction input or output
-        Transaction transaction = context.getTransaction().get();
         TxRequest txRequest = ((TxRequest) event.getMessage().get());
 
         // Check if we are being given a signature
         TxRequestSerializedType serializedType = txRequest.getTxRequestSerializedType();
-        if (serializedType.getSignatureIndex().isPresent()) {
-          log.debug("Received signature index");
-          int signedInputIndex = serializedType.getSignatureIndex().get();
-          byte[] signature = serializedType.getSignature().get();
-          context.getSignatures().put(signedInputIndex, signature);
-        }
-        if (serializedType.getSerializedTx().isPresent()) {
-          log.debug("Received serialized Tx - could be partial");
-          byte[] serializedTx = serializedType.getSerializedTx().get();
-          try {
-            context.getSerializedTx().write(serializedTx);
-          } catch (IOException e) {
-            // Ignore
+        SignedTxAssembler assembler = context.getSignedTxAssembler().get();
+        try {
+          if (serializedType.getSerializedTx().isPresent()) {
+            log.debug("Received serialized Tx - could be partial");
+            byte[] serializedTx = serializedType.getSerializedTx().get();
+            try {
+              context.getSerializedTx().write(serializedTx);
+            } catch (IOException e) {
+              // Ignore
+            }
+            // Parse and verify the inputs and outputs it completes
+            assembler.appendSerializedTx(serializedTx);
+          }
+          if (serializedType.getSignatureIndex().isPresent()) {
+            log.debug("Received signature index");
+            int signedInputIndex = serializedType.getSignatureIndex().get();
+            byte[] signature = serializedType.getSignature().get();
+            context.getSignatures().put(signedInputIndex, signature);
+            assembler.appendSignature(signedInputIndex, signature);
           }
+          if (txRequest.getTxRequestType() == TxRequestType.TX_FINISHED) {
+            assembler.finish();
+          }
+        } catch (HardwareWalletException e) {
+          // Fail fast rather than continue with a transaction that does not match
+          log.error("Signed transaction failed verification: {}", e.getMessage());
+          Failure failure = new Failure(FailureType.OTHER, e.getMessage());
+          // Abandon the transaction on the device and report the failure once it acknowledges
+          // (a batch then records it and moves on to the next transaction)
+          context.setSignTxFailure(Optional.of(failure));
+          context.markHostRequest();
+          client.cancel();
+          break;
         }
 
-        switch (txRequest.getTxRequestType()) {
-          case TX_FINISHED:
-            HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_SUCCEEDED, event.getMessage().get(), client.name());
-            break;
-          case TX_OUTPUT:
+        if (txRequest.getTxRequestType() == TxRequestType.TX_FINISHED) {
+          if (context.getCurrentUseCase() != ContextUseCase.SIMPLE_SIGN_TX) {
+            // Release the responses for this transaction (nothing is sent so no device response is awaited)
+            client.txAck(txRequest, context.getTxSigningSession().get());
+          }
+          if (context.isSignTxBatch()) {
+            // Issue the next SIGN_TX immediately
+            context.continueSignTxBatchUseCase(assembler.getSignedTx(), Optional.<Failure>absent());
             break;
+          }
+          HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_SUCCEEDED, event.getMessage().get(), client.name());
+          break;
         }
-        client.txAck(txRequest, transaction, context.getReceivingAddressPathMap(), context.getChangeAddressPathMap());
+
+        if (context.getCurrentUseCase() == ContextUseCase.SIMPLE_SIGN_TX) {
+          // Device already holds the whole transaction so never expects a TX_ACK
+          break;
+        }
+        context.markHostRequest();
+        client.txAck(txRequest, context.getTxSigningSession().get());
         break;
       case BUTTON_REQUEST:
         // Device is requesting a button press
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
         client.buttonAck();
         break;
       case FAILURE:
+        // A failed verification takes precedence over the response to the Cancel it caused
+        Failure failure = context.getSignTxFailure().or((Failure) event.getMessage().get());
+        context.setSignTxFailure(Optional.<Failure>absent());
+        if (context.isSignTxBatch()) {
+          // User has rejected this transaction (or it failed) so record it and move on to the next
+          context.continueSignTxBatchUseCase(Optional.<Transaction>absent(), Optional.of(failure));
+          break;
+        }
         // User has cancelled or operation failed
-        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_FAILED, event.getMessage().get(), client.name());
+        HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_FAILED, failure, client.name());
         context.resetToInitialised();
         break;
       default:
@@ -25,6 +25,7 @@ public class ConfirmWipeState extends AbstractHardwareWalletState {
       case BUTTON_REQUEST:
         // Device is asking for confirmation to wipe
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_BUTTON_PRESS, event.getMessage().get(), client.name());
+        context.markHostRequest();
         client.buttonAck();
         break;
       case SUCCESS:
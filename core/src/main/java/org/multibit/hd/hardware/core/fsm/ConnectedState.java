@@ -5,6 +5,8 @@ import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
 import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
 import org.multibit.hd.hardware.core.events.MessageEvent;
 import org.multibit.hd.hardware.core.messages.Features;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>State to provide the following to hardware wallet clients:</p>
@@ -22,11 +24,19 @@ import org.multibit.hd.hardware.core.messages.Features;
  */
 public class ConnectedState extends AbstractHardwareWalletState {
 
+  private static final Logger log = LoggerFactory.getLogger(ConnectedState.class);
+
   @Override
   public void await(HardwareWalletContext context) {
 
-    // Trigger a state transition via the response event
-    context.getClient().initialise();
+    context.markHostRequest();
+    if (context.getResumingSession().isPresent()) {
+      // Validate the previous session without resetting the device
+      context.getClient().getFeatures();
+    } else {
+      // Trigger a state transition via the response event
+      context.getClient().initialise();
+    }
 
   }
 
@@ -36,6 +46,20 @@ public class ConnectedState extends AbstractHardwareWalletState {
     switch (event.getEventType()) {
       case FEATURES:
         Features features = (Features) event.getMessage().get();
+
+        if (context.getResumingSession().isPresent()) {
+          if (context.resumeSession(features)) {
+            // Same device with an unchanged session so skip verification
+            context.resetToInitialised();
+            context.runQueuedUseCase();
+          } else {
+            // Different device or changed session so perform a full initialisation
+            context.markHostRequest();
+            client.initialise();
+          }
+          break;
+        }
+
         context.setFeatures(features);
 
         // Verify the Features through the client
@@ -45,9 +69,16 @@ public class ConnectedState extends AbstractHardwareWalletState {
         } else {
           features.setSupported(true);
           context.resetToInitialised();
+          // Retry any use case that was interrupted by a timeout
+          context.runQueuedUseCase();
         }
         break;
       case FAILURE:
+        if (context.isRecoveryPending() || context.getResumingSession().isPresent()) {
+          // The response to the Cancel issued during recovery so continue to await the features
+          log.debug("Ignoring failure while awaiting features");
+          break;
+        }
         HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_OPERATION_FAILED, event.getMessage().get(), client.name());
         context.resetToInitialised();
         break;
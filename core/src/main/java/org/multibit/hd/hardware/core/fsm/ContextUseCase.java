@@ -17,6 +17,7 @@ public enum ContextUseCase {
   PROVIDE_ENTROPY,
   CREATE_WALLET,
   REQUEST_ADDRESS,
+  REQUEST_ADDRESSES,
   REQUEST_PUBLIC_KEY,
   REQUEST_PUBLIC_KEY_FOR_IDENTITY,
   REQUEST_DETERMINISTIC_HIERARCHY,
@@ -0,0 +1,88 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Objects;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.multibit.hd.hardware.core.messages.Features;
+
+/**
+ * <p>Value object to provide the following to hardware wallet FSM:</p>
+ * <ul>
+ * <li>Record of a device session that was active when the device detached</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class DeviceSession {
+
+  private final String clientName;
+  private final Features features;
+  private final long detachedAtMillis;
+
+  /**
+   * @param clientName       The client name (identifies the transport and device binding)
+   * @param features         The features reported by the device during the session
+   * @param detachedAtMillis The time the device detached (milliseconds since epoch)
+   */
+  public DeviceSession(String clientName, Features features, long detachedAtMillis) {
+    this.clientName = clientName;
+    this.features = features;
+    this.detachedAtMillis = detachedAtMillis;
+  }
+
+  /**
+   * @return The key for this session combining the client name and device ID
+   */
+  public String getKey() {
+    return DeviceSessionCache.buildKey(clientName, features.getDeviceId());
+  }
+
+  /**
+   * @return The client name
+   */
+  public String getClientName() {
+    return clientName;
+  }
+
+  /**
+   * @return The features reported by the device during the session
+   */
+  public Features getFeatures() {
+    return features;
+  }
+
+  /**
+   * @return The time the device detached (milliseconds since epoch)
+   */
+  public long getDetachedAtMillis() {
+    return detachedAtMillis;
+  }
+
+  /**
+   * <p>Compare the features reported by a reattached device with those of this session</p>
+   *
+   * @param other The features reported by the reattached device
+   *
+   * @return True if the device is the same and nothing relevant has changed so the session can be resumed
+   */
+  public boolean matches(Features other) {
+
+    return other != null
+      && Objects.equal(features.getDeviceId(), other.getDeviceId())
+      && Objects.equal(features.getVersion(), other.getVersion())
+      && Objects.equal(features.getLabel(), other.getLabel())
+      && features.isInitialized() == other.isInitialized()
+      && features.hasPinProtection() == other.hasPinProtection()
+      && features.hasPassphraseProtection() == other.hasPassphraseProtection()
+      && features.isBootloaderMode() == other.isBootloaderMode();
+
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("clientName", clientName)
+      .append("detachedAtMillis", detachedAtMillis)
+      .toString();
+  }
+}
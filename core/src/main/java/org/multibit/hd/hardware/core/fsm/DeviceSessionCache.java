@@ -0,0 +1,126 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import org.multibit.hd.hardware.core.messages.Features;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>Cache to provide the following to hardware wallet FSM:</p>
+ * <ul>
+ * <li>Retention of device sessions across brief detachments</li>
+ * </ul>
+ *
+ * <p>Sessions are keyed on the client name and the device ID so that a different device
+ * presenting itself on the same transport will never be mistaken for the original.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class DeviceSessionCache {
+
+  /**
+   * Default window after a detach in which a session can be resumed
+   */
+  public static final long DEFAULT_RESUME_WINDOW_MILLIS = 5000;
+
+  private final Map<String, DeviceSession> sessions = Maps.newHashMap();
+
+  private long resumeWindowMillis = DEFAULT_RESUME_WINDOW_MILLIS;
+
+  /**
+   * @param clientName The client name
+   * @param deviceId   The device ID from the features
+   *
+   * @return The cache key
+   */
+  static String buildKey(String clientName, String deviceId) {
+    return clientName + ":" + Strings.nullToEmpty(deviceId);
+  }
+
+  /**
+   * @return The window after a detach in which a session can be resumed (zero disables resumption)
+   */
+  public long getResumeWindowMillis() {
+    return resumeWindowMillis;
+  }
+
+  /**
+   * @param resumeWindowMillis The window after a detach in which a session can be resumed (zero disables resumption)
+   */
+  public void setResumeWindowMillis(long resumeWindowMillis) {
+    Preconditions.checkArgument(resumeWindowMillis >= 0, "'resumeWindowMillis' must not be negative");
+    this.resumeWindowMillis = resumeWindowMillis;
+  }
+
+  /**
+   * <p>Record the session for a device that has just detached</p>
+   *
+   * @param clientName The client name
+   * @param features   The features reported by the device
+   */
+  public synchronized void put(String clientName, Features features) {
+
+    Preconditions.checkNotNull(clientName, "'clientName' must be present");
+    Preconditions.checkNotNull(features, "'features' must be present");
+
+    long now = System.currentTimeMillis();
+
+    // Purge any sessions that can no longer be resumed
+    Iterator<DeviceSession> iterator = sessions.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().getDetachedAtMillis() > resumeWindowMillis) {
+        iterator.remove();
+      }
+    }
+
+    DeviceSession session = new DeviceSession(clientName, features, now);
+    sessions.put(session.getKey(), session);
+
+  }
+
+  /**
+   * @param clientName The client name
+   *
+   * @return The most recently detached session for the client if it is still within the resume window
+   */
+  public synchronized Optional<DeviceSession> findResumable(String clientName) {
+
+    long now = System.currentTimeMillis();
+
+    DeviceSession candidate = null;
+    for (DeviceSession session : sessions.values()) {
+      if (!session.getClientName().equals(clientName)) {
+        continue;
+      }
+      if (now - session.getDetachedAtMillis() > resumeWindowMillis) {
+        continue;
+      }
+      if (candidate == null || session.getDetachedAtMillis() > candidate.getDetachedAtMillis()) {
+        candidate = session;
+      }
+    }
+
+    return Optional.fromNullable(candidate);
+  }
+
+  /**
+   * <p>Remove the session (e.g. after resumption or on validation failure)</p>
+   *
+   * @param session The session
+   */
+  public synchronized void remove(DeviceSession session) {
+    sessions.remove(session.getKey());
+  }
+
+  /**
+   * <p>Remove all sessions</p>
+   */
+  public synchronized void clear() {
+    sessions.clear();
+  }
+}
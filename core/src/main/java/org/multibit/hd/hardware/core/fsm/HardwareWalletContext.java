@@ -1,9 +1,12 @@
 package org.multibit.hd.hardware.core.fsm;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import com.google.common.eventbus.Subscribe;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Transaction;
@@ -16,15 +19,30 @@ import org.multibit.hd.hardware.core.domain.Identity;
 import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
 import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
 import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.events.MessageEventType;
 import org.multibit.hd.hardware.core.events.MessageEvents;
+import org.multibit.hd.hardware.core.messages.Failure;
+import org.multibit.hd.hardware.core.messages.FailureType;
 import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.messages.MainNetAddressBatch;
+import org.multibit.hd.hardware.core.messages.OperationTimeout;
+import org.multibit.hd.hardware.core.messages.SignedTx;
+import org.multibit.hd.hardware.core.messages.SignedTxBatch;
+import org.multibit.hd.hardware.core.messages.TimeoutReason;
+import org.multibit.hd.hardware.core.metrics.HardwareWalletMetrics;
+import org.multibit.hd.hardware.core.signing.SignTxValidator;
+import org.multibit.hd.hardware.core.signing.SignedTxAssembler;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.net.URI;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>State context to provide the following to hardware wallet finite state machine:</p>
@@ -43,6 +61,19 @@ public class HardwareWalletContext {
 
   private static final Logger log = LoggerFactory.getLogger(HardwareWalletContext.class);
 
+  /**
+   * Events that describe the device lifecycle rather than responses to messages
+   */
+  private static final EnumSet<MessageEventType> DEVICE_LIFECYCLE_EVENTS = EnumSet.of(
+    MessageEventType.DEVICE_ATTACHED,
+    MessageEventType.DEVICE_DETACHED,
+    MessageEventType.DEVICE_DETACHED_HARD,
+    MessageEventType.DEVICE_CONNECTED,
+    MessageEventType.DEVICE_DISCONNECTED,
+    MessageEventType.DEVICE_FAILED,
+    MessageEventType.DEVICE_TIMEOUT
+  );
+
   /**
    * The hardware wallet client handling outgoing messages and generating low level
    * message events
@@ -53,7 +84,7 @@ public class HardwareWalletContext {
    * The current state should start by assuming an attached device and progress from there
    * to either detached or connected
    */
-  private HardwareWalletState currentState = HardwareWalletStates.newAttachedState();
+  private volatile HardwareWalletState currentState = HardwareWalletStates.newAttachedState();
 
   /**
    * We begin at the start
@@ -70,6 +101,101 @@ public class HardwareWalletContext {
    */
   private Optional<LoadWalletSpecification> loadWalletSpecification = Optional.absent();
 
+  /**
+   * Provide contextual information for the current "request addresses" use case
+   */
+  private Optional<AddressBatchSpecification> addressBatchSpecification = Optional.absent();
+
+  /**
+   * The addresses provided so far during the "request addresses" use case (index order)
+   */
+  private List<Address> addressBatch = Lists.newArrayList();
+
+  /**
+   * True if the "request addresses" use case should complete on the next response from the device
+   */
+  private volatile boolean addressBatchCancelled = false;
+
+  /**
+   * Retains sessions across brief detachments so that a reattached device can skip initialisation
+   */
+  private final DeviceSessionCache sessionCache = new DeviceSessionCache();
+
+  /**
+   * The session being resumed following a reattach (validated through GET_FEATURES in the connected state)
+   */
+  private Optional<DeviceSession> resumingSession = Optional.absent();
+
+  /**
+   * A use case requested while a session was being resumed (run once the session is validated)
+   */
+  private Optional<Runnable> queuedUseCase = Optional.absent();
+
+  /**
+   * Latency metrics for states, transitions, device round trips and user interaction
+   */
+  private final HardwareWalletMetrics metrics = new HardwareWalletMetrics();
+
+  /**
+   * The time the current state was entered (nanoseconds)
+   */
+  private long stateEnteredNanos = System.nanoTime();
+
+  /**
+   * The time the last message was sent to the device (nanoseconds), zero if no response is outstanding
+   */
+  private volatile long hostRequestNanos = 0;
+
+  /**
+   * The time the last message was received from the device (nanoseconds)
+   */
+  private volatile long deviceEventNanos = 0;
+
+  /**
+   * True if the device is waiting on a button press following the last message
+   */
+  private volatile boolean awaitingButton = false;
+
+  /**
+   * True if the host is waiting on the user to provide a PIN or passphrase
+   */
+  private volatile boolean awaitingUserInput = false;
+
+  /**
+   * Deadlines for device responses and the retry policy following a timeout
+   */
+  private final UseCaseDeadlines deadlines = new UseCaseDeadlines();
+
+  /**
+   * The most recent use case started through the service (allows a retry following a timeout)
+   */
+  private Optional<Runnable> trackedUseCase = Optional.absent();
+
+  /**
+   * The "get addresses" batch that timed out and is being retried (allows the retry to resume after the collected addresses)
+   */
+  private Optional<AddressBatchSpecification> resumableAddressBatchSpecification = Optional.absent();
+
+  /**
+   * The addresses collected (and reported) before the "get addresses" timeout
+   */
+  private List<Address> resumableAddressBatch = Lists.newArrayList();
+
+  /**
+   * The number of timeouts that have occurred for the tracked use case
+   */
+  private int timeoutAttempts = 0;
+
+  /**
+   * True if a timeout has been posted to the event thread but not yet handled
+   */
+  private volatile boolean timeoutPosted = false;
+
+  /**
+   * True if the device has been cancelled and re-initialised following a timeout and the features are awaited
+   */
+  private volatile boolean recoveryPending = false;
+
   /**
    * Provide the features
    */
@@ -79,6 +205,42 @@ public class HardwareWalletContext {
    * Provide the transaction forming the basis for the "sign transaction" use case
    */
   private Optional<Transaction> transaction = Optional.absent();
+
+  /**
+   * Provide the signing session (with its parent transaction index) for the "sign transaction" use case
+   */
+  private Optional<TxSigningSession> txSigningSession = Optional.absent();
+
+  /**
+   * Parse and verify the signed transaction as it arrives for the "sign transaction" use case
+   */
+  private Optional<SignedTxAssembler> signedTxAssembler = Optional.absent();
+
+  /**
+   * The verification failure to report once the device has acknowledged the resulting Cancel
+   */
+  private Optional<Failure> signTxFailure = Optional.absent();
+
+  /**
+   * The signing sessions yet to be started for the "sign transaction batch" use case
+   */
+  private Optional<Deque<TxSigningSession>> signTxBatchQueue = Optional.absent();
+
+  /**
+   * The number of transactions in the "sign transaction batch" use case
+   */
+  private int signTxBatchCount = 0;
+
+  /**
+   * The results so far for the "sign transaction batch" use case
+   */
+  private List<SignedTx> signTxBatchResults = Lists.newArrayList();
+
+  /**
+   * Allow the "sign transaction batch" use case to be cancelled from another thread
+   */
+  private volatile boolean signTxBatchCancelled = false;
+
   /**
    * Keep track of all the signatures for the "sign transaction" use case
    */
@@ -125,6 +287,12 @@ public class HardwareWalletContext {
    */
   private Optional<DeterministicHierarchy> deterministicHierarchy = Optional.absent();
 
+  /**
+   * The base 58 serialized form of the deterministic key as the device describes it (retains the
+   * parent fingerprint that the locally built key cannot provide)
+   */
+  private Optional<String> extendedPublicKey = Optional.absent();
+
   /**
    * Entropy returned from the Trezor (result of encryption of fixed text)
    */
@@ -171,6 +339,22 @@ public class HardwareWalletContext {
     return transaction;
   }
 
+  /**
+   * @return The signing session for the "sign transaction" use case
+   */
+  public Optional<TxSigningSession> getTxSigningSession() {
+    return txSigningSession;
+  }
+
+  /**
+   * <p>The signed transaction is available from the assembler once the "SHOW_OPERATION_SUCCEEDED" message has been received</p>
+   *
+   * @return The signed transaction assembler for the "sign transaction" use case
+   */
+  public Optional<SignedTxAssembler> getSignedTxAssembler() {
+    return signedTxAssembler;
+  }
+
   /**
    * @return The current hardware wallet state
    */
@@ -205,9 +389,20 @@ public class HardwareWalletContext {
     createWalletSpecification = Optional.absent();
     loadWalletSpecification = Optional.absent();
 
+    addressBatchSpecification = Optional.absent();
+    addressBatch = Lists.newArrayList();
+    addressBatchCancelled = false;
+
     features = Optional.absent();
 
     transaction = Optional.absent();
+    txSigningSession = Optional.absent();
+    signedTxAssembler = Optional.absent();
+    signTxFailure = Optional.absent();
+    signTxBatchQueue = Optional.absent();
+    signTxBatchCount = 0;
+    signTxBatchResults = Lists.newArrayList();
+    signTxBatchCancelled = false;
     signatures = Maps.newHashMap();
 
     serializedTx = new ByteArrayOutputStream();
@@ -217,9 +412,12 @@ public class HardwareWalletContext {
     childNumbers = Optional.absent();
     deterministicKey = Optional.absent();
     deterministicHierarchy = Optional.absent();
+    extendedPublicKey = Optional.absent();
 
     entropy = Optional.absent();
 
+    recoveryPending = false;
+
   }
 
   /**
@@ -252,13 +450,35 @@ public class HardwareWalletContext {
     MessageEvents.unsubscribe(this);
 
     // Perform the state change
-    currentState = HardwareWalletStates.newStoppedState();
+    setState(HardwareWalletStates.newStoppedState());
 
     // Fire the high level event
     HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_DEVICE_STOPPED, client.name());
 
   }
 
+  /**
+   * <p>Reset the context ready for a service restart (device released but HID services retained)</p>
+   *
+   * <p>The current session is retained so that a prompt reconnection can skip initialisation</p>
+   */
+  public void resetForRestart() {
+
+    log.debug("Reset for restart");
+
+    // Retain the session for a fast reconnection
+    if (features.isPresent()) {
+      sessionCache.put(client.name(), features.get());
+    }
+
+    // Release the device but retain the HID services
+    client.softDetach();
+
+    // Reconnection will occur on the next await
+    resetToAttached();
+
+  }
+
   /**
    * <p>Reset the context back to a failed state (retain device information but prevent further communication)</p>
    */
@@ -270,7 +490,7 @@ public class HardwareWalletContext {
     resetAllButFeatures();
 
     // Perform the state change
-    currentState = HardwareWalletStates.newFailedState();
+    setState(HardwareWalletStates.newFailedState());
 
     // Fire the high level event
     HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_DEVICE_FAILED, client.name());
@@ -283,11 +503,17 @@ public class HardwareWalletContext {
 
     log.debug("Reset to 'detached'");
 
+    // Retain the session in case this is a brief detachment
+    if (features.isPresent()) {
+      sessionCache.put(client.name(), features.get());
+    }
+    resumingSession = Optional.absent();
+
     // Clear relevant information
     resetAll();
 
     // Perform the state change
-    currentState = HardwareWalletStates.newDetachedState();
+    setState(HardwareWalletStates.newDetachedState());
 
     // Fire the high level event
     HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_DEVICE_DETACHED, client.name());
@@ -303,8 +529,16 @@ public class HardwareWalletContext {
     // Clear relevant information
     resetAll();
 
+    // Check for a recent session that can be resumed
+    resumingSession = sessionCache.findResumable(client.name());
+    if (resumingSession.isPresent()) {
+      log.debug("Found resumable session");
+    } else {
+      clearQueuedUseCase();
+    }
+
     // Perform the state change
-    currentState = HardwareWalletStates.newAttachedState();
+    setState(HardwareWalletStates.newAttachedState());
 
     // No high level event for this state
   }
@@ -319,8 +553,13 @@ public class HardwareWalletContext {
     // Clear relevant information
     resetAll();
 
+    // Only a fresh attachment can resume a session
+    if (!(currentState instanceof AttachedState)) {
+      resumingSession = Optional.absent();
+    }
+
     // Perform the state change
-    currentState = HardwareWalletStates.newConnectedState();
+    setState(HardwareWalletStates.newConnectedState());
 
     // No high level event for this state
   }
@@ -336,7 +575,7 @@ public class HardwareWalletContext {
     resetAll();
 
     // Perform the state change
-    currentState = HardwareWalletStates.newDisconnectedState();
+    setState(HardwareWalletStates.newDisconnectedState());
 
     // No high level event for this state
 
@@ -353,12 +592,335 @@ public class HardwareWalletContext {
     resetAllButFeatures();
 
     // Perform the state change
-    currentState = HardwareWalletStates.newInitialisedState();
+    setState(HardwareWalletStates.newInitialisedState());
 
     // Fire the high level event
     HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SHOW_DEVICE_READY, features.get(), client.name());
   }
 
+  /**
+   * @return The latency metrics for this context
+   */
+  public HardwareWalletMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * <p>Change the current state recording the dwell time of the outgoing state</p>
+   *
+   * @param state The new state
+   */
+  private void setState(HardwareWalletState state) {
+
+    long now = System.nanoTime();
+    metrics.recordStateDwell(currentState.getClass().getSimpleName(), now - stateEnteredNanos);
+
+    currentState = state;
+    stateEnteredNanos = now;
+
+  }
+
+  /**
+   * <p>Note that a message is about to be sent to the device so that the response time can be measured</p>
+   *
+   * <p>Call this immediately before each message sent through the client</p>
+   */
+  public void markHostRequest() {
+
+    long now = System.nanoTime();
+
+    // Time spent entering a PIN or passphrase
+    if (awaitingUserInput) {
+      metrics.recordUserInteraction(now - deviceEventNanos);
+      awaitingUserInput = false;
+    }
+
+    hostRequestNanos = now;
+
+  }
+
+  /**
+   * <p>Note that a message has been received from the device separating device time from user time</p>
+   *
+   * @param eventType The incoming event type
+   */
+  private void markDeviceEvent(MessageEventType eventType) {
+
+    long now = System.nanoTime();
+
+    if (hostRequestNanos != 0) {
+      if (awaitingButton) {
+        // The device was waiting on the user to press a button
+        metrics.recordUserInteraction(now - hostRequestNanos);
+      } else {
+        metrics.recordDeviceRoundTrip(now - hostRequestNanos);
+      }
+    }
+
+    awaitingButton = eventType == MessageEventType.BUTTON_REQUEST;
+    awaitingUserInput = eventType == MessageEventType.PIN_MATRIX_REQUEST || eventType == MessageEventType.PASSPHRASE_REQUEST;
+    deviceEventNanos = now;
+
+    // Any response from the state will be marked as a new request
+    hostRequestNanos = 0;
+
+  }
+
+  /**
+   * @return The deadlines for device responses and the retry policy following a timeout
+   */
+  public UseCaseDeadlines getDeadlines() {
+    return deadlines;
+  }
+
+  /**
+   * <p>Track a use case started through the service so that it can be retried following a timeout</p>
+   *
+   * @param useCase The use case (typically a call to one of the <code>begin</code> methods)
+   */
+  public synchronized void trackUseCase(Runnable useCase) {
+
+    trackedUseCase = Optional.fromNullable(useCase);
+    timeoutAttempts = 0;
+
+    // A new use case cannot resume an earlier batch
+    resumableAddressBatchSpecification = Optional.absent();
+    resumableAddressBatch = Lists.newArrayList();
+
+  }
+
+  /**
+   * <p>Check if the device has failed to respond within the deadline for the current use case</p>
+   *
+   * <p>This is called periodically by the service scheduler so only detects the timeout. Recovery takes place
+   * on the message event thread through {@link MessageEventType#DEVICE_TIMEOUT} so that it cannot race with
+   * a late response from the device.</p>
+   */
+  public void checkDeadline() {
+
+    if (timeoutPosted || !getExpiredDeadlineMillis().isPresent()) {
+      return;
+    }
+
+    timeoutPosted = true;
+    MessageEvents.fireMessageEvent(MessageEventType.DEVICE_TIMEOUT, client.name());
+
+  }
+
+  /**
+   * <p>Recover from a device that has failed to respond within the deadline for the current use case</p>
+   *
+   * <p>Recovery consists of a Cancel followed by a return to the connected state (which issues Initialize).
+   * The use case is then retried if permitted by the deadlines, otherwise it fails.</p>
+   *
+   * <p>This is called by the current state in response to {@link MessageEventType#DEVICE_TIMEOUT}.</p>
+   */
+  public void handleTimeout() {
+
+    timeoutPosted = false;
+
+    // The device may have responded since the timeout was posted
+    Optional<Long> deadline = getExpiredDeadlineMillis();
+    if (!deadline.isPresent()) {
+      return;
+    }
+
+    long deadlineMillis = deadline.get();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - hostRequestNanos);
+    TimeoutReason reason = awaitingButton ? TimeoutReason.USER_INTERACTION : TimeoutReason.DEVICE_RESPONSE;
+
+    final boolean retrying;
+    final int attempt;
+    synchronized (this) {
+      attempt = timeoutAttempts + 1;
+      // A cancelled batch is complete with the addresses collected so far
+      retrying = trackedUseCase.isPresent() && timeoutAttempts < deadlines.getMaxRetries(currentUseCase) && !addressBatchCancelled;
+      if (retrying) {
+        timeoutAttempts++;
+        queuedUseCase = trackedUseCase;
+      }
+    }
+
+    OperationTimeout timeout = new OperationTimeout(
+      currentUseCase.name(),
+      currentState.getClass().getSimpleName(),
+      reason,
+      elapsedMillis,
+      deadlineMillis,
+      attempt,
+      retrying
+    );
+
+    log.warn("Operation timed out: {}", timeout);
+
+    HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.OPERATION_TIMED_OUT, timeout, client.name());
+    if (!retrying) {
+      HardwareWalletEvents.fireHardwareWalletEvent(
+        HardwareWalletEventType.SHOW_OPERATION_FAILED,
+        new Failure(FailureType.OTHER, "Operation timed out: " + currentUseCase.name()),
+        client.name()
+      );
+    }
+
+    if (retrying) {
+      // Keep any addresses already collected so that a retried batch resumes after them
+      resumableAddressBatchSpecification = addressBatchSpecification;
+      resumableAddressBatch = addressBatch;
+    } else {
+      // Pass on any addresses collected before the timeout
+      fireAddressBatch();
+    }
+
+    // Abandon the operation on the device
+    markHostRequest();
+    client.cancel();
+
+    // Re-initialise (any retry is run once the device is ready)
+    resetToConnected();
+    recoveryPending = true;
+
+  }
+
+  /**
+   * @return True if the device is being re-initialised following a timeout (the response to the Cancel is expected)
+   */
+  public boolean isRecoveryPending() {
+    return recoveryPending;
+  }
+
+  /**
+   * @return The deadline in milliseconds that the outstanding request has exceeded, absent if none
+   */
+  private Optional<Long> getExpiredDeadlineMillis() {
+
+    long requestNanos = hostRequestNanos;
+    if (requestNanos == 0 || !isUseCaseInProgress()) {
+      // Nothing outstanding
+      return Optional.absent();
+    }
+
+    final Optional<Long> deadlineMillis;
+    if (awaitingButton) {
+      deadlineMillis = Optional.of(deadlines.getUserDeadlineMillis());
+    } else {
+      deadlineMillis = deadlines.getDeviceDeadlineMillis(currentUseCase);
+    }
+
+    if (!deadlineMillis.isPresent()
+      || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestNanos) < deadlineMillis.get()) {
+      return Optional.absent();
+    }
+
+    return deadlineMillis;
+  }
+
+  /**
+   * @return True if the current state is part of a use case (rather than device lifecycle or idle)
+   */
+  private boolean isUseCaseInProgress() {
+
+    return !(currentState instanceof AttachedState
+      || currentState instanceof ConnectedState
+      || currentState instanceof DetachedState
+      || currentState instanceof DisconnectedState
+      || currentState instanceof FailedState
+      || currentState instanceof StoppedState
+      || currentState instanceof InitialisedState);
+
+  }
+
+  /**
+   * @return The device session cache (allows the resume window to be configured)
+   */
+  public DeviceSessionCache getSessionCache() {
+    return sessionCache;
+  }
+
+  /**
+   * @return The session being resumed following a reattach, absent if a full initialisation is required
+   */
+  public Optional<DeviceSession> getResumingSession() {
+    return resumingSession;
+  }
+
+  /**
+   * <p>Attempt to resume the session using the features provided by the reattached device</p>
+   *
+   * <p>The session is consumed whether or not it matches</p>
+   *
+   * @param features The features provided through GET_FEATURES
+   *
+   * @return True if the session was resumed and the features have been restored
+   */
+  public boolean resumeSession(Features features) {
+
+    if (!resumingSession.isPresent()) {
+      return false;
+    }
+
+    DeviceSession session = resumingSession.get();
+    sessionCache.remove(session);
+    resumingSession = Optional.absent();
+
+    if (!session.matches(features)) {
+      log.debug("Reattached device does not match previous session");
+      clearQueuedUseCase();
+      return false;
+    }
+
+    log.debug("Resuming previous session");
+
+    // Retain the verification of the original features
+    features.setSupported(session.getFeatures().isSupported());
+    this.features = Optional.of(features);
+
+    return true;
+  }
+
+  /**
+   * <p>Queue the use case if a session is in the process of being resumed</p>
+   *
+   * <p>Only the most recent use case is retained since starting a use case always
+   * replaces the previous one</p>
+   *
+   * @param useCase The use case (typically a call to one of the <code>begin</code> methods)
+   *
+   * @return True if the use case was queued, false if it should be started immediately
+   */
+  public synchronized boolean queueUseCaseIfResuming(Runnable useCase) {
+
+    boolean resuming = resumingSession.isPresent()
+      || (currentState instanceof DetachedState && sessionCache.findResumable(client.name()).isPresent());
+
+    if (resuming) {
+      log.debug("Queuing use case until session is resumed");
+      queuedUseCase = Optional.of(useCase);
+    }
+
+    return resuming;
+  }
+
+  /**
+   * <p>Start any use case that was queued while the session was being resumed</p>
+   */
+  public void runQueuedUseCase() {
+
+    Optional<Runnable> useCase;
+    synchronized (this) {
+      useCase = queuedUseCase;
+      queuedUseCase = Optional.absent();
+    }
+
+    if (useCase.isPresent()) {
+      log.debug("Running queued use case");
+      useCase.get().run();
+    }
+  }
+
+  private synchronized void clearQueuedUseCase() {
+    queuedUseCase = Optional.absent();
+  }
+
   /**
    * @return The hardware wallet client
    */
@@ -380,6 +942,20 @@ public class HardwareWalletContext {
     return loadWalletSpecification;
   }
 
+  /**
+   * @return The address batch specification for the "request addresses" use case
+   */
+  public Optional<AddressBatchSpecification> getAddressBatchSpecification() {
+    return addressBatchSpecification;
+  }
+
+  /**
+   * @return The addresses provided so far during the "request addresses" use case (index order)
+   */
+  public List<Address> getAddressBatch() {
+    return addressBatch;
+  }
+
   /**
    * @return The map of paths for our receiving addresses on the current transaction (key input index, value deterministic path to receiving address)
    */
@@ -424,6 +1000,17 @@ public class HardwareWalletContext {
     this.deterministicHierarchy = Optional.fromNullable(deterministicHierarchy);
   }
 
+  /**
+   * @return The base 58 xpub of the deterministic key including the parent fingerprint, absent if the device did not provide it
+   */
+  public Optional<String> getExtendedPublicKey() {
+    return extendedPublicKey;
+  }
+
+  public void setExtendedPublicKey(Optional<String> extendedPublicKey) {
+    this.extendedPublicKey = extendedPublicKey;
+  }
+
   /**
    * @return The current use case
    */
@@ -445,6 +1032,11 @@ public class HardwareWalletContext {
 
     log.debug("Received message event: '{}'", event.getEventType().name());
 
+    // Device lifecycle events are not responses so exclude them from round trip timing
+    if (!DEVICE_LIFECYCLE_EVENTS.contains(event.getEventType())) {
+      markDeviceEvent(event.getEventType());
+    }
+
     // Perform a state transition as a result of this event
     try {
       currentState.transition(client, this, event);
@@ -459,12 +1051,13 @@ public class HardwareWalletContext {
   public void setToConfirmResetState() {
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmResetState();
+    setState(HardwareWalletStates.newConfirmResetState());
 
     // Expect the specification to be in place
     CreateWalletSpecification specification = createWalletSpecification.get();
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.resetDevice(
       specification.getLanguage(),
       specification.getLabel(),
@@ -481,12 +1074,13 @@ public class HardwareWalletContext {
   public void setToConfirmLoadState() {
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmLoadState();
+    setState(HardwareWalletStates.newConfirmLoadState());
 
     // Expect the specification to be in place
     LoadWalletSpecification specification = loadWalletSpecification.get();
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.loadDevice(
       specification.getLanguage(),
       specification.getLabel(),
@@ -514,9 +1108,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmChangePINState();
+    setState(HardwareWalletStates.newConfirmChangePINState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.changePIN(remove);
   }
 
@@ -532,9 +1127,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmChangePINState();
+    setState(HardwareWalletStates.newConfirmChangePINState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -553,9 +1149,10 @@ public class HardwareWalletContext {
     currentUseCase = ContextUseCase.WIPE_DEVICE;
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmWipeState();
+    setState(HardwareWalletStates.newConfirmWipeState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.wipeDevice();
   }
 
@@ -580,9 +1177,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetAddressState();
+    setState(HardwareWalletStates.newConfirmGetAddressState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.getAddress(
       account,
       keyPurpose,
@@ -592,6 +1190,163 @@ public class HardwareWalletContext {
 
   }
 
+  /**
+   * <p>Begin the "get addresses" use case</p>
+   *
+   * <p>Each address is requested without display so that the next request can be issued
+   * as soon as the previous response arrives</p>
+   *
+   * <p>A retry following a timeout resumes after the addresses already collected (and reported)</p>
+   *
+   * @param specification The specification describing the account, key purpose and index range
+   */
+  public void beginGetAddressBatchUseCase(AddressBatchSpecification specification) {
+
+    log.debug("Begin 'get addresses' use case");
+
+    // Clear relevant information
+    resetAllButFeatures();
+
+    if (resumableAddressBatchSpecification.isPresent() && resumableAddressBatchSpecification.get() == specification) {
+      log.debug("Resuming 'get addresses' use case after {} of {} addresses", resumableAddressBatch.size(), specification.getCount());
+      addressBatch = resumableAddressBatch;
+    }
+    resumableAddressBatchSpecification = Optional.absent();
+    resumableAddressBatch = Lists.newArrayList();
+
+    // Track the use case
+    currentUseCase = ContextUseCase.REQUEST_ADDRESSES;
+
+    // Store the overall context parameters
+    this.addressBatchSpecification = Optional.of(specification);
+
+    // Set the event receiving state
+    setState(HardwareWalletStates.newConfirmGetAddressBatchState());
+
+    // Issue starting message to elicit the event
+    markHostRequest();
+    client.getAddress(
+      specification.getAccount(),
+      specification.getKeyPurpose(),
+      specification.getFromIndex() + addressBatch.size(),
+      false
+    );
+
+  }
+
+  /**
+   * <p>Continue the "get addresses" use case by requesting the next address in the range or
+   * completing the batch if the range is exhausted or has been cancelled</p>
+   */
+  public void continueGetAddressBatchUseCase() {
+
+    if (!addressBatchSpecification.isPresent()) {
+      // Batch has already completed
+      return;
+    }
+
+    AddressBatchSpecification specification = addressBatchSpecification.get();
+
+    if (addressBatchCancelled || addressBatch.size() >= specification.getCount()) {
+
+      log.debug("Complete 'get addresses' use case with {} of {} addresses", addressBatch.size(), specification.getCount());
+
+      fireAddressBatch();
+
+      // Ready for the next use case
+      resetToInitialised();
+
+      return;
+    }
+
+    // Issue the next request straight away
+    markHostRequest();
+    client.getAddress(
+      specification.getAccount(),
+      specification.getKeyPurpose(),
+      specification.getFromIndex() + addressBatch.size(),
+      false
+    );
+
+  }
+
+  /**
+   * <p>Fire the ADDRESS_BATCH event with the addresses collected so far (may be partial) and prevent further requests</p>
+   */
+  public void fireAddressBatch() {
+
+    if (!addressBatchSpecification.isPresent()) {
+      // Batch has already been reported
+      return;
+    }
+
+    AddressBatchSpecification specification = addressBatchSpecification.get();
+
+    // Prevent further requests
+    addressBatchSpecification = Optional.absent();
+
+    MainNetAddressBatch batch = new MainNetAddressBatch(
+      specification.getAccount(),
+      specification.getKeyPurpose(),
+      specification.getFromIndex(),
+      specification.getCount(),
+      addressBatch
+    );
+    HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.ADDRESS_BATCH, batch, client.name());
+
+  }
+
+  /**
+   * <p>Cancel the "get addresses" use case so that it completes (with partial results) on the next response from the device</p>
+   */
+  public void cancelGetAddressBatchUseCase() {
+
+    log.debug("Cancel 'get addresses' use case");
+
+    addressBatchCancelled = true;
+
+  }
+
+  /**
+   * <p>Continue the "get addresses" use case with the provision of the current PIN</p>
+   *
+   * @param pin The PIN
+   */
+  public void continueGetAddressBatchUseCase_PIN(String pin) {
+
+    log.debug("Continue 'get addresses' use case (provide PIN)");
+
+    // Store the overall context parameters
+
+    // Set the event receiving state
+    setState(HardwareWalletStates.newConfirmGetAddressBatchState());
+
+    // Issue starting message to elicit the event
+    markHostRequest();
+    client.pinMatrixAck(pin);
+
+  }
+
+  /**
+   * <p>Continue the "get addresses" use case with the provision of the current passphrase</p>
+   *
+   * @param passphrase The passphrase
+   */
+  public void continueGetAddressBatchUseCase_Passphrase(String passphrase) {
+
+    log.debug("Continue 'get addresses' use case (provide passphrase)");
+
+    // Store the overall context parameters
+
+    // Set the event receiving state
+    setState(HardwareWalletStates.newConfirmGetAddressBatchState());
+
+    // Issue starting message to elicit the event
+    markHostRequest();
+    client.passphraseAck(passphrase);
+
+  }
+
   /**
    * <p>Begin the "get public key" use case</p>
    *
@@ -612,9 +1367,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetPublicKeyState();
+    setState(HardwareWalletStates.newConfirmGetPublicKeyState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.getPublicKey(
       account,
       keyPurpose,
@@ -635,9 +1391,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetPublicKeyState();
+    setState(HardwareWalletStates.newConfirmGetPublicKeyState());
 
       // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -663,9 +1420,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetPublicKeyForIdentityState();
+    setState(HardwareWalletStates.newConfirmGetPublicKeyForIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.getPublicKeyForIdentity(
       identityUri,
       index,
@@ -687,9 +1445,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetPublicKeyForIdentityState();
+    setState(HardwareWalletStates.newConfirmGetPublicKeyForIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
  }
   
@@ -705,9 +1464,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetPublicKeyForIdentityState();
+    setState(HardwareWalletStates.newConfirmGetPublicKeyForIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.passphraseAck(passphrase);
   }
 
@@ -730,12 +1490,13 @@ public class HardwareWalletContext {
     this.childNumbers = Optional.of(childNumbers);
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetDeterministicHierarchyState();
+    setState(HardwareWalletStates.newConfirmGetDeterministicHierarchyState());
 
     // Issue starting message to elicit the event
-    // In this case we start with the master node (empty list) to enable building up a complete
-    // hierarchy in case of hardened child numbers that require private keys to create
-    client.getDeterministicHierarchy(Lists.<ChildNumber>newArrayList());
+    // A single request at the target path is sufficient since hardened children are
+    // derived on the device and the path is attached locally
+    markHostRequest();
+    client.getDeterministicHierarchy(childNumbers);
 
   }
 
@@ -751,9 +1512,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmGetDeterministicHierarchyState();
+    setState(HardwareWalletStates.newConfirmGetDeterministicHierarchyState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -784,9 +1546,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignMessageState();
+    setState(HardwareWalletStates.newConfirmSignMessageState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.signMessage(
       account,
       keyPurpose,
@@ -807,9 +1570,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignMessageState();
+    setState(HardwareWalletStates.newConfirmSignMessageState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -845,9 +1609,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmCipherKeyState();
+    setState(HardwareWalletStates.newConfirmCipherKeyState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.cipherKeyValue(
       account,
       keyPurpose,
@@ -873,9 +1638,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmCipherKeyState();
+    setState(HardwareWalletStates.newConfirmCipherKeyState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -899,9 +1665,10 @@ public class HardwareWalletContext {
     this.loadWalletSpecification = Optional.fromNullable(specification);
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmWipeState();
+    setState(HardwareWalletStates.newConfirmWipeState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.wipeDevice();
 
   }
@@ -918,9 +1685,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmPINState();
+    setState(HardwareWalletStates.newConfirmPINState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -944,9 +1712,10 @@ public class HardwareWalletContext {
     this.createWalletSpecification = Optional.fromNullable(specification);
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmWipeState();
+    setState(HardwareWalletStates.newConfirmWipeState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.wipeDevice();
 
   }
@@ -963,9 +1732,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmPINState();
+    setState(HardwareWalletStates.newConfirmPINState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -985,9 +1755,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmEntropyState();
+    setState(HardwareWalletStates.newConfirmEntropyState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.entropyAck(entropy);
 
   }
@@ -1004,6 +1775,20 @@ public class HardwareWalletContext {
     Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
     Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
 
+    // Index the parent transactions once for the device requests that follow
+    beginSignTxUseCase(new TxSigningSession(transaction, receivingAddressPathMap, changeAddressPathMap));
+
+  }
+
+  /**
+   * <p>Begin the "sign transaction" use case with a signing session that has already been built</p>
+   *
+   * @param session The signing session (transaction and address paths)
+   */
+  public void beginSignTxUseCase(TxSigningSession session) {
+
+    Preconditions.checkNotNull(session, "'session' must be present");
+
     log.debug("Begin 'sign transaction' use case");
 
     // Clear relevant information
@@ -1012,16 +1797,246 @@ public class HardwareWalletContext {
     // Track the use case
     currentUseCase = ContextUseCase.SIGN_TX;
 
+    if (!isSignable(SignTxValidator.validate(session))) {
+      return;
+    }
+
+    startSignTx(session);
+
+  }
+
+  /**
+   * <p>Begin the "sign transaction" use case for a batch of transactions</p>
+   *
+   * <p>The transactions are signed in order within the same device session so the PIN and passphrase are only
+   * requested once. The next SIGN_TX is issued as soon as the previous transaction finishes and its responses are
+   * prepared while the user confirms the current one. A SIGNED_TX event is fired for each transaction followed
+   * by a single SIGNED_TX_BATCH event.</p>
+   *
+   * @param sessions The signing sessions in the order they should be presented to the device
+   */
+  public void beginSignTxBatchUseCase(List<TxSigningSession> sessions) {
+
+    Preconditions.checkNotNull(sessions, "'sessions' must be present");
+    Preconditions.checkArgument(!sessions.isEmpty(), "'sessions' must not be empty");
+
+    log.debug("Begin 'sign transaction batch' use case with {} transactions", sessions.size());
+
+    // Clear relevant information
+    resetAllButFeatures();
+
+    // Track the use case (PIN and passphrase handling is the same as a single transaction)
+    currentUseCase = ContextUseCase.SIGN_TX;
+
+    // Reject the whole batch rather than stopping part way through
+    if (!isSignable(SignTxValidator.validate(sessions))) {
+      return;
+    }
+
     // Store the overall context parameters
-    this.transaction = Optional.of(transaction);
-    this.receivingAddressPathMap = receivingAddressPathMap;
-    this.changeAddressPathMap = changeAddressPathMap;
+    this.signTxBatchQueue = Optional.of(Queues.newArrayDeque(sessions));
+    this.signTxBatchCount = sessions.size();
 
-    // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignTxState();
+    startNextSignTxInBatch();
+
+  }
+
+  /**
+   * @return The verification failure of the current transaction, absent unless a Cancel has been issued because of it
+   */
+  public Optional<Failure> getSignTxFailure() {
+    return signTxFailure;
+  }
+
+  public void setSignTxFailure(Optional<Failure> signTxFailure) {
+    this.signTxFailure = signTxFailure;
+  }
+
+  /**
+   * @return True if a "sign transaction batch" is in progress
+   */
+  public boolean isSignTxBatch() {
+    return signTxBatchQueue.isPresent();
+  }
+
+  /**
+   * <p>Continue the "sign transaction batch" use case by recording the result of the current transaction and
+   * either issuing the next SIGN_TX or completing the batch if it is exhausted or has been cancelled</p>
+   *
+   * @param signedTx The signed transaction (absent if signing failed)
+   * @param failure  The reason for failure (absent if signing succeeded)
+   */
+  public void continueSignTxBatchUseCase(Optional<Transaction> signedTx, Optional<Failure> failure) {
+
+    if (!signTxBatchQueue.isPresent() || !txSigningSession.isPresent()) {
+      // Batch has already completed
+      return;
+    }
+
+    // Stream the individual result
+    SignedTx result = new SignedTx(
+      signTxBatchResults.size(),
+      txSigningSession.get().getTransaction().getHash(),
+      signedTx,
+      failure
+    );
+    signTxBatchResults.add(result);
+    HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SIGNED_TX, result, client.name());
+
+    if (signTxBatchCancelled || signTxBatchQueue.get().isEmpty()) {
+
+      log.debug("Complete 'sign transaction batch' use case with {} of {} transactions", signTxBatchResults.size(), signTxBatchCount);
+
+      // Prevent further requests
+      signTxBatchQueue = Optional.absent();
+
+      // Fire the batch result (may be partial)
+      SignedTxBatch batch = new SignedTxBatch(signTxBatchCount, signTxBatchResults);
+      HardwareWalletEvents.fireHardwareWalletEvent(HardwareWalletEventType.SIGNED_TX_BATCH, batch, client.name());
+
+      resetToInitialised();
+
+      return;
+    }
+
+    // Issue the next request straight away
+    startNextSignTxInBatch();
+
+  }
+
+  /**
+   * <p>Cancel the "sign transaction batch" use case so that it completes (with partial results) once the current
+   * transaction finishes</p>
+   */
+  public void cancelSignTxBatchUseCase() {
+
+    log.debug("Cancel 'sign transaction batch' use case");
+
+    signTxBatchCancelled = true;
+
+  }
+
+  /**
+   * <p>Start the next transaction in the batch and prepare the one after it</p>
+   */
+  private void startNextSignTxInBatch() {
+
+    Deque<TxSigningSession> queue = signTxBatchQueue.get();
+
+    startSignTx(queue.poll());
+
+    // Build the responses for the next transaction while the user confirms this one
+    if (!queue.isEmpty()) {
+      client.prepareSignTx(queue.peek());
+    }
+
+  }
+
+  /**
+   * <p>Begin the "simple sign transaction" use case</p>
+   *
+   * <p>The transaction and all its parents are delivered in a single SIMPLE_SIGN_TX message so the device
+   * responds with the serialized transaction without any further TX_REQUEST/TX_ACK round trips</p>
+   *
+   * @param transaction             The transaction containing the inputs and outputs
+   * @param receivingAddressPathMap The receiving address path map (keyed on input index and providing deterministic path to receiving address)
+   * @param changeAddressPathMap    The change address path map (keyed on Address and providing deterministic path to change address)
+   */
+  public void beginSimpleSignTxUseCase(
+    Transaction transaction,
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
+    Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+
+    // The session provides the result verification
+    beginSimpleSignTxUseCase(new TxSigningSession(transaction, receivingAddressPathMap, changeAddressPathMap));
+
+  }
+
+  /**
+   * <p>Begin the "simple sign transaction" use case with a signing session that has already been built</p>
+   *
+   * @param session The signing session (transaction and address paths)
+   */
+  public void beginSimpleSignTxUseCase(TxSigningSession session) {
+
+    Preconditions.checkNotNull(session, "'session' must be present");
+
+    log.debug("Begin 'simple sign transaction' use case");
+
+    // Clear relevant information
+    resetAllButFeatures();
+
+    // Track the use case
+    currentUseCase = ContextUseCase.SIMPLE_SIGN_TX;
+
+    if (!isSignable(SignTxValidator.validate(session))) {
+      return;
+    }
+
+    storeSignTxSession(session);
 
     // Issue starting message to elicit the event
-    client.signTx(transaction);
+    markHostRequest();
+    client.simpleSignTx(session);
+
+  }
+
+  /**
+   * <p>Report all the problems found by the validation and abandon the use case before the device is involved
+   * so the user is never asked to confirm a transaction that cannot be signed</p>
+   *
+   * @param problems The problems from the validation
+   *
+   * @return True if there are no problems
+   */
+  private boolean isSignable(List<String> problems) {
+
+    if (problems.isEmpty()) {
+      return true;
+    }
+
+    HardwareWalletEvents.fireHardwareWalletEvent(
+      HardwareWalletEventType.SHOW_OPERATION_FAILED,
+      new Failure(FailureType.OTHER, "Transaction cannot be signed: " + Joiner.on("; ").join(problems)),
+      client.name()
+    );
+
+    resetToInitialised();
+
+    return false;
+  }
+
+  /**
+   * @param session The signing session to present to the device
+   */
+  private void startSignTx(TxSigningSession session) {
+
+    storeSignTxSession(session);
+
+    // Issue starting message to elicit the event
+    markHostRequest();
+    client.signTx(session);
+
+  }
+
+  /**
+   * @param session The signing session about to be presented to the device
+   */
+  private void storeSignTxSession(TxSigningSession session) {
+
+    // Store the overall context parameters
+    this.transaction = Optional.of(session.getTransaction());
+    this.receivingAddressPathMap = session.getReceivingAddressPathMap();
+    this.changeAddressPathMap = session.getChangeAddressPathMap();
+
+    // Fresh signature tracking for this transaction
+    this.txSigningSession = Optional.of(session);
+    this.signedTxAssembler = Optional.of(new SignedTxAssembler(session));
+    this.signatures = Maps.newHashMap();
+    this.serializedTx = new ByteArrayOutputStream();
+
+    // Set the event receiving state
+    setState(HardwareWalletStates.newConfirmSignTxState());
 
   }
 
@@ -1037,9 +2052,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignTxState();
+    setState(HardwareWalletStates.newConfirmSignTxState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -1077,9 +2093,10 @@ public class HardwareWalletContext {
     this.identity = Optional.of(identity);
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignIdentityState();
+    setState(HardwareWalletStates.newConfirmSignIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.signIdentity(identity);
 
   }
@@ -1096,9 +2113,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignIdentityState();
+    setState(HardwareWalletStates.newConfirmSignIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.pinMatrixAck(pin);
 
   }
@@ -1115,9 +2133,10 @@ public class HardwareWalletContext {
     // Store the overall context parameters
 
     // Set the event receiving state
-    currentState = HardwareWalletStates.newConfirmSignIdentityState();
+    setState(HardwareWalletStates.newConfirmSignIdentityState());
 
     // Issue starting message to elicit the event
+    markHostRequest();
     client.passphraseAck(passphrase);
 
   }
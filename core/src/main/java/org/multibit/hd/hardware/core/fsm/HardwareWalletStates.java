@@ -165,6 +165,17 @@ public class HardwareWalletStates {
 
   }
 
+  /**
+   * @return A new confirm get address batch state
+   */
+  public static ConfirmGetAddressBatchState newConfirmGetAddressBatchState() {
+
+    log.debug("Transitioning to 'confirm GetAddress batch' state");
+
+    return new ConfirmGetAddressBatchState();
+
+  }
+
   /**
    * @return A new confirm get public key state
    */
@@ -0,0 +1,138 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.EnumMap;
+
+/**
+ * <p>Configuration to provide the following to hardware wallet FSM:</p>
+ * <ul>
+ * <li>Per use case deadlines for device responses</li>
+ * <li>Deadline for button presses on the device</li>
+ * <li>Number of automatic retries following a timeout</li>
+ * </ul>
+ *
+ * <p>Deadlines apply to each message sent to the device rather than the use case as a whole
+ * so that a long transaction with many inputs is not penalised. Time spent waiting for a PIN or
+ * passphrase is under host control and never times out.</p>
+ *
+ * <p>Only use cases without side effects on the device or the user are retried by default
+ * since a retried signature would ask the user to confirm again.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class UseCaseDeadlines {
+
+  /**
+   * Default deadline for a device response
+   */
+  public static final long DEFAULT_DEVICE_DEADLINE_MILLIS = 30000;
+
+  /**
+   * Default deadline for operations that perform lengthy work on the device (wipe, create, load)
+   */
+  public static final long DEFAULT_SETUP_DEADLINE_MILLIS = 60000;
+
+  /**
+   * Default deadline for a button press
+   */
+  public static final long DEFAULT_USER_DEADLINE_MILLIS = 120000;
+
+  private final EnumMap<ContextUseCase, Long> deviceDeadlines = Maps.newEnumMap(ContextUseCase.class);
+  private final EnumMap<ContextUseCase, Integer> maxRetries = Maps.newEnumMap(ContextUseCase.class);
+
+  private long userDeadlineMillis = DEFAULT_USER_DEADLINE_MILLIS;
+
+  public UseCaseDeadlines() {
+
+    for (ContextUseCase useCase : ContextUseCase.values()) {
+      switch (useCase) {
+        case START:
+        case DETACHED:
+          // No operation in progress
+          break;
+        case WIPE_DEVICE:
+        case LOAD_WALLET:
+        case CREATE_WALLET:
+        case PROVIDE_ENTROPY:
+          deviceDeadlines.put(useCase, DEFAULT_SETUP_DEADLINE_MILLIS);
+          break;
+        default:
+          deviceDeadlines.put(useCase, DEFAULT_DEVICE_DEADLINE_MILLIS);
+      }
+    }
+
+    // Read only use cases can be repeated safely
+    maxRetries.put(ContextUseCase.REQUEST_ADDRESS, 1);
+    maxRetries.put(ContextUseCase.REQUEST_ADDRESSES, 1);
+    maxRetries.put(ContextUseCase.REQUEST_PUBLIC_KEY, 1);
+    maxRetries.put(ContextUseCase.REQUEST_PUBLIC_KEY_FOR_IDENTITY, 1);
+    maxRetries.put(ContextUseCase.REQUEST_DETERMINISTIC_HIERARCHY, 1);
+
+  }
+
+  /**
+   * @param useCase The use case
+   *
+   * @return The deadline for a device response, absent if the use case is not subject to a deadline
+   */
+  public synchronized Optional<Long> getDeviceDeadlineMillis(ContextUseCase useCase) {
+    return Optional.fromNullable(deviceDeadlines.get(useCase));
+  }
+
+  /**
+   * @param useCase        The use case
+   * @param deadlineMillis The deadline for a device response (zero removes the deadline)
+   */
+  public synchronized void setDeviceDeadlineMillis(ContextUseCase useCase, long deadlineMillis) {
+
+    Preconditions.checkNotNull(useCase, "'useCase' must be present");
+    Preconditions.checkArgument(deadlineMillis >= 0, "'deadlineMillis' must not be negative");
+
+    if (deadlineMillis == 0) {
+      deviceDeadlines.remove(useCase);
+    } else {
+      deviceDeadlines.put(useCase, deadlineMillis);
+    }
+  }
+
+  /**
+   * @return The deadline for a button press on the device
+   */
+  public synchronized long getUserDeadlineMillis() {
+    return userDeadlineMillis;
+  }
+
+  /**
+   * @param userDeadlineMillis The deadline for a button press on the device
+   */
+  public synchronized void setUserDeadlineMillis(long userDeadlineMillis) {
+    Preconditions.checkArgument(userDeadlineMillis > 0, "'userDeadlineMillis' must be positive");
+    this.userDeadlineMillis = userDeadlineMillis;
+  }
+
+  /**
+   * @param useCase The use case
+   *
+   * @return The number of automatic retries following a timeout
+   */
+  public synchronized int getMaxRetries(ContextUseCase useCase) {
+    Integer retries = maxRetries.get(useCase);
+    return retries == null ? 0 : retries;
+  }
+
+  /**
+   * @param useCase The use case
+   * @param retries The number of automatic retries following a timeout
+   */
+  public synchronized void setMaxRetries(ContextUseCase useCase, int retries) {
+
+    Preconditions.checkNotNull(useCase, "'useCase' must be present");
+    Preconditions.checkArgument(retries >= 0, "'retries' must not be negative");
+
+    maxRetries.put(useCase, retries);
+  }
+}
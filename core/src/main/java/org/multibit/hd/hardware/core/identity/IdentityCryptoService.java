@@ -0,0 +1,253 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Sha256Hash;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.asn1.ASN1Encodable;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.DERSequence;
+import org.spongycastle.jce.ECNamedCurveTable;
+import org.spongycastle.jce.ECPointUtil;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.spongycastle.jce.spec.ECNamedCurveSpec;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Service to provide the following to identity (SLIP-0013) consumers:</p>
+ * <ul>
+ * <li>A single shared BouncyCastle provider and a precomputed P-256 curve specification</li>
+ * <li>Per thread <code>KeyFactory</code> and <code>Signature</code> instances so no lookups occur per call</li>
+ * <li>Verification of single and batches of <code>SignedIdentity</code> results</li>
+ * </ul>
+ *
+ * <p>The service is thread safe. <code>KeyFactory</code> and <code>Signature</code> are not, so each thread
+ * is given its own instances on first use and reuses them thereafter.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class IdentityCryptoService {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentityCryptoService.class);
+
+  private static final String CURVE_NAME = "P-256";
+
+  private static final String KEY_ALGORITHM = "ECDSA";
+
+  private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+  /**
+   * Size of each of the R and S components of a P-256 signature
+   */
+  private static final int COMPONENT_BYTES = 32;
+
+  private static final IdentityCryptoService INSTANCE = new IdentityCryptoService();
+
+  private final Provider provider = new BouncyCastleProvider();
+
+  private final ECNamedCurveSpec curveSpec;
+
+  private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+    @Override
+    protected KeyFactory initialValue() {
+      try {
+        return KeyFactory.getInstance(KEY_ALGORITHM, provider);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Provider does not support " + KEY_ALGORITHM, e);
+      }
+    }
+  };
+
+  private final ThreadLocal<Signature> signature = new ThreadLocal<Signature>() {
+    @Override
+    protected Signature initialValue() {
+      try {
+        return Signature.getInstance(SIGNATURE_ALGORITHM, provider);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Provider does not support " + SIGNATURE_ALGORITHM, e);
+      }
+    }
+  };
+
+  /**
+   * @return The shared instance
+   */
+  public static IdentityCryptoService getInstance() {
+    return INSTANCE;
+  }
+
+  private IdentityCryptoService() {
+
+    ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec(CURVE_NAME);
+    curveSpec = new ECNamedCurveSpec(CURVE_NAME, spec.getCurve(), spec.getG(), spec.getN());
+
+  }
+
+  /**
+   * @return The shared BouncyCastle provider
+   */
+  public Provider getProvider() {
+    return provider;
+  }
+
+  /**
+   * @param pubKey The ecdsa-sha2-nistp256 EC public key encoded as bytes (compressed or uncompressed)
+   *
+   * @return An EC public key
+   *
+   * @throws InvalidKeySpecException If the key is invalid
+   */
+  public ECPublicKey getPublicKey(byte[] pubKey) throws InvalidKeySpecException {
+
+    Preconditions.checkNotNull(pubKey, "'pubKey' must be present");
+
+    ECPoint point;
+    try {
+      point = ECPointUtil.decodePoint(curveSpec.getCurve(), pubKey);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeySpecException("Public key is not a point on " + CURVE_NAME, e);
+    }
+
+    return (ECPublicKey) keyFactory.get().generatePublic(new ECPublicKeySpec(point, curveSpec));
+  }
+
+  /**
+   * @param pubKey       The ecdsa-sha2-nistp256 public key
+   * @param message      The message
+   * @param derSignature The ASN.1 encoded ECDSA signature
+   *
+   * @return True if the signature is valid
+   *
+   * @throws GeneralSecurityException If the key cannot be parsed or the signature cannot be processed
+   */
+  public boolean verify(byte[] pubKey, byte[] message, byte[] derSignature) throws GeneralSecurityException {
+
+    Preconditions.checkNotNull(message, "'message' must be present");
+    Preconditions.checkNotNull(derSignature, "'derSignature' must be present");
+
+    return verify(getPublicKey(pubKey), message, derSignature);
+  }
+
+  /**
+   * <p>Verify the result of a sign identity operation against the identity that was presented to the device</p>
+   *
+   * @param identity       The identity including the hidden and visual challenges
+   * @param signedIdentity The result from the device
+   *
+   * @return True if the public key and signature are present and the signature is over the challenges
+   */
+  public boolean verify(Identity identity, SignedIdentity signedIdentity) {
+
+    Preconditions.checkNotNull(identity, "'identity' must be present");
+    Preconditions.checkNotNull(signedIdentity, "'signedIdentity' must be present");
+
+    if (!signedIdentity.getPublicKeyBytes().isPresent() || !signedIdentity.getSignatureBytes().isPresent()) {
+      return false;
+    }
+
+    try {
+      return verify(
+        signedIdentity.getPublicKeyBytes().get(),
+        buildChallengeMessage(identity),
+        toDerSignature(signedIdentity.getSignatureBytes().get())
+      );
+    } catch (GeneralSecurityException e) {
+      log.debug("Identity signature could not be verified: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * <p>Verify a batch of sign identity results on the calling thread reusing the same crypto objects</p>
+   *
+   * @param identities       The identities presented to the device
+   * @param signedIdentities The corresponding results (same order)
+   *
+   * @return The verification result for each entry (same order)
+   */
+  public List<Boolean> verifyAll(List<Identity> identities, List<SignedIdentity> signedIdentities) {
+
+    Preconditions.checkNotNull(identities, "'identities' must be present");
+    Preconditions.checkNotNull(signedIdentities, "'signedIdentities' must be present");
+    Preconditions.checkArgument(identities.size() == signedIdentities.size(), "'identities' and 'signedIdentities' must be the same size");
+
+    List<Boolean> results = Lists.newArrayListWithCapacity(identities.size());
+    for (int i = 0; i < identities.size(); i++) {
+      results.add(verify(identities.get(i), signedIdentities.get(i)));
+    }
+
+    return results;
+  }
+
+  /**
+   * @param identity The identity
+   *
+   * @return The message signed by the device (SHA256 of the hidden challenge followed by SHA256 of the visual challenge)
+   */
+  public static byte[] buildChallengeMessage(Identity identity) {
+
+    byte[] sha256Hidden = Sha256Hash.hash(identity.getChallengeHidden());
+    byte[] sha256Visual = Sha256Hash.hash(identity.getChallengeVisual().getBytes(Charsets.UTF_8));
+
+    return ByteUtils.concatenate(sha256Hidden, sha256Visual);
+  }
+
+  /**
+   * @param signature The signature from the device (R and S optionally preceded by a header byte) or ASN.1 encoded
+   *
+   * @return The ASN.1 encoded signature
+   *
+   * @throws GeneralSecurityException If the signature cannot be encoded
+   */
+  public static byte[] toDerSignature(byte[] signature) throws GeneralSecurityException {
+
+    int offset;
+    if (signature.length == 2 * COMPONENT_BYTES + 1) {
+      offset = 1;
+    } else if (signature.length == 2 * COMPONENT_BYTES) {
+      offset = 0;
+    } else {
+      // Assume already encoded
+      return signature;
+    }
+
+    BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, offset, offset + COMPONENT_BYTES));
+    BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, offset + COMPONENT_BYTES, offset + 2 * COMPONENT_BYTES));
+
+    try {
+      return new DERSequence(new ASN1Encodable[]{new ASN1Integer(r), new ASN1Integer(s)}).getEncoded();
+    } catch (IOException e) {
+      throw new GeneralSecurityException("Could not encode signature", e);
+    }
+  }
+
+  private boolean verify(ECPublicKey publicKey, byte[] message, byte[] derSignature) throws GeneralSecurityException {
+
+    Signature ecdsaVerify = signature.get();
+    ecdsaVerify.initVerify(publicKey);
+    ecdsaVerify.update(message);
+
+    return ecdsaVerify.verify(derSignature);
+  }
+
+}
@@ -0,0 +1,590 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+import org.multibit.hd.hardware.core.HardwareWalletService;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvent;
+import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
+import org.multibit.hd.hardware.core.fsm.ContextUseCase;
+import org.multibit.hd.hardware.core.keys.DerivedKeyCache;
+import org.multibit.hd.hardware.core.keys.PersistentKeyStore;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.messages.PublicKey;
+import org.multibit.hd.hardware.core.utils.IdentityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Service to provide the following to identity (SLIP-0013) consumers:</p>
+ * <ul>
+ * <li>Identity public keys without a device round trip once they have been seen</li>
+ * <li>OpenSSH formatted public keys computed once per identity</li>
+ * <li>Optional persistence of identity public keys so later starts need no device round trip</li>
+ * </ul>
+ *
+ * <p>The identity public key is deterministic for a given device, URI, index and curve so the first
+ * answer from {@link HardwareWalletService#requestPublicKeyForIdentity(URI, int, String, boolean)} is
+ * retained against the wallet ID (the device ID and any passphrase fingerprint). Keys held for a device are
+ * invalidated once a wipe, load or create wallet use case ends. Keys held in memory for a passphrase
+ * protected device are also dropped when it detaches. Keys are only persisted once the seed fingerprint
+ * has been provided through {@link #setSeedFingerprint(Optional)}.</p>
+ *
+ * <p>Typical use:</p>
+ * <ol>
+ * <li>Call {@link #start()} after the hardware wallet service has started</li>
+ * <li>On <code>SHOW_DEVICE_READY</code> call {@link #getPublicKeyForIdentity(URI, int, String)}</li>
+ * </ol>
+ *
+ * @since 0.8.0
+ *
+ */
+public class IdentityKeyService {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentityKeyService.class);
+
+  private final HardwareWalletService hardwareWalletService;
+
+  /**
+   * Wallet ID + "/" + identity key -> identity public key
+   */
+  private final ConcurrentMap<String, CachedIdentityKey> identityKeys = Maps.newConcurrentMap();
+
+  private volatile Optional<PersistentKeyStore> keyStore = Optional.absent();
+
+  private volatile Optional<String> passphraseFingerprint = Optional.absent();
+
+  private volatile Optional<String> seedFingerprint = Optional.absent();
+
+  /**
+   * The ID of the ready device if it is passphrase protected
+   */
+  private volatile Optional<String> passphraseProtectedDeviceId = Optional.absent();
+
+  /**
+   * The ID of the device running a use case that replaces the seed (its keys are invalidated when the use case ends)
+   */
+  private Optional<String> seedReplacingDeviceId = Optional.absent();
+
+  /**
+   * Identity public keys requested through {@link #getPublicKeyForIdentity(URI, int, String)} awaiting the device (in request order)
+   */
+  private final Map<String, PendingIdentityKey> pendingIdentityKeys = Maps.newLinkedHashMap();
+
+  /**
+   * The identity key of the request currently with the device (only one is sent at a time so the reply can be matched)
+   */
+  private Optional<String> inFlightIdentityKey = Optional.absent();
+
+  /**
+   * @param hardwareWalletService The hardware wallet service providing the identity public keys
+   */
+  public IdentityKeyService(HardwareWalletService hardwareWalletService) {
+
+    Preconditions.checkNotNull(hardwareWalletService, "'hardwareWalletService' must be present");
+
+    this.hardwareWalletService = hardwareWalletService;
+  }
+
+  /**
+   * @param identityUri    The identity URI (e.g. "ssh://user@example.org")
+   * @param index          The index of the identity
+   * @param ecdsaCurveName The ECDSA curve name (e.g. "nist256p1")
+   *
+   * @return The key identifying the identity public key on any given device
+   */
+  public static String buildIdentityKey(URI identityUri, int index, String ecdsaCurveName) {
+
+    Preconditions.checkNotNull(identityUri, "'identityUri' must be present");
+    Preconditions.checkNotNull(ecdsaCurveName, "'ecdsaCurveName' must be present");
+
+    return ecdsaCurveName + "|" + index + "|" + identityUri.toASCIIString();
+  }
+
+  /**
+   * <p>Start capturing identity public keys as they arrive from the device</p>
+   *
+   * <p>Stopping the hardware wallet service removes all subscribers so this must be called again after a restart with a fresh instance</p>
+   */
+  public void start() {
+    HardwareWalletEvents.subscribe(this);
+  }
+
+  /**
+   * <p>Stop capturing identity public keys (the cache is retained)</p>
+   */
+  public void stop() {
+    HardwareWalletEvents.unsubscribe(this);
+  }
+
+  /**
+   * @param keyStore The persistent store for identity public keys
+   */
+  public synchronized void setKeyStore(PersistentKeyStore keyStore) {
+    this.keyStore = Optional.fromNullable(keyStore);
+  }
+
+  /**
+   * @param passphraseFingerprint The application's fingerprint for the passphrase in use, absent if unknown
+   *
+   * @see org.multibit.hd.hardware.core.keys.LocalKeyDerivationService#setPassphraseFingerprint(Optional)
+   */
+  public synchronized void setPassphraseFingerprint(Optional<String> passphraseFingerprint) {
+    Preconditions.checkNotNull(passphraseFingerprint, "'passphraseFingerprint' must be present");
+    this.passphraseFingerprint = passphraseFingerprint;
+  }
+
+  /**
+   * <p>Identify the seed behind the current device so identity public keys can be persisted</p>
+   *
+   * <p>It is forgotten when the seed is replaced or a passphrase protected device detaches.</p>
+   *
+   * @param seedFingerprint The seed fingerprint, absent if unknown
+   *
+   * @see org.multibit.hd.hardware.core.keys.LocalKeyDerivationService#getSeedFingerprint()
+   */
+  public synchronized void setSeedFingerprint(Optional<String> seedFingerprint) {
+    Preconditions.checkNotNull(seedFingerprint, "'seedFingerprint' must be present");
+    this.seedFingerprint = seedFingerprint;
+  }
+
+  /**
+   * @param identityUri    The identity URI
+   * @param index          The index of the identity
+   * @param ecdsaCurveName The ECDSA curve name
+   *
+   * @return The identity public key for the current device, absent if it has not yet been provided
+   */
+  public Optional<byte[]> getCachedPublicKey(URI identityUri, int index, String ecdsaCurveName) {
+
+    Optional<CachedIdentityKey> cached = loadIdentityKey(buildIdentityKey(identityUri, index, ecdsaCurveName));
+    if (!cached.isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(cached.get().getPublicKey());
+  }
+
+  /**
+   * <p>Provide the identity public key, fetching it from the device if necessary</p>
+   *
+   * <p>The device handles one use case at a time and its reply does not identify the request so requests
+   * are queued and sent one at a time, each after the previous one has been answered or has failed.</p>
+   *
+   * @param identityUri    The identity URI
+   * @param index          The index of the identity
+   * @param ecdsaCurveName The ECDSA curve name
+   *
+   * @return A future providing the identity public key, failed if the device reports a failure
+   */
+  public synchronized ListenableFuture<byte[]> getPublicKeyForIdentity(URI identityUri, int index, String ecdsaCurveName) {
+
+    String identityKey = buildIdentityKey(identityUri, index, ecdsaCurveName);
+
+    Optional<CachedIdentityKey> cached = loadIdentityKey(identityKey);
+    if (cached.isPresent()) {
+      return Futures.immediateFuture(cached.get().getPublicKey());
+    }
+
+    if (!currentDeviceId().isPresent()) {
+      return Futures.immediateFailedFuture(new HardwareWalletException("Device is not ready"));
+    }
+
+    PendingIdentityKey pending = pendingIdentityKeys.get(identityKey);
+    if (pending == null) {
+      pending = new PendingIdentityKey(identityUri, index, ecdsaCurveName);
+      pendingIdentityKeys.put(identityKey, pending);
+      requestNextIdentityKey();
+    }
+    return pending.future;
+
+  }
+
+  /**
+   * @param identityUri    The identity URI
+   * @param index          The index of the identity
+   * @param ecdsaCurveName The ECDSA curve name
+   * @param comment        An optional comment (null will be ignored)
+   *
+   * @return A future providing the OpenSSH formatted public key (computed once per identity)
+   */
+  public ListenableFuture<String> getOpenSSHPublicKey(
+    final URI identityUri,
+    final int index,
+    final String ecdsaCurveName,
+    final String comment) {
+
+    final String identityKey = buildIdentityKey(identityUri, index, ecdsaCurveName);
+
+    return Futures.transform(
+      getPublicKeyForIdentity(identityUri, index, ecdsaCurveName),
+      new Function<byte[], String>() {
+        @Override
+        public String apply(byte[] publicKey) {
+          CachedIdentityKey cached = loadIdentityKey(identityKey).or(new CachedIdentityKey(publicKey));
+          return IdentityUtils.printOpenSSHkeyNistp256(cached.getSSHKey(), comment);
+        }
+      });
+
+  }
+
+  /**
+   * <p>Capture the identity public key as soon as the device provides it</p>
+   *
+   * @param event The hardware wallet event
+   */
+  @Subscribe
+  public void onHardwareWalletEvent(HardwareWalletEvent event) {
+
+    trackSeedReplacement(event);
+
+    switch (event.getEventType()) {
+      case PUBLIC_KEY_FOR_IDENTITY:
+        if (event.getMessage().isPresent() && event.getMessage().get() instanceof PublicKey) {
+          captureIdentityKey((PublicKey) event.getMessage().get());
+        }
+        break;
+      case SHOW_DEVICE_READY:
+        passphraseProtectedDeviceId = Optional.absent();
+        if (event.getMessage().isPresent() && event.getMessage().get() instanceof Features) {
+          Features features = (Features) event.getMessage().get();
+          if (features.hasPassphraseProtection() && !Strings.isNullOrEmpty(features.getDeviceId())) {
+            passphraseProtectedDeviceId = Optional.of(features.getDeviceId());
+          }
+        }
+        break;
+      case SHOW_DEVICE_DETACHED:
+      case SHOW_DEVICE_STOPPED:
+        // The passphrase is forgotten so the device may present a different wallet next time
+        if (passphraseProtectedDeviceId.isPresent()) {
+          removeIdentityKeys(passphraseProtectedDeviceId.get());
+          passphraseProtectedDeviceId = Optional.absent();
+          seedFingerprint = Optional.absent();
+        }
+        failPendingIdentityKeys(event.getEventType().name());
+        break;
+      case SHOW_OPERATION_FAILED:
+      case SHOW_DEVICE_FAILED:
+        failPendingIdentityKeys(event.getEventType().name());
+        break;
+      default:
+        // Ignore
+    }
+
+  }
+
+  /**
+   * @param publicKey The public key message from the device
+   */
+  private void captureIdentityKey(PublicKey publicKey) {
+
+    Optional<String> walletId = currentWalletId();
+
+    SettableFuture<byte[]> future;
+    String identityKey;
+    synchronized (this) {
+      if (!inFlightIdentityKey.isPresent()) {
+        // Requested by someone else so the identity is unknown
+        return;
+      }
+      identityKey = inFlightIdentityKey.get();
+      inFlightIdentityKey = Optional.absent();
+      future = pendingIdentityKeys.remove(identityKey).future;
+    }
+
+    try {
+      completeIdentityKey(walletId, identityKey, publicKey, future);
+    } finally {
+      // The device is free for the next request
+      requestNextIdentityKey();
+    }
+
+  }
+
+  /**
+   * @param walletId    The ID of the wallet presented by the current device
+   * @param identityKey The identity key of the request the device has answered
+   * @param publicKey   The public key message from the device
+   * @param future      The future awaiting the identity public key
+   */
+  private void completeIdentityKey(Optional<String> walletId, String identityKey, PublicKey publicKey, SettableFuture<byte[]> future) {
+
+    if (!publicKey.getHdNodeType().isPresent() || !publicKey.getHdNodeType().get().getPublicKey().isPresent()) {
+      future.setException(new HardwareWalletException("Identity public key not provided"));
+      return;
+    }
+
+    byte[] identityPublicKey = publicKey.getHdNodeType().get().getPublicKey().get();
+
+    if (walletId.isPresent()) {
+      log.debug("Capturing identity public key for '{}'", identityKey);
+      identityKeys.put(walletId.get() + "/" + identityKey, new CachedIdentityKey(identityPublicKey));
+
+      // Persist for later starts
+      Optional<String> scope = currentScope();
+      PersistentKeyStore store = keyStore.orNull();
+      if (store != null && scope.isPresent()) {
+        try {
+          store.putIdentityPublicKey(scope.get(), identityKey, identityPublicKey);
+        } catch (IOException e) {
+          log.warn("Could not persist identity public key", e);
+        }
+      }
+    }
+
+    future.set(Arrays.copyOf(identityPublicKey, identityPublicKey.length));
+
+  }
+
+  /**
+   * <p>Send the oldest queued request to the device unless a request is already with it</p>
+   */
+  private synchronized void requestNextIdentityKey() {
+
+    if (inFlightIdentityKey.isPresent() || pendingIdentityKeys.isEmpty()) {
+      return;
+    }
+
+    Map.Entry<String, PendingIdentityKey> next = pendingIdentityKeys.entrySet().iterator().next();
+    PendingIdentityKey pending = next.getValue();
+
+    inFlightIdentityKey = Optional.of(next.getKey());
+    hardwareWalletService.requestPublicKeyForIdentity(pending.identityUri, pending.index, pending.ecdsaCurveName, false);
+
+  }
+
+  /**
+   * @param reason The reason for the failure
+   */
+  private synchronized void failPendingIdentityKeys(String reason) {
+
+    for (PendingIdentityKey pending : pendingIdentityKeys.values()) {
+      pending.future.setException(new HardwareWalletException("Identity public key not provided: " + reason));
+    }
+    pendingIdentityKeys.clear();
+    inFlightIdentityKey = Optional.absent();
+
+  }
+
+  /**
+   * @param identityKey The identity key
+   *
+   * @return The cached identity public key for the current device (from memory or the store)
+   */
+  private Optional<CachedIdentityKey> loadIdentityKey(String identityKey) {
+
+    Optional<String> walletId = currentWalletId();
+    if (!walletId.isPresent()) {
+      return Optional.absent();
+    }
+
+    String cacheKey = walletId.get() + "/" + identityKey;
+    CachedIdentityKey cached = identityKeys.get(cacheKey);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+
+    Optional<String> scope = currentScope();
+    PersistentKeyStore store = keyStore.orNull();
+    if (store == null || !scope.isPresent()) {
+      return Optional.absent();
+    }
+
+    Optional<byte[]> stored = store.getIdentityPublicKey(scope.get(), identityKey);
+    if (!stored.isPresent()) {
+      return Optional.absent();
+    }
+
+    log.debug("Loaded identity public key for '{}' from store", identityKey);
+    cached = new CachedIdentityKey(stored.get());
+    CachedIdentityKey existing = identityKeys.putIfAbsent(cacheKey, cached);
+
+    return Optional.of(existing == null ? cached : existing);
+
+  }
+
+  /**
+   * <p>Invalidate the identity keys for a device once a use case that replaces its seed has ended</p>
+   *
+   * @param event The hardware wallet event
+   */
+  private synchronized void trackSeedReplacement(HardwareWalletEvent event) {
+
+    // Any of these use cases will replace the seed
+    ContextUseCase useCase = hardwareWalletService.getContext().getCurrentUseCase();
+    boolean seedReplacing = useCase == ContextUseCase.WIPE_DEVICE
+      || useCase == ContextUseCase.LOAD_WALLET
+      || useCase == ContextUseCase.CREATE_WALLET;
+
+    boolean ended = !seedReplacing
+      || event.getEventType() == HardwareWalletEventType.SHOW_OPERATION_SUCCEEDED
+      || event.getEventType() == HardwareWalletEventType.SHOW_OPERATION_FAILED
+      || event.getEventType() == HardwareWalletEventType.SHOW_DEVICE_READY;
+
+    if (!ended) {
+      if (!seedReplacingDeviceId.isPresent()) {
+        // Remember the device now since a wipe can change its ID
+        seedReplacingDeviceId = currentDeviceId();
+      }
+    } else if (seedReplacingDeviceId.isPresent()) {
+      invalidateDevice(seedReplacingDeviceId.get());
+      seedReplacingDeviceId = Optional.absent();
+      seedFingerprint = Optional.absent();
+    }
+
+  }
+
+  /**
+   * <p>Remove all identity public keys held for a device</p>
+   *
+   * @param deviceId The device ID
+   */
+  private void invalidateDevice(String deviceId) {
+
+    log.debug("Invalidating identity keys for device '{}'", deviceId);
+
+    removeIdentityKeys(deviceId);
+
+    PersistentKeyStore store = keyStore.orNull();
+    if (store != null) {
+      try {
+        store.invalidate(deviceId + "/");
+      } catch (IOException e) {
+        log.warn("Could not invalidate stored keys", e);
+      }
+    }
+
+  }
+
+  /**
+   * <p>Remove the identity public keys held in memory for a device under every passphrase</p>
+   *
+   * @param deviceId The device ID
+   */
+  private void removeIdentityKeys(String deviceId) {
+
+    String prefix = deviceId + "/";
+
+    Iterator<String> iterator = identityKeys.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().startsWith(prefix)) {
+        iterator.remove();
+      }
+    }
+
+  }
+
+  /**
+   * @return The persistent store scope for the current device, absent if keys should not be persisted
+   */
+  private synchronized Optional<String> currentScope() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent()) {
+      return Optional.absent();
+    }
+    return PersistentKeyStore.buildScope(features.get(), passphraseFingerprint, seedFingerprint);
+
+  }
+
+  /**
+   * @return The ID of the wallet presented by the current device, absent if the device has not provided its features
+   */
+  private synchronized Optional<String> currentWalletId() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent() || Strings.isNullOrEmpty(features.get().getDeviceId())) {
+      return Optional.absent();
+    }
+
+    if (!features.get().hasPassphraseProtection()) {
+      return Optional.of(features.get().getDeviceId());
+    }
+    return Optional.of(DerivedKeyCache.buildWalletId(features.get().getDeviceId(), passphraseFingerprint));
+
+  }
+
+  /**
+   * @return The current device ID, absent if the device has not provided its features
+   */
+  private Optional<String> currentDeviceId() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent() || Strings.isNullOrEmpty(features.get().getDeviceId())) {
+      return Optional.absent();
+    }
+    return Optional.of(features.get().getDeviceId());
+
+  }
+
+  /**
+   * Identity public key request awaiting the device
+   */
+  private static class PendingIdentityKey {
+
+    private final URI identityUri;
+
+    private final int index;
+
+    private final String ecdsaCurveName;
+
+    private final SettableFuture<byte[]> future = SettableFuture.create();
+
+    private PendingIdentityKey(URI identityUri, int index, String ecdsaCurveName) {
+      this.identityUri = identityUri;
+      this.index = index;
+      this.ecdsaCurveName = ecdsaCurveName;
+    }
+  }
+
+  /**
+   * Identity public key with its OpenSSH form computed on first use
+   */
+  private static class CachedIdentityKey {
+
+    private final byte[] publicKey;
+
+    private volatile String sshKey;
+
+    private CachedIdentityKey(byte[] publicKey) {
+      this.publicKey = Arrays.copyOf(publicKey, publicKey.length);
+    }
+
+    /**
+     * @return A copy of the public key
+     */
+    private byte[] getPublicKey() {
+      return Arrays.copyOf(publicKey, publicKey.length);
+    }
+
+    /**
+     * @return The key-only base64 SSH form
+     */
+    private String getSSHKey() {
+      if (sshKey == null) {
+        try {
+          sshKey = IdentityUtils.decompressSSHKeyFromNistp256(IdentityCryptoService.getInstance().getPublicKey(publicKey));
+        } catch (InvalidKeySpecException e) {
+          throw new HardwareWalletException("Identity public key is not valid", e);
+        }
+      }
+      return sshKey;
+    }
+  }
+
+}
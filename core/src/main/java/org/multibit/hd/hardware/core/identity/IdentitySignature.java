@@ -0,0 +1,73 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.base.Preconditions;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>Value object to provide the following to the batch signature verifier:</p>
+ * <ul>
+ * <li>A public key, message and ASN.1 encoded signature to be verified together</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class IdentitySignature {
+
+  private final byte[] publicKey;
+  private final byte[] message;
+  private final byte[] signature;
+
+  /**
+   * @param publicKey The ecdsa-sha2-nistp256 public key
+   * @param message   The message
+   * @param signature The ASN.1 encoded ECDSA signature
+   */
+  public IdentitySignature(byte[] publicKey, byte[] message, byte[] signature) {
+
+    Preconditions.checkNotNull(publicKey, "'publicKey' must be present");
+    Preconditions.checkNotNull(message, "'message' must be present");
+    Preconditions.checkNotNull(signature, "'signature' must be present");
+
+    this.publicKey = publicKey;
+    this.message = message;
+    this.signature = signature;
+  }
+
+  /**
+   * @param identity       The identity including the hidden and visual challenges
+   * @param signedIdentity The result from the device (public key and signature must be present)
+   *
+   * @return The public key, challenge message and signature to verify
+   *
+   * @throws GeneralSecurityException If the device signature cannot be encoded
+   */
+  public static IdentitySignature fromSignedIdentity(Identity identity, SignedIdentity signedIdentity) throws GeneralSecurityException {
+
+    Preconditions.checkNotNull(identity, "'identity' must be present");
+    Preconditions.checkNotNull(signedIdentity, "'signedIdentity' must be present");
+    Preconditions.checkArgument(signedIdentity.getPublicKeyBytes().isPresent(), "'publicKeyBytes' must be present");
+    Preconditions.checkArgument(signedIdentity.getSignatureBytes().isPresent(), "'signatureBytes' must be present");
+
+    return new IdentitySignature(
+      signedIdentity.getPublicKeyBytes().get(),
+      IdentityCryptoService.buildChallengeMessage(identity),
+      IdentityCryptoService.toDerSignature(signedIdentity.getSignatureBytes().get())
+    );
+  }
+
+  public byte[] getPublicKey() {
+    return publicKey;
+  }
+
+  public byte[] getMessage() {
+    return message;
+  }
+
+  public byte[] getSignature() {
+    return signature;
+  }
+}
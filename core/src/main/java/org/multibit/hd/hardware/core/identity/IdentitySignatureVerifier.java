@@ -0,0 +1,134 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Verifier to provide the following to identity (SLIP-0013) consumers:</p>
+ * <ul>
+ * <li>Verification of large batches of identity signatures on a fork-join pool</li>
+ * <li>A result bitmap where bit <code>i</code> is set if signature <code>i</code> is valid</li>
+ * </ul>
+ *
+ * <p>The batch is split in halves until each task holds a few dozen signatures. Each worker thread
+ * reuses its own <code>KeyFactory</code> and <code>Signature</code> from {@link IdentityCryptoService}
+ * so throughput scales with the number of cores.</p>
+ *
+ * <p>A signature that cannot be parsed (or whose public key is not on the curve) is reported as invalid
+ * rather than failing the batch.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class IdentitySignatureVerifier {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentitySignatureVerifier.class);
+
+  /**
+   * Below this a task verifies on its own thread rather than splitting
+   */
+  private static final int SPLIT_THRESHOLD = 32;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * Verify using all available cores
+   */
+  public IdentitySignatureVerifier() {
+    this(new ForkJoinPool());
+  }
+
+  /**
+   * @param pool The fork-join pool to verify on
+   */
+  public IdentitySignatureVerifier(ForkJoinPool pool) {
+
+    Preconditions.checkNotNull(pool, "'pool' must be present");
+
+    this.pool = pool;
+  }
+
+  /**
+   * @param signatures The signatures to verify
+   *
+   * @return The result bitmap (bit set if the signature at that index is valid)
+   */
+  public BitSet verify(List<IdentitySignature> signatures) {
+
+    Preconditions.checkNotNull(signatures, "'signatures' must be present");
+
+    // Random access is required when splitting
+    List<IdentitySignature> batch = ImmutableList.copyOf(signatures);
+    boolean[] results = new boolean[batch.size()];
+
+    pool.invoke(new VerifyTask(batch, results, 0, batch.size()));
+
+    BitSet bitmap = new BitSet(results.length);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i]) {
+        bitmap.set(i);
+      }
+    }
+
+    log.debug("Verified {} of {} identity signatures", bitmap.cardinality(), results.length);
+
+    return bitmap;
+  }
+
+  /**
+   * <p>Stop the pool (verifiers sharing a pool should not call this)</p>
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Verifies a range of the batch writing each result to its own slot
+   */
+  private static class VerifyTask extends RecursiveAction {
+
+    private final List<IdentitySignature> batch;
+    private final boolean[] results;
+    private final int from;
+    private final int to;
+
+    private VerifyTask(List<IdentitySignature> batch, boolean[] results, int from, int to) {
+      this.batch = batch;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+
+      if (to - from <= SPLIT_THRESHOLD) {
+        IdentityCryptoService cryptoService = IdentityCryptoService.getInstance();
+        for (int i = from; i < to; i++) {
+          IdentitySignature signature = batch.get(i);
+          try {
+            results[i] = cryptoService.verify(signature.getPublicKey(), signature.getMessage(), signature.getSignature());
+          } catch (GeneralSecurityException | IllegalArgumentException e) {
+            results[i] = false;
+          }
+        }
+        return;
+      }
+
+      int middle = (from + to) >>> 1;
+      invokeAll(
+        new VerifyTask(batch, results, from, middle),
+        new VerifyTask(batch, results, middle, to)
+      );
+    }
+  }
+
+}
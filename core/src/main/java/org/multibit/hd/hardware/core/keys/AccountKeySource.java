@@ -0,0 +1,26 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.crypto.DeterministicKey;
+
+/**
+ * <p>Interface to provide the following to key discovery:</p>
+ * <ul>
+ * <li>Asynchronous access to BIP-44 account keys (<code>M/44'/0'/account'</code>)</li>
+ * </ul>
+ *
+ * <p>Implementations backed by a device should only fetch each account key once.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public interface AccountKeySource {
+
+  /**
+   * @param account The plain account number
+   *
+   * @return A future providing the public only account key
+   */
+  ListenableFuture<DeterministicKey> getAccountKey(int account);
+
+}
@@ -0,0 +1,278 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+import org.bitcoinj.wallet.KeyChain;
+import org.bitcoinj.wallet.KeyChainGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>Discovery to provide the following to watch-only wallet bootstrap:</p>
+ * <ul>
+ * <li>BIP-44 account discovery with a configurable gap limit on external and change chains</li>
+ * <li>Parallel derivation of candidate addresses on a fork-join pool</li>
+ * <li>A ready {@link KeyChainGroup} containing a watching chain for each discovered account</li>
+ * </ul>
+ *
+ * <p>Each account key is fetched once from the {@link AccountKeySource} and everything below it is
+ * derived locally. Accounts are scanned in order until one with no used addresses is found, as
+ * described in BIP-44.</p>
+ *
+ * <p>A single pool can be shared between discoveries for many devices.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class AddressDiscovery {
+
+  private static final Logger log = LoggerFactory.getLogger(AddressDiscovery.class);
+
+  /**
+   * BIP-44 gap limit
+   */
+  public static final int DEFAULT_GAP_LIMIT = 20;
+
+  /**
+   * Upper bound on the number of accounts scanned
+   */
+  public static final int DEFAULT_MAXIMUM_ACCOUNTS = 100;
+
+  /**
+   * Addresses derived by a single fork-join task before splitting
+   */
+  private static final int DERIVATION_THRESHOLD = 8;
+
+  /**
+   * Allow for a PIN or passphrase entry when fetching an account key
+   */
+  private static final long ACCOUNT_KEY_TIMEOUT_SECONDS = 120;
+
+  private final AccountKeySource accountKeySource;
+  private final AddressUsageOracle usageOracle;
+  private final NetworkParameters networkParameters;
+  private final ForkJoinPool pool;
+
+  private int gapLimit = DEFAULT_GAP_LIMIT;
+  private int maximumAccounts = DEFAULT_MAXIMUM_ACCOUNTS;
+
+  /**
+   * @param accountKeySource  The source of account keys (e.g. a {@link LocalKeyDerivationService})
+   * @param usageOracle       The address usage oracle
+   * @param networkParameters The network parameters
+   * @param pool              The fork-join pool for address derivation (can be shared)
+   */
+  public AddressDiscovery(AccountKeySource accountKeySource, AddressUsageOracle usageOracle, NetworkParameters networkParameters, ForkJoinPool pool) {
+
+    Preconditions.checkNotNull(accountKeySource, "'accountKeySource' must be present");
+    Preconditions.checkNotNull(usageOracle, "'usageOracle' must be present");
+    Preconditions.checkNotNull(networkParameters, "'networkParameters' must be present");
+    Preconditions.checkNotNull(pool, "'pool' must be present");
+
+    this.accountKeySource = accountKeySource;
+    this.usageOracle = usageOracle;
+    this.networkParameters = networkParameters;
+    this.pool = pool;
+  }
+
+  /**
+   * @param gapLimit The number of consecutive unused addresses that ends a chain scan
+   */
+  public void setGapLimit(int gapLimit) {
+    Preconditions.checkArgument(gapLimit > 0, "'gapLimit' must be positive");
+    this.gapLimit = gapLimit;
+  }
+
+  /**
+   * @param maximumAccounts The upper bound on the number of accounts scanned
+   */
+  public void setMaximumAccounts(int maximumAccounts) {
+    Preconditions.checkArgument(maximumAccounts > 0, "'maximumAccounts' must be positive");
+    this.maximumAccounts = maximumAccounts;
+  }
+
+  /**
+   * <p>Discover the used accounts</p>
+   *
+   * <p>The first unused account is included so that the wallet has somewhere to receive funds.</p>
+   *
+   * @return The discovered accounts in account order
+   *
+   * @throws IOException If the account keys or address usage cannot be obtained
+   */
+  public List<DiscoveredAccount> discover() throws IOException {
+
+    List<DiscoveredAccount> accounts = Lists.newArrayList();
+
+    for (int account = 0; account < maximumAccounts; account++) {
+
+      DiscoveredAccount discoveredAccount = discoverAccount(account, fetchAccountKey(account));
+      accounts.add(discoveredAccount);
+
+      log.debug("Discovered {}", discoveredAccount);
+
+      if (!discoveredAccount.isUsed()) {
+        break;
+      }
+    }
+
+    return accounts;
+  }
+
+  /**
+   * @param account    The plain account number
+   * @param accountKey The public only account key
+   *
+   * @return The result of scanning the external and change chains
+   *
+   * @throws IOException If the address usage cannot be obtained
+   */
+  public DiscoveredAccount discoverAccount(int account, DeterministicKey accountKey) throws IOException {
+
+    Preconditions.checkNotNull(accountKey, "'accountKey' must be present");
+
+    int lastUsedExternal = scanChain(HDKeyDerivation.deriveChildKey(accountKey, ChildNumber.ZERO));
+    int lastUsedChange = scanChain(HDKeyDerivation.deriveChildKey(accountKey, ChildNumber.ONE));
+
+    return new DiscoveredAccount(account, accountKey, lastUsedExternal, lastUsedChange);
+  }
+
+  /**
+   * <p>Build a key chain group suitable for a watching wallet</p>
+   *
+   * <p>Each chain has the used keys issued and a lookahead of the gap limit. Account 0 is the active chain.</p>
+   *
+   * @param accounts The discovered accounts
+   *
+   * @return The key chain group
+   */
+  public KeyChainGroup buildKeyChainGroup(List<DiscoveredAccount> accounts) {
+
+    Preconditions.checkNotNull(accounts, "'accounts' must be present");
+    Preconditions.checkArgument(!accounts.isEmpty(), "'accounts' must not be empty");
+
+    KeyChainGroup keyChainGroup = new KeyChainGroup(networkParameters);
+
+    // The last chain added becomes active so add in reverse
+    for (DiscoveredAccount account : Lists.reverse(accounts)) {
+
+      DeterministicKeyChain chain = DeterministicKeyChain.watch(account.getAccountKey());
+      chain.setLookaheadSize(gapLimit);
+
+      // Issue the used keys so the next fresh address follows them
+      if (account.getLastUsedExternal() >= 0) {
+        chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, account.getLastUsedExternal() + 1);
+      }
+      if (account.getLastUsedChange() >= 0) {
+        chain.getKeys(KeyChain.KeyPurpose.CHANGE, account.getLastUsedChange() + 1);
+      }
+
+      keyChainGroup.addAndActivateHDChain(chain);
+    }
+
+    return keyChainGroup;
+  }
+
+  /**
+   * @param chainKey The external or change chain key
+   *
+   * @return The index of the last used address, -1 if none
+   *
+   * @throws IOException If the address usage cannot be obtained
+   */
+  private int scanChain(DeterministicKey chainKey) throws IOException {
+
+    int lastUsed = -1;
+    int next = 0;
+
+    while (true) {
+
+      // Extend the window so that it always reaches a full gap beyond the last used address
+      int end = lastUsed + 1 + gapLimit;
+      if (next >= end) {
+        return lastUsed;
+      }
+
+      List<Address> candidates = pool.invoke(new DeriveAddressesTask(chainKey, networkParameters, next, end));
+      Set<Address> used = usageOracle.findUsed(candidates);
+
+      for (int i = 0; i < candidates.size(); i++) {
+        if (used.contains(candidates.get(i))) {
+          lastUsed = next + i;
+        }
+      }
+
+      next = end;
+    }
+  }
+
+  private DeterministicKey fetchAccountKey(int account) throws IOException {
+
+    try {
+      return accountKeySource.getAccountKey(account).get(ACCOUNT_KEY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching account " + account, e);
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException("Could not fetch account " + account, e);
+    }
+  }
+
+  /**
+   * Derive a range of addresses by recursive halving
+   */
+  private static class DeriveAddressesTask extends RecursiveTask<List<Address>> {
+
+    private final DeterministicKey chainKey;
+    private final NetworkParameters networkParameters;
+    private final int from;
+    private final int to;
+
+    private DeriveAddressesTask(DeterministicKey chainKey, NetworkParameters networkParameters, int from, int to) {
+      this.chainKey = chainKey;
+      this.networkParameters = networkParameters;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<Address> compute() {
+
+      if (to - from <= DERIVATION_THRESHOLD) {
+        Address[] addresses = new Address[to - from];
+        for (int index = from; index < to; index++) {
+          addresses[index - from] = HDKeyDerivation.deriveChildKey(chainKey, new ChildNumber(index, false)).toAddress(networkParameters);
+        }
+        return Arrays.asList(addresses);
+      }
+
+      int middle = (from + to) >>> 1;
+      DeriveAddressesTask left = new DeriveAddressesTask(chainKey, networkParameters, from, middle);
+      DeriveAddressesTask right = new DeriveAddressesTask(chainKey, networkParameters, middle, to);
+      left.fork();
+
+      List<Address> addresses = Lists.newArrayListWithCapacity(to - from);
+      List<Address> rightAddresses = right.compute();
+      addresses.addAll(left.join());
+      addresses.addAll(rightAddresses);
+      return addresses;
+    }
+  }
+
+}
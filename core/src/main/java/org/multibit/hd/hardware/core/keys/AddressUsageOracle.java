@@ -0,0 +1,32 @@
+package org.multibit.hd.hardware.core.keys;
+
+import org.bitcoinj.core.Address;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Interface to provide the following to key discovery:</p>
+ * <ul>
+ * <li>Batched lookup of which addresses have appeared on the block chain</li>
+ * </ul>
+ *
+ * <p>Implementations are typically backed by an indexing server or a local copy of the UTXO set and
+ * must be safe to call from multiple threads.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public interface AddressUsageOracle {
+
+  /**
+   * @param candidates The candidate addresses
+   *
+   * @return The subset of candidates that have been used in a transaction
+   *
+   * @throws IOException If the lookup fails
+   */
+  Set<Address> findUsed(List<Address> candidates) throws IOException;
+
+}
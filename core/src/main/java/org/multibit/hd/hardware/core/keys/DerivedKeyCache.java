@@ -0,0 +1,261 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.crypto.HDUtils;
+import org.bitcoinj.wallet.KeyChain;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Cache to provide the following to hardware wallet key services:</p>
+ * <ul>
+ * <li>Retention of BIP-44 account keys (<code>M/44'/0'/account'</code>) fetched from a device</li>
+ * <li>Local derivation of the non-hardened chain and address keys below each account</li>
+ * <li>A bounded LRU of derived keys keyed on wallet ID and path</li>
+ * </ul>
+ *
+ * <p>A passphrase protected device presents a different wallet for each passphrase so keys are held
+ * against a wallet ID (see {@link #buildWalletId(String, Optional)}) rather than the device ID alone.</p>
+ *
+ * <p>Everything below the account node is non-hardened so it can be derived from the account
+ * public key alone. Only the account keys require a round trip to the device.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class DerivedKeyCache {
+
+  /**
+   * Default maximum number of derived keys retained across all devices
+   */
+  public static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+
+  /**
+   * BIP-44 purpose (hardened)
+   */
+  private static final ChildNumber PURPOSE = new ChildNumber(44, true);
+
+  /**
+   * BIP-44 coin type for Bitcoin (hardened)
+   */
+  private static final ChildNumber COIN_TYPE = ChildNumber.ZERO_HARDENED;
+
+  /**
+   * Account keys are few and expensive to obtain so they are never evicted
+   */
+  private final ConcurrentMap<String, DeterministicKey> accountKeys = Maps.newConcurrentMap();
+
+  private final Cache<String, DeterministicKey> derivedKeys;
+
+  public DerivedKeyCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param maximumSize The maximum number of derived keys to retain
+   */
+  public DerivedKeyCache(long maximumSize) {
+
+    Preconditions.checkArgument(maximumSize > 0, "'maximumSize' must be positive");
+
+    this.derivedKeys = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .build();
+  }
+
+  /**
+   * @param account The plain account number
+   *
+   * @return The BIP-44 path to the account node (e.g. M/44'/0'/0')
+   */
+  public static ImmutableList<ChildNumber> buildAccountPath(int account) {
+
+    Preconditions.checkArgument(account >= 0, "'account' must not be negative");
+
+    return ImmutableList.of(PURPOSE, COIN_TYPE, new ChildNumber(account, true));
+  }
+
+  /**
+   * @param keyPurpose The key purpose
+   *
+   * @return The non-hardened chain below the account (0 for external, 1 for internal)
+   */
+  public static ChildNumber buildChain(KeyChain.KeyPurpose keyPurpose) {
+
+    switch (keyPurpose) {
+      case CHANGE:
+      case AUTHENTICATION:
+        return ChildNumber.ONE;
+      default:
+        return ChildNumber.ZERO;
+    }
+  }
+
+  /**
+   * @param path The path to check
+   *
+   * @return True if the path describes a BIP-44 Bitcoin account node
+   */
+  public static boolean isAccountPath(List<ChildNumber> path) {
+
+    return path.size() == 3
+      && PURPOSE.equals(path.get(0))
+      && COIN_TYPE.equals(path.get(1))
+      && path.get(2).isHardened();
+  }
+
+  /**
+   * @param deviceId              The device ID from the features
+   * @param passphraseFingerprint The application's fingerprint for the passphrase in use, absent if unknown
+   *
+   * @return The ID of the wallet presented by the device
+   */
+  public static String buildWalletId(String deviceId, Optional<String> passphraseFingerprint) {
+
+    Preconditions.checkNotNull(deviceId, "'deviceId' must be present");
+    Preconditions.checkNotNull(passphraseFingerprint, "'passphraseFingerprint' must be present");
+
+    if (!passphraseFingerprint.isPresent()) {
+      return deviceId;
+    }
+    return deviceId + "/" + passphraseFingerprint.get();
+  }
+
+  /**
+   * @param walletId The wallet ID from {@link #buildWalletId(String, Optional)}
+   * @param path     The key path
+   *
+   * @return The cache key
+   */
+  static String buildKey(String walletId, List<ChildNumber> path) {
+    return walletId + ":" + HDUtils.formatPath(path);
+  }
+
+  /**
+   * <p>Retain an account key fetched from the device</p>
+   *
+   * @param walletId   The wallet ID from {@link #buildWalletId(String, Optional)}
+   * @param accountKey The account key (public only is sufficient)
+   */
+  public void putAccountKey(String walletId, DeterministicKey accountKey) {
+
+    Preconditions.checkNotNull(walletId, "'walletId' must be present");
+    Preconditions.checkNotNull(accountKey, "'accountKey' must be present");
+    Preconditions.checkArgument(isAccountPath(accountKey.getPath()), "'accountKey' must be a BIP-44 account key");
+
+    accountKeys.put(buildKey(walletId, accountKey.getPath()), accountKey);
+  }
+
+  /**
+   * @param walletId The wallet ID from {@link #buildWalletId(String, Optional)}
+   * @param account  The plain account number
+   *
+   * @return The account key, absent if not yet fetched from the device
+   */
+  public Optional<DeterministicKey> getAccountKey(String walletId, int account) {
+
+    Preconditions.checkNotNull(walletId, "'walletId' must be present");
+
+    return Optional.fromNullable(accountKeys.get(buildKey(walletId, buildAccountPath(account))));
+  }
+
+  /**
+   * <p>Derive the key at <code>M/44'/0'/account'/chain/index</code> without involving the device</p>
+   *
+   * @param walletId   The wallet ID from {@link #buildWalletId(String, Optional)}
+   * @param account    The plain account number
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param index      The plain index of the required key
+   *
+   * @return The derived public key, absent if the account key has not been fetched from the device
+   */
+  public Optional<DeterministicKey> deriveKey(String walletId, int account, KeyChain.KeyPurpose keyPurpose, int index) {
+
+    Preconditions.checkNotNull(keyPurpose, "'keyPurpose' must be present");
+    Preconditions.checkArgument(index >= 0, "'index' must not be negative");
+
+    Optional<DeterministicKey> accountKey = getAccountKey(walletId, account);
+    if (!accountKey.isPresent()) {
+      return Optional.absent();
+    }
+
+    // Each address only costs a single derivation once the chain node is cached
+    DeterministicKey chainKey = deriveChild(walletId, accountKey.get(), buildChain(keyPurpose));
+
+    return Optional.of(deriveChild(walletId, chainKey, new ChildNumber(index, false)));
+  }
+
+  /**
+   * <p>Remove all keys belonging to a device for every passphrase (e.g. following a wipe)</p>
+   *
+   * @param deviceId The device ID from the features
+   */
+  public void invalidate(String deviceId) {
+
+    Preconditions.checkNotNull(deviceId, "'deviceId' must be present");
+
+    removeDevice(accountKeys.keySet().iterator(), deviceId);
+    removeDevice(derivedKeys.asMap().keySet().iterator(), deviceId);
+
+  }
+
+  /**
+   * <p>Remove all keys</p>
+   */
+  public void clear() {
+    accountKeys.clear();
+    derivedKeys.invalidateAll();
+  }
+
+  /**
+   * @return The approximate number of derived keys currently retained
+   */
+  public long size() {
+    return derivedKeys.size();
+  }
+
+  private DeterministicKey deriveChild(String walletId, DeterministicKey parent, ChildNumber childNumber) {
+
+    ImmutableList<ChildNumber> path = ImmutableList.<ChildNumber>builder()
+      .addAll(parent.getPath())
+      .add(childNumber)
+      .build();
+    String key = buildKey(walletId, path);
+
+    DeterministicKey child = derivedKeys.getIfPresent(key);
+    if (child == null) {
+      // A concurrent derivation of the same key is harmless since the result is identical
+      child = HDKeyDerivation.deriveChildKey(parent, childNumber);
+      derivedKeys.put(key, child);
+    }
+    return child;
+  }
+
+  /**
+   * @param iterator The cache keys
+   * @param deviceId The device ID
+   */
+  private static void removeDevice(Iterator<String> iterator, String deviceId) {
+
+    String walletPrefix = deviceId + ":";
+    String passphrasePrefix = deviceId + "/";
+
+    while (iterator.hasNext()) {
+      String key = iterator.next();
+      if (key.startsWith(walletPrefix) || key.startsWith(passphrasePrefix)) {
+        iterator.remove();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+package org.multibit.hd.hardware.core.keys;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bitcoinj.crypto.DeterministicKey;
+
+/**
+ * <p>Value object to provide the following to key discovery:</p>
+ * <ul>
+ * <li>The result of a gap limit scan of a single BIP-44 account</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class DiscoveredAccount {
+
+  private final int account;
+  private final DeterministicKey accountKey;
+  private final int lastUsedExternal;
+  private final int lastUsedChange;
+
+  /**
+   * @param account          The plain account number
+   * @param accountKey       The public only account key
+   * @param lastUsedExternal The index of the last used external (receiving) address, -1 if none
+   * @param lastUsedChange   The index of the last used change address, -1 if none
+   */
+  public DiscoveredAccount(int account, DeterministicKey accountKey, int lastUsedExternal, int lastUsedChange) {
+    this.account = account;
+    this.accountKey = accountKey;
+    this.lastUsedExternal = lastUsedExternal;
+    this.lastUsedChange = lastUsedChange;
+  }
+
+  /**
+   * @return The plain account number
+   */
+  public int getAccount() {
+    return account;
+  }
+
+  /**
+   * @return The public only account key
+   */
+  public DeterministicKey getAccountKey() {
+    return accountKey;
+  }
+
+  /**
+   * @return The index of the last used external (receiving) address, -1 if none
+   */
+  public int getLastUsedExternal() {
+    return lastUsedExternal;
+  }
+
+  /**
+   * @return The index of the last used change address, -1 if none
+   */
+  public int getLastUsedChange() {
+    return lastUsedChange;
+  }
+
+  /**
+   * @return True if any address in the account has been used
+   */
+  public boolean isUsed() {
+    return lastUsedExternal >= 0 || lastUsedChange >= 0;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("account", account)
+      .append("lastUsedExternal", lastUsedExternal)
+      .append("lastUsedChange", lastUsedChange)
+      .toString();
+  }
+}
@@ -0,0 +1,541 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.eventbus.Subscribe;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.wallet.KeyChain;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+import org.multibit.hd.hardware.core.HardwareWalletService;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvent;
+import org.multibit.hd.hardware.core.events.HardwareWalletEventType;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
+import org.multibit.hd.hardware.core.fsm.ContextUseCase;
+import org.multibit.hd.hardware.core.fsm.HardwareWalletContext;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Service to provide the following to downstream API consumers:</p>
+ * <ul>
+ * <li>BIP-44 public keys and addresses without a device round trip for each one</li>
+ * <li>Optional persistence of account keys and address ranges so later starts need no device round trip</li>
+ * </ul>
+ *
+ * <p>Each hardened account node is fetched once through
+ * {@link HardwareWalletService#requestDeterministicHierarchy(java.util.List)} and retained against
+ * the wallet ID (the device ID and any passphrase fingerprint). Receiving and change keys are then derived locally so address generation takes
+ * microseconds rather than a USB round trip.</p>
+ *
+ * <p>With a {@link PersistentKeyStore} the account keys and address ranges survive application
+ * restarts. The store is scoped by the seed fingerprint so the account 0 key is always fetched from the
+ * device once per session, after which the other account keys and address ranges are read from the store.
+ * Stored keys for a device are invalidated once a wipe, load or create wallet use case ends. Keys held in memory for a passphrase protected device are also dropped when it detaches since
+ * the next passphrase may present a different wallet.</p>
+ *
+ * <p>Typical use:</p>
+ * <ol>
+ * <li>Call {@link #start()} after the hardware wallet service has started</li>
+ * <li>On <code>SHOW_DEVICE_READY</code> call {@link #requestAccountKey(int)}</li>
+ * <li>On <code>DETERMINISTIC_HIERARCHY</code> (or if no request was needed) call {@link #deriveAddress(int, KeyChain.KeyPurpose, int)}</li>
+ * </ol>
+ *
+ * @since 0.8.0
+ *
+ */
+public class LocalKeyDerivationService implements AccountKeySource {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalKeyDerivationService.class);
+
+  private final HardwareWalletService hardwareWalletService;
+
+  private final DerivedKeyCache derivedKeyCache;
+
+  private volatile Optional<PersistentKeyStore> keyStore = Optional.absent();
+
+  private volatile Optional<String> passphraseFingerprint = Optional.absent();
+
+  /**
+   * The ID of the ready device if it is passphrase protected
+   */
+  private volatile Optional<String> passphraseProtectedDeviceId = Optional.absent();
+
+  /**
+   * The ID of the device running a use case that replaces the seed (its keys are invalidated when the use case ends)
+   */
+  private Optional<String> seedReplacingDeviceId = Optional.absent();
+
+  /**
+   * Account keys requested through {@link #getAccountKey(int)} awaiting the device
+   */
+  private final Map<Integer, SettableFuture<DeterministicKey>> pendingAccountKeys = Maps.newHashMap();
+
+  /**
+   * @param hardwareWalletService The hardware wallet service providing the account keys
+   */
+  public LocalKeyDerivationService(HardwareWalletService hardwareWalletService) {
+    this(hardwareWalletService, new DerivedKeyCache());
+  }
+
+  /**
+   * @param hardwareWalletService The hardware wallet service providing the account keys
+   * @param derivedKeyCache       The cache (can be shared between services for different devices)
+   */
+  public LocalKeyDerivationService(HardwareWalletService hardwareWalletService, DerivedKeyCache derivedKeyCache) {
+
+    Preconditions.checkNotNull(hardwareWalletService, "'hardwareWalletService' must be present");
+    Preconditions.checkNotNull(derivedKeyCache, "'derivedKeyCache' must be present");
+
+    this.hardwareWalletService = hardwareWalletService;
+    this.derivedKeyCache = derivedKeyCache;
+  }
+
+  /**
+   * <p>Start capturing account keys as they arrive from the device</p>
+   *
+   * <p>Stopping the hardware wallet service removes all subscribers so this must be called again after a restart with a fresh instance</p>
+   */
+  public void start() {
+    HardwareWalletEvents.subscribe(this);
+  }
+
+  /**
+   * <p>Stop capturing account keys (the cache is retained)</p>
+   */
+  public void stop() {
+    HardwareWalletEvents.unsubscribe(this);
+  }
+
+  /**
+   * @return The underlying cache
+   */
+  public DerivedKeyCache getDerivedKeyCache() {
+    return derivedKeyCache;
+  }
+
+  /**
+   * @param keyStore The persistent store for account keys and address ranges
+   */
+  public synchronized void setKeyStore(PersistentKeyStore keyStore) {
+    this.keyStore = Optional.fromNullable(keyStore);
+  }
+
+  /**
+   * <p>Identify the wallet presented by a passphrase protected device</p>
+   *
+   * <p>The device cannot report which passphrase is in use so keys for passphrase protected
+   * devices are only persisted once the application provides a fingerprint of its own choosing.</p>
+   *
+   * @param passphraseFingerprint The fingerprint, absent if unknown
+   */
+  public synchronized void setPassphraseFingerprint(Optional<String> passphraseFingerprint) {
+    Preconditions.checkNotNull(passphraseFingerprint, "'passphraseFingerprint' must be present");
+    this.passphraseFingerprint = passphraseFingerprint;
+  }
+
+  /**
+   * <p>Request the account key from the device if it is not already known</p>
+   *
+   * <p>The device will respond with a <code>DETERMINISTIC_HIERARCHY</code> event if a request was issued.</p>
+   *
+   * @param account The plain account number (0 gives maximum compatibility)
+   *
+   * @return True if a request was issued to the device, false if the account key is already available
+   */
+  public boolean requestAccountKey(int account) {
+
+    Optional<String> walletId = currentWalletId();
+    Preconditions.checkState(walletId.isPresent(), "Device is not ready");
+
+    if (loadAccountKey(walletId.get(), account)) {
+      log.debug("Account {} key is already available", account);
+      return false;
+    }
+
+    hardwareWalletService.requestDeterministicHierarchy(DerivedKeyCache.buildAccountPath(account));
+    return true;
+
+  }
+
+  /**
+   * <p>Provide the account key, fetching it from the device if necessary</p>
+   *
+   * <p>The device handles one use case at a time so callers should await each account key
+   * before requesting the next.</p>
+   *
+   * @param account The plain account number (0 gives maximum compatibility)
+   *
+   * @return A future providing the account key, failed if the device reports a failure
+   */
+  @Override
+  public synchronized ListenableFuture<DeterministicKey> getAccountKey(int account) {
+
+    Optional<String> walletId = currentWalletId();
+    if (!walletId.isPresent()) {
+      return Futures.immediateFailedFuture(new HardwareWalletException("Device is not ready"));
+    }
+
+    if (loadAccountKey(walletId.get(), account)) {
+      return Futures.immediateFuture(derivedKeyCache.getAccountKey(walletId.get(), account).get());
+    }
+
+    SettableFuture<DeterministicKey> future = pendingAccountKeys.get(account);
+    if (future == null) {
+      future = SettableFuture.create();
+      pendingAccountKeys.put(account, future);
+      hardwareWalletService.requestDeterministicHierarchy(DerivedKeyCache.buildAccountPath(account));
+    }
+    return future;
+
+  }
+
+  /**
+   * @param account    The plain account number (0 gives maximum compatibility)
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param index      The plain index of the required key
+   *
+   * @return The public key at <code>M/44'/0'/account'/chain/index</code>, absent if the account key is not yet available
+   */
+  public Optional<DeterministicKey> deriveKey(int account, KeyChain.KeyPurpose keyPurpose, int index) {
+
+    Optional<String> walletId = currentWalletId();
+    if (!walletId.isPresent()) {
+      return Optional.absent();
+    }
+
+    // The event may not have reached this subscriber yet
+    captureAccountKey(walletId.get());
+
+    loadAccountKey(walletId.get(), account);
+
+    return derivedKeyCache.deriveKey(walletId.get(), account, keyPurpose, index);
+
+  }
+
+  /**
+   * @param account    The plain account number (0 gives maximum compatibility)
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param index      The plain index of the required address
+   *
+   * @return The main net address, absent if the account key is not yet available
+   */
+  public Optional<Address> deriveAddress(int account, KeyChain.KeyPurpose keyPurpose, int index) {
+
+    Optional<DeterministicKey> key = deriveKey(account, keyPurpose, index);
+    if (!key.isPresent()) {
+      return Optional.absent();
+    }
+
+    return Optional.of(key.get().toAddress(MainNetParams.get()));
+
+  }
+
+  /**
+   * @param account    The plain account number (0 gives maximum compatibility)
+   * @param keyPurpose The key purpose (RECEIVE_FUNDS,CHANGE,REFUND,AUTHENTICATION etc)
+   * @param fromIndex  The plain index of the first address
+   * @param count      The number of addresses
+   *
+   * @return The main net addresses, absent if the account key is not yet available
+   */
+  public Optional<List<Address>> deriveAddresses(int account, KeyChain.KeyPurpose keyPurpose, int fromIndex, int count) {
+
+    Preconditions.checkArgument(count > 0, "'count' must be positive");
+
+    Optional<String> scope = currentScope();
+    int chain = DerivedKeyCache.buildChain(keyPurpose).num();
+
+    // Prefer the stored range since it avoids the elliptic curve work entirely
+    PersistentKeyStore store = keyStore.orNull();
+    if (store != null && scope.isPresent()) {
+      Optional<List<Address>> stored = store.getAddresses(scope.get(), account, chain, fromIndex, count);
+      if (stored.isPresent()) {
+        return stored;
+      }
+    }
+
+    List<Address> addresses = Lists.newArrayListWithCapacity(count);
+    for (int index = fromIndex; index < fromIndex + count; index++) {
+      Optional<Address> address = deriveAddress(account, keyPurpose, index);
+      if (!address.isPresent()) {
+        return Optional.absent();
+      }
+      addresses.add(address.get());
+    }
+
+    if (store != null && scope.isPresent()) {
+      try {
+        store.putAddresses(scope.get(), account, chain, fromIndex, addresses);
+      } catch (IOException e) {
+        log.warn("Could not persist address range", e);
+      }
+    }
+
+    return Optional.of(addresses);
+
+  }
+
+  /**
+   * <p>Capture the account key as soon as the device provides it since the next use case will clear the context</p>
+   *
+   * @param event The hardware wallet event
+   */
+  @Subscribe
+  public void onHardwareWalletEvent(HardwareWalletEvent event) {
+
+    trackSeedReplacement(event);
+
+    switch (event.getEventType()) {
+      case DETERMINISTIC_HIERARCHY:
+        Optional<String> walletId = currentWalletId();
+        if (walletId.isPresent()) {
+          captureAccountKey(walletId.get());
+        }
+        break;
+      case SHOW_DEVICE_READY:
+        passphraseProtectedDeviceId = Optional.absent();
+        if (event.getMessage().isPresent() && event.getMessage().get() instanceof Features) {
+          Features features = (Features) event.getMessage().get();
+          if (features.hasPassphraseProtection() && !Strings.isNullOrEmpty(features.getDeviceId())) {
+            passphraseProtectedDeviceId = Optional.of(features.getDeviceId());
+          }
+        }
+        break;
+      case SHOW_DEVICE_DETACHED:
+      case SHOW_DEVICE_STOPPED:
+        // The passphrase is forgotten so the device may present a different wallet next time
+        if (passphraseProtectedDeviceId.isPresent()) {
+          derivedKeyCache.invalidate(passphraseProtectedDeviceId.get());
+          passphraseProtectedDeviceId = Optional.absent();
+        }
+        failPendingAccountKeys(event.getEventType().name());
+        break;
+      case SHOW_OPERATION_FAILED:
+      case SHOW_DEVICE_FAILED:
+        failPendingAccountKeys(event.getEventType().name());
+        break;
+      default:
+        // Ignore
+    }
+
+  }
+
+  /**
+   * <p>Invalidate the keys for a device once a use case that replaces its seed has ended</p>
+   *
+   * @param event The hardware wallet event
+   */
+  private synchronized void trackSeedReplacement(HardwareWalletEvent event) {
+
+    // Any of these use cases will replace the seed
+    ContextUseCase useCase = hardwareWalletService.getContext().getCurrentUseCase();
+    boolean seedReplacing = useCase == ContextUseCase.WIPE_DEVICE
+      || useCase == ContextUseCase.LOAD_WALLET
+      || useCase == ContextUseCase.CREATE_WALLET;
+
+    boolean ended = !seedReplacing
+      || event.getEventType() == HardwareWalletEventType.SHOW_OPERATION_SUCCEEDED
+      || event.getEventType() == HardwareWalletEventType.SHOW_OPERATION_FAILED
+      || event.getEventType() == HardwareWalletEventType.SHOW_DEVICE_READY;
+
+    if (!ended) {
+      if (!seedReplacingDeviceId.isPresent()) {
+        // Remember the device now since a wipe can change its ID
+        seedReplacingDeviceId = currentDeviceId();
+      }
+    } else if (seedReplacingDeviceId.isPresent()) {
+      invalidateDevice(seedReplacingDeviceId.get());
+      seedReplacingDeviceId = Optional.absent();
+    }
+
+  }
+
+  /**
+   * @param walletId The current wallet ID
+   */
+  private void captureAccountKey(String walletId) {
+
+    HardwareWalletContext context = hardwareWalletService.getContext();
+
+    Optional<DeterministicKey> deterministicKey = context.getDeterministicKey();
+    if (!deterministicKey.isPresent() || !context.getDeterministicHierarchy().isPresent()) {
+      // Hierarchy is incomplete
+      return;
+    }
+
+    DeterministicKey accountKey = deterministicKey.get();
+    if (!DerivedKeyCache.isAccountPath(accountKey.getPath())) {
+      // Some other hierarchy was requested
+      return;
+    }
+
+    Optional<DeterministicKey> cachedKey = derivedKeyCache.getAccountKey(walletId, accountKey.getChildNumber().num());
+    if (!cachedKey.isPresent() || !cachedKey.get().equals(accountKey)) {
+
+      log.debug("Capturing account key '{}'", accountKey.getPathAsString());
+      derivedKeyCache.putAccountKey(walletId, accountKey);
+
+      // Persist for later starts (only once per account node)
+      Optional<String> scope = currentScope();
+      PersistentKeyStore store = keyStore.orNull();
+      if (store != null && scope.isPresent()) {
+        try {
+          store.putAccountKey(scope.get(), accountKey);
+        } catch (IOException e) {
+          log.warn("Could not persist account key", e);
+        }
+      }
+    }
+
+    // Complete any request awaiting this key
+    synchronized (this) {
+      SettableFuture<DeterministicKey> future = pendingAccountKeys.remove(accountKey.getChildNumber().num());
+      if (future != null) {
+        future.set(accountKey);
+      }
+    }
+
+  }
+
+  /**
+   * @param reason The reason for the failure
+   */
+  private synchronized void failPendingAccountKeys(String reason) {
+
+    for (SettableFuture<DeterministicKey> future : pendingAccountKeys.values()) {
+      future.setException(new HardwareWalletException("Account key not provided: " + reason));
+    }
+    pendingAccountKeys.clear();
+
+  }
+
+  /**
+   * @param walletId The current wallet ID
+   * @param account  The plain account number
+   *
+   * @return True if the account key is available without a device round trip
+   */
+  private boolean loadAccountKey(String walletId, int account) {
+
+    if (derivedKeyCache.getAccountKey(walletId, account).isPresent()) {
+      return true;
+    }
+
+    Optional<String> scope = currentScope();
+    PersistentKeyStore store = keyStore.orNull();
+    if (store == null || !scope.isPresent()) {
+      return false;
+    }
+
+    Optional<DeterministicKey> accountKey = store.getAccountKey(scope.get(), account);
+    if (accountKey.isPresent()) {
+      log.debug("Loaded account key '{}' from store", accountKey.get().getPathAsString());
+      derivedKeyCache.putAccountKey(walletId, accountKey.get());
+      return true;
+    }
+
+    return false;
+
+  }
+
+  /**
+   * <p>Remove all keys held for a device</p>
+   *
+   * @param deviceId The device ID
+   */
+  private void invalidateDevice(String deviceId) {
+
+    log.debug("Invalidating keys for device '{}'", deviceId);
+
+    derivedKeyCache.invalidate(deviceId);
+
+    PersistentKeyStore store = keyStore.orNull();
+    if (store != null) {
+      try {
+        store.invalidate(deviceId + "/");
+      } catch (IOException e) {
+        log.warn("Could not invalidate stored keys", e);
+      }
+    }
+
+  }
+
+  /**
+   * <p>The seed fingerprint identifies the wallet presented by the device and is known once the account 0 key
+   * has been fetched from the device during this session</p>
+   *
+   * @return The seed fingerprint for the current wallet (see {@link PersistentKeyStore#buildSeedFingerprint(DeterministicKey)}), absent if not yet known
+   */
+  public Optional<String> getSeedFingerprint() {
+
+    Optional<String> walletId = currentWalletId();
+    if (!walletId.isPresent()) {
+      return Optional.absent();
+    }
+
+    // Account 0 only enters the cache from the device since loading from the store requires the fingerprint
+    Optional<DeterministicKey> accountKey = derivedKeyCache.getAccountKey(walletId.get(), 0);
+    if (!accountKey.isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(PersistentKeyStore.buildSeedFingerprint(accountKey.get()));
+
+  }
+
+  /**
+   * @return The persistent store scope for the current device, absent if keys should not be persisted
+   */
+  private synchronized Optional<String> currentScope() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent()) {
+      return Optional.absent();
+    }
+    return PersistentKeyStore.buildScope(features.get(), passphraseFingerprint, getSeedFingerprint());
+
+  }
+
+  /**
+   * @return The ID of the wallet presented by the current device, absent if the device has not provided its features
+   */
+  private synchronized Optional<String> currentWalletId() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent() || Strings.isNullOrEmpty(features.get().getDeviceId())) {
+      return Optional.absent();
+    }
+
+    if (!features.get().hasPassphraseProtection()) {
+      return Optional.of(features.get().getDeviceId());
+    }
+    return Optional.of(DerivedKeyCache.buildWalletId(features.get().getDeviceId(), passphraseFingerprint));
+
+  }
+
+  /**
+   * @return The current device ID, absent if the device has not provided its features
+   */
+  private Optional<String> currentDeviceId() {
+
+    Optional<Features> features = hardwareWalletService.getContext().getFeatures();
+    if (!features.isPresent() || Strings.isNullOrEmpty(features.get().getDeviceId())) {
+      return Optional.absent();
+    }
+    return Optional.of(features.get().getDeviceId());
+
+  }
+
+}
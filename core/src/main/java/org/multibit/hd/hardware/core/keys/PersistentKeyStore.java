@@ -0,0 +1,758 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.params.MainNetParams;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Store to provide the following to hardware wallet key services:</p>
+ * <ul>
+ * <li>Persistence of BIP-44 account keys and derived address ranges across application restarts</li>
+ * <li>Persistence of SLIP-0013 identity public keys</li>
+ * <li>Scoping by device ID, key-relevant features, a seed fingerprint and an optional passphrase fingerprint</li>
+ * <li>Automatic invalidation when the seed behind a scope is seen to change</li>
+ * </ul>
+ *
+ * <p>The file is append-only. Each record is written as:</p>
+ * <pre>
+ * int    body length
+ * byte   type (account key, address range, invalidate, identity key)
+ * short  scope length, followed by the UTF-8 scope
+ * ...    payload
+ * int    CRC-32 of the body
+ * </pre>
+ *
+ * <p>On opening, the file is scanned once to build an index of record offsets. Lookups are positional
+ * reads through the file channel (served from the operating system page cache) rather than a memory
+ * mapping since a mapped file cannot be truncated or replaced on Windows until the mapping is garbage
+ * collected. A torn record left by a crash is discarded and the file truncated to the last good record.
+ * Use {@link #compact()} to remove superseded records.</p>
+ *
+ * <p>Only public material is stored. The device cannot report which seed or passphrase is in use so
+ * keys are only persisted once the account 0 key has been fetched from the device (see
+ * {@link #buildSeedFingerprint(DeterministicKey)}). Devices with passphrase protection additionally
+ * require a passphrase fingerprint of the application's own choosing.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class PersistentKeyStore implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(PersistentKeyStore.class);
+
+  /**
+   * "MBXK" followed by the format version
+   */
+  private static final int MAGIC = 0x4d42584b;
+  private static final byte VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 5;
+
+  private static final byte TYPE_ACCOUNT_KEY = 1;
+  private static final byte TYPE_ADDRESS_RANGE = 2;
+  private static final byte TYPE_INVALIDATE = 3;
+  private static final byte TYPE_IDENTITY_KEY = 4;
+
+  private static final int CHAIN_CODE_SIZE = 32;
+  private static final int PUBLIC_KEY_SIZE = 33;
+  private static final int HASH160_SIZE = 20;
+
+  /**
+   * Guards against a corrupt length field causing a huge allocation
+   */
+  private static final int MAXIMUM_BODY_SIZE = 1 << 24;
+
+  private final File file;
+
+  /**
+   * Replaced following a compaction
+   */
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+
+  /**
+   * Scope -> account -> offset of the latest account key record
+   */
+  private final Map<String, Map<Integer, Long>> accountIndex = Maps.newHashMap();
+
+  /**
+   * Scope -> "account/chain" -> address ranges
+   */
+  private final Map<String, Map<String, List<AddressRange>>> rangeIndex = Maps.newHashMap();
+
+  /**
+   * Scope -> identity key -> offset of the latest identity key record
+   */
+  private final Map<String, Map<String, Long>> identityIndex = Maps.newHashMap();
+
+  /**
+   * @param file The store file (created if absent)
+   *
+   * @throws IOException If the file cannot be opened
+   */
+  public PersistentKeyStore(File file) throws IOException {
+
+    Preconditions.checkNotNull(file, "'file' must be present");
+
+    this.file = file;
+
+    open();
+  }
+
+  /**
+   * <p>Build the scope under which keys for the current device are stored</p>
+   *
+   * <p>The scope changes if the seed or any key-relevant feature changes (e.g. a new seed on the same device).</p>
+   *
+   * @param features              The features reported by the device
+   * @param passphraseFingerprint The application's fingerprint for the passphrase in use (required if passphrase protected)
+   * @param seedFingerprint       The fingerprint from {@link #buildSeedFingerprint(DeterministicKey)}, absent if not yet known
+   *
+   * @return The scope, absent if keys for this device should not be persisted
+   */
+  public static Optional<String> buildScope(Features features, Optional<String> passphraseFingerprint, Optional<String> seedFingerprint) {
+
+    Preconditions.checkNotNull(features, "'features' must be present");
+    Preconditions.checkNotNull(passphraseFingerprint, "'passphraseFingerprint' must be present");
+    Preconditions.checkNotNull(seedFingerprint, "'seedFingerprint' must be present");
+
+    if (features.getDeviceId() == null || !features.isInitialized()) {
+      return Optional.absent();
+    }
+
+    if (!seedFingerprint.isPresent()) {
+      // Cannot tell which seed the device holds
+      return Optional.absent();
+    }
+
+    if (features.hasPassphraseProtection() && !passphraseFingerprint.isPresent()) {
+      // Cannot tell which wallet the device is presenting
+      return Optional.absent();
+    }
+
+    String keyFeatures = features.isImported() + "|" + features.hasPassphraseProtection() + "|" + seedFingerprint.get();
+    String digest = Hashing.sha256().hashString(keyFeatures, Charsets.UTF_8).toString().substring(0, 16);
+
+    return Optional.of(features.getDeviceId() + "/" + digest + "/" + passphraseFingerprint.or(""));
+  }
+
+  /**
+   * <p>The account 0 key depends on both the seed and any passphrase so it identifies the wallet the device
+   * presents without revealing anything beyond the public key</p>
+   *
+   * @param accountKey The account 0 key as fetched from the device
+   *
+   * @return The seed fingerprint (the leading 8 bytes of the SHA-256 of the public key and chain code in hex)
+   */
+  public static String buildSeedFingerprint(DeterministicKey accountKey) {
+
+    Preconditions.checkNotNull(accountKey, "'accountKey' must be present");
+    Preconditions.checkArgument(DerivedKeyCache.buildAccountPath(0).equals(accountKey.getPath()), "'accountKey' must be the account 0 key");
+
+    return Hashing.sha256().newHasher()
+      .putBytes(accountKey.getPubKey())
+      .putBytes(accountKey.getChainCode())
+      .hash()
+      .toString()
+      .substring(0, 16);
+  }
+
+  /**
+   * @param scope   The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param account The plain account number
+   *
+   * @return The public only account key, absent if not stored
+   */
+  public synchronized Optional<DeterministicKey> getAccountKey(String scope, int account) {
+
+    Map<Integer, Long> accounts = accountIndex.get(scope);
+    if (accounts == null || !accounts.containsKey(account)) {
+      return Optional.absent();
+    }
+
+    ByteBuffer body = readBody(accounts.get(account));
+    skipScope(body);
+
+    // Account number
+    body.getInt();
+    byte[] chainCode = new byte[CHAIN_CODE_SIZE];
+    body.get(chainCode);
+    byte[] publicKey = new byte[PUBLIC_KEY_SIZE];
+    body.get(publicKey);
+
+    return Optional.of(new DeterministicKey(
+      DerivedKeyCache.buildAccountPath(account),
+      chainCode,
+      ECKey.fromPublicOnly(publicKey).getPubKeyPoint(),
+      null,
+      null
+    ));
+  }
+
+  /**
+   * <p>Store an account key</p>
+   *
+   * <p>If a different key is already stored for the account then the seed has changed without a
+   * change in features so the whole scope is invalidated first.</p>
+   *
+   * @param scope      The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param accountKey The account key
+   *
+   * @throws IOException If the record cannot be written
+   */
+  public synchronized void putAccountKey(String scope, DeterministicKey accountKey) throws IOException {
+
+    Preconditions.checkNotNull(scope, "'scope' must be present");
+    Preconditions.checkNotNull(accountKey, "'accountKey' must be present");
+    Preconditions.checkArgument(DerivedKeyCache.isAccountPath(accountKey.getPath()), "'accountKey' must be a BIP-44 account key");
+
+    int account = accountKey.getChildNumber().num();
+
+    Optional<DeterministicKey> existing = getAccountKey(scope, account);
+    if (existing.isPresent()) {
+      if (Arrays.equals(existing.get().getPubKey(), accountKey.getPubKey())) {
+        return;
+      }
+      log.info("Account key changed for scope '{}' so invalidating", scope);
+      invalidate(scope);
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(4 + CHAIN_CODE_SIZE + PUBLIC_KEY_SIZE);
+    payload.putInt(account);
+    payload.put(accountKey.getChainCode());
+    payload.put(accountKey.getPubKey());
+
+    long offset = append(TYPE_ACCOUNT_KEY, scope, payload.array());
+    indexAccountKey(scope, account, offset);
+  }
+
+  /**
+   * @param scope      The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param account    The plain account number
+   * @param chain      The chain (0 for external, 1 for internal)
+   * @param fromIndex  The first address index
+   * @param count      The number of addresses
+   *
+   * @return The addresses, absent unless a single stored range covers them all
+   */
+  public synchronized Optional<List<Address>> getAddresses(String scope, int account, int chain, int fromIndex, int count) {
+
+    Map<String, List<AddressRange>> ranges = rangeIndex.get(scope);
+    if (ranges == null) {
+      return Optional.absent();
+    }
+    List<AddressRange> chainRanges = ranges.get(account + "/" + chain);
+    if (chainRanges == null) {
+      return Optional.absent();
+    }
+
+    for (AddressRange range : chainRanges) {
+      if (range.fromIndex <= fromIndex && fromIndex + count <= range.fromIndex + range.count) {
+
+        ByteBuffer body = readBody(range.offset);
+        skipScope(body);
+
+        // Skip account, chain, from index and count
+        body.position(body.position() + 16 + (fromIndex - range.fromIndex) * HASH160_SIZE);
+
+        List<Address> addresses = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+          byte[] hash160 = new byte[HASH160_SIZE];
+          body.get(hash160);
+          addresses.add(new Address(MainNetParams.get(), hash160));
+        }
+        return Optional.of(addresses);
+      }
+    }
+
+    return Optional.absent();
+  }
+
+  /**
+   * @param scope     The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param account   The plain account number
+   * @param chain     The chain (0 for external, 1 for internal)
+   * @param fromIndex The index of the first address
+   * @param addresses The contiguous addresses starting at the index
+   *
+   * @throws IOException If the record cannot be written
+   */
+  public synchronized void putAddresses(String scope, int account, int chain, int fromIndex, List<Address> addresses) throws IOException {
+
+    Preconditions.checkNotNull(scope, "'scope' must be present");
+    Preconditions.checkNotNull(addresses, "'addresses' must be present");
+    Preconditions.checkArgument(!addresses.isEmpty(), "'addresses' must not be empty");
+
+    if (getAddresses(scope, account, chain, fromIndex, addresses.size()).isPresent()) {
+      return;
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(16 + addresses.size() * HASH160_SIZE);
+    payload.putInt(account);
+    payload.putInt(chain);
+    payload.putInt(fromIndex);
+    payload.putInt(addresses.size());
+    for (Address address : addresses) {
+      payload.put(address.getHash160());
+    }
+
+    long offset = append(TYPE_ADDRESS_RANGE, scope, payload.array());
+    indexAddressRange(scope, account, chain, fromIndex, addresses.size(), offset);
+  }
+
+  /**
+   * @param scope       The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param identityKey The identity key (curve, index and URI) from the identity key service
+   *
+   * @return The identity public key as provided by the device, absent if not stored
+   */
+  public synchronized Optional<byte[]> getIdentityPublicKey(String scope, String identityKey) {
+
+    Map<String, Long> identities = identityIndex.get(scope);
+    if (identities == null || !identities.containsKey(identityKey)) {
+      return Optional.absent();
+    }
+
+    ByteBuffer body = readBody(identities.get(identityKey));
+    skipScope(body);
+    skipString(body);
+
+    byte[] publicKey = new byte[body.getShort() & 0xffff];
+    body.get(publicKey);
+
+    return Optional.of(publicKey);
+  }
+
+  /**
+   * @param scope       The scope from {@link #buildScope(Features, Optional, Optional)}
+   * @param identityKey The identity key (curve, index and URI) from the identity key service
+   * @param publicKey   The identity public key as provided by the device
+   *
+   * @throws IOException If the record cannot be written
+   */
+  public synchronized void putIdentityPublicKey(String scope, String identityKey, byte[] publicKey) throws IOException {
+
+    Preconditions.checkNotNull(scope, "'scope' must be present");
+    Preconditions.checkNotNull(identityKey, "'identityKey' must be present");
+    Preconditions.checkNotNull(publicKey, "'publicKey' must be present");
+
+    Optional<byte[]> existing = getIdentityPublicKey(scope, identityKey);
+    if (existing.isPresent() && Arrays.equals(existing.get(), publicKey)) {
+      return;
+    }
+
+    byte[] identityKeyBytes = identityKey.getBytes(Charsets.UTF_8);
+
+    ByteBuffer payload = ByteBuffer.allocate(2 + identityKeyBytes.length + 2 + publicKey.length);
+    payload.putShort((short) identityKeyBytes.length);
+    payload.put(identityKeyBytes);
+    payload.putShort((short) publicKey.length);
+    payload.put(publicKey);
+
+    long offset = append(TYPE_IDENTITY_KEY, scope, payload.array());
+    indexIdentityKey(scope, identityKey, offset);
+  }
+
+  /**
+   * <p>Invalidate all keys stored under scopes starting with the prefix</p>
+   *
+   * @param scopePrefix A scope or a device ID followed by "/" to remove all scopes for the device
+   *
+   * @throws IOException If the record cannot be written
+   */
+  public synchronized void invalidate(String scopePrefix) throws IOException {
+
+    Preconditions.checkNotNull(scopePrefix, "'scopePrefix' must be present");
+
+    if (!hasScope(scopePrefix)) {
+      return;
+    }
+
+    append(TYPE_INVALIDATE, scopePrefix, new byte[0]);
+    removeScopes(scopePrefix);
+  }
+
+  /**
+   * <p>Rewrite the file with only the live records</p>
+   *
+   * @throws IOException If the file cannot be rewritten
+   */
+  public synchronized void compact() throws IOException {
+
+    File compacted = new File(file.getAbsolutePath() + ".compact");
+
+    try (PersistentKeyStore target = new PersistentKeyStore(compacted)) {
+      for (Map.Entry<String, Map<Integer, Long>> scopeEntry : accountIndex.entrySet()) {
+        for (Integer account : scopeEntry.getValue().keySet()) {
+          target.putAccountKey(scopeEntry.getKey(), getAccountKey(scopeEntry.getKey(), account).get());
+        }
+      }
+      for (Map.Entry<String, Map<String, List<AddressRange>>> scopeEntry : rangeIndex.entrySet()) {
+        for (List<AddressRange> ranges : scopeEntry.getValue().values()) {
+          for (AddressRange range : ranges) {
+            ByteBuffer body = readBody(range.offset);
+            skipScope(body);
+            byte[] payload = new byte[body.remaining()];
+            body.get(payload);
+            target.append(TYPE_ADDRESS_RANGE, scopeEntry.getKey(), payload);
+          }
+        }
+      }
+      for (Map.Entry<String, Map<String, Long>> scopeEntry : identityIndex.entrySet()) {
+        for (String identityKey : scopeEntry.getValue().keySet()) {
+          target.putIdentityPublicKey(scopeEntry.getKey(), identityKey, getIdentityPublicKey(scopeEntry.getKey(), identityKey).get());
+        }
+      }
+    }
+
+    // Replace the file while the live channel remains open so a failure leaves the store usable
+    try {
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(compacted.toPath());
+      throw e;
+    }
+
+    // Swap channels and rebuild the index
+    RandomAccessFile previousRandomAccessFile = randomAccessFile;
+    FileChannel previousChannel = channel;
+
+    accountIndex.clear();
+    rangeIndex.clear();
+    identityIndex.clear();
+    try {
+      open();
+    } catch (IOException e) {
+      if (randomAccessFile != previousRandomAccessFile) {
+        randomAccessFile.close();
+      }
+      // Carry on with the previous contents
+      randomAccessFile = previousRandomAccessFile;
+      channel = previousChannel;
+      accountIndex.clear();
+      rangeIndex.clear();
+      identityIndex.clear();
+      load();
+      throw e;
+    }
+
+    previousChannel.close();
+    previousRandomAccessFile.close();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+    randomAccessFile.close();
+  }
+
+  private void open() throws IOException {
+
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    channel = randomAccessFile.getChannel();
+
+    if (channel.size() < FILE_HEADER_SIZE) {
+      writeFileHeader();
+    } else {
+      load();
+    }
+  }
+
+  private void writeFileHeader() throws IOException {
+
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.put(VERSION);
+    header.flip();
+
+    channel.truncate(0);
+    channel.write(header, 0);
+    channel.force(false);
+  }
+
+  /**
+   * <p>Scan the file to build the index, truncating any torn tail</p>
+   */
+  private void load() throws IOException {
+
+    if (channel.size() > Integer.MAX_VALUE) {
+      throw new IOException("Key store '" + file.getAbsolutePath() + "' is too large");
+    }
+    ByteBuffer contents = read(0, (int) channel.size());
+
+    if (contents.getInt(0) != MAGIC || contents.get(4) != VERSION) {
+      log.warn("Unrecognised key store '{}' so starting afresh", file.getAbsolutePath());
+      writeFileHeader();
+      return;
+    }
+
+    int position = FILE_HEADER_SIZE;
+    int limit = contents.limit();
+
+    while (position + 4 <= limit) {
+
+      int bodyLength = contents.getInt(position);
+      if (bodyLength <= 3 || bodyLength > MAXIMUM_BODY_SIZE || (long) position + 4 + bodyLength + 4 > limit) {
+        break;
+      }
+
+      ByteBuffer body = slice(contents, position + 4, bodyLength);
+      int storedCrc = contents.getInt(position + 4 + bodyLength);
+      if (storedCrc != crc(body.duplicate())) {
+        break;
+      }
+
+      byte type = body.get();
+      String scope = readScope(body);
+      switch (type) {
+        case TYPE_ACCOUNT_KEY:
+          indexAccountKey(scope, body.getInt(), position);
+          break;
+        case TYPE_ADDRESS_RANGE:
+          indexAddressRange(scope, body.getInt(), body.getInt(), body.getInt(), body.getInt(), position);
+          break;
+        case TYPE_INVALIDATE:
+          removeScopes(scope);
+          break;
+        case TYPE_IDENTITY_KEY:
+          indexIdentityKey(scope, readString(body), position);
+          break;
+        default:
+          log.warn("Unknown record type {} in key store", type);
+      }
+
+      position += 4 + bodyLength + 4;
+    }
+
+    if (position != limit) {
+      log.warn("Discarding {} bytes from the end of key store '{}'", limit - position, file.getAbsolutePath());
+      channel.truncate(position);
+    }
+  }
+
+  /**
+   * @return The offset of the new record
+   */
+  private long append(byte type, String scope, byte[] payload) throws IOException {
+
+    byte[] scopeBytes = scope.getBytes(Charsets.UTF_8);
+    int bodyLength = 1 + 2 + scopeBytes.length + payload.length;
+
+    ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+    record.putInt(bodyLength);
+    record.put(type);
+    record.putShort((short) scopeBytes.length);
+    record.put(scopeBytes);
+    record.put(payload);
+
+    ByteBuffer body = record.duplicate();
+    body.position(4);
+    body.limit(4 + bodyLength);
+    record.putInt(crc(body));
+    record.flip();
+
+    long offset = channel.size();
+    while (record.hasRemaining()) {
+      channel.write(record, offset + record.position());
+    }
+    channel.force(false);
+
+    return offset;
+  }
+
+  /**
+   * @param offset The record offset
+   *
+   * @return The record body positioned after the type
+   */
+  private ByteBuffer readBody(long offset) {
+
+    try {
+      int bodyLength = read(offset, 4).getInt();
+      ByteBuffer body = read(offset + 4, bodyLength);
+      body.get();
+      return body;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read key store", e);
+    }
+  }
+
+  /**
+   * @param position The position in the file
+   * @param length   The number of bytes to read
+   *
+   * @return A buffer (ready for reading) containing the bytes
+   *
+   * @throws IOException If the file ends before the bytes are read
+   */
+  private ByteBuffer read(long position, int length) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Key store '" + file.getAbsolutePath() + "' ends at " + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(position);
+    slice.limit(position + length);
+    return slice.slice();
+  }
+
+  private static String readScope(ByteBuffer body) {
+
+    byte[] scopeBytes = new byte[body.getShort() & 0xffff];
+    body.get(scopeBytes);
+    return new String(scopeBytes, Charsets.UTF_8);
+  }
+
+  private static void skipScope(ByteBuffer body) {
+    skipString(body);
+  }
+
+  private static String readString(ByteBuffer body) {
+    return readScope(body);
+  }
+
+  private static void skipString(ByteBuffer body) {
+    int length = body.getShort() & 0xffff;
+    body.position(body.position() + length);
+  }
+
+  private static int crc(ByteBuffer body) {
+
+    CRC32 crc = new CRC32();
+    byte[] bytes = new byte[body.remaining()];
+    body.get(bytes);
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  private void indexAccountKey(String scope, int account, long offset) {
+
+    Map<Integer, Long> accounts = accountIndex.get(scope);
+    if (accounts == null) {
+      accounts = Maps.newHashMap();
+      accountIndex.put(scope, accounts);
+    }
+    accounts.put(account, offset);
+  }
+
+  private void indexAddressRange(String scope, int account, int chain, int fromIndex, int count, long offset) {
+
+    Map<String, List<AddressRange>> ranges = rangeIndex.get(scope);
+    if (ranges == null) {
+      ranges = Maps.newHashMap();
+      rangeIndex.put(scope, ranges);
+    }
+    String chainKey = account + "/" + chain;
+    List<AddressRange> chainRanges = ranges.get(chainKey);
+    if (chainRanges == null) {
+      chainRanges = Lists.newArrayList();
+      ranges.put(chainKey, chainRanges);
+    }
+    chainRanges.add(new AddressRange(fromIndex, count, offset));
+  }
+
+  private void indexIdentityKey(String scope, String identityKey, long offset) {
+
+    Map<String, Long> identities = identityIndex.get(scope);
+    if (identities == null) {
+      identities = Maps.newHashMap();
+      identityIndex.put(scope, identities);
+    }
+    identities.put(identityKey, offset);
+  }
+
+  private boolean hasScope(String scopePrefix) {
+
+    for (String scope : ImmutableList.copyOf(accountIndex.keySet())) {
+      if (scope.startsWith(scopePrefix)) {
+        return true;
+      }
+    }
+    for (String scope : ImmutableList.copyOf(rangeIndex.keySet())) {
+      if (scope.startsWith(scopePrefix)) {
+        return true;
+      }
+    }
+    for (String scope : ImmutableList.copyOf(identityIndex.keySet())) {
+      if (scope.startsWith(scopePrefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void removeScopes(String scopePrefix) {
+
+    Iterator<String> accountIterator = accountIndex.keySet().iterator();
+    while (accountIterator.hasNext()) {
+      if (accountIterator.next().startsWith(scopePrefix)) {
+        accountIterator.remove();
+      }
+    }
+
+    Iterator<String> rangeIterator = rangeIndex.keySet().iterator();
+    while (rangeIterator.hasNext()) {
+      if (rangeIterator.next().startsWith(scopePrefix)) {
+        rangeIterator.remove();
+      }
+    }
+
+    Iterator<String> identityIterator = identityIndex.keySet().iterator();
+    while (identityIterator.hasNext()) {
+      if (identityIterator.next().startsWith(scopePrefix)) {
+        identityIterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Location of a stored address range
+   */
+  private static class AddressRange {
+
+    private final int fromIndex;
+    private final int count;
+    private final long offset;
+
+    private AddressRange(int fromIndex, int count, long offset) {
+      this.fromIndex = fromIndex;
+      this.count = count;
+      this.offset = offset;
+    }
+  }
+
+}
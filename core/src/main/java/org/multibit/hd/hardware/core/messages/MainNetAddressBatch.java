@@ -0,0 +1,98 @@
+package org.multibit.hd.hardware.core.messages;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.wallet.KeyChain;
+
+import java.util.List;
+
+/**
+ * <p>Value object to provide the following to downstream API consumers:</p>
+ * <ul>
+ * <li>Result of a "request addresses" operation covering a contiguous range of indexes</li>
+ * </ul>
+ *
+ * <p>The addresses are in index order starting at <code>fromIndex</code>. If the operation
+ * was cancelled part-way then the list will be shorter than requested and <code>isComplete()</code>
+ * will return false.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class MainNetAddressBatch implements HardwareWalletMessage {
+
+  private final int account;
+  private final KeyChain.KeyPurpose keyPurpose;
+  private final int fromIndex;
+  private final int requestedCount;
+  private final List<Address> addresses;
+
+  /**
+   * @param account        The plain account number
+   * @param keyPurpose     The key purpose
+   * @param fromIndex      The plain index of the first address
+   * @param requestedCount The number of addresses originally requested
+   * @param addresses      The addresses provided by the device in index order
+   */
+  public MainNetAddressBatch(int account, KeyChain.KeyPurpose keyPurpose, int fromIndex, int requestedCount, List<Address> addresses) {
+    this.account = account;
+    this.keyPurpose = keyPurpose;
+    this.fromIndex = fromIndex;
+    this.requestedCount = requestedCount;
+    this.addresses = ImmutableList.copyOf(addresses);
+  }
+
+  /**
+   * @return The plain account number
+   */
+  public int getAccount() {
+    return account;
+  }
+
+  /**
+   * @return The key purpose
+   */
+  public KeyChain.KeyPurpose getKeyPurpose() {
+    return keyPurpose;
+  }
+
+  /**
+   * @return The plain index of the first address
+   */
+  public int getFromIndex() {
+    return fromIndex;
+  }
+
+  /**
+   * @return The number of addresses originally requested
+   */
+  public int getRequestedCount() {
+    return requestedCount;
+  }
+
+  /**
+   * @return The addresses in index order (the address at position i has index <code>fromIndex + i</code>)
+   */
+  public List<Address> getAddresses() {
+    return addresses;
+  }
+
+  /**
+   * @return True if all the requested addresses were provided
+   */
+  public boolean isComplete() {
+    return addresses.size() == requestedCount;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("account", account)
+      .append("keyPurpose", keyPurpose)
+      .append("fromIndex", fromIndex)
+      .append("requestedCount", requestedCount)
+      .append("addresses", addresses.size())
+      .toString();
+  }
+}
@@ -0,0 +1,106 @@
+package org.multibit.hd.hardware.core.messages;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * <p>Value object to provide the following to downstream API consumers:</p>
+ * <ul>
+ * <li>Structured description of an operation that exceeded its deadline</li>
+ * </ul>
+ *
+ * <p>The use case and state are provided by name to avoid coupling consumers to the FSM.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class OperationTimeout implements HardwareWalletMessage {
+
+  private final String useCase;
+  private final String state;
+  private final TimeoutReason reason;
+  private final long elapsedMillis;
+  private final long deadlineMillis;
+  private final int attempt;
+  private final boolean retrying;
+
+  /**
+   * @param useCase        The name of the use case that timed out (e.g. "SIGN_TX")
+   * @param state          The name of the state awaiting the response (e.g. "ConfirmSignTxState")
+   * @param reason         The reason for the timeout
+   * @param elapsedMillis  The time spent waiting
+   * @param deadlineMillis The deadline that was exceeded
+   * @param attempt        The attempt number (1 for the original request)
+   * @param retrying       True if the operation will be retried after re-initialising the device
+   */
+  public OperationTimeout(String useCase, String state, TimeoutReason reason, long elapsedMillis, long deadlineMillis, int attempt, boolean retrying) {
+    this.useCase = useCase;
+    this.state = state;
+    this.reason = reason;
+    this.elapsedMillis = elapsedMillis;
+    this.deadlineMillis = deadlineMillis;
+    this.attempt = attempt;
+    this.retrying = retrying;
+  }
+
+  /**
+   * @return The name of the use case that timed out
+   */
+  public String getUseCase() {
+    return useCase;
+  }
+
+  /**
+   * @return The name of the state awaiting the response
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return The reason for the timeout
+   */
+  public TimeoutReason getReason() {
+    return reason;
+  }
+
+  /**
+   * @return The time spent waiting
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * @return The deadline that was exceeded
+   */
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
+  /**
+   * @return The attempt number (1 for the original request)
+   */
+  public int getAttempt() {
+    return attempt;
+  }
+
+  /**
+   * @return True if the operation will be retried, false if it has failed
+   */
+  public boolean isRetrying() {
+    return retrying;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("useCase", useCase)
+      .append("state", state)
+      .append("reason", reason)
+      .append("elapsedMillis", elapsedMillis)
+      .append("deadlineMillis", deadlineMillis)
+      .append("attempt", attempt)
+      .append("retrying", retrying)
+      .toString();
+  }
+}
@@ -0,0 +1,88 @@
+package org.multibit.hd.hardware.core.messages;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+/**
+ * <p>Value object to provide the following to downstream API consumers:</p>
+ * <ul>
+ * <li>Result of signing a single transaction within a "sign transaction batch" operation</li>
+ * </ul>
+ *
+ * <p>Exactly one of the signed transaction or the failure is present.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SignedTx implements HardwareWalletMessage {
+
+  private final int index;
+  private final Sha256Hash unsignedTxHash;
+  private final Optional<Transaction> signedTx;
+  private final Optional<Failure> failure;
+
+  /**
+   * @param index          The position of the transaction within the batch
+   * @param unsignedTxHash The hash of the unsigned transaction presented to the device
+   * @param signedTx       The signed transaction (verified against the unsigned transaction)
+   * @param failure        The reason the transaction was not signed
+   */
+  public SignedTx(int index, Sha256Hash unsignedTxHash, Optional<Transaction> signedTx, Optional<Failure> failure) {
+
+    Preconditions.checkNotNull(unsignedTxHash, "'unsignedTxHash' must be present");
+    Preconditions.checkArgument(signedTx.isPresent() != failure.isPresent(), "Exactly one of 'signedTx' or 'failure' must be present");
+
+    this.index = index;
+    this.unsignedTxHash = unsignedTxHash;
+    this.signedTx = signedTx;
+    this.failure = failure;
+  }
+
+  /**
+   * @return The position of the transaction within the batch
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The hash of the unsigned transaction presented to the device
+   */
+  public Sha256Hash getUnsignedTxHash() {
+    return unsignedTxHash;
+  }
+
+  /**
+   * @return The signed transaction, absent if signing failed
+   */
+  public Optional<Transaction> getSignedTx() {
+    return signedTx;
+  }
+
+  /**
+   * @return The failure, absent if signing succeeded
+   */
+  public Optional<Failure> getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return True if the transaction was signed
+   */
+  public boolean isSigned() {
+    return signedTx.isPresent();
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("index", index)
+      .append("unsignedTxHash", unsignedTxHash)
+      .append("signed", signedTx.isPresent())
+      .append("failure", failure.orNull())
+      .toString();
+  }
+}
@@ -0,0 +1,76 @@
+package org.multibit.hd.hardware.core.messages;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.List;
+
+/**
+ * <p>Value object to provide the following to downstream API consumers:</p>
+ * <ul>
+ * <li>Result of a "sign transaction batch" operation</li>
+ * </ul>
+ *
+ * <p>The results are in batch order. If the operation was cancelled part-way then the list will be
+ * shorter than requested and <code>isComplete()</code> will return false.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SignedTxBatch implements HardwareWalletMessage {
+
+  private final int requestedCount;
+  private final List<SignedTx> results;
+
+  /**
+   * @param requestedCount The number of transactions originally requested
+   * @param results        The per transaction results in batch order
+   */
+  public SignedTxBatch(int requestedCount, List<SignedTx> results) {
+    this.requestedCount = requestedCount;
+    this.results = ImmutableList.copyOf(results);
+  }
+
+  /**
+   * @return The number of transactions originally requested
+   */
+  public int getRequestedCount() {
+    return requestedCount;
+  }
+
+  /**
+   * @return The per transaction results in batch order
+   */
+  public List<SignedTx> getResults() {
+    return results;
+  }
+
+  /**
+   * @return The number of transactions that were signed
+   */
+  public int getSignedCount() {
+    int signed = 0;
+    for (SignedTx result : results) {
+      if (result.isSigned()) {
+        signed++;
+      }
+    }
+    return signed;
+  }
+
+  /**
+   * @return True if every requested transaction was attempted
+   */
+  public boolean isComplete() {
+    return results.size() == requestedCount;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("requestedCount", requestedCount)
+      .append("results", results.size())
+      .append("signed", getSignedCount())
+      .toString();
+  }
+}
@@ -0,0 +1,26 @@
+package org.multibit.hd.hardware.core.messages;
+
+/**
+ * <p>Enum to provide the following to high level messages:</p>
+ * <ul>
+ * <li>Language independent description of why an operation timed out</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public enum TimeoutReason {
+
+  /**
+   * The device did not respond to a message within the deadline for the use case
+   */
+  DEVICE_RESPONSE,
+
+  /**
+   * The device was waiting on a button press that did not occur within the user deadline
+   */
+  USER_INTERACTION,
+
+  // End of enum
+  ;
+}
@@ -0,0 +1,214 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Metrics to provide the following to hardware wallet FSM:</p>
+ * <ul>
+ * <li>Per-state dwell time and per-(state, event) transition latency</li>
+ * <li>Device round trip time measured separately from user interaction time</li>
+ * <li>Optional exposure through JMX</li>
+ * </ul>
+ *
+ * <p>All recording is lock-free so it is safe to call from the event thread without
+ * affecting message handling.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class HardwareWalletMetrics implements HardwareWalletMetricsMXBean {
+
+  private static final Logger log = LoggerFactory.getLogger(HardwareWalletMetrics.class);
+
+  /**
+   * Distinguishes the MBeans of several devices with the same client name (e.g. two relayed Trezors)
+   */
+  private static final AtomicInteger instanceCounter = new AtomicInteger();
+
+  private final int instance = instanceCounter.incrementAndGet();
+
+  private final ConcurrentMap<String, LatencyHistogram> stateDwell = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, LatencyHistogram> transitionLatency = Maps.newConcurrentMap();
+  private final LatencyHistogram deviceRoundTrip = new LatencyHistogram();
+  private final LatencyHistogram userInteraction = new LatencyHistogram();
+
+  private Optional<ObjectName> registeredName = Optional.absent();
+
+  /**
+   * @param stateName The state name
+   * @param nanos     The time spent in the state
+   */
+  public void recordStateDwell(String stateName, long nanos) {
+    histogram(stateDwell, stateName).recordNanos(nanos);
+  }
+
+  /**
+   * @param stateName The state name handling the event
+   * @param eventName The event name
+   * @param nanos     The time taken to handle the event
+   */
+  public void recordTransition(String stateName, String eventName, long nanos) {
+    histogram(transitionLatency, stateName + ":" + eventName).recordNanos(nanos);
+  }
+
+  /**
+   * @param nanos The time between a message being sent to the device and its response
+   */
+  public void recordDeviceRoundTrip(long nanos) {
+    deviceRoundTrip.recordNanos(nanos);
+  }
+
+  /**
+   * @param nanos The time spent waiting on the user
+   */
+  public void recordUserInteraction(long nanos) {
+    userInteraction.recordNanos(nanos);
+  }
+
+  /**
+   * @param stateName The state name
+   *
+   * @return The dwell histogram for the state, absent if never entered
+   */
+  public Optional<LatencyHistogram> getStateDwellHistogram(String stateName) {
+    return Optional.fromNullable(stateDwell.get(stateName));
+  }
+
+  /**
+   * @param stateName The state name
+   * @param eventName The event name
+   *
+   * @return The transition histogram, absent if never recorded
+   */
+  public Optional<LatencyHistogram> getTransitionHistogram(String stateName, String eventName) {
+    return Optional.fromNullable(transitionLatency.get(stateName + ":" + eventName));
+  }
+
+  /**
+   * @return The device round trip histogram
+   */
+  public LatencyHistogram getDeviceRoundTripHistogram() {
+    return deviceRoundTrip;
+  }
+
+  /**
+   * @return The user interaction histogram
+   */
+  public LatencyHistogram getUserInteractionHistogram() {
+    return userInteraction;
+  }
+
+  @Override
+  public Map<String, LatencySummary> getStateDwell() {
+    return summarise(stateDwell);
+  }
+
+  @Override
+  public Map<String, LatencySummary> getTransitionLatency() {
+    return summarise(transitionLatency);
+  }
+
+  @Override
+  public LatencySummary getDeviceRoundTrip() {
+    return deviceRoundTrip.summarise();
+  }
+
+  @Override
+  public LatencySummary getUserInteraction() {
+    return userInteraction.summarise();
+  }
+
+  @Override
+  public void reset() {
+    stateDwell.clear();
+    transitionLatency.clear();
+    deviceRoundTrip.reset();
+    userInteraction.reset();
+  }
+
+  /**
+   * <p>Register these metrics with the platform MBean server</p>
+   *
+   * <p>Failure to register is logged rather than thrown since metrics must never prevent device use</p>
+   *
+   * @param name The name of the device (e.g. the client name), an instance number is added to keep it unique
+   */
+  public synchronized void registerMBean(String name) {
+
+    Preconditions.checkNotNull(name, "'name' must be present");
+
+    if (registeredName.isPresent()) {
+      return;
+    }
+
+    try {
+      ObjectName objectName = new ObjectName(
+        "org.multibit.hd.hardware:type=HardwareWalletMetrics,name=" + ObjectName.quote(name) + ",instance=" + instance
+      );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        log.warn("Metrics already registered for '{}'", name);
+        return;
+      }
+      server.registerMBean(this, objectName);
+      registeredName = Optional.of(objectName);
+    } catch (JMException e) {
+      log.warn("Could not register metrics MBean", e);
+    }
+
+  }
+
+  /**
+   * <p>Remove these metrics from the platform MBean server if previously registered</p>
+   */
+  public synchronized void unregisterMBean() {
+
+    if (!registeredName.isPresent()) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName.get());
+    } catch (JMException e) {
+      log.warn("Could not unregister metrics MBean", e);
+    }
+    registeredName = Optional.absent();
+
+  }
+
+  private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+
+    LatencyHistogram histogram = histograms.get(key);
+    if (histogram == null) {
+      LatencyHistogram candidate = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(key, candidate);
+      if (histogram == null) {
+        histogram = candidate;
+      }
+    }
+    return histogram;
+  }
+
+  private static Map<String, LatencySummary> summarise(Map<String, LatencyHistogram> histograms) {
+
+    ImmutableSortedMap.Builder<String, LatencySummary> builder = ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      builder.put(entry.getKey(), entry.getValue().summarise());
+    }
+    return builder.build();
+  }
+
+}
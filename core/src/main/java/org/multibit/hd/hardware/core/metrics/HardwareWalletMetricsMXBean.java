@@ -0,0 +1,41 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import java.util.Map;
+
+/**
+ * <p>Management interface to provide the following to JMX consumers:</p>
+ * <ul>
+ * <li>Latency summaries for a hardware wallet FSM</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public interface HardwareWalletMetricsMXBean {
+
+  /**
+   * @return The time spent in each state keyed on state name
+   */
+  Map<String, LatencySummary> getStateDwell();
+
+  /**
+   * @return The time taken to handle each event keyed on "state:event"
+   */
+  Map<String, LatencySummary> getTransitionLatency();
+
+  /**
+   * @return The time between a message being sent to the device and its response (excludes user interaction)
+   */
+  LatencySummary getDeviceRoundTrip();
+
+  /**
+   * @return The time spent waiting on the user (PIN, passphrase or button press)
+   */
+  LatencySummary getUserInteraction();
+
+  /**
+   * <p>Clear all recorded values</p>
+   */
+  void reset();
+
+}
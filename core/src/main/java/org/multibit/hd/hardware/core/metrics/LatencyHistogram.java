@@ -0,0 +1,197 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histogram to provide the following to metrics:</p>
+ * <ul>
+ * <li>Lock-free recording of latencies with bounded relative error</li>
+ * <li>Percentile queries without retaining individual samples</li>
+ * </ul>
+ *
+ * <p>Values are recorded in microseconds into log-linear buckets in the style of an HDR histogram.
+ * Values below 32us are exact and above that each power of two is split into 16 linear sub-buckets
+ * giving a worst case relative error of about 6%. The full positive range of a long is covered so
+ * no value is ever discarded.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+  private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * @param duration The duration
+   * @param timeUnit The time unit of the duration
+   */
+  public void record(long duration, TimeUnit timeUnit) {
+
+    Preconditions.checkNotNull(timeUnit, "'timeUnit' must be present");
+
+    recordMicros(timeUnit.toMicros(duration));
+
+  }
+
+  /**
+   * @param nanos The duration in nanoseconds (e.g. the difference between two calls to <code>System.nanoTime()</code>)
+   */
+  public void recordNanos(long nanos) {
+
+    recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+
+  }
+
+  /**
+   * @param micros The duration in microseconds (negative values are treated as zero)
+   */
+  public void recordMicros(long micros) {
+
+    long value = Math.max(0, micros);
+
+    counts.incrementAndGet(bucketIndex(value));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(value);
+
+    // Track the exact maximum
+    long currentMax = maxMicros.get();
+    while (value > currentMax && !maxMicros.compareAndSet(currentMax, value)) {
+      currentMax = maxMicros.get();
+    }
+
+  }
+
+  /**
+   * @return The number of recorded values
+   */
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return The mean of the recorded values in microseconds (zero if empty)
+   */
+  public double getMeanMicros() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) totalMicros.get() / count;
+  }
+
+  /**
+   * @return The largest recorded value in microseconds (zero if empty)
+   */
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * @param percentile The percentile in the range [0, 100] (e.g. 99.9)
+   *
+   * @return The value in microseconds at or below which the given percentage of values fall (zero if empty)
+   */
+  public long getPercentileMicros(double percentile) {
+
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "'percentile' must be in the range [0, 100]");
+
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      cumulative += counts.get(i);
+      if (cumulative >= target) {
+        // Report the upper bound of the bucket but never exceed the observed maximum
+        return Math.min(bucketUpperBound(i), maxMicros.get());
+      }
+    }
+
+    // Concurrent recording may leave the cumulative count short
+    return maxMicros.get();
+  }
+
+  /**
+   * @return A point in time summary of this histogram
+   */
+  public LatencySummary summarise() {
+
+    return new LatencySummary(
+      getCount(),
+      getMeanMicros(),
+      getPercentileMicros(50),
+      getPercentileMicros(90),
+      getPercentileMicros(99),
+      getMaxMicros()
+    );
+
+  }
+
+  /**
+   * <p>Clear all recorded values</p>
+   */
+  public void reset() {
+
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalMicros.set(0);
+    maxMicros.set(0);
+
+  }
+
+  /**
+   * @param value The non-negative value
+   *
+   * @return The bucket index
+   */
+  static int bucketIndex(long value) {
+
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+
+    int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int shift = msb - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+  }
+
+  /**
+   * @param index The bucket index
+   *
+   * @return The largest value that maps to the bucket
+   */
+  static long bucketUpperBound(int index) {
+
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int offset = index - SUB_BUCKET_COUNT;
+    int shift = offset / SUB_BUCKET_HALF + 1;
+    long subBucket = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    if (shift + SUB_BUCKET_BITS >= Long.SIZE - 1) {
+      return Long.MAX_VALUE;
+    }
+
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+}
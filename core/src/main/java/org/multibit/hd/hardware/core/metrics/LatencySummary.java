@@ -0,0 +1,90 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * <p>Value object to provide the following to metrics consumers:</p>
+ * <ul>
+ * <li>Point in time summary of a latency histogram</li>
+ * </ul>
+ *
+ * <p>All latencies are in microseconds. This object is exposed over JMX as composite data.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class LatencySummary {
+
+  private final long count;
+  private final double meanMicros;
+  private final long p50Micros;
+  private final long p90Micros;
+  private final long p99Micros;
+  private final long maxMicros;
+
+  @ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+  public LatencySummary(long count, double meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+    this.count = count;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p90Micros = p90Micros;
+    this.p99Micros = p99Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  /**
+   * @return The number of recorded values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return The mean latency
+   */
+  public double getMeanMicros() {
+    return meanMicros;
+  }
+
+  /**
+   * @return The median latency
+   */
+  public long getP50Micros() {
+    return p50Micros;
+  }
+
+  /**
+   * @return The 90th percentile latency
+   */
+  public long getP90Micros() {
+    return p90Micros;
+  }
+
+  /**
+   * @return The 99th percentile latency
+   */
+  public long getP99Micros() {
+    return p99Micros;
+  }
+
+  /**
+   * @return The maximum latency
+   */
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("count", count)
+      .append("meanMicros", meanMicros)
+      .append("p50Micros", p50Micros)
+      .append("p90Micros", p90Micros)
+      .append("p99Micros", p99Micros)
+      .append("maxMicros", maxMicros)
+      .toString();
+  }
+}
@@ -0,0 +1,128 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>Decoder to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>Incremental reassembly of HID packets arriving over a stream socket</li>
+ * <li>Complete frames (type and payload) as soon as the last packet of a message arrives</li>
+ * </ul>
+ *
+ * <p>A socket read may end part way through a packet so the decoder keeps the partial packet and
+ * message between calls. A decoder instance belongs to a single connection and is not thread safe.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class HidPacketFrameDecoder implements RelayFrameDecoder {
+
+  private static final Logger log = LoggerFactory.getLogger(HidPacketFrameDecoder.class);
+
+  /**
+   * The largest message accepted (matches the buffers used for HID packet parsing)
+   */
+  public static final int MAXIMUM_MESSAGE_SIZE = 32_768;
+
+  private final byte[] packet = new byte[RelayFrame.PACKET_LENGTH];
+  private int packetPosition = 0;
+
+  private int type;
+  private byte[] payload = null;
+  private int payloadPosition = 0;
+
+  @Override
+  public List<RelayFrame> decode(ByteBuffer buffer) throws IOException {
+
+    Preconditions.checkNotNull(buffer, "'buffer' must be present");
+
+    List<RelayFrame> frames = Lists.newArrayList();
+
+    while (buffer.hasRemaining()) {
+
+      int count = Math.min(buffer.remaining(), RelayFrame.PACKET_LENGTH - packetPosition);
+      buffer.get(packet, packetPosition, count);
+      packetPosition += count;
+
+      if (packetPosition < RelayFrame.PACKET_LENGTH) {
+        // Wait for the rest of the packet
+        break;
+      }
+      packetPosition = 0;
+
+      Optional<RelayFrame> frame = decodePacket();
+      if (frame.isPresent()) {
+        frames.add(frame.get());
+      }
+    }
+
+    return frames;
+  }
+
+  @Override
+  public boolean isPartial() {
+    return packetPosition > 0 || payload != null;
+  }
+
+  private Optional<RelayFrame> decodePacket() throws IOException {
+
+    // A stream socket cannot lose packets so a missing marker means the peer is not speaking HID packets
+    if (packet[0] != (byte) '?') {
+      throw new IOException(String.format("Malformed packet. Expected: '3f' Actual: '%02x'", packet[0]));
+    }
+
+    if (payload == null) {
+
+      // Synchronize on the start of a new message
+      if (packet[1] != (byte) '#' || packet[2] != (byte) '#') {
+        log.warn("Ignoring continuation packet outside of a message");
+        return Optional.absent();
+      }
+
+      ByteBuffer header = ByteBuffer.wrap(packet, 3, RelayFrame.HEADER_LENGTH - 2);
+      type = header.getShort() & 0xFFFF;
+      int messageSize = header.getInt();
+      if (messageSize < 0 || messageSize > MAXIMUM_MESSAGE_SIZE) {
+        throw new IOException("Message size " + messageSize + " is outside the accepted range");
+      }
+
+      payload = new byte[messageSize];
+      payloadPosition = 0;
+
+      // Treat remainder of packet as the protobuf message payload
+      append(1 + RelayFrame.HEADER_LENGTH);
+
+    } else {
+      append(1);
+    }
+
+    if (payloadPosition < payload.length) {
+      return Optional.absent();
+    }
+
+    RelayFrame frame = new RelayFrame(type, payload);
+    payload = null;
+
+    return Optional.of(frame);
+  }
+
+  /**
+   * @param offset The offset of the payload in the current packet (remaining bytes beyond the message are padding)
+   */
+  private void append(int offset) {
+
+    int count = Math.min(RelayFrame.PACKET_LENGTH - offset, payload.length - payloadPosition);
+    System.arraycopy(packet, offset, payload, payloadPosition, count);
+    payloadPosition += count;
+
+  }
+
+}
@@ -0,0 +1,96 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>Decoder to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>Incremental decoding of relay protocol v2 length prefixed frames</li>
+ * <li>Complete frames (device ID, sequence number, type and payload) as soon as the last byte arrives</li>
+ * </ul>
+ *
+ * <p>See {@link RelayFrame#toLengthPrefixed()} for the layout. Only the length prefix and the frame being
+ * received are buffered so a single read can complete any number of frames without copying between them.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class LengthPrefixedFrameDecoder implements RelayFrameDecoder {
+
+  private final ByteBuffer lengthPrefix = ByteBuffer.allocate(RelayFrame.LENGTH_PREFIX_LENGTH);
+
+  /**
+   * The header and payload of the frame being received (null between frames)
+   */
+  private ByteBuffer body = null;
+
+  @Override
+  public List<RelayFrame> decode(ByteBuffer buffer) throws IOException {
+
+    Preconditions.checkNotNull(buffer, "'buffer' must be present");
+
+    List<RelayFrame> frames = Lists.newArrayList();
+
+    while (buffer.hasRemaining()) {
+
+      if (body == null) {
+        transfer(buffer, lengthPrefix);
+        if (lengthPrefix.hasRemaining()) {
+          // Wait for the rest of the length
+          break;
+        }
+        lengthPrefix.flip();
+        int length = lengthPrefix.getInt();
+        lengthPrefix.clear();
+
+        if (length < RelayFrame.LENGTH_PREFIXED_HEADER_LENGTH
+          || length > RelayFrame.LENGTH_PREFIXED_HEADER_LENGTH + HidPacketFrameDecoder.MAXIMUM_MESSAGE_SIZE) {
+          throw new IOException("Frame length " + length + " is outside the accepted range");
+        }
+        body = ByteBuffer.allocate(length);
+      }
+
+      transfer(buffer, body);
+      if (body.hasRemaining()) {
+        // Wait for the rest of the frame
+        break;
+      }
+      body.flip();
+
+      int deviceId = body.getShort() & 0xFFFF;
+      int sequence = body.getInt();
+      int type = body.getShort() & 0xFFFF;
+      byte[] payload = new byte[body.remaining()];
+      body.get(payload);
+      body = null;
+
+      frames.add(new RelayFrame(type, payload, deviceId, sequence));
+    }
+
+    return frames;
+  }
+
+  @Override
+  public boolean isPartial() {
+    return lengthPrefix.position() > 0 || body != null;
+  }
+
+  /**
+   * <p>Copy as much of the source as fits into the target</p>
+   */
+  private static void transfer(ByteBuffer source, ByteBuffer target) {
+
+    int count = Math.min(source.remaining(), target.remaining());
+    ByteBuffer slice = source.duplicate();
+    slice.limit(source.position() + count);
+    target.put(slice);
+    source.position(source.position() + count);
+
+  }
+
+}
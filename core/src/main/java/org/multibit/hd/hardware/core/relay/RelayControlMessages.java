@@ -0,0 +1,277 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>Utility class to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>Control messages for device listing and session arbitration</li>
+ * </ul>
+ *
+ * <p>Control messages travel as relay frames alongside the wire protocol messages. Their types are taken
+ * from the top of the range (0xFF00 upwards) which no vendor uses. Strings are modified UTF-8 as written by
+ * {@link DataOutputStream#writeUTF(String)}.</p>
+ *
+ * <p>A client that sends a wire protocol message without a session (such as an older client) is queued for
+ * the first available device and receives no control messages.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public final class RelayControlMessages {
+
+  /**
+   * Client requests the device list (no payload)
+   */
+  public static final int RELAY_LIST_DEVICES = 0xFF00;
+
+  /**
+   * Server reports device availability (count, then serial, name, available and waiting clients for each)
+   */
+  public static final int RELAY_DEVICES = 0xFF01;
+
+  /**
+   * Client requests a session (serial number, empty for any device)
+   */
+  public static final int RELAY_ACQUIRE = 0xFF02;
+
+  /**
+   * Server has queued the client (serial number and queue position)
+   */
+  public static final int RELAY_QUEUED = 0xFF03;
+
+  /**
+   * Server has granted the session (serial number)
+   */
+  public static final int RELAY_ACQUIRED = 0xFF04;
+
+  /**
+   * Client releases its session or leaves the queue (no payload)
+   */
+  public static final int RELAY_RELEASE = 0xFF05;
+
+  /**
+   * Server reports a failure (message, then true if the failure concerns the device rather than the request)
+   */
+  public static final int RELAY_FAILURE = 0xFF06;
+
+  /**
+   * Utilities have private constructors
+   */
+  private RelayControlMessages() {
+  }
+
+  /**
+   * @param type The frame type
+   *
+   * @return True if the frame is a relay control message rather than a wire protocol message
+   */
+  public static boolean isControlType(int type) {
+    return (type & 0xFF00) == 0xFF00;
+  }
+
+  public static RelayFrame buildListDevices() {
+    return new RelayFrame(RELAY_LIST_DEVICES, new byte[0]);
+  }
+
+  /**
+   * @param devices The device availability
+   *
+   * @return The frame
+   */
+  public static RelayFrame buildDevices(List<RelayDeviceStatus> devices) {
+
+    Preconditions.checkNotNull(devices, "'devices' must be present");
+
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeInt(devices.size());
+      for (RelayDeviceStatus device : devices) {
+        out.writeUTF(device.getSerialNumber());
+        out.writeUTF(device.getName());
+        out.writeBoolean(device.isAvailable());
+        out.writeInt(device.getWaitingClients());
+      }
+
+      return new RelayFrame(RELAY_DEVICES, payload.toByteArray());
+
+    } catch (IOException e) {
+      // Cannot happen with a byte array
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param payload The RELAY_DEVICES payload
+   *
+   * @return The device availability
+   *
+   * @throws IOException If the payload is malformed
+   */
+  public static List<RelayDeviceStatus> parseDevices(byte[] payload) throws IOException {
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Device count " + count + " is negative");
+    }
+
+    List<RelayDeviceStatus> devices = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      devices.add(new RelayDeviceStatus(in.readUTF(), in.readUTF(), in.readBoolean(), in.readInt()));
+    }
+
+    return devices;
+  }
+
+  /**
+   * @param serialNumber The serial number of the device, absent for any device
+   *
+   * @return The frame
+   */
+  public static RelayFrame buildAcquire(Optional<String> serialNumber) {
+    return buildStringFrame(RELAY_ACQUIRE, serialNumber.or(""));
+  }
+
+  /**
+   * @param payload The RELAY_ACQUIRE payload
+   *
+   * @return The requested serial number, absent for any device
+   *
+   * @throws IOException If the payload is malformed
+   */
+  public static Optional<String> parseAcquire(byte[] payload) throws IOException {
+
+    String serialNumber = parseString(payload);
+
+    return serialNumber.isEmpty() ? Optional.<String>absent() : Optional.of(serialNumber);
+  }
+
+  /**
+   * @param serialNumber The device serial number
+   * @param position     The position in the queue (1 is next)
+   *
+   * @return The frame
+   */
+  public static RelayFrame buildQueued(String serialNumber, int position) {
+
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeUTF(serialNumber);
+      out.writeInt(position);
+
+      return new RelayFrame(RELAY_QUEUED, payload.toByteArray());
+
+    } catch (IOException e) {
+      // Cannot happen with a byte array
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param payload The RELAY_QUEUED payload
+   *
+   * @return The position in the queue
+   *
+   * @throws IOException If the payload is malformed
+   */
+  public static int parseQueuePosition(byte[] payload) throws IOException {
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    in.readUTF();
+
+    return in.readInt();
+  }
+
+  /**
+   * @param serialNumber The device serial number
+   *
+   * @return The frame
+   */
+  public static RelayFrame buildAcquired(String serialNumber) {
+    return buildStringFrame(RELAY_ACQUIRED, serialNumber);
+  }
+
+  public static RelayFrame buildRelease() {
+    return new RelayFrame(RELAY_RELEASE, new byte[0]);
+  }
+
+  /**
+   * @param message       The failure message
+   * @param deviceFailure True if the device is unavailable (unknown or detached) rather than the request being refused
+   *
+   * @return The frame
+   */
+  public static RelayFrame buildFailure(String message, boolean deviceFailure) {
+
+    Preconditions.checkNotNull(message, "'message' must be present");
+
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeUTF(message);
+      out.writeBoolean(deviceFailure);
+
+      return new RelayFrame(RELAY_FAILURE, payload.toByteArray());
+
+    } catch (IOException e) {
+      // Cannot happen with a byte array
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param payload The RELAY_FAILURE payload
+   *
+   * @return True if the failure concerns the device rather than the request
+   *
+   * @throws IOException If the payload is malformed
+   */
+  public static boolean isDeviceFailure(byte[] payload) throws IOException {
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    in.readUTF();
+
+    return in.readBoolean();
+  }
+
+  /**
+   * @param payload A RELAY_ACQUIRE, RELAY_QUEUED, RELAY_ACQUIRED or RELAY_FAILURE payload
+   *
+   * @return The leading string (serial number or message)
+   *
+   * @throws IOException If the payload is malformed
+   */
+  public static String parseString(byte[] payload) throws IOException {
+    return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+  }
+
+  private static RelayFrame buildStringFrame(int type, String value) {
+
+    Preconditions.checkNotNull(value, "'value' must be present");
+
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      new DataOutputStream(payload).writeUTF(value);
+
+      return new RelayFrame(type, payload.toByteArray());
+
+    } catch (IOException e) {
+      // Cannot happen with a byte array
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
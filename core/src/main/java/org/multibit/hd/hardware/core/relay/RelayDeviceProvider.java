@@ -0,0 +1,57 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.protobuf.Message;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.wallets.HardwareWallet;
+
+import java.util.List;
+
+/**
+ * <p>Interface to provide the following to the relay server:</p>
+ * <ul>
+ * <li>Discovery of locally attached devices from a single vendor</li>
+ * <li>A hardware wallet for each device</li>
+ * <li>The wire protocol message types of the vendor</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public interface RelayDeviceProvider {
+
+  /**
+   * @return The vendor name in an enum format (e.g. "TREZOR", "KEEP_KEY" etc)
+   */
+  String name();
+
+  /**
+   * @return The serial numbers of the attached devices
+   */
+  List<String> findAttachedSerialNumbers();
+
+  /**
+   * <p>Several devices from the same vendor can be attached so the hardware wallet must use a message event
+   * source that is unique to the device (e.g. "TREZOR:serial")</p>
+   *
+   * @param serialNumber The serial number of an attached device
+   *
+   * @return A hardware wallet for the device (not yet attached)
+   */
+  HardwareWallet buildHardwareWallet(String serialNumber);
+
+  /**
+   * @param message The protobuf message
+   *
+   * @return The wire protocol message type
+   */
+  int getMessageType(Message message);
+
+  /**
+   * @param type    The wire protocol message type
+   * @param payload The protobuf encoded message
+   *
+   * @return The low level message event containing the message if it could be parsed
+   */
+  MessageEvent parseMessage(int type, byte[] payload);
+
+}
@@ -0,0 +1,64 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * <p>Value object to provide the following to relay clients:</p>
+ * <ul>
+ * <li>The availability of a device attached to the relay server</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class RelayDeviceStatus {
+
+  private final String serialNumber;
+  private final String name;
+  private final boolean available;
+  private final int waitingClients;
+
+  /**
+   * @param serialNumber   The device serial number
+   * @param name           The vendor name (e.g. "TREZOR")
+   * @param available      True if no client holds a session on the device
+   * @param waitingClients The number of clients queued for a session
+   */
+  public RelayDeviceStatus(String serialNumber, String name, boolean available, int waitingClients) {
+
+    Preconditions.checkNotNull(serialNumber, "'serialNumber' must be present");
+    Preconditions.checkNotNull(name, "'name' must be present");
+
+    this.serialNumber = serialNumber;
+    this.name = name;
+    this.available = available;
+    this.waitingClients = waitingClients;
+  }
+
+  public String getSerialNumber() {
+    return serialNumber;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isAvailable() {
+    return available;
+  }
+
+  public int getWaitingClients() {
+    return waitingClients;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("serialNumber", serialNumber)
+      .append("name", name)
+      .append("available", available)
+      .append("waitingClients", waitingClients)
+      .toString();
+  }
+}
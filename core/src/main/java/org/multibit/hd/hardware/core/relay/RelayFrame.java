@@ -0,0 +1,170 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Value object to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>A complete wire protocol message (type and protobuf payload) with the relay device ID and sequence number</li>
+ * <li>Encoding as 64 byte HID packets for the original relay protocol</li>
+ * <li>Encoding as a single length prefixed frame for relay protocol v2</li>
+ * </ul>
+ *
+ * <p>Each HID packet starts with the '?' report marker followed by 63 bytes of payload. The first packet
+ * carries the "##" magic, the message type (short) and the message size (int). HID packets have no room for the
+ * device ID or sequence number so they are dropped.</p>
+ *
+ * <p>A length prefixed frame is the length of the rest of the frame (int), the device ID (short), the sequence
+ * number (int), the message type (short) and then the payload.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class RelayFrame {
+
+  /**
+   * The length of a HID packet including the '?' report marker
+   */
+  public static final int PACKET_LENGTH = 64;
+
+  /**
+   * The length of the payload in a HID packet
+   */
+  public static final int PACKET_PAYLOAD_LENGTH = 63;
+
+  /**
+   * The "##" magic, type and size at the start of the first packet
+   */
+  public static final int HEADER_LENGTH = 8;
+
+  /**
+   * The length field at the start of a length prefixed frame
+   */
+  public static final int LENGTH_PREFIX_LENGTH = 4;
+
+  /**
+   * The device ID, sequence number and type following the length of a length prefixed frame
+   */
+  public static final int LENGTH_PREFIXED_HEADER_LENGTH = 8;
+
+  private final int type;
+  private final byte[] payload;
+  private final int deviceId;
+  private final int sequence;
+
+  /**
+   * @param type    The wire protocol message type
+   * @param payload The protobuf encoded message
+   */
+  public RelayFrame(int type, byte[] payload) {
+    this(type, payload, 0, 0);
+  }
+
+  /**
+   * @param type     The wire protocol message type
+   * @param payload  The protobuf encoded message
+   * @param deviceId The relay device ID (0 for none)
+   * @param sequence The sequence number
+   */
+  public RelayFrame(int type, byte[] payload, int deviceId, int sequence) {
+
+    Preconditions.checkNotNull(payload, "'payload' must be present");
+    Preconditions.checkArgument(type >= 0 && type <= 0xFFFF, "'type' must fit in an unsigned short");
+    Preconditions.checkArgument(deviceId >= 0 && deviceId <= 0xFFFF, "'deviceId' must fit in an unsigned short");
+
+    this.type = type;
+    this.payload = payload;
+    this.deviceId = deviceId;
+    this.sequence = sequence;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * @return The relay device ID (0 for none or if carried as HID packets)
+   */
+  public int getDeviceId() {
+    return deviceId;
+  }
+
+  /**
+   * @return The sequence number (0 if carried as HID packets)
+   */
+  public int getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @param deviceId The relay device ID (0 for none)
+   * @param sequence The sequence number
+   *
+   * @return A copy of this frame with the given device ID and sequence number
+   */
+  public RelayFrame withHeader(int deviceId, int sequence) {
+    return new RelayFrame(type, payload, deviceId, sequence);
+  }
+
+  /**
+   * @return A buffer (ready for reading) containing the frame as zero padded HID packets
+   */
+  public ByteBuffer toHidPackets() {
+
+    int messageLength = HEADER_LENGTH + payload.length;
+    int packets = (messageLength + PACKET_PAYLOAD_LENGTH - 1) / PACKET_PAYLOAD_LENGTH;
+
+    // Assemble the message then split it across packets
+    ByteBuffer message = ByteBuffer.allocate(packets * PACKET_PAYLOAD_LENGTH);
+    message.put((byte) '#');
+    message.put((byte) '#');
+    message.putShort((short) type);
+    message.putInt(payload.length);
+    message.put(payload);
+    message.rewind();
+
+    ByteBuffer buffer = ByteBuffer.allocate(packets * PACKET_LENGTH);
+    byte[] packetPayload = new byte[PACKET_PAYLOAD_LENGTH];
+    for (int i = 0; i < packets; i++) {
+      message.get(packetPayload);
+      buffer.put((byte) '?');
+      buffer.put(packetPayload);
+    }
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * @return A buffer (ready for reading) containing the frame as a single length prefixed frame
+   */
+  public ByteBuffer toLengthPrefixed() {
+
+    ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX_LENGTH + LENGTH_PREFIXED_HEADER_LENGTH + payload.length);
+    buffer.putInt(LENGTH_PREFIXED_HEADER_LENGTH + payload.length);
+    buffer.putShort((short) deviceId);
+    buffer.putInt(sequence);
+    buffer.putShort((short) type);
+    buffer.put(payload);
+    buffer.flip();
+
+    return buffer;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("type", type)
+      .append("deviceId", deviceId)
+      .append("sequence", sequence)
+      .append("payloadLength", payload.length)
+      .toString();
+  }
+}
@@ -0,0 +1,35 @@
+package org.multibit.hd.hardware.core.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>Interface to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>Incremental decoding of relay frames arriving over a stream socket</li>
+ * </ul>
+ *
+ * <p>A socket read may end part way through a frame so implementations keep partial data between calls.
+ * A decoder instance belongs to a single connection and is not thread safe.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public interface RelayFrameDecoder {
+
+  /**
+   * @param buffer The bytes read from the socket (ready for reading, will be consumed)
+   *
+   * @return The frames completed by these bytes (may be empty)
+   *
+   * @throws IOException If the stream does not follow the relay protocol or a message is too large
+   */
+  List<RelayFrame> decode(ByteBuffer buffer) throws IOException;
+
+  /**
+   * @return True if a frame has been partially received
+   */
+  boolean isPartial();
+
+}
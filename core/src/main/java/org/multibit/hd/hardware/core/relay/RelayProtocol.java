@@ -0,0 +1,111 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>Enum to provide the following to relay servers and clients:</p>
+ * <ul>
+ * <li>The wire formats a relay connection can use</li>
+ * <li>Encoders and decoders for each format</li>
+ * </ul>
+ *
+ * <p>A client that supports v2 opens the connection with {@link #HELLO} and waits briefly for the server to reply
+ * with the same bytes. The hello fills a whole HID packet without the '?##' header so older servers discard it as
+ * noise and never reply, leaving the client to fall back to HID packets on the same connection (older servers accept
+ * only one connection so reconnecting is not an option). Older clients start straight away with a HID packet, which
+ * the server recognises from the '?' report marker.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public enum RelayProtocol {
+
+  /**
+   * The original protocol emulating 64 byte HID packets (one report per 63 bytes of message)
+   */
+  HID_PACKETS {
+    @Override
+    public RelayFrameDecoder newDecoder() {
+      return new HidPacketFrameDecoder();
+    }
+
+    @Override
+    public ByteBuffer encode(RelayFrame frame) {
+      return frame.toHidPackets();
+    }
+  },
+
+  /**
+   * Relay protocol v2 with one length prefixed frame per message carrying the device ID and sequence number
+   */
+  LENGTH_PREFIXED {
+    @Override
+    public RelayFrameDecoder newDecoder() {
+      return new LengthPrefixedFrameDecoder();
+    }
+
+    @Override
+    public ByteBuffer encode(RelayFrame frame) {
+      return frame.toLengthPrefixed();
+    }
+  },
+
+  // End of enum
+  ;
+
+  /**
+   * The negotiation bytes for relay protocol v2 ("RLY" and the version padded with zeros to a HID packet)
+   */
+  private static final byte[] HELLO = Arrays.copyOf(new byte[]{'R', 'L', 'Y', 2}, RelayFrame.PACKET_LENGTH);
+
+  /**
+   * @return A new decoder for a single connection
+   */
+  public abstract RelayFrameDecoder newDecoder();
+
+  /**
+   * @param frame The frame
+   *
+   * @return A buffer (ready for reading) containing the encoded frame
+   */
+  public abstract ByteBuffer encode(RelayFrame frame);
+
+  /**
+   * @return The bytes a v2 client sends on connecting and the server echoes to accept
+   */
+  public static byte[] hello() {
+    return Arrays.copyOf(HELLO, HELLO.length);
+  }
+
+  /**
+   * @param firstByte The first byte received on a connection
+   *
+   * @return True if the peer is speaking the original HID packet protocol
+   */
+  public static boolean isHidPacket(byte firstByte) {
+    return firstByte == (byte) '?';
+  }
+
+  /**
+   * @param bytes The opening bytes received on a connection
+   *
+   * @return True if the bytes are the v2 hello
+   */
+  public static boolean isHello(byte[] bytes) {
+
+    Preconditions.checkNotNull(bytes, "'bytes' must be present");
+
+    return Arrays.equals(HELLO, bytes);
+  }
+
+  /**
+   * @return The length of the v2 hello
+   */
+  public static int helloLength() {
+    return HELLO.length;
+  }
+
+}
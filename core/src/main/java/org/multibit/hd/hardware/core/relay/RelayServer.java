@@ -0,0 +1,914 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import com.google.protobuf.Message;
+import org.multibit.commons.concurrent.SafeExecutors;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.events.MessageEvents;
+import org.multibit.hd.hardware.core.wallets.HardwareWallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>Server to provide the following to RelayClients:</p>
+ * <ul>
+ * <li>A non-blocking socket server (single selector thread) that 'teleports' wire protocol messages between
+ * RelayClients on other machines and the hardware wallets attached to this one</li>
+ * <li>Every attached device from each {@link RelayDeviceProvider}, keyed by serial number</li>
+ * <li>Exclusive sessions per device with a queue of waiting clients (see {@link RelayControlMessages})</li>
+ * <li>Device availability pushed to clients whenever it changes</li>
+ * </ul>
+ *
+ * <p>Each connection negotiates its wire format on the first bytes (see {@link RelayProtocol}). Clients speaking
+ * relay protocol v2 get one length prefixed frame per message carrying the device ID and sequence number, while
+ * older clients continue to use HID packets. Queued frames are written with a single gathering write.</p>
+ *
+ * <p>Client frames are decoded on the selector thread and handled in order on a single session thread, which
+ * owns device discovery and session arbitration. Each device has its own thread for blocking USB writes so a
+ * slow device does not hold up the others. Messages from the devices are taken from the message event bus (each
+ * hardware wallet runs its own read monitor once connected) and routed to the client holding the session.</p>
+ *
+ * <p>New devices are discovered when a client lists devices or requests a session, and when a device of a known
+ * vendor is attached or detached. A client taking over a device should start with Initialize since the previous
+ * session may have left it part way through an operation.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class RelayServer {
+
+  private static final Logger log = LoggerFactory.getLogger(RelayServer.class);
+
+  public static final int DEFAULT_PORT_NUMBER = 3000;
+
+  private static final int READ_BUFFER_SIZE = 4096;
+
+  private final List<RelayDeviceProvider> providers;
+
+  private final RelaySessionArbiter<RelayConnection> arbiter = new RelaySessionArbiter<>();
+
+  /**
+   * The attached devices keyed by serial number
+   */
+  private final Map<String, RelayDevice> devices = Maps.newConcurrentMap();
+
+  private final Set<RelayConnection> connections = Sets.newSetFromMap(Maps.<RelayConnection, Boolean>newConcurrentMap());
+
+  // The selector thread the server runs on
+  private final ExecutorService serverExecutorService = SafeExecutors.newSingleThreadExecutor("relay-server");
+
+  // Provide a thread for device discovery and session arbitration
+  private final ExecutorService sessionExecutorService = SafeExecutors.newSingleThreadExecutor("relay-sessions");
+
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+
+  /**
+   * Only used on the selector thread
+   */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+  /**
+   * Connections with data queued by other threads that need the selector to watch for writability
+   */
+  private final Queue<RelayConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  private volatile boolean running = false;
+
+  /**
+   * The last relay device ID handed out (only used on the session thread)
+   */
+  private int lastDeviceId = 0;
+
+  /**
+   * @param providers  The providers of the attached devices (one per vendor)
+   * @param portNumber The port number RelayClients will connect to (0 to choose a free port)
+   *
+   * @throws IOException If the port cannot be bound
+   */
+  public RelayServer(List<RelayDeviceProvider> providers, int portNumber) throws IOException {
+
+    Preconditions.checkNotNull(providers, "'providers' must be present");
+    Preconditions.checkArgument(!providers.isEmpty(), "'providers' must not be empty");
+
+    this.providers = ImmutableList.copyOf(providers);
+
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.bind(new InetSocketAddress(portNumber));
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+  }
+
+  /**
+   * @return The port number the server is listening on
+   */
+  public int getPortNumber() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * @return The availability of each attached device
+   */
+  public List<RelayDeviceStatus> getDeviceStatus() {
+    return arbiter.getDeviceStatus();
+  }
+
+  /**
+   * <p>Discover the attached devices and start accepting RelayClient connections</p>
+   */
+  public synchronized void start() {
+
+    Preconditions.checkState(serverChannel.isOpen(), "Server has been stopped");
+
+    if (running) {
+      return;
+    }
+    running = true;
+
+    // Subscribe to the low level messages from the hardware wallets
+    MessageEvents.subscribe(this);
+
+    sessionExecutorService.submit(
+      new Runnable() {
+        @Override
+        public void run() {
+          refreshDevices();
+        }
+      });
+
+    serverExecutorService.submit(
+      new Runnable() {
+        @Override
+        public void run() {
+          select();
+        }
+      });
+
+    log.debug("Waiting for RelayClient connections on port {}", getPortNumber());
+
+  }
+
+  /**
+   * <p>Stop the server, closing all connections and disconnecting from the hardware wallets</p>
+   */
+  public synchronized void stop() {
+
+    if (!running) {
+      return;
+    }
+    running = false;
+
+    MessageEvents.unsubscribe(this);
+
+    // The selector thread closes the channels on the way out
+    selector.wakeup();
+    serverExecutorService.shutdown();
+
+    sessionExecutorService.submit(
+      new Runnable() {
+        @Override
+        public void run() {
+          for (RelayDevice device : devices.values()) {
+            device.close();
+          }
+          devices.clear();
+        }
+      });
+    sessionExecutorService.shutdown();
+
+    log.debug("Relay server stopping");
+
+  }
+
+  /**
+   * <p>Block until the server has stopped and released its port</p>
+   *
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  @Subscribe
+  public void onMessageEvent(MessageEvent event) {
+
+    if (!running) {
+      return;
+    }
+
+    switch (event.getEventType()) {
+      case DEVICE_ATTACHED:
+      case DEVICE_DETACHED:
+      case DEVICE_DETACHED_HARD:
+        // A newly attached device is not yet known so match on the vendor and check every device
+        if (isProviderSource(event.getSource())) {
+          sessionExecutorService.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                refreshDevices();
+              }
+            });
+        }
+        return;
+      default:
+        // Continue
+    }
+
+    Optional<RelayDevice> device = findDevice(event.getSource());
+    if (!device.isPresent() || !event.getRawMessage().isPresent()) {
+      return;
+    }
+
+    Optional<RelayConnection> owner = arbiter.getOwner(device.get().serialNumber);
+    if (!owner.isPresent()) {
+      log.debug("No session on device. Dropping '{}'", event.getEventType().name());
+      return;
+    }
+
+    Message message = event.getRawMessage().get();
+
+    log.debug("Relaying '{}' to client", event.getEventType().name());
+    send(
+      owner.get(),
+      new RelayFrame(device.get().provider.getMessageType(message), message.toByteArray()),
+      device.get().deviceId
+    );
+
+  }
+
+  /**
+   * <p>The selector loop (blocks in select so no CPU is used while idle)</p>
+   */
+  private void select() {
+
+    try {
+      while (running) {
+
+        selector.select();
+
+        registerPendingWrites();
+
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+
+          if (!key.isValid()) {
+            continue;
+          }
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          RelayConnection connection = (RelayConnection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(connection, key);
+            }
+          } catch (IOException e) {
+            log.warn("Closing client connection: {}", e.getMessage());
+            close(connection);
+          } catch (RuntimeException e) {
+            // A misbehaving client must not stop the relay for everyone else
+            log.warn("Closing client connection after unexpected error", e);
+            close(connection);
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.error("Relay server failed", e);
+    } finally {
+      closeAll();
+      stopped.countDown();
+      log.debug("Relay server stopped");
+    }
+
+  }
+
+  private void accept() throws IOException {
+
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+
+    channel.configureBlocking(false);
+    RelayConnection connection = new RelayConnection(channel);
+    channel.register(selector, SelectionKey.OP_READ, connection);
+    connections.add(connection);
+
+    log.debug("Accepted client {}", channel.getRemoteAddress());
+
+  }
+
+  private void read(final RelayConnection connection) throws IOException {
+
+    readBuffer.clear();
+    int received = connection.channel.read(readBuffer);
+    if (received == -1) {
+      log.debug("Client closed connection");
+      close(connection);
+      return;
+    }
+    readBuffer.flip();
+
+    if (connection.protocol == null && !negotiate(connection)) {
+      // Wait for the rest of the hello
+      return;
+    }
+
+    List<RelayFrame> frames = connection.decoder.decode(readBuffer);
+    for (final RelayFrame frame : frames) {
+      sessionExecutorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            handleFrame(connection, frame);
+          }
+        });
+    }
+
+  }
+
+  /**
+   * <p>Choose the wire format from the opening bytes of the connection (selector thread)</p>
+   *
+   * @return True if the protocol is known, false if more bytes are needed
+   *
+   * @throws IOException If the client is not speaking a relay protocol
+   */
+  private boolean negotiate(RelayConnection connection) throws IOException {
+
+    if (!readBuffer.hasRemaining()) {
+      // Nothing arrived on this read
+      return false;
+    }
+
+    if (connection.hello.position() == 0 && RelayProtocol.isHidPacket(readBuffer.get(readBuffer.position()))) {
+      // Older clients start with a HID packet
+      connection.protocol = RelayProtocol.HID_PACKETS;
+      connection.decoder = connection.protocol.newDecoder();
+      return true;
+    }
+
+    while (readBuffer.hasRemaining() && connection.hello.hasRemaining()) {
+      connection.hello.put(readBuffer.get());
+    }
+    if (connection.hello.hasRemaining()) {
+      return false;
+    }
+
+    if (!RelayProtocol.isHello(connection.hello.array())) {
+      throw new IOException("Client is not speaking a supported relay protocol");
+    }
+
+    log.debug("Client negotiated relay protocol v2");
+    connection.protocol = RelayProtocol.LENGTH_PREFIXED;
+    connection.decoder = connection.protocol.newDecoder();
+
+    // Accept by echoing the hello
+    queue(connection, ByteBuffer.wrap(RelayProtocol.hello()));
+
+    return true;
+  }
+
+  private void write(RelayConnection connection, SelectionKey key) throws IOException {
+
+    // Coalesce everything queued into a single gathering write
+    ByteBuffer[] buffers = connection.outbound.toArray(new ByteBuffer[0]);
+    connection.channel.write(buffers);
+
+    ByteBuffer buffer;
+    while ((buffer = connection.outbound.peek()) != null && !buffer.hasRemaining()) {
+      connection.outbound.poll();
+    }
+
+    if (!connection.outbound.isEmpty()) {
+      // Socket buffer is full or more was queued so wait to be selected again
+      return;
+    }
+
+    key.interestOps(SelectionKey.OP_READ);
+
+  }
+
+  private void registerPendingWrites() {
+
+    RelayConnection connection;
+    while ((connection = pendingWrites.poll()) != null) {
+      SelectionKey key = connection.channel.keyFor(selector);
+      if (key != null && key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+  }
+
+  /**
+   * <p>Queue a frame that does not concern a device for the client (any thread)</p>
+   */
+  private void send(RelayConnection connection, RelayFrame frame) {
+
+    send(connection, frame, 0);
+
+  }
+
+  /**
+   * <p>Queue a frame for the client (any thread)</p>
+   *
+   * <p>Frames carry the sequence number of the last frame from the client so replies can be matched up</p>
+   */
+  private void send(RelayConnection connection, RelayFrame frame, int deviceId) {
+
+    queue(connection, connection.protocol.encode(frame.withHeader(deviceId, connection.lastSequence)));
+
+  }
+
+  /**
+   * <p>Queue bytes for the client (any thread)</p>
+   */
+  private void queue(RelayConnection connection, ByteBuffer buffer) {
+
+    connection.outbound.add(buffer);
+
+    // The selector owns the interest set so hand over and wake it
+    pendingWrites.add(connection);
+    selector.wakeup();
+
+  }
+
+  /**
+   * <p>Close the client connection and release its session (any thread)</p>
+   */
+  private void close(final RelayConnection connection) {
+
+    // Closing the channel also cancels its key
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      log.warn("Could not close client connection", e);
+    }
+
+    if (connections.remove(connection) && running) {
+      sessionExecutorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            release(connection);
+          }
+        });
+    }
+
+  }
+
+  private void closeAll() {
+
+    for (RelayConnection connection : connections) {
+      close(connection);
+    }
+
+    try {
+      serverChannel.close();
+      selector.close();
+    } catch (IOException e) {
+      log.warn("Could not close relay server socket", e);
+    }
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   */
+  private void handleFrame(RelayConnection connection, RelayFrame frame) {
+
+    if (connection.protocol == RelayProtocol.LENGTH_PREFIXED) {
+      if (frame.getSequence() != connection.lastSequence + 1) {
+        log.warn("Client sequence jumped from {} to {}", connection.lastSequence, frame.getSequence());
+      }
+      connection.lastSequence = frame.getSequence();
+    }
+
+    if (RelayControlMessages.isControlType(frame.getType())) {
+      connection.controlAware = true;
+      handleControl(connection, frame);
+      return;
+    }
+
+    Optional<String> serialNumber = arbiter.getSession(connection);
+    if (serialNumber.isPresent()) {
+      RelayDevice device = devices.get(serialNumber.get());
+      if (frame.getDeviceId() != 0 && frame.getDeviceId() != device.deviceId) {
+        fail(connection, "Session is on device " + device.deviceId + " not " + frame.getDeviceId(), false);
+        return;
+      }
+      device.write(frame);
+      return;
+    }
+
+    connection.pendingFrames.add(frame);
+
+    if (!arbiter.isWaiting(connection)) {
+      // Clients that do not arbitrate get the first available device
+      acquire(connection, Optional.<String>absent());
+    }
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   */
+  private void handleControl(RelayConnection connection, RelayFrame frame) {
+
+    try {
+      switch (frame.getType()) {
+        case RelayControlMessages.RELAY_LIST_DEVICES:
+          refreshDevices();
+          send(connection, RelayControlMessages.buildDevices(arbiter.getDeviceStatus()));
+          break;
+        case RelayControlMessages.RELAY_ACQUIRE:
+          acquire(connection, RelayControlMessages.parseAcquire(frame.getPayload()));
+          break;
+        case RelayControlMessages.RELAY_RELEASE:
+          release(connection);
+          break;
+        default:
+          fail(connection, "Unsupported relay control message " + frame.getType(), false);
+      }
+    } catch (IOException e) {
+      fail(connection, "Malformed relay control message: " + e.getMessage(), false);
+    }
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   */
+  private void acquire(RelayConnection connection, Optional<String> requestedSerialNumber) {
+
+    if (arbiter.getSession(connection).isPresent() || arbiter.isWaiting(connection)) {
+      fail(connection, "A session has already been requested", false);
+      return;
+    }
+
+    if (!requestedSerialNumber.isPresent() || !arbiter.hasDevice(requestedSerialNumber.get())) {
+      // Pick up recently attached devices
+      refreshDevices();
+    }
+
+    Optional<String> serialNumber = requestedSerialNumber.isPresent() ? requestedSerialNumber : arbiter.selectDevice();
+    if (!serialNumber.isPresent() || !arbiter.hasDevice(serialNumber.get())) {
+      connection.pendingFrames.clear();
+      fail(connection, serialNumber.isPresent() ? "Device " + serialNumber.get() + " is not attached" : "No devices are attached", true);
+      return;
+    }
+
+    int position = arbiter.acquire(connection, serialNumber.get());
+    if (position == 0) {
+      grant(connection, serialNumber.get());
+    } else {
+      log.debug("Client queued at position {} for device {}", position, serialNumber.get());
+      if (connection.controlAware) {
+        send(connection, RelayControlMessages.buildQueued(serialNumber.get(), position), devices.get(serialNumber.get()).deviceId);
+      }
+    }
+
+    broadcastDeviceStatus();
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   */
+  private void grant(RelayConnection connection, String serialNumber) {
+
+    log.debug("Client granted session on device {}", serialNumber);
+
+    RelayDevice device = devices.get(serialNumber);
+
+    if (connection.controlAware) {
+      send(connection, RelayControlMessages.buildAcquired(serialNumber), device.deviceId);
+    }
+    device.connect();
+
+    // Messages sent while waiting follow the connect on the device thread
+    for (RelayFrame frame : connection.pendingFrames) {
+      device.write(frame);
+    }
+    connection.pendingFrames.clear();
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   */
+  private void release(RelayConnection connection) {
+
+    connection.pendingFrames.clear();
+
+    Optional<RelayConnection> next = arbiter.release(connection);
+    if (next.isPresent() && next.get() != connection) {
+      grant(next.get(), arbiter.getSession(next.get()).get());
+    }
+
+    broadcastDeviceStatus();
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   *
+   * @param connection    The connection
+   * @param message       The failure message
+   * @param deviceFailure True if the device is unavailable rather than the request being refused
+   */
+  private void fail(RelayConnection connection, String message, boolean deviceFailure) {
+
+    log.warn("Relay failure: {}", message);
+
+    if (connection.controlAware) {
+      send(connection, RelayControlMessages.buildFailure(message, deviceFailure));
+    } else {
+      // Older clients cannot be told so disconnect rather than leave them waiting
+      close(connection);
+    }
+
+  }
+
+  /**
+   * <p>Synchronize the devices with those attached (must be called on the session thread)</p>
+   */
+  private void refreshDevices() {
+
+    boolean changed = false;
+    Set<String> attached = Sets.newHashSet();
+
+    for (RelayDeviceProvider provider : providers) {
+      List<String> serialNumbers;
+      try {
+        serialNumbers = provider.findAttachedSerialNumbers();
+      } catch (RuntimeException e) {
+        log.error("Could not list attached {} devices", provider.name(), e);
+        continue;
+      }
+
+      for (String serialNumber : serialNumbers) {
+        attached.add(serialNumber);
+        if (!devices.containsKey(serialNumber)) {
+          log.info("Relaying {} device {}", provider.name(), serialNumber);
+          devices.put(serialNumber, new RelayDevice(nextDeviceId(), serialNumber, provider, provider.buildHardwareWallet(serialNumber)));
+          arbiter.addDevice(serialNumber, provider.name());
+          changed = true;
+        }
+      }
+    }
+
+    for (RelayDevice device : Lists.newArrayList(devices.values())) {
+      if (!attached.contains(device.serialNumber)) {
+        log.info("Device {} detached", device.serialNumber);
+        devices.remove(device.serialNumber);
+        device.close();
+        for (RelayConnection affected : arbiter.removeDevice(device.serialNumber)) {
+          affected.pendingFrames.clear();
+          fail(affected, "Device " + device.serialNumber + " detached", true);
+        }
+        changed = true;
+      }
+    }
+
+    if (changed) {
+      broadcastDeviceStatus();
+    }
+
+  }
+
+  /**
+   * <p>Must be called on the session thread</p>
+   *
+   * @return A relay device ID (1 to 65535) not in use by an attached device
+   */
+  private int nextDeviceId() {
+
+    Set<Integer> used = Sets.newHashSet();
+    for (RelayDevice device : devices.values()) {
+      used.add(device.deviceId);
+    }
+
+    do {
+      lastDeviceId = lastDeviceId % 0xFFFF + 1;
+    } while (used.contains(lastDeviceId));
+
+    return lastDeviceId;
+  }
+
+  private void broadcastDeviceStatus() {
+
+    RelayFrame frame = RelayControlMessages.buildDevices(arbiter.getDeviceStatus());
+    for (RelayConnection connection : connections) {
+      if (connection.controlAware) {
+        send(connection, frame);
+      }
+    }
+
+  }
+
+  /**
+   * @param source The message event source
+   *
+   * @return True if the source is one of the providers (e.g. "TREZOR") or a device from one (e.g. "TREZOR:serial")
+   */
+  private boolean isProviderSource(String source) {
+
+    if (source == null) {
+      return false;
+    }
+
+    for (RelayDeviceProvider provider : providers) {
+      if (source.equals(provider.name()) || source.startsWith(provider.name() + ":")) {
+        return true;
+      }
+    }
+
+    return findDevice(source).isPresent();
+  }
+
+  private Optional<RelayDevice> findDevice(String source) {
+
+    for (RelayDevice device : devices.values()) {
+      if (device.hardwareWallet.name().equals(source)) {
+        return Optional.of(device);
+      }
+    }
+
+    return Optional.absent();
+  }
+
+  /**
+   * An attached device and the thread for its blocking operations
+   */
+  private static class RelayDevice {
+
+    /**
+     * The ID carried in relay protocol v2 frames
+     */
+    private final int deviceId;
+    private final String serialNumber;
+    private final RelayDeviceProvider provider;
+    private final HardwareWallet hardwareWallet;
+    private final ExecutorService deviceExecutorService;
+
+    /**
+     * Only used on the device thread
+     */
+    private boolean connected = false;
+
+    private RelayDevice(int deviceId, String serialNumber, RelayDeviceProvider provider, HardwareWallet hardwareWallet) {
+      this.deviceId = deviceId;
+      this.serialNumber = serialNumber;
+      this.provider = provider;
+      this.hardwareWallet = hardwareWallet;
+      this.deviceExecutorService = SafeExecutors.newSingleThreadExecutor("relay-device-" + serialNumber);
+    }
+
+    private void connect() {
+
+      deviceExecutorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+
+            if (connected) {
+              return;
+            }
+
+            log.debug("Connecting to device {}", serialNumber);
+            connected = hardwareWallet.attach() && hardwareWallet.connect();
+            if (!connected) {
+              log.error("Failed to connect to device {}", serialNumber);
+            }
+          }
+        });
+
+    }
+
+    private void write(final RelayFrame frame) {
+
+      deviceExecutorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+
+            try {
+              MessageEvent messageFromClient = provider.parseMessage(frame.getType(), frame.getPayload());
+              if (messageFromClient == null || !messageFromClient.getRawMessage().isPresent()) {
+                log.warn("Ignoring unparseable client message of type {}", frame.getType());
+                return;
+              }
+
+              log.debug("Writing message to device {}", serialNumber);
+              hardwareWallet.writeMessage(messageFromClient.getRawMessage().get());
+
+            } catch (RuntimeException e) {
+              log.error("Failed to relay client message to device {}", serialNumber, e);
+            }
+          }
+        });
+
+    }
+
+    private void close() {
+
+      deviceExecutorService.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (connected) {
+              hardwareWallet.disconnect();
+              connected = false;
+            }
+          }
+        });
+      deviceExecutorService.shutdown();
+
+    }
+  }
+
+  /**
+   * A connected RelayClient
+   */
+  private static class RelayConnection {
+
+    private final SocketChannel channel;
+
+    /**
+     * The opening bytes received before the protocol is known (only used on the selector thread)
+     */
+    private final ByteBuffer hello = ByteBuffer.allocate(RelayProtocol.helloLength());
+
+    /**
+     * The negotiated wire format (null until the first bytes arrive)
+     */
+    private volatile RelayProtocol protocol = null;
+
+    /**
+     * Only used on the selector thread
+     */
+    private RelayFrameDecoder decoder = null;
+
+    /**
+     * Buffers ready for writing to the client
+     */
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Wire protocol messages received while waiting for a session (only used on the session thread)
+     */
+    private final List<RelayFrame> pendingFrames = Lists.newArrayList();
+
+    /**
+     * True once the client has sent a control message (only used on the session thread)
+     */
+    private boolean controlAware = false;
+
+    /**
+     * The sequence number of the last frame from the client, echoed in replies (written on the session thread)
+     */
+    private volatile int lastSequence = 0;
+
+    private RelayConnection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+}
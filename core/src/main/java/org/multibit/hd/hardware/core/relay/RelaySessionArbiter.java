@@ -0,0 +1,239 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Arbiter to provide the following to the relay server:</p>
+ * <ul>
+ * <li>Exclusive sessions on devices keyed by serial number</li>
+ * <li>A first come first served queue of clients waiting for each device</li>
+ * <li>A snapshot of device availability</li>
+ * </ul>
+ *
+ * <p>A client holds or waits for at most one session at a time. Releasing a session hands the device to the
+ * next waiting client.</p>
+ *
+ * @param <C> The client type
+ *
+ * @since 0.8.0
+ *
+ */
+public class RelaySessionArbiter<C> {
+
+  /**
+   * Devices in the order they were attached
+   */
+  private final Map<String, DeviceSessions<C>> devices = Maps.newLinkedHashMap();
+
+  /**
+   * The serial number of the device each client holds or waits for
+   */
+  private final Map<C, String> clients = Maps.newHashMap();
+
+  /**
+   * @param serialNumber The device serial number
+   * @param name         The vendor name
+   *
+   * @return True if the device was not already known
+   */
+  public synchronized boolean addDevice(String serialNumber, String name) {
+
+    Preconditions.checkNotNull(serialNumber, "'serialNumber' must be present");
+    Preconditions.checkNotNull(name, "'name' must be present");
+
+    if (devices.containsKey(serialNumber)) {
+      return false;
+    }
+
+    devices.put(serialNumber, new DeviceSessions<C>(name));
+
+    return true;
+  }
+
+  /**
+   * @param serialNumber The device serial number
+   *
+   * @return The clients that held or were waiting for the device (session holder first)
+   */
+  public synchronized List<C> removeDevice(String serialNumber) {
+
+    DeviceSessions<C> device = devices.remove(serialNumber);
+    if (device == null) {
+      return Lists.newArrayList();
+    }
+
+    List<C> affected = Lists.newArrayList();
+    if (device.owner.isPresent()) {
+      affected.add(device.owner.get());
+    }
+    affected.addAll(device.waiting);
+
+    for (C client : affected) {
+      clients.remove(client);
+    }
+
+    return affected;
+  }
+
+  /**
+   * @param serialNumber The device serial number
+   *
+   * @return True if the device is known
+   */
+  public synchronized boolean hasDevice(String serialNumber) {
+    return devices.containsKey(serialNumber);
+  }
+
+  /**
+   * @return The first available device, otherwise the device with the shortest queue, absent if there are no devices
+   */
+  public synchronized Optional<String> selectDevice() {
+
+    Optional<String> selected = Optional.absent();
+    int shortestQueue = Integer.MAX_VALUE;
+
+    for (Map.Entry<String, DeviceSessions<C>> entry : devices.entrySet()) {
+      DeviceSessions<C> device = entry.getValue();
+      if (!device.owner.isPresent()) {
+        return Optional.of(entry.getKey());
+      }
+      if (device.waiting.size() < shortestQueue) {
+        selected = Optional.of(entry.getKey());
+        shortestQueue = device.waiting.size();
+      }
+    }
+
+    return selected;
+  }
+
+  /**
+   * @param client       The client requesting the session
+   * @param serialNumber The device serial number (must be known)
+   *
+   * @return 0 if the session was granted, otherwise the position in the queue (1 is next)
+   */
+  public synchronized int acquire(C client, String serialNumber) {
+
+    Preconditions.checkNotNull(client, "'client' must be present");
+    Preconditions.checkArgument(devices.containsKey(serialNumber), "'serialNumber' must be a known device");
+    Preconditions.checkState(!clients.containsKey(client), "Client already holds or is waiting for a session");
+
+    DeviceSessions<C> device = devices.get(serialNumber);
+    clients.put(client, serialNumber);
+
+    if (!device.owner.isPresent()) {
+      device.owner = Optional.of(client);
+      return 0;
+    }
+
+    device.waiting.addLast(client);
+
+    return device.waiting.size();
+  }
+
+  /**
+   * <p>Release the session held by the client or leave the queue</p>
+   *
+   * @param client The client
+   *
+   * @return The client now holding the session if the device was handed over
+   */
+  public synchronized Optional<C> release(C client) {
+
+    String serialNumber = clients.remove(client);
+    if (serialNumber == null) {
+      return Optional.absent();
+    }
+
+    DeviceSessions<C> device = devices.get(serialNumber);
+    if (!device.owner.isPresent() || !device.owner.get().equals(client)) {
+      device.waiting.remove(client);
+      return Optional.absent();
+    }
+
+    device.owner = Optional.fromNullable(device.waiting.pollFirst());
+
+    return device.owner;
+  }
+
+  /**
+   * @param serialNumber The device serial number
+   *
+   * @return The client holding the session on the device
+   */
+  public synchronized Optional<C> getOwner(String serialNumber) {
+
+    DeviceSessions<C> device = devices.get(serialNumber);
+    if (device == null) {
+      return Optional.absent();
+    }
+
+    return device.owner;
+  }
+
+  /**
+   * @param client The client
+   *
+   * @return The serial number of the device if the client holds its session
+   */
+  public synchronized Optional<String> getSession(C client) {
+
+    String serialNumber = clients.get(client);
+    if (serialNumber == null || isWaiting(client)) {
+      return Optional.absent();
+    }
+
+    return Optional.of(serialNumber);
+  }
+
+  /**
+   * @param client The client
+   *
+   * @return True if the client is queued for a device
+   */
+  public synchronized boolean isWaiting(C client) {
+
+    String serialNumber = clients.get(client);
+
+    return serialNumber != null && devices.get(serialNumber).waiting.contains(client);
+  }
+
+  /**
+   * @return The availability of each device in the order they were attached
+   */
+  public synchronized List<RelayDeviceStatus> getDeviceStatus() {
+
+    List<RelayDeviceStatus> status = Lists.newArrayList();
+    for (Map.Entry<String, DeviceSessions<C>> entry : devices.entrySet()) {
+      DeviceSessions<C> device = entry.getValue();
+      status.add(new RelayDeviceStatus(entry.getKey(), device.name, !device.owner.isPresent(), device.waiting.size()));
+    }
+
+    return status;
+  }
+
+  /**
+   * The session holder and waiting clients for a device
+   */
+  private static class DeviceSessions<C> {
+
+    private final String name;
+
+    private Optional<C> owner = Optional.absent();
+
+    private final Deque<C> waiting = Queues.newArrayDeque();
+
+    private DeviceSessions(String name) {
+      this.name = name;
+    }
+  }
+
+}
@@ -0,0 +1,333 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Abstract base class to provide the following to hardware wallet clients:</p>
+ * <ul>
+ * <li>Precomputed responses to every TX_REQUEST the device can make during a signing session</li>
+ * <li>Parallel construction of the responses when signing starts</li>
+ * </ul>
+ *
+ * <p>Responses are keyed on the request type, transaction hash and index. The device repeatedly
+ * asks for the same inputs and outputs (once per input being signed) so answering from the plan
+ * reduces the host work between round trips to a map lookup.</p>
+ *
+ * <p>Requests that arrive before the plan is complete, or whose entry could not be built in
+ * advance, are built on demand and retained.</p>
+ *
+ * <p>Parent transactions are encoded once per session (keyed by hash) and the per index responses
+ * for a parent are sliced from that encoding. A parent spent by several inputs is therefore never
+ * re-encoded however many times the device asks for it.</p>
+ *
+ * @param <T> The vendor specific transaction type message
+ *
+ * @since 0.8.0
+ *
+ */
+public abstract class AbstractTxResponsePlan<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(AbstractTxResponsePlan.class);
+
+  /**
+   * Shared between all plans since signing sessions are short lived
+   */
+  private static final ListeningExecutorService planExecutorService = MoreExecutors.listeningDecorator(
+    Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder()
+        .setNameFormat("tx-response-plan-%d")
+        .setDaemon(true)
+        .build()
+    ));
+
+  private final TxSigningSession session;
+
+  private final ConcurrentMap<ResponseKey, T> responses = Maps.newConcurrentMap();
+
+  private final ConcurrentMap<Sha256Hash, T> encodedParents = Maps.newConcurrentMap();
+
+  /**
+   * @param session The signing session
+   */
+  protected AbstractTxResponsePlan(TxSigningSession session) {
+
+    Preconditions.checkNotNull(session, "'session' must be present");
+
+    this.session = session;
+  }
+
+  /**
+   * @return The signing session
+   */
+  public TxSigningSession getSession() {
+    return session;
+  }
+
+  /**
+   * <p>Build all responses in parallel (one task per transaction)</p>
+   *
+   * @return A future that completes when every response has been attempted
+   */
+  public ListenableFuture<List<Integer>> start() {
+
+    List<ListenableFuture<Integer>> futures = Lists.newArrayList();
+
+    // Current transaction
+    futures.add(planExecutorService.submit(newPlanTask(session.getTransaction(), false)));
+
+    // Parent transactions (requested with their hash)
+    for (Transaction parentTx : session.getParentTransactions()) {
+      futures.add(planExecutorService.submit(newPlanTask(parentTx, true)));
+    }
+
+    return Futures.successfulAsList(futures);
+  }
+
+  /**
+   * @param txRequest The request from the device
+   *
+   * @return The response, absent if no response is required
+   *
+   * @throws IllegalArgumentException If the device requested an unknown transaction
+   */
+  public Optional<T> getResponse(TxRequest txRequest) {
+
+    TxRequestType txRequestType = txRequest.getTxRequestType();
+    if (txRequestType != TxRequestType.TX_META
+      && txRequestType != TxRequestType.TX_INPUT
+      && txRequestType != TxRequestType.TX_OUTPUT) {
+      return Optional.absent();
+    }
+
+    // Get the transaction hash (if present)
+    Optional<byte[]> txHash = txRequest.getTxRequestDetailsType().getTxHash();
+    boolean binOutputType = txHash.isPresent();
+
+    Transaction requestedTx = session.getTransaction();
+    if (binOutputType) {
+      Optional<Transaction> parentTx = session.getTransactionByHash(txHash.get());
+      if (!parentTx.isPresent()) {
+        log.error("Device requested unknown hash: {}", Utils.HEX.encode(txHash.get()));
+        throw new IllegalArgumentException("Device requested unknown hash.");
+      }
+      requestedTx = parentTx.get();
+    }
+
+    // Meta requests carry no index
+    int index = 0;
+    if (txRequestType != TxRequestType.TX_META) {
+      Optional<Integer> requestIndex = txRequest.getTxRequestDetailsType().getRequestIndex();
+      if (!requestIndex.isPresent()) {
+        log.warn("Request index is not present for {}", txRequestType);
+        return Optional.absent();
+      }
+      index = requestIndex.get();
+    }
+
+    ResponseKey key = new ResponseKey(txRequestType, requestedTx.getHash(), index, binOutputType);
+    T response = responses.get(key);
+    if (response == null) {
+      // Not yet planned so build on demand (failures propagate as before)
+      response = buildResponse(requestedTx, txRequestType, index, binOutputType);
+      if (response == null) {
+        return Optional.absent();
+      }
+      responses.putIfAbsent(key, response);
+    }
+
+    return Optional.of(response);
+  }
+
+  /**
+   * @param parentTx A parent transaction within the session
+   *
+   * @return The parent encoded with all its inputs and bin outputs (built once per session)
+   */
+  public T getEncodedParent(Transaction parentTx) {
+
+    Preconditions.checkNotNull(parentTx, "'parentTx' must be present");
+
+    Sha256Hash parentHash = parentTx.getHash();
+    T encodedParent = encodedParents.get(parentHash);
+    if (encodedParent == null) {
+      encodedParent = buildParentTransaction(parentTx);
+      T existing = encodedParents.putIfAbsent(parentHash, encodedParent);
+      if (existing != null) {
+        encodedParent = existing;
+      }
+    }
+
+    return encodedParent;
+  }
+
+  /**
+   * @return The number of responses currently held
+   */
+  public int size() {
+    return responses.size();
+  }
+
+  /**
+   * @param tx The transaction
+   *
+   * @return The TX_META response
+   */
+  protected abstract T buildMetaResponse(Transaction tx);
+
+  /**
+   * @param parentTx The parent transaction
+   *
+   * @return The parent encoded with all its inputs and bin outputs
+   */
+  protected abstract T buildParentTransaction(Transaction parentTx);
+
+  /**
+   * @param tx            The transaction
+   * @param index         The input index
+   * @param binOutputType True if the transaction is a parent (the receiving address map does not apply)
+   *
+   * @return The TX_INPUT response
+   */
+  protected abstract T buildInputResponse(Transaction tx, int index, boolean binOutputType);
+
+  /**
+   * @param tx            The transaction
+   * @param index         The output index
+   * @param binOutputType True if the transaction is a parent (bin output rather than output)
+   *
+   * @return The TX_OUTPUT response
+   */
+  protected abstract T buildOutputResponse(Transaction tx, int index, boolean binOutputType);
+
+  private T buildResponse(Transaction tx, TxRequestType txRequestType, int index, boolean binOutputType) {
+
+    switch (txRequestType) {
+      case TX_META:
+        return buildMetaResponse(tx);
+      case TX_INPUT:
+        return buildInputResponse(tx, index, binOutputType);
+      case TX_OUTPUT:
+        return buildOutputResponse(tx, index, binOutputType);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @param tx            The transaction to plan
+   * @param binOutputType True if the transaction is a parent
+   *
+   * @return A task that builds every response for the transaction and provides the number built
+   */
+  private Callable<Integer> newPlanTask(final Transaction tx, final boolean binOutputType) {
+
+    return new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+
+        Sha256Hash txHash = tx.getHash();
+        int built = 0;
+
+        if (binOutputType) {
+          try {
+            // Encode the parent once so the per index responses can share it
+            getEncodedParent(tx);
+          } catch (RuntimeException e) {
+            log.debug("Could not encode parent {}: {}", txHash, e.getMessage());
+          }
+        }
+
+        built += plan(new ResponseKey(TxRequestType.TX_META, txHash, 0, binOutputType), tx);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+          built += plan(new ResponseKey(TxRequestType.TX_INPUT, txHash, i, binOutputType), tx);
+        }
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+          built += plan(new ResponseKey(TxRequestType.TX_OUTPUT, txHash, i, binOutputType), tx);
+        }
+
+        log.debug("Planned {} responses for {}", built, txHash);
+
+        return built;
+      }
+    };
+  }
+
+  /**
+   * @return 1 if the response was built, 0 otherwise
+   */
+  private int plan(ResponseKey key, Transaction tx) {
+
+    try {
+      T response = buildResponse(tx, key.txRequestType, key.index, key.binOutputType);
+      if (response != null) {
+        responses.putIfAbsent(key, response);
+        return 1;
+      }
+    } catch (RuntimeException e) {
+      // Leave it to the on demand build to report the problem if the device asks for it
+      log.debug("Could not plan {} {} for {}: {}", key.txRequestType, key.index, key.txHash, e.getMessage());
+    }
+    return 0;
+  }
+
+  /**
+   * Identifies a response within the plan
+   */
+  private static class ResponseKey {
+
+    private final TxRequestType txRequestType;
+    private final Sha256Hash txHash;
+    private final int index;
+    private final boolean binOutputType;
+
+    private ResponseKey(TxRequestType txRequestType, Sha256Hash txHash, int index, boolean binOutputType) {
+      this.txRequestType = txRequestType;
+      this.txHash = txHash;
+      this.index = index;
+      this.binOutputType = binOutputType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      ResponseKey other = (ResponseKey) o;
+      return index == other.index
+        && binOutputType == other.binOutputType
+        && txRequestType == other.txRequestType
+        && txHash.equals(other.txHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(txRequestType, txHash, index, binOutputType);
+    }
+  }
+
+}
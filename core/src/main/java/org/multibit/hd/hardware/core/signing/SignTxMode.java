@@ -0,0 +1,27 @@
+package org.multibit.hd.hardware.core.signing;
+
+/**
+ * <p>Enum to provide the following to the "sign transaction" use case:</p>
+ * <ul>
+ * <li>Identification of how the transaction is delivered to the device</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public enum SignTxMode {
+
+  /**
+   * The whole transaction and its parents are delivered in a single SIMPLE_SIGN_TX message
+   */
+  SIMPLE,
+
+  /**
+   * The device requests each input and output in turn through TX_REQUEST/TX_ACK round trips
+   */
+  STREAMING,
+
+  // End of enum
+  ;
+
+}
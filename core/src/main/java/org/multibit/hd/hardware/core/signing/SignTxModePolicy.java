@@ -0,0 +1,187 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * <p>Policy to provide the following to the "sign transaction" use case:</p>
+ * <ul>
+ * <li>Selection of SIMPLE_SIGN_TX or streaming SIGN_TX for a given device and transaction</li>
+ * <li>Host side estimate of the SIMPLE_SIGN_TX payload size</li>
+ * </ul>
+ *
+ * <p>A small transaction is faster to deliver as one message than as dozens of TX_REQUEST/TX_ACK round trips
+ * but the device must hold the whole message (including every parent transaction) in its input buffer.
+ * The firmware does not report its buffer size so the limits are configured per vendor and keyed on the
+ * firmware version reported in the features. Unknown vendors always stream.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SignTxModePolicy {
+
+  private static final Logger log = LoggerFactory.getLogger(SignTxModePolicy.class);
+
+  /**
+   * Vendor reported by Trezor devices
+   */
+  public static final String TREZOR_VENDOR = "bitcointrezor.com";
+
+  /**
+   * Trezor firmware input buffer less a margin for the estimate
+   */
+  public static final int DEFAULT_TREZOR_MAXIMUM_PAYLOAD_BYTES = 10 * 1024;
+
+  /**
+   * First Trezor firmware version without SIMPLE_SIGN_TX
+   */
+  public static final String DEFAULT_TREZOR_UNSUPPORTED_FROM_VERSION = "1.4.0";
+
+  /**
+   * Protobuf field overhead (tags and lengths) per input, output or transaction in the estimate
+   */
+  private static final int FIELD_OVERHEAD_BYTES = 12;
+
+  /**
+   * Length of the address_n list for a BIP-44 receiving address (5 varints of up to 5 bytes each)
+   */
+  private static final int ADDRESS_N_BYTES = 5 * 5;
+
+  private final Map<String, VendorLimit> vendorLimits = Maps.newHashMap();
+
+  public SignTxModePolicy() {
+
+    setVendorLimit(TREZOR_VENDOR, DEFAULT_TREZOR_MAXIMUM_PAYLOAD_BYTES, DEFAULT_TREZOR_UNSUPPORTED_FROM_VERSION);
+
+  }
+
+  /**
+   * @param vendor                 The vendor reported in the features
+   * @param maximumPayloadBytes    The largest SIMPLE_SIGN_TX payload the firmware accepts (zero to always stream)
+   * @param unsupportedFromVersion The first firmware version without SIMPLE_SIGN_TX (e.g. "1.4.0")
+   */
+  public synchronized void setVendorLimit(String vendor, int maximumPayloadBytes, String unsupportedFromVersion) {
+
+    Preconditions.checkNotNull(vendor, "'vendor' must be present");
+    Preconditions.checkNotNull(unsupportedFromVersion, "'unsupportedFromVersion' must be present");
+    Preconditions.checkArgument(maximumPayloadBytes >= 0, "'maximumPayloadBytes' must not be negative");
+
+    vendorLimits.put(vendor, new VendorLimit(maximumPayloadBytes, parseVersion(unsupportedFromVersion)));
+  }
+
+  /**
+   * @param features The device features (vendor and firmware version)
+   * @param session  The signing session
+   *
+   * @return The preferred mode for signing the transaction on the device
+   */
+  public synchronized SignTxMode select(Features features, TxSigningSession session) {
+
+    Preconditions.checkNotNull(features, "'features' must be present");
+    Preconditions.checkNotNull(session, "'session' must be present");
+
+    VendorLimit limit = features.getVendor() == null ? null : vendorLimits.get(features.getVendor());
+    if (limit == null || limit.maximumPayloadBytes == 0) {
+      return SignTxMode.STREAMING;
+    }
+
+    if (features.getVersion() == null || compareVersions(parseVersion(features.getVersion()), limit.unsupportedFromVersion) >= 0) {
+      log.debug("Firmware {} does not support SIMPLE_SIGN_TX", features.getVersion());
+      return SignTxMode.STREAMING;
+    }
+
+    int estimatedBytes = estimateSimpleSignTxBytes(session);
+    SignTxMode mode = estimatedBytes <= limit.maximumPayloadBytes ? SignTxMode.SIMPLE : SignTxMode.STREAMING;
+
+    log.debug("Estimated SIMPLE_SIGN_TX payload {} bytes (limit {}) so using {}", estimatedBytes, limit.maximumPayloadBytes, mode);
+
+    return mode;
+  }
+
+  /**
+   * <p>The estimate errs on the high side (full address_n and script lengths) so a transaction that is
+   * selected for SIMPLE_SIGN_TX will fit the configured limit</p>
+   *
+   * @param session The signing session
+   *
+   * @return The estimated size of the SIMPLE_SIGN_TX payload in bytes
+   */
+  public static int estimateSimpleSignTxBytes(TxSigningSession session) {
+
+    Transaction tx = session.getTransaction();
+
+    // Coin name, version and lock time
+    int bytes = 32;
+
+    // Previous hash, index, sequence, script type and the path to the receiving address (unsigned so no script)
+    bytes += tx.getInputs().size() * (32 + 5 + 5 + 2 + ADDRESS_N_BYTES + FIELD_OVERHEAD_BYTES);
+
+    for (TransactionOutput output : tx.getOutputs()) {
+      // Amount, script type, address (or path to change address) and script
+      bytes += 10 + 2 + 35 + output.getScriptBytes().length + FIELD_OVERHEAD_BYTES;
+    }
+
+    // Each parent is included once with all its inputs and bin outputs
+    for (Transaction parentTx : session.getParentTransactions()) {
+      bytes += FIELD_OVERHEAD_BYTES;
+      for (TransactionInput input : parentTx.getInputs()) {
+        bytes += 32 + 5 + 5 + 2 + input.getScriptBytes().length + FIELD_OVERHEAD_BYTES;
+      }
+      for (TransactionOutput output : parentTx.getOutputs()) {
+        bytes += 10 + output.getScriptBytes().length + FIELD_OVERHEAD_BYTES;
+      }
+    }
+
+    return bytes;
+  }
+
+  /**
+   * @param version A version in the form "major.minor.patch"
+   *
+   * @return The numeric components (missing or malformed components are zero)
+   */
+  static int[] parseVersion(String version) {
+
+    int[] components = new int[3];
+    String[] parts = version.trim().split("\\.");
+    for (int i = 0; i < components.length && i < parts.length; i++) {
+      try {
+        components[i] = Integer.parseInt(parts[i]);
+      } catch (NumberFormatException e) {
+        components[i] = 0;
+      }
+    }
+    return components;
+  }
+
+  private static int compareVersions(int[] left, int[] right) {
+    for (int i = 0; i < left.length; i++) {
+      if (left[i] != right[i]) {
+        return left[i] < right[i] ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * SIMPLE_SIGN_TX limits for a vendor
+   */
+  private static class VendorLimit {
+
+    private final int maximumPayloadBytes;
+    private final int[] unsupportedFromVersion;
+
+    private VendorLimit(int maximumPayloadBytes, int[] unsupportedFromVersion) {
+      this.maximumPayloadBytes = maximumPayloadBytes;
+      this.unsupportedFromVersion = unsupportedFromVersion;
+    }
+  }
+}
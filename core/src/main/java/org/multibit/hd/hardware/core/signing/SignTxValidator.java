@@ -0,0 +1,197 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.script.Script;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Utility class to provide the following to the "sign transaction" use case:</p>
+ * <ul>
+ * <li>Validation of every input and output before the device is involved</li>
+ * <li>All problems reported together rather than failing on the first</li>
+ * </ul>
+ *
+ * <p>Each input must be connected to an output of its parent transaction, have a receiving address path and
+ * spend a pay to address script (the only input script type presented to the device). Each output must be pay
+ * to address or P2SH. Large transactions are checked in slices on a worker pool.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SignTxValidator {
+
+  private static final Logger log = LoggerFactory.getLogger(SignTxValidator.class);
+
+  /**
+   * Below this the thread hand off costs more than the checks
+   */
+  private static final int PARALLEL_THRESHOLD = 32;
+
+  /**
+   * Shared between all validations since they are short lived
+   */
+  private static final ListeningExecutorService validatorExecutorService = MoreExecutors.listeningDecorator(
+    Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder()
+        .setNameFormat("sign-tx-validator-%d")
+        .setDaemon(true)
+        .build()
+    ));
+
+  /**
+   * Utilities have private constructors
+   */
+  private SignTxValidator() {
+  }
+
+  /**
+   * @param session The signing session
+   *
+   * @return The problems in input then output order (empty if the transaction can be signed)
+   */
+  public static List<String> validate(final TxSigningSession session) {
+
+    Preconditions.checkNotNull(session, "'session' must be present");
+
+    final Transaction tx = session.getTransaction();
+    final int inputCount = tx.getInputs().size();
+
+    List<String> problems = Lists.newArrayList();
+
+    if (inputCount == 0) {
+      problems.add("Transaction has no inputs");
+    }
+    if (tx.getOutputs().isEmpty()) {
+      problems.add("Transaction has no outputs");
+    }
+
+    if (inputCount < PARALLEL_THRESHOLD) {
+      problems.addAll(validateInputs(session, 0, inputCount));
+    } else {
+
+      int processors = Runtime.getRuntime().availableProcessors();
+      int sliceSize = (inputCount + processors - 1) / processors;
+
+      List<ListenableFuture<List<String>>> futures = Lists.newArrayList();
+      for (int start = 0; start < inputCount; start += sliceSize) {
+        final int from = start;
+        final int to = Math.min(start + sliceSize, inputCount);
+        futures.add(validatorExecutorService.submit(new Callable<List<String>>() {
+          @Override
+          public List<String> call() throws Exception {
+            return validateInputs(session, from, to);
+          }
+        }));
+      }
+
+      try {
+        // Slices are returned in submission order so the problems remain in input order
+        for (List<String> sliceProblems : Futures.allAsList(futures).get()) {
+          problems.addAll(sliceProblems);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new HardwareWalletException("Interrupted while validating transaction", e);
+      } catch (ExecutionException e) {
+        throw new HardwareWalletException("Failed to validate transaction", e.getCause());
+      }
+    }
+
+    for (int i = 0; i < tx.getOutputs().size(); i++) {
+      Script scriptPubKey = tx.getOutput(i).getScriptPubKey();
+      if (!scriptPubKey.isSentToAddress() && !scriptPubKey.isPayToScriptHash()) {
+        problems.add("Output " + i + " does not resolve to P2PKH or P2SH");
+      }
+    }
+
+    if (!problems.isEmpty()) {
+      log.warn("Transaction {} has {} problem(s): {}", tx.getHashAsString(), problems.size(), problems);
+    }
+
+    return problems;
+  }
+
+  /**
+   * @param sessions The signing sessions in a batch
+   *
+   * @return The problems prefixed by the position of the transaction in the batch (empty if all can be signed)
+   */
+  public static List<String> validate(List<TxSigningSession> sessions) {
+
+    Preconditions.checkNotNull(sessions, "'sessions' must be present");
+
+    List<String> problems = Lists.newArrayList();
+    for (int i = 0; i < sessions.size(); i++) {
+      for (String problem : validate(sessions.get(i))) {
+        problems.add("Transaction " + i + ": " + problem);
+      }
+    }
+
+    return problems;
+  }
+
+  /**
+   * @param session The signing session
+   * @param from    The first input index (inclusive)
+   * @param to      The last input index (exclusive)
+   *
+   * @return The problems with the inputs in the range
+   */
+  private static List<String> validateInputs(TxSigningSession session, int from, int to) {
+
+    Transaction tx = session.getTransaction();
+
+    List<String> problems = Lists.newArrayList();
+    for (int i = from; i < to; i++) {
+
+      TransactionInput input = tx.getInput(i);
+
+      ImmutableList<ChildNumber> receivingAddressPath = session.getReceivingAddressPathMap().get(i);
+      if (receivingAddressPath == null || receivingAddressPath.isEmpty()) {
+        problems.add("Input " + i + " has no receiving address path");
+      }
+
+      if (input.getOutpoint() == null) {
+        problems.add("Input " + i + " has no outpoint");
+        continue;
+      }
+      TransactionOutput connectedOutput = input.getOutpoint().getConnectedOutput();
+      if (connectedOutput == null) {
+        problems.add("Input " + i + " has no connected output");
+        continue;
+      }
+      Transaction parentTx = connectedOutput.getParentTransaction();
+      if (parentTx == null) {
+        problems.add("Input " + i + " has no parent transaction");
+      } else if (!parentTx.getHash().equals(input.getOutpoint().getHash())) {
+        problems.add("Input " + i + " is connected to the wrong parent transaction");
+      }
+
+      if (!connectedOutput.getScriptPubKey().isSentToAddress()) {
+        problems.add("Input " + i + " does not spend a P2PKH output");
+      }
+    }
+
+    return problems;
+  }
+
+}
@@ -0,0 +1,506 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Assembler to provide the following to the "sign transaction" use case:</p>
+ * <ul>
+ * <li>Incremental parsing of the serialized transaction chunks as they arrive from the device</li>
+ * <li>Verification of each signature against the connected scriptPubKey and sighash as soon as both are available</li>
+ * <li>A signed transaction built from the parsed fields without a second full parse</li>
+ * </ul>
+ *
+ * <p>Every parsed field is compared with the unsigned transaction in the session so tampering with an
+ * input, output, version or lock time fails on the chunk that carries it rather than after TX_FINISHED.</p>
+ *
+ * <p>Only pay to address and pay to public key inputs signed with SIGHASH_ALL are supported (no multisig in MBHD yet).</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SignedTxAssembler {
+
+  private static final Logger log = LoggerFactory.getLogger(SignedTxAssembler.class);
+
+  /**
+   * The only sighash type used by the device
+   */
+  private static final int SIGHASH_ALL = 0x01;
+
+  private enum Stage {
+    VERSION,
+    INPUT_COUNT,
+    INPUT,
+    OUTPUT_COUNT,
+    OUTPUT,
+    LOCK_TIME,
+    COMPLETE
+  }
+
+  private final TxSigningSession session;
+
+  private final Transaction unsignedTx;
+
+  private final NetworkParameters networkParameters;
+
+  private final Map<Integer, byte[]> pendingSignatures = Maps.newHashMap();
+
+  private final BitSet verifiedInputs = new BitSet();
+
+  private final List<byte[]> scriptSigs = Lists.newArrayList();
+
+  private byte[] buffer = new byte[1024];
+  private int length = 0;
+  private int cursor = 0;
+
+  private Stage stage = Stage.VERSION;
+  private int inputIndex = 0;
+  private int outputIndex = 0;
+
+  private Optional<Transaction> signedTx = Optional.absent();
+
+  /**
+   * @param session The signing session providing the unsigned transaction
+   */
+  public SignedTxAssembler(TxSigningSession session) {
+
+    Preconditions.checkNotNull(session, "'session' must be present");
+
+    this.session = session;
+    this.unsignedTx = session.getTransaction();
+    this.networkParameters = unsignedTx.getParams();
+  }
+
+  /**
+   * @param serializedTx The next chunk of the serialized transaction
+   *
+   * @throws HardwareWalletException If the chunk does not match the unsigned transaction or carries an invalid signature
+   */
+  public synchronized void appendSerializedTx(byte[] serializedTx) {
+
+    Preconditions.checkNotNull(serializedTx, "'serializedTx' must be present");
+
+    if (stage == Stage.COMPLETE && serializedTx.length > 0) {
+      throw new HardwareWalletException("Serialized transaction continues beyond the lock time");
+    }
+
+    ensureCapacity(serializedTx.length);
+    System.arraycopy(serializedTx, 0, buffer, length, serializedTx.length);
+    length += serializedTx.length;
+
+    // Consume as many complete fields as the buffer allows
+    while (stage != Stage.COMPLETE && parseNext()) {
+      // Keep going
+    }
+  }
+
+  /**
+   * <p>Note: The device provides the DER encoded signature without the SIGHASH byte</p>
+   *
+   * @param index     The input index
+   * @param signature The DER encoded signature
+   *
+   * @throws HardwareWalletException If the signature is invalid or differs from the one in the serialized input
+   */
+  public synchronized void appendSignature(int index, byte[] signature) {
+
+    Preconditions.checkNotNull(signature, "'signature' must be present");
+
+    if (index < 0 || index >= unsignedTx.getInputs().size()) {
+      throw new HardwareWalletException("Signature provided for unknown input " + index);
+    }
+
+    if (index < scriptSigs.size()) {
+      // Input already parsed so check it now
+      verifyInput(index, Optional.of(signature));
+    } else {
+      // Verify once the serialized input arrives
+      pendingSignatures.put(index, signature);
+    }
+  }
+
+  /**
+   * <p>Complete the assembly following TX_FINISHED</p>
+   *
+   * @return The signed transaction
+   *
+   * @throws HardwareWalletException If the serialized transaction is incomplete
+   */
+  public synchronized Transaction finish() {
+
+    if (signedTx.isPresent()) {
+      return signedTx.get();
+    }
+
+    if (stage != Stage.COMPLETE) {
+      throw new HardwareWalletException("Serialized transaction is incomplete (stopped at " + stage + ")");
+    }
+    if (cursor != length) {
+      throw new HardwareWalletException("Serialized transaction has " + (length - cursor) + " trailing bytes");
+    }
+    if (verifiedInputs.cardinality() != unsignedTx.getInputs().size()) {
+      throw new HardwareWalletException("Only " + verifiedInputs.cardinality() + " of " + unsignedTx.getInputs().size() + " inputs are signed");
+    }
+
+    signedTx = Optional.of(buildSignedTx());
+
+    return signedTx.get();
+  }
+
+  /**
+   * @return The signed transaction, absent until {@link #finish()} succeeds
+   */
+  public synchronized Optional<Transaction> getSignedTx() {
+    return signedTx;
+  }
+
+  /**
+   * @return The number of inputs with a verified signature
+   */
+  public synchronized int getVerifiedInputCount() {
+    return verifiedInputs.cardinality();
+  }
+
+  /**
+   * @return True if the parse has advanced beyond the lock time
+   */
+  public synchronized boolean isComplete() {
+    return stage == Stage.COMPLETE;
+  }
+
+  /**
+   * @return True if a field was consumed, false if more bytes are required
+   */
+  private boolean parseNext() {
+
+    switch (stage) {
+      case VERSION:
+        if (available() < 4) {
+          return false;
+        }
+        long version = Utils.readUint32(buffer, cursor);
+        if (version != unsignedTx.getVersion()) {
+          throw new HardwareWalletException("Version mismatch: expected " + unsignedTx.getVersion() + " but was " + version);
+        }
+        cursor += 4;
+        stage = Stage.INPUT_COUNT;
+        return true;
+      case INPUT_COUNT:
+        Optional<Long> inputCount = readVarInt();
+        if (!inputCount.isPresent()) {
+          return false;
+        }
+        if (inputCount.get() != unsignedTx.getInputs().size()) {
+          throw new HardwareWalletException("Input count mismatch: expected " + unsignedTx.getInputs().size() + " but was " + inputCount.get());
+        }
+        stage = inputCount.get() == 0 ? Stage.OUTPUT_COUNT : Stage.INPUT;
+        return true;
+      case INPUT:
+        if (!parseInput()) {
+          return false;
+        }
+        inputIndex++;
+        if (inputIndex == unsignedTx.getInputs().size()) {
+          stage = Stage.OUTPUT_COUNT;
+        }
+        return true;
+      case OUTPUT_COUNT:
+        Optional<Long> outputCount = readVarInt();
+        if (!outputCount.isPresent()) {
+          return false;
+        }
+        if (outputCount.get() != unsignedTx.getOutputs().size()) {
+          throw new HardwareWalletException("Output count mismatch: expected " + unsignedTx.getOutputs().size() + " but was " + outputCount.get());
+        }
+        stage = outputCount.get() == 0 ? Stage.LOCK_TIME : Stage.OUTPUT;
+        return true;
+      case OUTPUT:
+        if (!parseOutput()) {
+          return false;
+        }
+        outputIndex++;
+        if (outputIndex == unsignedTx.getOutputs().size()) {
+          stage = Stage.LOCK_TIME;
+        }
+        return true;
+      case LOCK_TIME:
+        if (available() < 4) {
+          return false;
+        }
+        long lockTime = Utils.readUint32(buffer, cursor);
+        if (lockTime != unsignedTx.getLockTime()) {
+          throw new HardwareWalletException("Lock time mismatch: expected " + unsignedTx.getLockTime() + " but was " + lockTime);
+        }
+        cursor += 4;
+        stage = Stage.COMPLETE;
+        log.debug("Serialized transaction parsed with {} of {} inputs verified", verifiedInputs.cardinality(), unsignedTx.getInputs().size());
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return True if a complete input was consumed and verified
+   */
+  private boolean parseInput() {
+
+    int start = cursor;
+
+    // Outpoint (hash and index)
+    if (available() < 36) {
+      return false;
+    }
+    Sha256Hash prevHash = new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(buffer, cursor, cursor + 32)));
+    long prevIndex = Utils.readUint32(buffer, cursor + 32);
+    cursor += 36;
+
+    Optional<byte[]> scriptSig = readScript();
+    if (!scriptSig.isPresent() || available() < 4) {
+      // Wait for the remainder of the input
+      cursor = start;
+      return false;
+    }
+    long sequence = Utils.readUint32(buffer, cursor);
+    cursor += 4;
+
+    TransactionInput unsignedInput = unsignedTx.getInput(inputIndex);
+    if (!prevHash.equals(unsignedInput.getOutpoint().getHash()) || prevIndex != unsignedInput.getOutpoint().getIndex()) {
+      throw new HardwareWalletException("Input " + inputIndex + " spends a different outpoint");
+    }
+    if (sequence != unsignedInput.getSequenceNumber()) {
+      throw new HardwareWalletException("Input " + inputIndex + " has a different sequence number");
+    }
+
+    scriptSigs.add(scriptSig.get());
+
+    // Check against the signature already provided (if any)
+    verifyInput(inputIndex, Optional.fromNullable(pendingSignatures.remove(inputIndex)));
+
+    return true;
+  }
+
+  /**
+   * @return True if a complete output was consumed and matched
+   */
+  private boolean parseOutput() {
+
+    int start = cursor;
+
+    if (available() < 8) {
+      return false;
+    }
+    long value = Utils.readInt64(buffer, cursor);
+    cursor += 8;
+
+    Optional<byte[]> scriptPubKey = readScript();
+    if (!scriptPubKey.isPresent()) {
+      // Wait for the remainder of the output
+      cursor = start;
+      return false;
+    }
+
+    TransactionOutput unsignedOutput = unsignedTx.getOutput(outputIndex);
+    if (value != unsignedOutput.getValue().value) {
+      throw new HardwareWalletException("Output " + outputIndex + " has a different value");
+    }
+    if (!Arrays.equals(scriptPubKey.get(), unsignedOutput.getScriptBytes())) {
+      throw new HardwareWalletException("Output " + outputIndex + " has a different script");
+    }
+
+    return true;
+  }
+
+  /**
+   * @param index             The input index (already parsed)
+   * @param providedSignature The DER signature provided separately by the device (if any)
+   */
+  private void verifyInput(int index, Optional<byte[]> providedSignature) {
+
+    if (verifiedInputs.get(index) && !providedSignature.isPresent()) {
+      return;
+    }
+
+    TransactionOutPoint outpoint = unsignedTx.getInput(index).getOutpoint();
+    TransactionOutput connectedOutput = outpoint.getConnectedOutput();
+    if (connectedOutput == null) {
+      throw new HardwareWalletException("Input " + index + " is not connected so cannot be verified");
+    }
+
+    List<ScriptChunk> chunks;
+    try {
+      chunks = new Script(scriptSigs.get(index)).getChunks();
+    } catch (ScriptException e) {
+      throw new HardwareWalletException("Input " + index + " has a malformed script signature", e);
+    }
+
+    // Locate the public key
+    Script scriptPubKey = connectedOutput.getScriptPubKey();
+    byte[] pubKey;
+    if (scriptPubKey.isSentToAddress()) {
+      if (chunks.size() != 2 || chunks.get(1).data == null) {
+        throw new HardwareWalletException("Input " + index + " does not have a pay to address script signature");
+      }
+      pubKey = chunks.get(1).data;
+      if (!Arrays.equals(Utils.sha256hash160(pubKey), scriptPubKey.getPubKeyHash())) {
+        throw new HardwareWalletException("Input " + index + " is signed by a key that does not match the connected output");
+      }
+    } else if (scriptPubKey.isSentToRawPubKey()) {
+      if (chunks.size() != 1) {
+        throw new HardwareWalletException("Input " + index + " does not have a pay to public key script signature");
+      }
+      pubKey = scriptPubKey.getPubKey();
+    } else {
+      throw new HardwareWalletException("Input " + index + " spends an unsupported script type");
+    }
+
+    // Split off the SIGHASH byte
+    byte[] sigWithHashType = chunks.get(0).data;
+    if (sigWithHashType == null || sigWithHashType.length < 2) {
+      throw new HardwareWalletException("Input " + index + " has no signature");
+    }
+    if ((sigWithHashType[sigWithHashType.length - 1] & 0xff) != SIGHASH_ALL) {
+      throw new HardwareWalletException("Input " + index + " is not signed with SIGHASH_ALL");
+    }
+    byte[] signature = Arrays.copyOf(sigWithHashType, sigWithHashType.length - 1);
+
+    if (providedSignature.isPresent() && !Arrays.equals(signature, providedSignature.get())) {
+      throw new HardwareWalletException("Input " + index + " signature differs from the serialized input");
+    }
+
+    if (verifiedInputs.get(index)) {
+      return;
+    }
+
+    Sha256Hash sighash = unsignedTx.hashForSignature(index, connectedOutput.getScriptBytes(), Transaction.SigHash.ALL, false);
+    boolean verified;
+    try {
+      verified = ECKey.verify(sighash.getBytes(), signature, pubKey);
+    } catch (RuntimeException e) {
+      // Malformed DER encoding or public key
+      throw new HardwareWalletException("Input " + index + " has a malformed signature", e);
+    }
+    if (!verified) {
+      throw new HardwareWalletException("Input " + index + " signature does not verify");
+    }
+
+    verifiedInputs.set(index);
+    log.debug("Verified signature for input {}", index);
+  }
+
+  /**
+   * @return The signed transaction built from the unsigned transaction and the verified script signatures
+   */
+  private Transaction buildSignedTx() {
+
+    Transaction tx = new Transaction(networkParameters);
+    if (tx.getVersion() != unsignedTx.getVersion()) {
+      // Non-default version cannot be set directly so fall back to a full parse (already verified)
+      return new Transaction(networkParameters, Arrays.copyOf(buffer, length));
+    }
+
+    for (int i = 0; i < unsignedTx.getInputs().size(); i++) {
+      TransactionInput unsignedInput = unsignedTx.getInput(i);
+      TransactionOutPoint unsignedOutpoint = unsignedInput.getOutpoint();
+
+      // Keep the connection to the parent so the fee remains available
+      TransactionOutPoint outpoint = new TransactionOutPoint(
+        networkParameters,
+        unsignedOutpoint.getIndex(),
+        unsignedOutpoint.getConnectedOutput().getParentTransaction()
+      );
+
+      TransactionInput input = new TransactionInput(networkParameters, tx, scriptSigs.get(i), outpoint);
+      input.setSequenceNumber(unsignedInput.getSequenceNumber());
+      tx.addInput(input);
+    }
+
+    for (TransactionOutput unsignedOutput : unsignedTx.getOutputs()) {
+      tx.addOutput(new TransactionOutput(networkParameters, tx, unsignedOutput.getValue(), unsignedOutput.getScriptBytes()));
+    }
+
+    tx.setLockTime(unsignedTx.getLockTime());
+
+    return tx;
+  }
+
+  /**
+   * @return The script bytes, absent if more bytes are required (cursor is unchanged)
+   */
+  private Optional<byte[]> readScript() {
+
+    int start = cursor;
+
+    Optional<Long> scriptLength = readVarInt();
+    if (!scriptLength.isPresent()) {
+      return Optional.absent();
+    }
+    if (scriptLength.get() > Transaction.MAX_STANDARD_TX_SIZE) {
+      throw new HardwareWalletException("Script length " + scriptLength.get() + " is too large");
+    }
+    if (available() < scriptLength.get()) {
+      cursor = start;
+      return Optional.absent();
+    }
+
+    byte[] script = Arrays.copyOfRange(buffer, cursor, cursor + scriptLength.get().intValue());
+    cursor += script.length;
+
+    return Optional.of(script);
+  }
+
+  /**
+   * @return The value, absent if more bytes are required (cursor is unchanged)
+   */
+  private Optional<Long> readVarInt() {
+
+    if (available() < 1) {
+      return Optional.absent();
+    }
+
+    int first = buffer[cursor] & 0xff;
+    int size = first < 0xfd ? 1 : first == 0xfd ? 3 : first == 0xfe ? 5 : 9;
+    if (available() < size) {
+      return Optional.absent();
+    }
+
+    long value = new VarInt(buffer, cursor).value;
+    cursor += size;
+
+    return Optional.of(value);
+  }
+
+  private int available() {
+    return length - cursor;
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("session", session)
+      .append("stage", stage)
+      .append("verifiedInputs", verifiedInputs.cardinality())
+      .toString();
+  }
+}
@@ -0,0 +1,162 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.ChildNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>Session to provide the following to the "sign transaction" use case:</p>
+ * <ul>
+ * <li>The transaction being signed with its receiving and change address paths</li>
+ * <li>Constant time lookup of the parent transactions requested by the device</li>
+ * </ul>
+ *
+ * <p>The parent index is built once when the session is created so each TX_REQUEST
+ * carrying a transaction hash is answered without scanning the inputs.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class TxSigningSession {
+
+  private static final Logger log = LoggerFactory.getLogger(TxSigningSession.class);
+
+  private final Transaction transaction;
+
+  private final Sha256Hash transactionHash;
+
+  private final Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap;
+
+  private final Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap;
+
+  private final Map<Sha256Hash, Transaction> parentTransactions;
+
+  /**
+   * @param transaction             The transaction to sign (inputs must be connected to their parent outputs)
+   * @param receivingAddressPathMap The receiving address path map (keyed on input index and providing deterministic path to receiving address)
+   * @param changeAddressPathMap    The change address path map (keyed on Address and providing deterministic path to change address)
+   */
+  public TxSigningSession(
+    Transaction transaction,
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
+    Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+
+    Preconditions.checkNotNull(transaction, "'transaction' must be present");
+    Preconditions.checkNotNull(receivingAddressPathMap, "'receivingAddressPathMap' must be present");
+    Preconditions.checkNotNull(changeAddressPathMap, "'changeAddressPathMap' must be present");
+
+    this.transaction = transaction;
+    this.transactionHash = transaction.getHash();
+    this.receivingAddressPathMap = receivingAddressPathMap;
+    this.changeAddressPathMap = changeAddressPathMap;
+    this.parentTransactions = buildParentIndex(transaction);
+  }
+
+  /**
+   * @return The transaction being signed
+   */
+  public Transaction getTransaction() {
+    return transaction;
+  }
+
+  /**
+   * @return The receiving address path map (keyed on input index)
+   */
+  public Map<Integer, ImmutableList<ChildNumber>> getReceivingAddressPathMap() {
+    return receivingAddressPathMap;
+  }
+
+  /**
+   * @return The change address path map (keyed on Address)
+   */
+  public Map<Address, ImmutableList<ChildNumber>> getChangeAddressPathMap() {
+    return changeAddressPathMap;
+  }
+
+  /**
+   * @return The distinct parent transactions in order of first use
+   */
+  public Collection<Transaction> getParentTransactions() {
+    return parentTransactions.values();
+  }
+
+  /**
+   * @param txHash The transaction hash requested by the device
+   *
+   * @return The transaction being signed or one of its parents, absent if unknown
+   */
+  public Optional<Transaction> getTransactionByHash(byte[] txHash) {
+
+    Preconditions.checkNotNull(txHash, "'txHash' must be present");
+
+    Sha256Hash hash = new Sha256Hash(txHash);
+    if (transactionHash.equals(hash)) {
+      return Optional.of(transaction);
+    }
+
+    return Optional.fromNullable(parentTransactions.get(hash));
+  }
+
+  /**
+   * @param transaction The transaction to sign
+   *
+   * @return The parent transactions keyed on their hash
+   */
+  private static Map<Sha256Hash, Transaction> buildParentIndex(Transaction transaction) {
+
+    // Preserve input order for predictable iteration
+    Map<Sha256Hash, Transaction> parents = Maps.newLinkedHashMap();
+
+    int unconnected = 0;
+    for (TransactionInput txInput : transaction.getInputs()) {
+
+      if (txInput.getOutpoint() == null) {
+        unconnected++;
+        continue;
+      }
+
+      Sha256Hash parentHash = txInput.getOutpoint().getHash();
+      if (parents.containsKey(parentHash)) {
+        continue;
+      }
+
+      TransactionOutput connectedOutput = txInput.getOutpoint().getConnectedOutput();
+      if (connectedOutput == null || connectedOutput.getParentTransaction() == null) {
+        unconnected++;
+        continue;
+      }
+
+      parents.put(parentHash, connectedOutput.getParentTransaction());
+    }
+
+    if (unconnected > 0) {
+      // A single summary avoids flooding the log for large transactions
+      log.warn("{} of {} inputs are not connected to a parent transaction", unconnected, transaction.getInputs().size());
+    }
+
+    return ImmutableMap.copyOf(parents);
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("transactionHash", transactionHash)
+      .append("inputs", transaction.getInputs().size())
+      .append("parentTransactions", parentTransactions.size())
+      .toString();
+  }
+}
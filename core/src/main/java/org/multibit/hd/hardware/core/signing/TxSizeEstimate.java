@@ -0,0 +1,50 @@
+package org.multibit.hd.hardware.core.signing;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * <p>Value object to provide the following to fee calculations:</p>
+ * <ul>
+ * <li>The size of a transaction once it has been signed</li>
+ * <li>Whether the size is exact or an upper bound</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class TxSizeEstimate {
+
+  private final int size;
+  private final boolean exact;
+
+  /**
+   * @param size  The signed size in bytes
+   * @param exact True if every input is already signed so the size cannot change
+   */
+  public TxSizeEstimate(int size, boolean exact) {
+    this.size = size;
+    this.exact = exact;
+  }
+
+  /**
+   * @return The signed size in bytes (never less than the actual signed size)
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return True if the size is exact, false if it is an upper bound (signature lengths vary by a byte or two)
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("size", size)
+      .append("exact", exact)
+      .toString();
+  }
+}
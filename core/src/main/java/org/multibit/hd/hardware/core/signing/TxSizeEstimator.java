@@ -0,0 +1,221 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.base.Preconditions;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * <p>Utility class to provide the following to fee calculations:</p>
+ * <ul>
+ * <li>Host side estimation of the signed size of a transaction (no ESTIMATE_TX_SIZE round trip)</li>
+ * <li>Support for SPENDADDRESS (pay to address and pay to public key), bare multisig and P2SH multisig inputs</li>
+ * </ul>
+ *
+ * <p>Inputs that already carry a script signature contribute their exact size. Unsigned inputs contribute the
+ * largest script signature the device can produce (a 72 byte DER signature plus the SIGHASH byte and a compressed
+ * public key) so the estimate is never below the signed size. The estimate only reads script lengths so it is cheap
+ * enough to call on every iteration of a coin selection or fee loop.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class TxSizeEstimator {
+
+  /**
+   * Largest DER encoded signature plus the SIGHASH byte
+   */
+  public static final int MAXIMUM_SIGNATURE_BYTES = 73;
+
+  /**
+   * Hierarchical deterministic keys are always compressed
+   */
+  public static final int COMPRESSED_PUBLIC_KEY_BYTES = 33;
+
+  /**
+   * Previous hash, previous index and sequence
+   */
+  private static final int INPUT_FIXED_BYTES = 32 + 4 + 4;
+
+  /**
+   * Version and lock time
+   */
+  private static final int TX_FIXED_BYTES = 4 + 4;
+
+  /**
+   * Utilities have private constructors
+   */
+  private TxSizeEstimator() {
+  }
+
+  /**
+   * @param tx The transaction with connected inputs (SPENDADDRESS or bare multisig)
+   *
+   * @return The estimated signed size
+   *
+   * @throws IllegalArgumentException If an unsigned input is not connected or spends an unsupported script
+   */
+  public static TxSizeEstimate estimate(Transaction tx) {
+    return estimate(tx, Collections.<Integer, Script>emptyMap());
+  }
+
+  /**
+   * @param tx            The transaction with connected inputs
+   * @param redeemScripts The redeem scripts for P2SH inputs keyed by input index
+   *
+   * @return The estimated signed size
+   *
+   * @throws IllegalArgumentException If an unsigned input is not connected or spends an unsupported script
+   */
+  public static TxSizeEstimate estimate(Transaction tx, Map<Integer, Script> redeemScripts) {
+
+    Preconditions.checkNotNull(tx, "'tx' must be present");
+    Preconditions.checkNotNull(redeemScripts, "'redeemScripts' must be present");
+
+    int size = TX_FIXED_BYTES
+      + VarInt.sizeOf(tx.getInputs().size())
+      + VarInt.sizeOf(tx.getOutputs().size());
+    boolean exact = true;
+
+    for (int i = 0; i < tx.getInputs().size(); i++) {
+
+      TransactionInput input = tx.getInput(i);
+
+      int scriptSigBytes;
+      byte[] existingScriptSig = input.getScriptBytes();
+      if (existingScriptSig != null && existingScriptSig.length > 0) {
+        scriptSigBytes = existingScriptSig.length;
+      } else {
+        scriptSigBytes = maximumScriptSigBytes(input, i, redeemScripts.get(i));
+        exact = false;
+      }
+
+      size += INPUT_FIXED_BYTES + VarInt.sizeOf(scriptSigBytes) + scriptSigBytes;
+    }
+
+    for (TransactionOutput output : tx.getOutputs()) {
+      size += outputBytes(output.getScriptBytes().length);
+    }
+
+    return new TxSizeEstimate(size, exact);
+  }
+
+  /**
+   * <p>Size of a SPENDADDRESS transaction when only the counts are known (e.g. before coin selection has chosen
+   * the inputs)</p>
+   *
+   * @param inputCount        The number of pay to address inputs
+   * @param outputScriptBytes The script lengths of the outputs (25 for pay to address, 23 for P2SH)
+   *
+   * @return The upper bound of the signed size
+   */
+  public static int estimateSpendAddressSize(int inputCount, int... outputScriptBytes) {
+
+    Preconditions.checkArgument(inputCount >= 0, "'inputCount' must not be negative");
+
+    int scriptSigBytes = spendAddressScriptSigBytes();
+
+    int size = TX_FIXED_BYTES
+      + VarInt.sizeOf(inputCount)
+      + VarInt.sizeOf(outputScriptBytes.length)
+      + inputCount * (INPUT_FIXED_BYTES + VarInt.sizeOf(scriptSigBytes) + scriptSigBytes);
+
+    for (int scriptBytes : outputScriptBytes) {
+      size += outputBytes(scriptBytes);
+    }
+
+    return size;
+  }
+
+  /**
+   * @param m The number of signatures required
+   * @param n The number of public keys in the redeem script
+   *
+   * @return The upper bound of a P2SH multisig script signature (compressed public keys)
+   */
+  public static int maximumP2SHMultisigScriptSigBytes(int m, int n) {
+
+    Preconditions.checkArgument(m > 0 && m <= n && n <= 16, "'m' and 'n' must satisfy 0 < m <= n <= 16");
+
+    // OP_m, n public keys, OP_n and OP_CHECKMULTISIG
+    int redeemScriptBytes = 1 + n * (1 + COMPRESSED_PUBLIC_KEY_BYTES) + 1 + 1;
+
+    return multisigScriptSigBytes(m) + pushBytes(redeemScriptBytes);
+  }
+
+  private static int maximumScriptSigBytes(TransactionInput input, int index, Script redeemScript) {
+
+    if (input.getOutpoint() == null || input.getOutpoint().getConnectedOutput() == null) {
+      throw new IllegalArgumentException("Input " + index + " is not connected");
+    }
+
+    Script scriptPubKey = input.getOutpoint().getConnectedOutput().getScriptPubKey();
+
+    if (scriptPubKey.isSentToAddress()) {
+      return spendAddressScriptSigBytes();
+    }
+    if (scriptPubKey.isSentToRawPubKey()) {
+      return 1 + MAXIMUM_SIGNATURE_BYTES;
+    }
+    if (scriptPubKey.isSentToMultiSig()) {
+      return multisigScriptSigBytes(requiredSignatures(scriptPubKey));
+    }
+    if (scriptPubKey.isPayToScriptHash()) {
+      if (redeemScript == null) {
+        throw new IllegalArgumentException("Input " + index + " is P2SH but has no redeem script");
+      }
+      if (!redeemScript.isSentToMultiSig()) {
+        throw new IllegalArgumentException("Input " + index + " has an unsupported redeem script");
+      }
+      return multisigScriptSigBytes(requiredSignatures(redeemScript)) + pushBytes(redeemScript.getProgram().length);
+    }
+
+    throw new IllegalArgumentException("Input " + index + " spends an unsupported script");
+  }
+
+  /**
+   * @return The signature and compressed public key pushes
+   */
+  private static int spendAddressScriptSigBytes() {
+    return 1 + MAXIMUM_SIGNATURE_BYTES + 1 + COMPRESSED_PUBLIC_KEY_BYTES;
+  }
+
+  /**
+   * @return OP_0 (the CHECKMULTISIG off by one) followed by the signature pushes
+   */
+  private static int multisigScriptSigBytes(int m) {
+    return 1 + m * (1 + MAXIMUM_SIGNATURE_BYTES);
+  }
+
+  /**
+   * @param multisigScript A script in the form OP_m pubkeys OP_n OP_CHECKMULTISIG
+   *
+   * @return The number of signatures required
+   */
+  private static int requiredSignatures(Script multisigScript) {
+    return Script.decodeFromOpN(multisigScript.getChunks().get(0).opcode);
+  }
+
+  /**
+   * @return The size of the data with its push opcode (direct, OP_PUSHDATA1 or OP_PUSHDATA2)
+   */
+  private static int pushBytes(int dataBytes) {
+    if (dataBytes < 76) {
+      return 1 + dataBytes;
+    }
+    if (dataBytes <= 0xff) {
+      return 2 + dataBytes;
+    }
+    return 3 + dataBytes;
+  }
+
+  private static int outputBytes(int scriptBytes) {
+    return 8 + VarInt.sizeOf(scriptBytes) + scriptBytes;
+  }
+
+}
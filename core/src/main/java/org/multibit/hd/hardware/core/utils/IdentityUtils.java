@@ -1,14 +1,13 @@
 package org.multibit.hd.hardware.core.utils;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.crypto.ChildNumber;
-import org.spongycastle.jce.ECNamedCurveTable;
-import org.spongycastle.jce.ECPointUtil;
-import org.spongycastle.jce.provider.BouncyCastleProvider;
-import org.spongycastle.jce.spec.ECNamedCurveParameterSpec;
-import org.spongycastle.jce.spec.ECNamedCurveSpec;
+import org.multibit.hd.hardware.core.identity.IdentityCryptoService;
 import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
 import org.spongycastle.pqc.math.linearalgebra.LittleEndianConversions;
 import org.spongycastle.util.encoders.Base64;
@@ -17,8 +16,6 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.interfaces.ECPublicKey;
-import java.security.spec.ECPoint;
-import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.List;
 
@@ -36,6 +33,13 @@ public class IdentityUtils {
   public static final String KEY_PREFIX = "ecdsa-sha2-nistp256";
   public static final String CURVE_NAME = "nistp256";
 
+  /**
+   * The path is deterministic per URI and index so it is hashed once
+   */
+  private static final Cache<String, ImmutableList<Integer>> addressNCache = CacheBuilder.newBuilder()
+    .maximumSize(1_000)
+    .build();
+
   /**
    * <p>Build an AddressN chain code structure for an Identity URI</p>
    *
@@ -62,6 +66,23 @@ public class IdentityUtils {
    */
   public static List<Integer> buildAddressN(URI identityUri, int index) {
 
+    String cacheKey = index + "|" + identityUri.toASCIIString();
+
+    ImmutableList<Integer> addressN = addressNCache.getIfPresent(cacheKey);
+    if (addressN == null) {
+      addressN = deriveAddressN(identityUri, index);
+      addressNCache.put(cacheKey, addressN);
+    }
+
+    // Callers are free to modify the result
+    return Lists.newArrayList(addressN);
+  }
+
+  /**
+   * @see #buildAddressN(URI, int)
+   */
+  private static ImmutableList<Integer> deriveAddressN(URI identityUri, int index) {
+
     // Convert index to little endian (Java is big endian by default)
     byte[] leIndex = LittleEndianConversions.I2OSP(index);
 
@@ -81,7 +102,7 @@ public class IdentityUtils {
     int[] abcdBytes = LittleEndianConversions.toIntArray(truncatedSha256CanonicalBytes);
 
     // Build m/13'/a'/b'/c'/d'
-    return Lists.newArrayList(
+    return ImmutableList.of(
       13 | ChildNumber.HARDENED_BIT,
       abcdBytes[0] | ChildNumber.HARDENED_BIT,
       abcdBytes[1] | ChildNumber.HARDENED_BIT,
@@ -104,14 +125,8 @@ public class IdentityUtils {
    */
   public static ECPublicKey getPublicKeyFromBytes(byte[] pubKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
 
-    ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("P-256");
-    KeyFactory kf = KeyFactory.getInstance("ECDSA", new BouncyCastleProvider());
-    ECNamedCurveSpec params = new ECNamedCurveSpec("P-256", spec.getCurve(), spec.getG(), spec.getN());
-    ECPoint point = ECPointUtil.decodePoint(params.getCurve(), pubKey);
-    ECPublicKeySpec pubKeySpec = new ECPublicKeySpec(point, params);
-    ECPublicKey pk = (ECPublicKey) kf.generatePublic(pubKeySpec);
-
-    return pk;
+    // Shared provider and curve specification
+    return IdentityCryptoService.getInstance().getPublicKey(pubKey);
   }
 
   /**
@@ -186,10 +201,13 @@ public class IdentityUtils {
     throws NoSuchAlgorithmException, NoSuchProviderException,
     InvalidKeyException, SignatureException, InvalidKeySpecException {
 
-    Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA", new BouncyCastleProvider());
-    ecdsaVerify.initVerify(getPublicKeyFromBytes(pubKey));
-    ecdsaVerify.update(message);
-
-    return ecdsaVerify.verify(signature);
+    try {
+      // Shared provider and per thread Signature
+      return IdentityCryptoService.getInstance().verify(pubKey, message, signature);
+    } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new SignatureException(e);
+    }
   }
 }
@@ -1,6 +1,8 @@
 package org.multibit.hd.hardware.core.utils;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
@@ -31,6 +33,9 @@ public class TransactionUtils {
   }
 
   /**
+   * <p>Linear search of the inputs so prefer a {@link org.multibit.hd.hardware.core.signing.TxSigningSession}
+   * when repeated lookups are required</p>
+   *
    * @param tx     The transaction to search
    * @param txHash The transaction hash to match on
    * @return The matching transaction if present
@@ -69,10 +74,10 @@ public class TransactionUtils {
         break;
       }
 
-      if (!requestedTx.isPresent()) {
-        log.warn("Failed to locate requested transaction.");
-      }
+    }
 
+    if (!requestedTx.isPresent()) {
+      log.warn("Failed to locate requested transaction.");
     }
 
     return requestedTx;
@@ -83,6 +88,10 @@ public class TransactionUtils {
    * Check that the signedTransaction returned from the hardware wallet is essentially the same as the unsignedTransaction
    * that was sent to it
    *
+   * <p>Inputs are matched on their outpoint and outputs on their script bytes and value. Both are compared as
+   * multisets so order is ignored but duplicates must appear the same number of times. The comparison is linear
+   * in the number of inputs and outputs.</p>
+   *
    * @param unsignedTransaction the unsignedTransaction sent to the hardware signing device
    * @param signedTransaction   the signed transaction returned from te hardware signing device
    * @return true if the transactions are essentially the same, false otherwise
@@ -100,30 +109,34 @@ public class TransactionUtils {
       return false;
     }
 
-    // Check every transactionInput on the unsigned tx appears on the signed tx
+    // Every transactionInput on the unsigned tx must appear on the signed tx (and vice versa since the sizes match)
+    Multiset<ComponentKey> outpoints = HashMultiset.create(unsignedTransactionInputs.size());
     for (TransactionInput unsignedTxInput : unsignedTransactionInputs) {
-      if (!checkTransactionInputs(unsignedTxInput, signedTransactionInputs)) {
+      Optional<ComponentKey> key = buildInputKey(unsignedTxInput);
+      if (!key.isPresent()) {
         return false;
       }
+      outpoints.add(key.get());
     }
-
-    // Check every transactionOutput on the unsigned tx appears on the signed tx
-    for (TransactionOutput unsignedTxOutput : unsignedTransactionOutputs) {
-      if (!checkTransactionOutputs(unsignedTxOutput, signedTransactionOutputs)) {
+    for (TransactionInput signedTxInput : signedTransactionInputs) {
+      Optional<ComponentKey> key = buildInputKey(signedTxInput);
+      if (!key.isPresent() || outpoints.remove(key.get(), 1) == 0) {
         return false;
       }
     }
 
-   // Check every transactionInput on the signed tx appears on the unsigned tx
-    for (TransactionInput signedTxInput : signedTransactionInputs) {
-      if (!checkTransactionInputs(signedTxInput, unsignedTransactionInputs)) {
+    // Every transactionOutput on the unsigned tx must appear on the signed tx (and vice versa since the sizes match)
+    Multiset<ComponentKey> outputs = HashMultiset.create(unsignedTransactionOutputs.size());
+    for (TransactionOutput unsignedTxOutput : unsignedTransactionOutputs) {
+      Optional<ComponentKey> key = buildOutputKey(unsignedTxOutput);
+      if (!key.isPresent()) {
         return false;
       }
+      outputs.add(key.get());
     }
-
-    // Check every transactionOutput on the signed tx appears on the unsigned tx
     for (TransactionOutput signedTxOutput : signedTransactionOutputs) {
-      if (!checkTransactionOutputs(signedTxOutput, unsignedTransactionOutputs)) {
+      Optional<ComponentKey> key = buildOutputKey(signedTxOutput);
+      if (!key.isPresent() || outputs.remove(key.get(), 1) == 0) {
         return false;
       }
     }
@@ -131,35 +144,56 @@ public class TransactionUtils {
     return true;
   }
 
-  private static boolean checkTransactionInputs(TransactionInput txInputToCheck, List<TransactionInput> txInputs) {
-    // Find the matching transactionInput, matching by the outpoint the transaction input it is spending
-    for (TransactionInput txInput : txInputs) {
-      if (txInputToCheck.getOutpoint() != null) {
-        if (txInputToCheck.getOutpoint().equals(txInput.getOutpoint())) {
-          return true;
-        }
-      } else {
-        // Output is null, matching fails
-        log.debug("No output to match on, matching fails");
-      }
+  private static Optional<ComponentKey> buildInputKey(TransactionInput txInput) {
+    // Match by the outpoint the transaction input is spending
+    if (txInput.getOutpoint() == null) {
+      // Output is null, matching fails
+      log.debug("No output to match on, matching fails");
+      return Optional.absent();
     }
-    return false;
+    return Optional.of(new ComponentKey(txInput.getOutpoint().getHash().getBytes(), txInput.getOutpoint().getIndex()));
   }
 
+  private static Optional<ComponentKey> buildOutputKey(TransactionOutput txOutput) {
+    // Match by the output script bytes and value
+    if (txOutput.getScriptBytes() == null) {
+      // Script bytes are null
+      log.debug("No script bytes to match on, matching fails");
+      return Optional.absent();
+    }
+    return Optional.of(new ComponentKey(txOutput.getScriptBytes(), txOutput.getValue().value));
+  }
+
+  /**
+   * Identifies an input (outpoint hash and index) or an output (script bytes and value)
+   */
+  private static class ComponentKey {
 
-  private static boolean checkTransactionOutputs(TransactionOutput txOutputToCheck, List<TransactionOutput> txOutputs) {
-    // Find the matching transactionOutput, matching by the output script bytes
+    private final byte[] bytes;
+    private final long number;
+    private final int hashCode;
 
-    for (TransactionOutput txOutput : txOutputs) {
-      if (txOutputToCheck.getScriptBytes() != null) {
-        if (Arrays.areEqual(txOutputToCheck.getScriptBytes(), txOutput.getScriptBytes())) {
-          return true;
-        }
-      } else {
-        // Script bytes are null
-        log.debug("No script bytes to match on, matching fails");
+    private ComponentKey(byte[] bytes, long number) {
+      this.bytes = bytes;
+      this.number = number;
+      this.hashCode = 31 * Arrays.hashCode(bytes) + (int) (number ^ (number >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
       }
+      ComponentKey other = (ComponentKey) o;
+      return number == other.number && Arrays.areEqual(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
     }
-    return false;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Optional;
+import com.google.protobuf.Message;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.wallet.KeyChain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.HardwareWalletClient;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.events.MessageEventType;
+import org.multibit.hd.hardware.core.events.MessageEvents;
+import org.multibit.hd.hardware.core.messages.HardwareWalletMessage;
+import org.multibit.hd.hardware.core.messages.MainNetAddress;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ConfirmGetAddressBatchStateTest {
+
+  private static final KeyChain.KeyPurpose PURPOSE = KeyChain.KeyPurpose.RECEIVE_FUNDS;
+
+  private HardwareWalletClient client;
+
+  private HardwareWalletContext context;
+
+  @Before
+  public void setUp() throws Exception {
+
+    client = mock(HardwareWalletClient.class);
+    when(client.name()).thenReturn("TEST");
+    when(client.attach()).thenReturn(true);
+
+    context = new HardwareWalletContext(client);
+
+    // Any outstanding address request expires straight away
+    context.getDeadlines().setDeviceDeadlineMillis(ContextUseCase.REQUEST_ADDRESSES, 1);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+
+    MessageEvents.unsubscribe(context);
+
+  }
+
+  @Test
+  public void testRetryResumesPartialBatch() throws Exception {
+
+    final AddressBatchSpecification specification = new AddressBatchSpecification(0, PURPOSE, 10, 4);
+
+    // Track the use case as the service would
+    Runnable useCase = new Runnable() {
+      @Override
+      public void run() {
+        context.beginGetAddressBatchUseCase(specification);
+      }
+    };
+    context.trackUseCase(useCase);
+    useCase.run();
+
+    context.onMessageEvent(buildAddress());
+    context.onMessageEvent(buildAddress());
+
+    verify(client).getAddress(0, PURPOSE, 12, false);
+
+    // Device stalls on the third address
+    Thread.sleep(50);
+    context.handleTimeout();
+
+    verify(client).cancel();
+
+    // Retry once the device is ready again
+    context.runQueuedUseCase();
+
+    // Collected addresses are kept and only the outstanding index is requested again
+    assertThat(context.getAddressBatch()).hasSize(2);
+    verify(client, times(1)).getAddress(0, PURPOSE, 10, false);
+    verify(client, times(2)).getAddress(0, PURPOSE, 12, false);
+
+    context.onMessageEvent(buildAddress());
+
+    assertThat(context.getAddressBatch()).hasSize(3);
+    verify(client).getAddress(0, PURPOSE, 13, false);
+
+  }
+
+  private static MessageEvent buildAddress() {
+
+    MainNetAddress address = new MainNetAddress(new ECKey().toAddress(MainNetParams.get()).toString());
+
+    return new MessageEvent(
+      MessageEventType.ADDRESS,
+      Optional.<HardwareWalletMessage>of(address),
+      Optional.<Message>absent(),
+      "TEST"
+    );
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Optional;
+import org.bitcoinj.crypto.DeterministicHierarchy;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.keys.DerivedKeyCache;
+import org.multibit.hd.hardware.core.messages.HDNodeType;
+import org.multibit.hd.hardware.core.messages.PublicKey;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConfirmGetDeterministicHierarchyStateTest {
+
+  /**
+   * The account key as the device would derive it (with its parent chain)
+   */
+  private DeterministicKey accountKey;
+
+  @Before
+  public void setUp() throws Exception {
+
+    DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(new byte[32]);
+    accountKey = new DeterministicHierarchy(masterKey).get(DerivedKeyCache.buildAccountPath(0), false, true);
+
+  }
+
+  @Test
+  public void testHdNodeRetainsParentFingerprint() throws Exception {
+
+    PublicKey publicKey = new PublicKey(false, null, null, true, buildHdNode(3, true));
+
+    Optional<DeterministicKey> key = ConfirmGetDeterministicHierarchyState.buildDeterministicKey(publicKey, DerivedKeyCache.buildAccountPath(0));
+
+    assertThat(key.isPresent()).isTrue();
+    assertThat(key.get().getPath()).isEqualTo(accountKey.getPath());
+    assertThat(key.get().getPubKey()).isEqualTo(accountKey.getPubKey());
+
+    // Serialized form matches the device including the parent fingerprint
+    Optional<String> xpub = ConfirmGetDeterministicHierarchyState.buildExtendedPublicKey(publicKey, key.get());
+    assertThat(xpub.isPresent()).isTrue();
+    assertThat(xpub.get()).isEqualTo(accountKey.serializePubB58());
+
+  }
+
+  @Test
+  public void testHdNodeWithoutFingerprint() throws Exception {
+
+    PublicKey publicKey = new PublicKey(false, null, null, true, buildHdNode(3, false));
+
+    Optional<DeterministicKey> key = ConfirmGetDeterministicHierarchyState.buildDeterministicKey(publicKey, DerivedKeyCache.buildAccountPath(0));
+
+    assertThat(key.isPresent()).isTrue();
+    assertThat(ConfirmGetDeterministicHierarchyState.buildExtendedPublicKey(publicKey, key.get()).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testDepthMismatch() throws Exception {
+
+    PublicKey publicKey = new PublicKey(false, null, null, true, buildHdNode(2, true));
+
+    Optional<DeterministicKey> key = ConfirmGetDeterministicHierarchyState.buildDeterministicKey(publicKey, DerivedKeyCache.buildAccountPath(0));
+
+    assertThat(key.isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testXpubFallback() throws Exception {
+
+    String xpub = accountKey.serializePubB58();
+    PublicKey publicKey = new PublicKey(true, xpub, xpub.getBytes(), false, null);
+
+    Optional<DeterministicKey> key = ConfirmGetDeterministicHierarchyState.buildDeterministicKey(publicKey, DerivedKeyCache.buildAccountPath(0));
+
+    assertThat(key.isPresent()).isTrue();
+    assertThat(key.get().getPath()).isEqualTo(accountKey.getPath());
+    assertThat(key.get().getPubKey()).isEqualTo(accountKey.getPubKey());
+    assertThat(key.get().getChainCode()).isEqualTo(accountKey.getChainCode());
+
+    // The device xpub is kept as provided
+    assertThat(ConfirmGetDeterministicHierarchyState.buildExtendedPublicKey(publicKey, key.get()).get()).isEqualTo(xpub);
+
+  }
+
+  /**
+   * @param depth          The depth to report
+   * @param hasFingerprint True if the parent fingerprint should be reported
+   *
+   * @return The HD node for the account key as the device would describe it
+   */
+  private HDNodeType buildHdNode(int depth, boolean hasFingerprint) {
+
+    return new HDNodeType(
+      true,
+      accountKey.getPubKey(),
+      false,
+      null,
+      true,
+      accountKey.getChainCode(),
+      true,
+      accountKey.getChildNumber().i(),
+      true,
+      depth,
+      hasFingerprint,
+      accountKey.getParent().getFingerprint()
+    );
+  }
+
+}
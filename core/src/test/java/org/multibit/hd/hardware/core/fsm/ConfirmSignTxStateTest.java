@@ -0,0 +1,138 @@
+package org.multibit.hd.hardware.core.fsm;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.protobuf.Message;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.HardwareWalletClient;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.events.MessageEventType;
+import org.multibit.hd.hardware.core.events.MessageEvents;
+import org.multibit.hd.hardware.core.keys.DerivedKeyCache;
+import org.multibit.hd.hardware.core.messages.HardwareWalletMessage;
+import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.messages.TxRequestDetailsType;
+import org.multibit.hd.hardware.core.messages.TxRequestSerializedType;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ConfirmSignTxStateTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final ECKey KEY = new ECKey();
+
+  private HardwareWalletClient client;
+
+  private HardwareWalletContext context;
+
+  @Before
+  public void setUp() throws Exception {
+
+    client = mock(HardwareWalletClient.class);
+    when(client.name()).thenReturn("TEST");
+    when(client.attach()).thenReturn(true);
+
+    context = new HardwareWalletContext(client);
+
+    // Any device request left outstanding after the signing would expire straight away
+    context.getDeadlines().setDeviceDeadlineMillis(ContextUseCase.SIGN_TX, 1);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+
+    MessageEvents.unsubscribe(context);
+
+  }
+
+  @Test
+  public void testNoTimeoutAfterSuccess() throws Exception {
+
+    Transaction parent1 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, KEY.toAddress(PARAMS));
+    Transaction parent2 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, KEY.toAddress(PARAMS));
+    Address address = new ECKey().toAddress(PARAMS);
+
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap = Maps.newHashMap();
+    receivingAddressPathMap.put(0, DerivedKeyCache.buildAccountPath(0));
+    receivingAddressPathMap.put(1, DerivedKeyCache.buildAccountPath(0));
+
+    context.beginSignTxUseCase(
+      buildTx(parent1, parent2, address),
+      receivingAddressPathMap,
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+
+    // Device signs a separate copy
+    Transaction signedTx = buildTx(parent1, parent2, address);
+    byte[] signature0 = sign(signedTx, 0);
+    byte[] signature1 = sign(signedTx, 1);
+
+    context.onMessageEvent(buildTxRequest(TxRequestType.TX_OUTPUT, signedTx.bitcoinSerialize(), 0, signature0));
+    context.onMessageEvent(buildTxRequest(TxRequestType.TX_FINISHED, null, 1, signature1));
+
+    assertThat(context.getSignedTxAssembler().get().getSignedTx().isPresent()).isTrue();
+
+    // Allow any deadline to expire
+    Thread.sleep(50);
+    context.handleTimeout();
+
+    verify(client, never()).cancel();
+    assertThat(context.getState()).isInstanceOf(ConfirmSignTxState.class);
+
+  }
+
+  private static Transaction buildTx(Transaction parent1, Transaction parent2, Address address) {
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent1.getOutput(0));
+    tx.addInput(parent2.getOutput(0));
+    tx.addOutput(Coin.CENT, address);
+
+    return tx;
+  }
+
+  /**
+   * @return The DER signature (no SIGHASH byte) as provided by the device
+   */
+  private static byte[] sign(Transaction tx, int index) {
+
+    TransactionInput input = tx.getInput(index);
+    byte[] connectedScript = input.getOutpoint().getConnectedOutput().getScriptBytes();
+    TransactionSignature signature = tx.calculateSignature(index, KEY, connectedScript, Transaction.SigHash.ALL, false);
+    input.setScriptSig(ScriptBuilder.createInputScript(signature, KEY));
+
+    return signature.encodeToDER();
+  }
+
+  private static MessageEvent buildTxRequest(TxRequestType type, byte[] serializedTx, int signatureIndex, byte[] signature) {
+
+    TxRequest txRequest = new TxRequest(
+      type,
+      new TxRequestDetailsType(false, 0, false, null),
+      new TxRequestSerializedType(serializedTx != null, serializedTx, true, signatureIndex, true, signature)
+    );
+
+    return new MessageEvent(
+      MessageEventType.TX_REQUEST,
+      Optional.<HardwareWalletMessage>of(txRequest),
+      Optional.<Message>absent(),
+      "TEST"
+    );
+  }
+
+}
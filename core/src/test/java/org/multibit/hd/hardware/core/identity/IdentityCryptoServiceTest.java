@@ -0,0 +1,137 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+import org.multibit.hd.hardware.core.utils.IdentityUtils;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.ASN1Sequence;
+import org.spongycastle.pqc.math.linearalgebra.ByteUtils;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class IdentityCryptoServiceTest {
+
+  private static final URI IDENTITY_URI = URI.create("ssh://user@example.org");
+
+  private IdentityCryptoService testObject;
+
+  private KeyPair keyPair;
+
+  private byte[] compressedPublicKey;
+
+  @Before
+  public void setUp() throws Exception {
+
+    testObject = IdentityCryptoService.getInstance();
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", testObject.getProvider());
+    generator.initialize(new ECGenParameterSpec("P-256"));
+    keyPair = generator.generateKeyPair();
+
+    compressedPublicKey = ((org.spongycastle.jce.interfaces.ECPublicKey) keyPair.getPublic()).getQ().getEncoded(true);
+
+  }
+
+  @Test
+  public void testGetPublicKey() throws Exception {
+
+    java.security.interfaces.ECPublicKey publicKey = testObject.getPublicKey(compressedPublicKey);
+
+    assertThat(publicKey.getW()).isEqualTo(((java.security.interfaces.ECPublicKey) keyPair.getPublic()).getW());
+    assertThat(IdentityUtils.getPublicKeyFromBytes(compressedPublicKey).getW()).isEqualTo(publicKey.getW());
+
+  }
+
+  @Test
+  public void testVerifyDerSignature() throws Exception {
+
+    byte[] message = "Hello".getBytes("UTF-8");
+    byte[] signature = sign(message);
+
+    assertThat(testObject.verify(compressedPublicKey, message, signature)).isTrue();
+    assertThat(IdentityUtils.isValidSignature(compressedPublicKey, message, signature)).isTrue();
+    assertThat(testObject.verify(compressedPublicKey, "Hello!".getBytes("UTF-8"), signature)).isFalse();
+
+  }
+
+  @Test
+  public void testVerifyAll() throws Exception {
+
+    List<Identity> identities = Lists.newArrayList();
+    List<SignedIdentity> signedIdentities = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Identity identity = new Identity(IDENTITY_URI, 0, new byte[]{(byte) i}, "2015-01-01 00:00:0" + i, null);
+      identities.add(identity);
+      signedIdentities.add(signIdentity(identity));
+    }
+
+    // Sign the last one over a different challenge
+    Identity otherIdentity = new Identity(IDENTITY_URI, 0, new byte[]{(byte) 99}, "2015-01-01 00:00:00", null);
+    signedIdentities.set(9, signIdentity(otherIdentity));
+
+    List<Boolean> results = testObject.verifyAll(identities, signedIdentities);
+
+    assertThat(results).hasSize(10);
+    assertThat(results.subList(0, 9)).excludes(false);
+    assertThat(results.get(9)).isFalse();
+
+  }
+
+  @Test
+  public void testMissingSignature() throws Exception {
+
+    Identity identity = new Identity(IDENTITY_URI, 0, new byte[]{1}, "visual", null);
+    SignedIdentity signedIdentity = new SignedIdentity(false, null, true, compressedPublicKey, false, null);
+
+    assertThat(testObject.verify(identity, signedIdentity)).isFalse();
+
+  }
+
+  /**
+   * @return The ASN.1 encoded signature
+   */
+  private byte[] sign(byte[] message) throws Exception {
+
+    Signature signer = Signature.getInstance("SHA256withECDSA", testObject.getProvider());
+    signer.initSign(keyPair.getPrivate());
+    signer.update(message);
+
+    return signer.sign();
+  }
+
+  /**
+   * @return A result in the device format (header byte followed by R and S)
+   */
+  private SignedIdentity signIdentity(Identity identity) throws Exception {
+
+    ASN1Sequence sequence = ASN1Sequence.getInstance(sign(IdentityCryptoService.buildChallengeMessage(identity)));
+    BigInteger r = ASN1Integer.getInstance(sequence.getObjectAt(0)).getValue();
+    BigInteger s = ASN1Integer.getInstance(sequence.getObjectAt(1)).getValue();
+
+    byte[] signature = ByteUtils.concatenate(new byte[]{0}, ByteUtils.concatenate(toFixed(r), toFixed(s)));
+
+    return new SignedIdentity(false, null, true, compressedPublicKey, true, signature);
+  }
+
+  private static byte[] toFixed(BigInteger value) {
+
+    byte[] bytes = value.toByteArray();
+    byte[] fixed = new byte[32];
+    int length = Math.min(bytes.length, 32);
+    System.arraycopy(bytes, bytes.length - length, fixed, 32 - length, length);
+
+    return fixed;
+  }
+
+}
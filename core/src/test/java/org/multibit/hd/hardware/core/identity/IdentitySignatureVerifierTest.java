@@ -0,0 +1,118 @@
+package org.multibit.hd.hardware.core.identity;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class IdentitySignatureVerifierTest {
+
+  private IdentitySignatureVerifier testObject;
+
+  private KeyPair keyPair;
+
+  private byte[] compressedPublicKey;
+
+  @Before
+  public void setUp() throws Exception {
+
+    testObject = new IdentitySignatureVerifier(new ForkJoinPool(4));
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", IdentityCryptoService.getInstance().getProvider());
+    generator.initialize(new ECGenParameterSpec("P-256"));
+    keyPair = generator.generateKeyPair();
+
+    compressedPublicKey = ((org.spongycastle.jce.interfaces.ECPublicKey) keyPair.getPublic()).getQ().getEncoded(true);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+
+    testObject.shutdown();
+
+  }
+
+  @Test
+  public void testVerifyBatch() throws Exception {
+
+    // Large enough to be split across several tasks
+    List<IdentitySignature> signatures = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      byte[] message = ("Challenge " + i).getBytes("UTF-8");
+      signatures.add(new IdentitySignature(compressedPublicKey, message, sign(message)));
+    }
+
+    // Signature over a different message
+    byte[] otherMessage = "Other".getBytes("UTF-8");
+    signatures.set(17, new IdentitySignature(compressedPublicKey, signatures.get(17).getMessage(), sign(otherMessage)));
+
+    // Unparseable signature and public key
+    signatures.set(100, new IdentitySignature(compressedPublicKey, otherMessage, new byte[]{1, 2, 3}));
+    signatures.set(199, new IdentitySignature(new byte[]{4, 5, 6}, otherMessage, sign(otherMessage)));
+
+    BitSet results = testObject.verify(signatures);
+
+    assertThat(results.cardinality()).isEqualTo(197);
+    assertThat(results.get(17)).isFalse();
+    assertThat(results.get(100)).isFalse();
+    assertThat(results.get(199)).isFalse();
+    assertThat(results.get(0)).isTrue();
+    assertThat(results.get(198)).isTrue();
+
+  }
+
+  @Test
+  public void testVerifyEmptyBatch() throws Exception {
+
+    assertThat(testObject.verify(Lists.<IdentitySignature>newArrayList()).isEmpty()).isTrue();
+
+  }
+
+  @Test
+  public void testFromSignedIdentity() throws Exception {
+
+    Identity identity = new Identity(URI.create("ssh://user@example.org"), 0, new byte[]{1}, "visual", null);
+    byte[] message = IdentityCryptoService.buildChallengeMessage(identity);
+
+    // Device format is a header byte followed by R and S
+    byte[] rawSignature = new byte[65];
+    rawSignature[32] = 1;
+    rawSignature[64] = 1;
+    SignedIdentity signedIdentity = new SignedIdentity(false, null, true, compressedPublicKey, true, rawSignature);
+
+    IdentitySignature signature = IdentitySignature.fromSignedIdentity(identity, signedIdentity);
+
+    assertThat(signature.getPublicKey()).isEqualTo(compressedPublicKey);
+    assertThat(signature.getMessage()).isEqualTo(message);
+    assertThat(signature.getSignature()).isEqualTo(IdentityCryptoService.toDerSignature(rawSignature));
+    assertThat(testObject.verify(Lists.newArrayList(signature)).get(0)).isFalse();
+
+  }
+
+  /**
+   * @return The ASN.1 encoded signature
+   */
+  private byte[] sign(byte[] message) throws Exception {
+
+    Signature signer = Signature.getInstance("SHA256withECDSA", IdentityCryptoService.getInstance().getProvider());
+    signer.initSign(keyPair.getPrivate());
+    signer.update(message);
+
+    return signer.sign();
+  }
+
+}
@@ -0,0 +1,115 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicHierarchy;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.wallet.KeyChainGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AddressDiscoveryTest {
+
+  private DeterministicHierarchy hierarchy;
+
+  private final Set<Address> usedAddresses = Sets.newHashSet();
+
+  private ForkJoinPool pool;
+
+  private AddressDiscovery testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    hierarchy = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivateKey(new byte[32]));
+    pool = new ForkJoinPool(4);
+
+    AccountKeySource accountKeySource = new AccountKeySource() {
+      @Override
+      public ListenableFuture<DeterministicKey> getAccountKey(int account) {
+        // Public only as the device would provide it
+        DeterministicKey accountKey = hierarchy.get(DerivedKeyCache.buildAccountPath(account), false, true);
+        return Futures.immediateFuture(new DeterministicKey(
+          accountKey.getPath(),
+          accountKey.getChainCode(),
+          accountKey.getPubKeyPoint(),
+          null,
+          null
+        ));
+      }
+    };
+
+    AddressUsageOracle usageOracle = new AddressUsageOracle() {
+      @Override
+      public Set<Address> findUsed(List<Address> candidates) {
+        return Sets.intersection(Sets.newHashSet(candidates), usedAddresses);
+      }
+    };
+
+    testObject = new AddressDiscovery(accountKeySource, usageOracle, MainNetParams.get(), pool);
+    testObject.setGapLimit(5);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdown();
+  }
+
+  @Test
+  public void testGapLimit() throws Exception {
+
+    // Account 0 uses external 0, 4 and 9 (each within the gap of the last) and change 2
+    markUsed(0, 0, 0);
+    markUsed(0, 0, 4);
+    markUsed(0, 0, 9);
+    markUsed(0, 1, 2);
+
+    // Beyond the gap so never found
+    markUsed(0, 0, 15);
+
+    // Account 1 uses a single change address
+    markUsed(1, 1, 0);
+
+    List<DiscoveredAccount> accounts = testObject.discover();
+
+    // Accounts 0 and 1 are used, account 2 is the first unused
+    assertThat(accounts).hasSize(3);
+    assertThat(accounts.get(0).getLastUsedExternal()).isEqualTo(9);
+    assertThat(accounts.get(0).getLastUsedChange()).isEqualTo(2);
+    assertThat(accounts.get(1).getLastUsedExternal()).isEqualTo(-1);
+    assertThat(accounts.get(1).getLastUsedChange()).isEqualTo(0);
+    assertThat(accounts.get(2).isUsed()).isFalse();
+
+    KeyChainGroup keyChainGroup = testObject.buildKeyChainGroup(accounts);
+
+    // Account 0 is active and the next receiving address follows the last used one
+    Address expected = address(0, 0, 10);
+    assertThat(keyChainGroup.freshAddress(org.bitcoinj.wallet.KeyChain.KeyPurpose.RECEIVE_FUNDS)).isEqualTo(expected);
+
+  }
+
+  private void markUsed(int account, int chain, int index) {
+    usedAddresses.add(address(account, chain, index));
+  }
+
+  private Address address(int account, int chain, int index) {
+
+    DeterministicKey accountKey = hierarchy.get(DerivedKeyCache.buildAccountPath(account), false, true);
+    DeterministicKey chainKey = HDKeyDerivation.deriveChildKey(accountKey, new ChildNumber(chain, false));
+    return HDKeyDerivation.deriveChildKey(chainKey, new ChildNumber(index, false)).toAddress(MainNetParams.get());
+  }
+
+}
@@ -0,0 +1,122 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicHierarchy;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.wallet.KeyChain;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DerivedKeyCacheTest {
+
+  private static final String DEVICE_ID = "device-1";
+
+  private DeterministicHierarchy hierarchy;
+
+  private DerivedKeyCache testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    // Private master key standing in for the device
+    DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(new byte[32]);
+    hierarchy = new DeterministicHierarchy(masterKey);
+
+    // Public only account key as the device would provide it
+    DeterministicKey privateAccountKey = hierarchy.get(DerivedKeyCache.buildAccountPath(0), false, true);
+    DeterministicKey accountKey = new DeterministicKey(
+      privateAccountKey.getPath(),
+      privateAccountKey.getChainCode(),
+      privateAccountKey.getPubKeyPoint(),
+      null,
+      null
+    );
+
+    testObject = new DerivedKeyCache(100);
+    testObject.putAccountKey(DEVICE_ID, accountKey);
+
+  }
+
+  @Test
+  public void testDeriveMatchesDevicePath() throws Exception {
+
+    Optional<DeterministicKey> receiving = testObject.deriveKey(DEVICE_ID, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 5);
+    Optional<DeterministicKey> change = testObject.deriveKey(DEVICE_ID, 0, KeyChain.KeyPurpose.CHANGE, 5);
+
+    assertThat(receiving.isPresent()).isTrue();
+    assertThat(change.isPresent()).isTrue();
+
+    DeterministicKey expectedReceiving = hierarchy.get(path(0, 5), false, true);
+    DeterministicKey expectedChange = hierarchy.get(path(1, 5), false, true);
+
+    assertThat(receiving.get().getPath()).isEqualTo(expectedReceiving.getPath());
+    assertThat(receiving.get().getPubKey()).isEqualTo(expectedReceiving.getPubKey());
+    assertThat(change.get().getPubKey()).isEqualTo(expectedChange.getPubKey());
+
+    // Account key is public only so no private key can be present
+    assertThat(receiving.get().hasPrivKey()).isFalse();
+
+    // Two chain nodes and two leaves
+    assertThat(testObject.size()).isEqualTo(4);
+
+    // Repeating the request uses the cache
+    assertThat(testObject.deriveKey(DEVICE_ID, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 5).get()).isSameAs(receiving.get());
+
+  }
+
+  @Test
+  public void testUnknownAccountOrDevice() throws Exception {
+
+    assertThat(testObject.deriveKey(DEVICE_ID, 1, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0).isPresent()).isFalse();
+    assertThat(testObject.deriveKey("device-2", 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+
+    testObject.deriveKey(DEVICE_ID, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0);
+    testObject.invalidate(DEVICE_ID);
+
+    assertThat(testObject.size()).isEqualTo(0);
+    assertThat(testObject.getAccountKey(DEVICE_ID, 0).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testPassphraseWallets() throws Exception {
+
+    String walletId = DerivedKeyCache.buildWalletId(DEVICE_ID, Optional.of("passphrase-1"));
+    assertThat(walletId).isNotEqualTo(DEVICE_ID);
+    assertThat(DerivedKeyCache.buildWalletId(DEVICE_ID, Optional.<String>absent())).isEqualTo(DEVICE_ID);
+
+    // Each passphrase presents a different wallet
+    assertThat(testObject.deriveKey(walletId, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0).isPresent()).isFalse();
+
+    testObject.putAccountKey(walletId, testObject.getAccountKey(DEVICE_ID, 0).get());
+    testObject.deriveKey(walletId, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0);
+    testObject.deriveKey(DEVICE_ID, 0, KeyChain.KeyPurpose.RECEIVE_FUNDS, 0);
+
+    // Invalidating the device removes every wallet it presented
+    testObject.invalidate(DEVICE_ID);
+
+    assertThat(testObject.size()).isEqualTo(0);
+    assertThat(testObject.getAccountKey(walletId, 0).isPresent()).isFalse();
+    assertThat(testObject.getAccountKey(DEVICE_ID, 0).isPresent()).isFalse();
+
+  }
+
+  private static ImmutableList<ChildNumber> path(int chain, int index) {
+    return ImmutableList.<ChildNumber>builder()
+      .addAll(DerivedKeyCache.buildAccountPath(0))
+      .add(new ChildNumber(chain, false))
+      .add(new ChildNumber(index, false))
+      .build();
+  }
+
+}
@@ -0,0 +1,209 @@
+package org.multibit.hd.hardware.core.keys;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.DeterministicHierarchy;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.messages.Features;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PersistentKeyStoreTest {
+
+  private static final String SCOPE = "device-1/0123456789abcdef/";
+
+  private File file;
+
+  private DeterministicKey accountKey;
+
+  @Before
+  public void setUp() throws Exception {
+
+    file = File.createTempFile("keys", ".store");
+    file.delete();
+
+    DeterministicHierarchy hierarchy = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivateKey(new byte[32]));
+    accountKey = hierarchy.get(DerivedKeyCache.buildAccountPath(0), false, true);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void testAccountKeySurvivesReopen() throws Exception {
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putAccountKey(SCOPE, accountKey);
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+
+      Optional<DeterministicKey> stored = testObject.getAccountKey(SCOPE, 0);
+
+      assertThat(stored.isPresent()).isTrue();
+      assertThat(stored.get().getPath()).isEqualTo(accountKey.getPath());
+      assertThat(stored.get().getPubKey()).isEqualTo(accountKey.getPubKey());
+      assertThat(stored.get().getChainCode()).isEqualTo(accountKey.getChainCode());
+      assertThat(stored.get().hasPrivKey()).isFalse();
+
+      assertThat(testObject.getAccountKey(SCOPE, 1).isPresent()).isFalse();
+      assertThat(testObject.getAccountKey("device-2/0123456789abcdef/", 0).isPresent()).isFalse();
+    }
+
+  }
+
+  @Test
+  public void testAddressRanges() throws Exception {
+
+    List<Address> addresses = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      addresses.add(new ECKey().toAddress(MainNetParams.get()));
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putAddresses(SCOPE, 0, 0, 20, addresses);
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+
+      // Sub-range within the stored range
+      Optional<List<Address>> stored = testObject.getAddresses(SCOPE, 0, 0, 22, 3);
+      assertThat(stored.isPresent()).isTrue();
+      assertThat(stored.get()).isEqualTo(addresses.subList(2, 5));
+
+      // Partially covered or different chain
+      assertThat(testObject.getAddresses(SCOPE, 0, 0, 25, 10).isPresent()).isFalse();
+      assertThat(testObject.getAddresses(SCOPE, 0, 1, 20, 1).isPresent()).isFalse();
+    }
+
+  }
+
+  @Test
+  public void testInvalidateSurvivesReopen() throws Exception {
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putAccountKey(SCOPE, accountKey);
+      testObject.invalidate("device-1/");
+      assertThat(testObject.getAccountKey(SCOPE, 0).isPresent()).isFalse();
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      assertThat(testObject.getAccountKey(SCOPE, 0).isPresent()).isFalse();
+    }
+
+  }
+
+  @Test
+  public void testIdentityPublicKey() throws Exception {
+
+    String identityKey = "nist256p1|0|ssh://user@example.org";
+    byte[] publicKey = new ECKey().getPubKey();
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putIdentityPublicKey(SCOPE, identityKey, publicKey);
+      testObject.putAccountKey("device-2/0123456789abcdef/", accountKey);
+      testObject.invalidate("device-2/");
+      testObject.compact();
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+
+      assertThat(testObject.getIdentityPublicKey(SCOPE, identityKey).get()).isEqualTo(publicKey);
+      assertThat(testObject.getIdentityPublicKey(SCOPE, "nist256p1|1|ssh://user@example.org").isPresent()).isFalse();
+
+      // Wiping the device removes its identities
+      testObject.invalidate("device-1/");
+      assertThat(testObject.getIdentityPublicKey(SCOPE, identityKey).isPresent()).isFalse();
+    }
+
+  }
+
+  @Test
+  public void testTornRecordIsDiscarded() throws Exception {
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putAccountKey(SCOPE, accountKey);
+    }
+    long goodLength = file.length();
+
+    // Simulate a crash part way through an append
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(goodLength);
+      raf.writeInt(200);
+      raf.write(new byte[10]);
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      assertThat(testObject.getAccountKey(SCOPE, 0).isPresent()).isTrue();
+    }
+    assertThat(file.length()).isEqualTo(goodLength);
+
+  }
+
+  @Test
+  public void testScopeFollowsSeed() throws Exception {
+
+    Features features = new Features();
+    features.setDeviceId("device-1");
+    features.setInitialized(true);
+
+    DeterministicHierarchy otherHierarchy = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivateKey(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+    DeterministicKey otherAccountKey = otherHierarchy.get(DerivedKeyCache.buildAccountPath(0), false, true);
+
+    Optional<String> scope = PersistentKeyStore.buildScope(features, Optional.<String>absent(), Optional.of(PersistentKeyStore.buildSeedFingerprint(accountKey)));
+    Optional<String> otherScope = PersistentKeyStore.buildScope(features, Optional.<String>absent(), Optional.of(PersistentKeyStore.buildSeedFingerprint(otherAccountKey)));
+
+    assertThat(scope.isPresent()).isTrue();
+    assertThat(scope.get()).startsWith("device-1/");
+    assertThat(scope.get()).isNotEqualTo(otherScope.get());
+
+    // Stable for the same seed
+    assertThat(PersistentKeyStore.buildScope(features, Optional.<String>absent(), Optional.of(PersistentKeyStore.buildSeedFingerprint(accountKey)))).isEqualTo(scope);
+
+    // Not persisted until the seed is known
+    assertThat(PersistentKeyStore.buildScope(features, Optional.<String>absent(), Optional.<String>absent()).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      testObject.putAccountKey(SCOPE, accountKey);
+      testObject.putAccountKey("device-2/0123456789abcdef/", accountKey);
+      testObject.invalidate("device-2/");
+      long before = file.length();
+
+      testObject.compact();
+
+      assertThat(file.length()).isLessThan(before);
+      assertThat(testObject.getAccountKey(SCOPE, 0).isPresent()).isTrue();
+      assertThat(new File(file.getAbsolutePath() + ".compact").exists()).isFalse();
+
+      // Writes go to the compacted file
+      testObject.putAccountKey("device-3/0123456789abcdef/", accountKey);
+    }
+
+    try (PersistentKeyStore testObject = new PersistentKeyStore(file)) {
+      assertThat(testObject.getAccountKey(SCOPE, 0).isPresent()).isTrue();
+      assertThat(testObject.getAccountKey("device-3/0123456789abcdef/", 0).isPresent()).isTrue();
+      assertThat(testObject.getAccountKey("device-2/0123456789abcdef/", 0).isPresent()).isFalse();
+    }
+
+  }
+
+}
@@ -0,0 +1,36 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HardwareWalletMetricsTest {
+
+  @Test
+  public void testRegisterSameClientNameTwice() throws Exception {
+
+    HardwareWalletMetrics first = new HardwareWalletMetrics();
+    HardwareWalletMetrics second = new HardwareWalletMetrics();
+
+    ObjectName query = new ObjectName("org.multibit.hd.hardware:type=HardwareWalletMetrics,name=\"TREZOR\",*");
+
+    try {
+      first.registerMBean("TREZOR");
+      second.registerMBean("TREZOR");
+
+      // Two devices of the same type must both be visible
+      assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(query, null)).hasSize(2);
+
+    } finally {
+      first.unregisterMBean();
+      second.unregisterMBean();
+    }
+
+    assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(query, null)).isEmpty();
+
+  }
+
+}
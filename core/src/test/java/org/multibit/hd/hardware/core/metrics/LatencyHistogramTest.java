@@ -0,0 +1,63 @@
+package org.multibit.hd.hardware.core.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testEmpty() throws Exception {
+
+    LatencyHistogram testObject = new LatencyHistogram();
+
+    assertThat(testObject.getCount()).isEqualTo(0);
+    assertThat(testObject.getMeanMicros()).isEqualTo(0.0);
+    assertThat(testObject.getPercentileMicros(99)).isEqualTo(0);
+
+  }
+
+  @Test
+  public void testBucketsAreContiguous() throws Exception {
+
+    // Every value up to 2^20 maps to a bucket whose upper bound contains it
+    int previousIndex = 0;
+    for (long value = 0; value < (1 << 20); value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertThat(index - previousIndex).isLessThanOrEqualTo(1);
+      assertThat(LatencyHistogram.bucketUpperBound(index)).isGreaterThanOrEqualTo(value);
+      previousIndex = index;
+    }
+
+    // Extremes must not overflow
+    assertThat(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE))).isEqualTo(Long.MAX_VALUE);
+
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+
+    LatencyHistogram testObject = new LatencyHistogram();
+
+    // 1ms to 100ms in 1ms steps
+    for (int i = 1; i <= 100; i++) {
+      testObject.record(i, TimeUnit.MILLISECONDS);
+    }
+
+    assertThat(testObject.getCount()).isEqualTo(100);
+    assertThat(testObject.getMaxMicros()).isEqualTo(100_000);
+    assertThat(testObject.getMeanMicros()).isEqualTo(50_500.0);
+
+    // Allow for the bucket resolution (6.25%)
+    assertThat(testObject.getPercentileMicros(50)).isGreaterThanOrEqualTo(50_000).isLessThanOrEqualTo(53_125);
+    assertThat(testObject.getPercentileMicros(99)).isGreaterThanOrEqualTo(99_000).isLessThanOrEqualTo(100_000);
+    assertThat(testObject.getPercentileMicros(100)).isEqualTo(100_000);
+
+    testObject.reset();
+    assertThat(testObject.getCount()).isEqualTo(0);
+
+  }
+
+}
@@ -0,0 +1,130 @@
+package org.multibit.hd.hardware.core.relay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HidPacketFrameDecoderTest {
+
+  private HidPacketFrameDecoder testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    testObject = new HidPacketFrameDecoder();
+
+  }
+
+  @Test
+  public void testToHidPackets() throws Exception {
+
+    // 8 byte header and 118 byte payload fill exactly two packets
+    ByteBuffer packets = new RelayFrame(17, new byte[118]).toHidPackets();
+
+    assertThat(packets.remaining()).isEqualTo(128);
+    assertThat(packets.get(0)).isEqualTo((byte) '?');
+    assertThat(packets.get(1)).isEqualTo((byte) '#');
+    assertThat(packets.get(2)).isEqualTo((byte) '#');
+    assertThat(packets.getShort(3)).isEqualTo((short) 17);
+    assertThat(packets.getInt(5)).isEqualTo(118);
+    assertThat(packets.get(64)).isEqualTo((byte) '?');
+
+    // Empty messages still need a header packet
+    assertThat(new RelayFrame(1, new byte[0]).toHidPackets().remaining()).isEqualTo(64);
+
+  }
+
+  @Test
+  public void testDecodeSplitReads() throws Exception {
+
+    byte[] payload = buildPayload(200);
+    ByteBuffer packets = new RelayFrame(0x8010, payload).toHidPackets();
+
+    // Deliver a byte at a time as a worst case socket
+    List<RelayFrame> frames = null;
+    while (packets.hasRemaining()) {
+      frames = testObject.decode(ByteBuffer.wrap(new byte[]{packets.get()}));
+      if (packets.hasRemaining()) {
+        assertThat(frames).isEmpty();
+        assertThat(testObject.isPartial()).isTrue();
+      }
+    }
+
+    assertThat(frames).hasSize(1);
+    assertThat(frames.get(0).getType()).isEqualTo(0x8010);
+    assertThat(frames.get(0).getPayload()).isEqualTo(payload);
+    assertThat(testObject.isPartial()).isFalse();
+
+  }
+
+  @Test
+  public void testDecodeSeveralFramesInOneRead() throws Exception {
+
+    ByteBuffer first = new RelayFrame(1, buildPayload(10)).toHidPackets();
+    ByteBuffer second = new RelayFrame(2, buildPayload(70)).toHidPackets();
+    ByteBuffer third = new RelayFrame(3, new byte[0]).toHidPackets();
+
+    ByteBuffer buffer = ByteBuffer.allocate(first.remaining() + second.remaining() + third.remaining());
+    buffer.put(first).put(second).put(third).flip();
+
+    List<RelayFrame> frames = testObject.decode(buffer);
+
+    assertThat(frames).hasSize(3);
+    assertThat(frames.get(0).getPayload()).isEqualTo(buildPayload(10));
+    assertThat(frames.get(1).getPayload()).isEqualTo(buildPayload(70));
+    assertThat(frames.get(2).getType()).isEqualTo(3);
+    assertThat(frames.get(2).getPayload()).isEmpty();
+
+  }
+
+  @Test
+  public void testIgnoreStrayContinuationPacket() throws Exception {
+
+    byte[] stray = new byte[64];
+    stray[0] = '?';
+
+    ByteBuffer frame = new RelayFrame(5, buildPayload(3)).toHidPackets();
+    ByteBuffer buffer = ByteBuffer.allocate(64 + frame.remaining());
+    buffer.put(stray).put(frame).flip();
+
+    List<RelayFrame> frames = testObject.decode(buffer);
+
+    assertThat(frames).hasSize(1);
+    assertThat(frames.get(0).getType()).isEqualTo(5);
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingMarker() throws Exception {
+
+    testObject.decode(ByteBuffer.wrap(new byte[64]));
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testOversizedMessage() throws Exception {
+
+    ByteBuffer packet = ByteBuffer.allocate(64);
+    packet.put((byte) '?').put((byte) '#').put((byte) '#').putShort((short) 1).putInt(HidPacketFrameDecoder.MAXIMUM_MESSAGE_SIZE + 1);
+    packet.rewind();
+
+    testObject.decode(packet);
+
+  }
+
+  private static byte[] buildPayload(int length) {
+
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = (byte) i;
+    }
+
+    return payload;
+  }
+
+}
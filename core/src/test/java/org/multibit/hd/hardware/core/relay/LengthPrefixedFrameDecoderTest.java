@@ -0,0 +1,112 @@
+package org.multibit.hd.hardware.core.relay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LengthPrefixedFrameDecoderTest {
+
+  private LengthPrefixedFrameDecoder testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    testObject = new LengthPrefixedFrameDecoder();
+
+  }
+
+  @Test
+  public void testToLengthPrefixed() throws Exception {
+
+    ByteBuffer buffer = new RelayFrame(17, new byte[4000], 3, 42).toLengthPrefixed();
+
+    // A single frame with 12 bytes of overhead rather than 64 HID packets
+    assertThat(buffer.remaining()).isEqualTo(4012);
+    assertThat(buffer.getInt(0)).isEqualTo(4008);
+    assertThat(buffer.getShort(4)).isEqualTo((short) 3);
+    assertThat(buffer.getInt(6)).isEqualTo(42);
+    assertThat(buffer.getShort(10)).isEqualTo((short) 17);
+
+    assertThat(new RelayFrame(17, new byte[4000]).toHidPackets().remaining()).isEqualTo(64 * 64);
+
+  }
+
+  @Test
+  public void testDecodeSplitReads() throws Exception {
+
+    byte[] payload = buildPayload(200);
+    ByteBuffer buffer = new RelayFrame(0x8010, payload, 0xFFFF, -1).toLengthPrefixed();
+
+    // Deliver a byte at a time as a worst case socket
+    List<RelayFrame> frames = null;
+    while (buffer.hasRemaining()) {
+      frames = testObject.decode(ByteBuffer.wrap(new byte[]{buffer.get()}));
+      if (buffer.hasRemaining()) {
+        assertThat(frames).isEmpty();
+        assertThat(testObject.isPartial()).isTrue();
+      }
+    }
+
+    assertThat(frames).hasSize(1);
+    assertThat(frames.get(0).getType()).isEqualTo(0x8010);
+    assertThat(frames.get(0).getDeviceId()).isEqualTo(0xFFFF);
+    assertThat(frames.get(0).getSequence()).isEqualTo(-1);
+    assertThat(frames.get(0).getPayload()).isEqualTo(payload);
+    assertThat(testObject.isPartial()).isFalse();
+
+  }
+
+  @Test
+  public void testDecodeSeveralFramesInOneRead() throws Exception {
+
+    ByteBuffer first = new RelayFrame(1, buildPayload(10), 1, 1).toLengthPrefixed();
+    ByteBuffer second = new RelayFrame(2, buildPayload(70), 1, 2).toLengthPrefixed();
+    ByteBuffer third = new RelayFrame(3, new byte[0], 2, 3).toLengthPrefixed();
+
+    ByteBuffer buffer = ByteBuffer.allocate(first.remaining() + second.remaining() + third.remaining());
+    buffer.put(first).put(second).put(third).flip();
+
+    List<RelayFrame> frames = testObject.decode(buffer);
+
+    assertThat(frames).hasSize(3);
+    assertThat(frames.get(0).getPayload()).isEqualTo(buildPayload(10));
+    assertThat(frames.get(1).getPayload()).isEqualTo(buildPayload(70));
+    assertThat(frames.get(1).getSequence()).isEqualTo(2);
+    assertThat(frames.get(2).getType()).isEqualTo(3);
+    assertThat(frames.get(2).getDeviceId()).isEqualTo(2);
+    assertThat(frames.get(2).getPayload()).isEmpty();
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testShortFrame() throws Exception {
+
+    testObject.decode((ByteBuffer) ByteBuffer.allocate(4).putInt(RelayFrame.LENGTH_PREFIXED_HEADER_LENGTH - 1).flip());
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testOversizedFrame() throws Exception {
+
+    int length = RelayFrame.LENGTH_PREFIXED_HEADER_LENGTH + HidPacketFrameDecoder.MAXIMUM_MESSAGE_SIZE + 1;
+
+    testObject.decode((ByteBuffer) ByteBuffer.allocate(4).putInt(length).flip());
+
+  }
+
+  private static byte[] buildPayload(int length) {
+
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = (byte) i;
+    }
+
+    return payload;
+  }
+
+}
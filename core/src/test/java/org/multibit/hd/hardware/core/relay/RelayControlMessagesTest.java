@@ -0,0 +1,94 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RelayControlMessagesTest {
+
+  @Test
+  public void testControlTypes() throws Exception {
+
+    assertThat(RelayControlMessages.isControlType(RelayControlMessages.RELAY_LIST_DEVICES)).isTrue();
+    assertThat(RelayControlMessages.isControlType(RelayControlMessages.RELAY_FAILURE)).isTrue();
+
+    // Wire protocol messages (e.g. Initialize, Features)
+    assertThat(RelayControlMessages.isControlType(0)).isFalse();
+    assertThat(RelayControlMessages.isControlType(17)).isFalse();
+
+  }
+
+  @Test
+  public void testDevices() throws Exception {
+
+    List<RelayDeviceStatus> devices = Lists.newArrayList(
+      new RelayDeviceStatus("T1", "TREZOR", true, 0),
+      new RelayDeviceStatus("K1", "KEEP_KEY", false, 3)
+    );
+
+    RelayFrame frame = RelayControlMessages.buildDevices(devices);
+    List<RelayDeviceStatus> parsed = RelayControlMessages.parseDevices(frame.getPayload());
+
+    assertThat(frame.getType()).isEqualTo(RelayControlMessages.RELAY_DEVICES);
+    assertThat(parsed).hasSize(2);
+    assertThat(parsed.get(0).getSerialNumber()).isEqualTo("T1");
+    assertThat(parsed.get(0).isAvailable()).isTrue();
+    assertThat(parsed.get(1).getName()).isEqualTo("KEEP_KEY");
+    assertThat(parsed.get(1).getWaitingClients()).isEqualTo(3);
+
+  }
+
+  @Test
+  public void testAcquire() throws Exception {
+
+    assertThat(RelayControlMessages.parseAcquire(RelayControlMessages.buildAcquire(Optional.of("T1")).getPayload())).isEqualTo(Optional.of("T1"));
+    assertThat(RelayControlMessages.parseAcquire(RelayControlMessages.buildAcquire(Optional.<String>absent()).getPayload()).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testQueued() throws Exception {
+
+    RelayFrame frame = RelayControlMessages.buildQueued("T1", 2);
+
+    assertThat(RelayControlMessages.parseString(frame.getPayload())).isEqualTo("T1");
+    assertThat(RelayControlMessages.parseQueuePosition(frame.getPayload())).isEqualTo(2);
+
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+
+    RelayFrame deviceFailure = RelayControlMessages.buildFailure("Device T1 detached", true);
+    RelayFrame requestFailure = RelayControlMessages.buildFailure("A session has already been requested", false);
+
+    assertThat(RelayControlMessages.parseString(deviceFailure.getPayload())).isEqualTo("Device T1 detached");
+    assertThat(RelayControlMessages.isDeviceFailure(deviceFailure.getPayload())).isTrue();
+    assertThat(RelayControlMessages.isDeviceFailure(requestFailure.getPayload())).isFalse();
+
+  }
+
+  @Test
+  public void testHelloIsNotHidPacket() throws Exception {
+
+    byte[] hello = RelayProtocol.hello();
+
+    // Older servers discard whole packets without the '?##' header
+    assertThat(hello.length).isEqualTo(RelayFrame.PACKET_LENGTH);
+    assertThat(RelayProtocol.isHidPacket(hello[0])).isFalse();
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedDevices() throws Exception {
+
+    RelayControlMessages.parseDevices(new byte[]{0, 0, 0, 1});
+
+  }
+
+}
@@ -0,0 +1,267 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.HardwareWalletSpecification;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.events.MessageEventType;
+import org.multibit.hd.hardware.core.messages.HardwareWalletMessage;
+import org.multibit.hd.hardware.core.wallets.AbstractHardwareWallet;
+import org.multibit.hd.hardware.core.wallets.HardwareWallet;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class RelayServerTest {
+
+  private RelayServer testObject;
+
+  private TestDeviceProvider provider;
+
+  private Socket socket;
+
+  @Before
+  public void setUp() throws Exception {
+
+    provider = new TestDeviceProvider();
+
+    testObject = new RelayServer(Lists.<RelayDeviceProvider>newArrayList(provider), 0);
+    testObject.start();
+
+    socket = new Socket("localhost", testObject.getPortNumber());
+    socket.setSoTimeout(5000);
+
+  }
+
+  @After
+  public void tearDown() throws Exception {
+
+    socket.close();
+    testObject.stop();
+    testObject.awaitStop();
+
+  }
+
+  @Test
+  public void testLengthPrefixed() throws Exception {
+
+    OutputStream out = socket.getOutputStream();
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+
+    out.write(RelayProtocol.hello());
+    out.flush();
+
+    byte[] reply = new byte[RelayProtocol.helloLength()];
+    in.readFully(reply);
+    assertThat(RelayProtocol.isHello(reply)).isTrue();
+
+    write(out, RelayControlMessages.buildListDevices().withHeader(0, 1).toLengthPrefixed());
+
+    RelayFrame frame = readLengthPrefixed(in);
+
+    assertThat(frame.getType()).isEqualTo(RelayControlMessages.RELAY_DEVICES);
+    assertThat(frame.getSequence()).isEqualTo(1);
+    assertThat(RelayControlMessages.parseDevices(frame.getPayload())).isEmpty();
+
+  }
+
+  @Test
+  public void testHidPacketFallback() throws Exception {
+
+    OutputStream out = socket.getOutputStream();
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+
+    // Older clients start straight away with HID packets
+    write(out, RelayControlMessages.buildListDevices().toHidPackets());
+
+    RelayFrame frame = readHidPackets(in);
+
+    assertThat(frame.getType()).isEqualTo(RelayControlMessages.RELAY_DEVICES);
+    assertThat(RelayControlMessages.parseDevices(frame.getPayload())).isEmpty();
+
+  }
+
+  @Test
+  public void testHidPacketClientWithoutAcquire() throws Exception {
+
+    provider.serialNumbers.add("serial-1");
+
+    OutputStream out = socket.getOutputStream();
+
+    // Older clients send wire protocol messages straight away and never acquire a session
+    write(out, new RelayFrame(0, new byte[]{1, 2, 3}).toHidPackets());
+
+    // The server grants the first available device and relays the message
+    assertThat(provider.wallet.written.poll(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(provider.parsedTypes).containsOnly(0);
+
+    // Older clients cannot understand control messages so none are sent
+    assertThat(socket.getInputStream().available()).isEqualTo(0);
+
+  }
+
+  @Test
+  public void testAttachFromUnknownDeviceRefreshes() throws Exception {
+
+    // Allow the refresh on start to complete
+    while (provider.lookups.get() == 0) {
+      Thread.sleep(10);
+    }
+    int lookups = provider.lookups.get();
+
+    // A newly attached device is not yet known to the server
+    testObject.onMessageEvent(new MessageEvent(
+      MessageEventType.DEVICE_ATTACHED,
+      Optional.<HardwareWalletMessage>absent(),
+      Optional.<Message>absent(),
+      "TEST:serial-2"
+    ));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (provider.lookups.get() == lookups && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertThat(provider.lookups.get()).isGreaterThan(lookups);
+
+  }
+
+  private static void write(OutputStream out, ByteBuffer buffer) throws Exception {
+
+    out.write(buffer.array(), 0, buffer.limit());
+    out.flush();
+
+  }
+
+  private static RelayFrame readLengthPrefixed(DataInputStream in) throws Exception {
+
+    byte[] frame = new byte[RelayFrame.LENGTH_PREFIX_LENGTH + in.readInt()];
+    ByteBuffer.wrap(frame).putInt(frame.length - RelayFrame.LENGTH_PREFIX_LENGTH);
+    in.readFully(frame, RelayFrame.LENGTH_PREFIX_LENGTH, frame.length - RelayFrame.LENGTH_PREFIX_LENGTH);
+
+    List<RelayFrame> frames = new LengthPrefixedFrameDecoder().decode(ByteBuffer.wrap(frame));
+    assertThat(frames).hasSize(1);
+
+    return frames.get(0);
+  }
+
+  private static RelayFrame readHidPackets(DataInputStream in) throws Exception {
+
+    HidPacketFrameDecoder decoder = new HidPacketFrameDecoder();
+
+    byte[] packet = new byte[RelayFrame.PACKET_LENGTH];
+    while (true) {
+      in.readFully(packet);
+      List<RelayFrame> frames = decoder.decode(ByteBuffer.wrap(packet));
+      if (!frames.isEmpty()) {
+        return frames.get(0);
+      }
+    }
+  }
+
+  /**
+   * Provides the devices added by a test (none by default)
+   */
+  private static class TestDeviceProvider implements RelayDeviceProvider {
+
+    private final List<String> serialNumbers = Lists.newCopyOnWriteArrayList();
+
+    private final List<Integer> parsedTypes = Lists.newCopyOnWriteArrayList();
+
+    private final RecordingHardwareWallet wallet = new RecordingHardwareWallet();
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Override
+    public String name() {
+      return "TEST";
+    }
+
+    @Override
+    public List<String> findAttachedSerialNumbers() {
+      lookups.incrementAndGet();
+      return Lists.newArrayList(serialNumbers);
+    }
+
+    @Override
+    public HardwareWallet buildHardwareWallet(String serialNumber) {
+      return wallet;
+    }
+
+    @Override
+    public int getMessageType(Message message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MessageEvent parseMessage(int type, byte[] payload) {
+      parsedTypes.add(type);
+      return new MessageEvent(MessageEventType.PING, Optional.<HardwareWalletMessage>absent(), Optional.of(mock(Message.class)), name());
+    }
+  }
+
+  /**
+   * Records the messages written to the device
+   */
+  private static class RecordingHardwareWallet extends AbstractHardwareWallet {
+
+    private final BlockingQueue<Message> written = new LinkedBlockingQueue<>();
+
+    @Override
+    public HardwareWalletSpecification getDefaultSpecification() {
+      return new HardwareWalletSpecification(getClass());
+    }
+
+    @Override
+    public Optional<MessageEvent> readMessage(int duration, TimeUnit timeUnit) {
+      return Optional.absent();
+    }
+
+    @Override
+    public void writeMessage(Message message) {
+      written.add(message);
+    }
+
+    @Override
+    public String name() {
+      return "TEST";
+    }
+
+    @Override
+    public boolean attach() {
+      return true;
+    }
+
+    @Override
+    public void softDetach() {
+    }
+
+    @Override
+    public void hardDetach() {
+    }
+
+    @Override
+    public boolean connect() {
+      return true;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+  }
+
+}
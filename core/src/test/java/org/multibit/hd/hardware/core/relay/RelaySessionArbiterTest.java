@@ -0,0 +1,116 @@
+package org.multibit.hd.hardware.core.relay;
+
+import com.google.common.base.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RelaySessionArbiterTest {
+
+  private RelaySessionArbiter<String> testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    testObject = new RelaySessionArbiter<>();
+
+    assertThat(testObject.addDevice("T1", "TREZOR")).isTrue();
+    assertThat(testObject.addDevice("K1", "KEEP_KEY")).isTrue();
+    assertThat(testObject.addDevice("T1", "TREZOR")).isFalse();
+
+  }
+
+  @Test
+  public void testQueueAndHandOver() throws Exception {
+
+    assertThat(testObject.acquire("client1", "T1")).isEqualTo(0);
+    assertThat(testObject.acquire("client2", "T1")).isEqualTo(1);
+    assertThat(testObject.acquire("client3", "T1")).isEqualTo(2);
+
+    assertThat(testObject.getOwner("T1")).isEqualTo(Optional.of("client1"));
+    assertThat(testObject.getSession("client1")).isEqualTo(Optional.of("T1"));
+    assertThat(testObject.getSession("client2").isPresent()).isFalse();
+    assertThat(testObject.isWaiting("client2")).isTrue();
+
+    // Leaving the queue does not disturb the owner
+    assertThat(testObject.release("client2").isPresent()).isFalse();
+    assertThat(testObject.getOwner("T1")).isEqualTo(Optional.of("client1"));
+
+    // Releasing hands the device to the next in line
+    assertThat(testObject.release("client1")).isEqualTo(Optional.of("client3"));
+    assertThat(testObject.getSession("client3")).isEqualTo(Optional.of("T1"));
+    assertThat(testObject.isWaiting("client3")).isFalse();
+
+    assertThat(testObject.release("client3").isPresent()).isFalse();
+    assertThat(testObject.getOwner("T1").isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testSelectDevice() throws Exception {
+
+    assertThat(testObject.selectDevice()).isEqualTo(Optional.of("T1"));
+
+    testObject.acquire("client1", "T1");
+    assertThat(testObject.selectDevice()).isEqualTo(Optional.of("K1"));
+
+    // Both in use so choose the shortest queue
+    testObject.acquire("client2", "K1");
+    testObject.acquire("client3", "T1");
+    assertThat(testObject.selectDevice()).isEqualTo(Optional.of("K1"));
+
+  }
+
+  @Test
+  public void testRemoveDevice() throws Exception {
+
+    testObject.acquire("client1", "T1");
+    testObject.acquire("client2", "T1");
+
+    List<String> affected = testObject.removeDevice("T1");
+
+    assertThat(affected).containsExactly("client1", "client2");
+    assertThat(testObject.hasDevice("T1")).isFalse();
+    assertThat(testObject.getSession("client1").isPresent()).isFalse();
+
+    // Affected clients are free to request another device
+    assertThat(testObject.acquire("client1", "K1")).isEqualTo(0);
+
+  }
+
+  @Test
+  public void testDeviceStatus() throws Exception {
+
+    testObject.acquire("client1", "K1");
+    testObject.acquire("client2", "K1");
+
+    List<RelayDeviceStatus> status = testObject.getDeviceStatus();
+
+    assertThat(status).hasSize(2);
+    assertThat(status.get(0).getSerialNumber()).isEqualTo("T1");
+    assertThat(status.get(0).isAvailable()).isTrue();
+    assertThat(status.get(1).getName()).isEqualTo("KEEP_KEY");
+    assertThat(status.get(1).isAvailable()).isFalse();
+    assertThat(status.get(1).getWaitingClients()).isEqualTo(1);
+
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testOneSessionPerClient() throws Exception {
+
+    testObject.acquire("client1", "T1");
+    testObject.acquire("client1", "K1");
+
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownDevice() throws Exception {
+
+    testObject.acquire("client1", "X1");
+
+  }
+
+}
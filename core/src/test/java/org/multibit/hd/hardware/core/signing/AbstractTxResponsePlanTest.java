@@ -0,0 +1,147 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.messages.TxRequestDetailsType;
+import org.multibit.hd.hardware.core.messages.TxRequestSerializedType;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AbstractTxResponsePlanTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final Address ADDRESS1 = new ECKey().toAddress(PARAMS);
+
+  private Transaction parent;
+
+  private Transaction tx;
+
+  private final AtomicInteger buildCount = new AtomicInteger();
+
+  private final AtomicInteger parentBuildCount = new AtomicInteger();
+
+  private AbstractTxResponsePlan<String> testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    parent = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, ADDRESS1);
+
+    tx = new Transaction(PARAMS);
+    tx.addInput(parent.getOutput(0));
+    tx.addInput(parent.getOutput(1));
+    tx.addOutput(Coin.COIN, ADDRESS1);
+
+    TxSigningSession session = new TxSigningSession(
+      tx,
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+
+    testObject = new AbstractTxResponsePlan<String>(session) {
+      @Override
+      protected String buildMetaResponse(Transaction tx) {
+        buildCount.incrementAndGet();
+        return "meta:" + tx.getHashAsString();
+      }
+
+      @Override
+      protected String buildParentTransaction(Transaction parentTx) {
+        parentBuildCount.incrementAndGet();
+        return "parent:" + parentTx.getHashAsString();
+      }
+
+      @Override
+      protected String buildInputResponse(Transaction tx, int index, boolean binOutputType) {
+        buildCount.incrementAndGet();
+        return "input:" + tx.getHashAsString() + ":" + index + ":" + binOutputType;
+      }
+
+      @Override
+      protected String buildOutputResponse(Transaction tx, int index, boolean binOutputType) {
+        buildCount.incrementAndGet();
+        return "output:" + tx.getHashAsString() + ":" + index + ":" + binOutputType;
+      }
+    };
+
+  }
+
+  @Test
+  public void testPlannedResponses() throws Exception {
+
+    testObject.start().get(10, TimeUnit.SECONDS);
+
+    // Current tx: meta, 2 inputs, 1 output. Parent: meta, 1 input, 2 outputs
+    int expected = 4 + 1 + parent.getInputs().size() + parent.getOutputs().size();
+    assertThat(testObject.size()).isEqualTo(expected);
+    assertThat(buildCount.get()).isEqualTo(expected);
+
+    assertThat(testObject.getResponse(request(TxRequestType.TX_INPUT, 1, null)).get())
+      .isEqualTo("input:" + tx.getHashAsString() + ":1:false");
+    assertThat(testObject.getResponse(request(TxRequestType.TX_OUTPUT, 1, parent.getHash().getBytes())).get())
+      .isEqualTo("output:" + parent.getHashAsString() + ":1:true");
+    assertThat(testObject.getResponse(request(TxRequestType.TX_META, 0, parent.getHash().getBytes())).get())
+      .isEqualTo("meta:" + parent.getHashAsString());
+
+    // Nothing rebuilt
+    assertThat(buildCount.get()).isEqualTo(expected);
+
+    assertThat(testObject.getResponse(request(TxRequestType.TX_FINISHED, 0, null)).isPresent()).isFalse();
+
+  }
+
+  @Test
+  public void testOnDemandResponses() throws Exception {
+
+    assertThat(testObject.getResponse(request(TxRequestType.TX_INPUT, 0, null)).get())
+      .isEqualTo("input:" + tx.getHashAsString() + ":0:false");
+    assertThat(testObject.getResponse(request(TxRequestType.TX_INPUT, 0, null)).isPresent()).isTrue();
+
+    // Built once and retained
+    assertThat(buildCount.get()).isEqualTo(1);
+
+  }
+
+  @Test
+  public void testParentEncodedOnce() throws Exception {
+
+    // Both inputs of the current tx spend the same parent
+    assertThat(testObject.getSession().getParentTransactions()).hasSize(1);
+
+    testObject.start().get(10, TimeUnit.SECONDS);
+
+    assertThat(testObject.getEncodedParent(parent)).isEqualTo("parent:" + parent.getHashAsString());
+    assertThat(testObject.getEncodedParent(parent)).isEqualTo("parent:" + parent.getHashAsString());
+
+    assertThat(parentBuildCount.get()).isEqualTo(1);
+
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownHash() throws Exception {
+
+    testObject.getResponse(request(TxRequestType.TX_META, 0, new byte[32]));
+
+  }
+
+  private static TxRequest request(TxRequestType type, int index, byte[] txHash) {
+    return new TxRequest(
+      type,
+      new TxRequestDetailsType(true, index, txHash != null, txHash),
+      new TxRequestSerializedType(false, null, false, 0, false, null)
+    );
+  }
+
+}
@@ -0,0 +1,232 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.messages.TxRequestDetailsType;
+import org.multibit.hd.hardware.core.messages.TxRequestSerializedType;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * <p>Compares the transport cost of SIMPLE_SIGN_TX with streaming SIGN_TX on an emulated device</p>
+ *
+ * <p>The emulated device transfers 64 byte HID reports (one per 1ms polling interval of a full speed interrupt
+ * endpoint) and issues TX_REQUEST messages in the order used by Trezor v1 firmware (each input with its parent,
+ * then the outputs, then every input and output again for each signature). The cost is counted in reports
+ * rather than measured so the comparison is deterministic.</p>
+ */
+public class SignTxModeCostTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final int[] INPUT_COUNTS = {1, 2, 5, 10, 20};
+
+  /**
+   * HID report payload (the first byte of each 64 byte report is the '?' marker)
+   */
+  private static final int REPORT_PAYLOAD_BYTES = 63;
+
+  private Features features;
+
+  private SignTxModePolicy policy;
+
+  @Before
+  public void setUp() throws Exception {
+
+    features = new Features();
+    features.setVendor(SignTxModePolicy.TREZOR_VENDOR);
+    features.setVersion("1.3.6");
+
+    policy = new SignTxModePolicy();
+
+  }
+
+  @Test
+  public void testSimpleCostsLessAndGapWidens() throws Exception {
+
+    int previousSaving = 0;
+
+    for (int inputCount : INPUT_COUNTS) {
+
+      TxSigningSession session = buildSession(inputCount);
+
+      int simpleReports = emulateSimpleSignTx(session);
+      int streamingReports = emulateStreamingSignTx(session);
+
+      // Streaming repeats every input and output for each signature so its cost grows faster
+      assertThat(simpleReports).isLessThan(streamingReports);
+      assertThat(streamingReports - simpleReports).isGreaterThan(previousSaving);
+
+      previousSaving = streamingReports - simpleReports;
+    }
+
+  }
+
+  @Test
+  public void testModeSelectionFollowsPayloadLimit() throws Exception {
+
+    for (int inputCount : INPUT_COUNTS) {
+
+      TxSigningSession session = buildSession(inputCount);
+      int bytes = SignTxModePolicy.estimateSimpleSignTxBytes(session);
+
+      SignTxMode expected = bytes <= SignTxModePolicy.DEFAULT_TREZOR_MAXIMUM_PAYLOAD_BYTES ? SignTxMode.SIMPLE : SignTxMode.STREAMING;
+      assertThat(policy.select(features, session)).isEqualTo(expected);
+    }
+
+    // The cheaper mode is chosen for a typical transaction
+    assertThat(policy.select(features, buildSession(1))).isEqualTo(SignTxMode.SIMPLE);
+
+    // A limit just below the payload forces streaming
+    TxSigningSession session = buildSession(INPUT_COUNTS[INPUT_COUNTS.length - 1]);
+    policy.setVendorLimit(
+      SignTxModePolicy.TREZOR_VENDOR,
+      SignTxModePolicy.estimateSimpleSignTxBytes(session) - 1,
+      SignTxModePolicy.DEFAULT_TREZOR_UNSUPPORTED_FROM_VERSION
+    );
+    assertThat(policy.select(features, session)).isEqualTo(SignTxMode.STREAMING);
+
+  }
+
+  /**
+   * @return The reports needed to deliver the whole transaction in one message and receive the result
+   */
+  private int emulateSimpleSignTx(TxSigningSession session) {
+
+    int reports = reports(SignTxModePolicy.estimateSimpleSignTxBytes(session));
+
+    // Serialized transaction comes back in a single TX_REQUEST
+    reports += reports(session.getTransaction().getMessageSize() + session.getTransaction().getInputs().size() * 107);
+
+    return reports;
+  }
+
+  /**
+   * @return The reports needed to answer every TX_REQUEST the device makes
+   */
+  private int emulateStreamingSignTx(TxSigningSession session) {
+
+    TestResponsePlan plan = new TestResponsePlan(session);
+    plan.start();
+
+    Transaction tx = session.getTransaction();
+    int inputs = tx.getInputs().size();
+    int outputs = tx.getOutputs().size();
+
+    // SIGN_TX
+    int reports = reports(16);
+
+    // Phase 1: each input with its parent then the outputs
+    for (int i = 0; i < inputs; i++) {
+      reports += roundTrip(plan, TxRequestType.TX_INPUT, i, null);
+      Transaction parent = tx.getInput(i).getOutpoint().getConnectedOutput().getParentTransaction();
+      byte[] parentHash = parent.getHash().getBytes();
+      reports += roundTrip(plan, TxRequestType.TX_META, 0, parentHash);
+      for (int j = 0; j < parent.getInputs().size(); j++) {
+        reports += roundTrip(plan, TxRequestType.TX_INPUT, j, parentHash);
+      }
+      for (int j = 0; j < parent.getOutputs().size(); j++) {
+        reports += roundTrip(plan, TxRequestType.TX_OUTPUT, j, parentHash);
+      }
+    }
+    for (int i = 0; i < outputs; i++) {
+      reports += roundTrip(plan, TxRequestType.TX_OUTPUT, i, null);
+    }
+
+    // Phase 2: every input and output again for each signature
+    for (int signing = 0; signing < inputs; signing++) {
+      for (int i = 0; i < inputs; i++) {
+        reports += roundTrip(plan, TxRequestType.TX_INPUT, i, null);
+      }
+      for (int i = 0; i < outputs; i++) {
+        reports += roundTrip(plan, TxRequestType.TX_OUTPUT, i, null);
+      }
+    }
+
+    return reports;
+  }
+
+  private int roundTrip(TestResponsePlan plan, TxRequestType type, int index, byte[] txHash) {
+
+    TxRequest txRequest = new TxRequest(
+      type,
+      new TxRequestDetailsType(true, index, txHash != null, txHash),
+      new TxRequestSerializedType(false, null, false, 0, false, null)
+    );
+
+    // TX_ACK from the host
+    byte[] response = plan.getResponse(txRequest).get();
+    assertThat(response.length).isGreaterThan(0);
+
+    // TX_REQUEST from the device then the TX_ACK
+    return reports(48) + reports(response.length + 8);
+  }
+
+  /**
+   * @param bytes The message size including the protobuf header
+   *
+   * @return The number of HID reports to carry the message
+   */
+  private static int reports(int bytes) {
+    return (bytes + REPORT_PAYLOAD_BYTES - 1) / REPORT_PAYLOAD_BYTES;
+  }
+
+  private static TxSigningSession buildSession(int inputCount) {
+
+    ECKey key = new ECKey();
+    Address changeAddress = new ECKey().toAddress(PARAMS);
+
+    Transaction tx = new Transaction(PARAMS);
+    for (int i = 0; i < inputCount; i++) {
+      Transaction parent = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key.toAddress(PARAMS));
+      tx.addInput(parent.getOutput(0));
+    }
+    tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+    tx.addOutput(Coin.CENT, changeAddress);
+
+    return new TxSigningSession(
+      tx,
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+  }
+
+  /**
+   * Responses sized as the serialized component they describe
+   */
+  private static class TestResponsePlan extends AbstractTxResponsePlan<byte[]> {
+
+    private TestResponsePlan(TxSigningSession session) {
+      super(session);
+    }
+
+    @Override
+    protected byte[] buildMetaResponse(Transaction tx) {
+      return new byte[16];
+    }
+
+    @Override
+    protected byte[] buildParentTransaction(Transaction parentTx) {
+      return parentTx.bitcoinSerialize();
+    }
+
+    @Override
+    protected byte[] buildInputResponse(Transaction tx, int index, boolean binOutputType) {
+      return tx.getInput(index).bitcoinSerialize();
+    }
+
+    @Override
+    protected byte[] buildOutputResponse(Transaction tx, int index, boolean binOutputType) {
+      return tx.getOutput(index).bitcoinSerialize();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.messages.Features;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SignTxModePolicyTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private TxSigningSession session;
+
+  private Features features;
+
+  private SignTxModePolicy testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    Transaction parent = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, new ECKey().toAddress(PARAMS));
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent.getOutput(0));
+    tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+
+    session = new TxSigningSession(
+      tx,
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+
+    features = new Features();
+    features.setVendor(SignTxModePolicy.TREZOR_VENDOR);
+    features.setVersion("1.3.6");
+
+    testObject = new SignTxModePolicy();
+
+  }
+
+  @Test
+  public void testSmallTransactionUsesSimple() throws Exception {
+
+    assertThat(testObject.select(features, session)).isEqualTo(SignTxMode.SIMPLE);
+
+  }
+
+  @Test
+  public void testLargeTransactionStreams() throws Exception {
+
+    testObject.setVendorLimit(
+      SignTxModePolicy.TREZOR_VENDOR,
+      SignTxModePolicy.estimateSimpleSignTxBytes(session) - 1,
+      SignTxModePolicy.DEFAULT_TREZOR_UNSUPPORTED_FROM_VERSION
+    );
+
+    assertThat(testObject.select(features, session)).isEqualTo(SignTxMode.STREAMING);
+
+  }
+
+  @Test
+  public void testUnsupportedFirmwareStreams() throws Exception {
+
+    features.setVersion("1.4.0");
+
+    assertThat(testObject.select(features, session)).isEqualTo(SignTxMode.STREAMING);
+
+  }
+
+  @Test
+  public void testUnknownVendorStreams() throws Exception {
+
+    features.setVendor("keepkey.com");
+
+    assertThat(testObject.select(features, session)).isEqualTo(SignTxMode.STREAMING);
+
+  }
+
+  @Test
+  public void testParseVersion() throws Exception {
+
+    assertThat(SignTxModePolicy.parseVersion("1.3.6")).isEqualTo(new int[]{1, 3, 6});
+    assertThat(SignTxModePolicy.parseVersion("1.3")).isEqualTo(new int[]{1, 3, 0});
+    assertThat(SignTxModePolicy.parseVersion("1.x.2")).isEqualTo(new int[]{1, 0, 2});
+
+  }
+
+}
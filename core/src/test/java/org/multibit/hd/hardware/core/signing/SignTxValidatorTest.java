@@ -0,0 +1,141 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SignTxValidatorTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final ImmutableList<ChildNumber> PATH = ImmutableList.of(
+    new ChildNumber(44, true),
+    ChildNumber.ZERO_HARDENED,
+    ChildNumber.ZERO_HARDENED,
+    ChildNumber.ZERO,
+    ChildNumber.ZERO
+  );
+
+  @Test
+  public void testValid() throws Exception {
+
+    Transaction tx = buildTx(3);
+
+    assertThat(SignTxValidator.validate(newSession(tx, 3))).isEmpty();
+
+  }
+
+  @Test
+  public void testAllProblemsReported() throws Exception {
+
+    Transaction tx = buildTx(2);
+
+    // Unconnected input
+    tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH)));
+
+    // Pay to public key output is not supported by the device
+    tx.addOutput(Coin.CENT, new ECKey());
+
+    // No path for input 1
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap = Maps.newHashMap();
+    receivingAddressPathMap.put(0, PATH);
+    receivingAddressPathMap.put(2, PATH);
+
+    List<String> problems = SignTxValidator.validate(new TxSigningSession(
+      tx,
+      receivingAddressPathMap,
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    ));
+
+    assertThat(problems).containsExactly(
+      "Input 1 has no receiving address path",
+      "Input 2 has no connected output",
+      "Output 1 does not resolve to P2PKH or P2SH"
+    );
+
+  }
+
+  @Test
+  public void testLargeTransactionInOrder() throws Exception {
+
+    int inputCount = 100;
+    Transaction tx = buildTx(inputCount);
+
+    // Every fifth input has no path
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap = Maps.newHashMap();
+    List<String> expected = Lists.newArrayList();
+    for (int i = 0; i < inputCount; i++) {
+      if (i % 5 == 0) {
+        expected.add("Input " + i + " has no receiving address path");
+      } else {
+        receivingAddressPathMap.put(i, PATH);
+      }
+    }
+
+    List<String> problems = SignTxValidator.validate(new TxSigningSession(
+      tx,
+      receivingAddressPathMap,
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    ));
+
+    assertThat(problems).isEqualTo(expected);
+
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+
+    Transaction validTx = buildTx(1);
+    Transaction invalidTx = buildTx(1);
+
+    List<String> problems = SignTxValidator.validate(Lists.newArrayList(
+      newSession(validTx, 1),
+      newSession(invalidTx, 0)
+    ));
+
+    assertThat(problems).containsExactly("Transaction 1: Input 0 has no receiving address path");
+
+  }
+
+  private static Transaction buildTx(int inputCount) {
+
+    ECKey key = new ECKey();
+
+    Transaction tx = new Transaction(PARAMS);
+    for (int i = 0; i < inputCount; i++) {
+      Transaction parent = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key.toAddress(PARAMS));
+      tx.addInput(parent.getOutput(0));
+    }
+    tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+
+    return tx;
+  }
+
+  /**
+   * @param pathCount The number of inputs (from the first) with a receiving address path
+   */
+  private static TxSigningSession newSession(Transaction tx, int pathCount) {
+
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap = Maps.newHashMap();
+    for (int i = 0; i < pathCount; i++) {
+      receivingAddressPathMap.put(i, PATH);
+    }
+
+    return new TxSigningSession(
+      tx,
+      receivingAddressPathMap,
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+  }
+
+}
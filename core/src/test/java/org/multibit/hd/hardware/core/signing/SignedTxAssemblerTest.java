@@ -0,0 +1,196 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SignedTxAssemblerTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final ECKey KEY = new ECKey();
+
+  private static final Address ADDRESS = new ECKey().toAddress(PARAMS);
+
+  private Transaction parent1;
+
+  private Transaction parent2;
+
+  private Transaction signedTx;
+
+  private List<byte[]> signatures;
+
+  private SignedTxAssembler testObject;
+
+  @Before
+  public void setUp() throws Exception {
+
+    parent1 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, KEY.toAddress(PARAMS));
+    parent2 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, KEY.toAddress(PARAMS));
+
+    // Sign a separate copy so the session holds the unsigned transaction
+    signedTx = buildUnsignedTx();
+    signatures = sign(signedTx);
+
+    TxSigningSession session = new TxSigningSession(
+      buildUnsignedTx(),
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+
+    testObject = new SignedTxAssembler(session);
+
+  }
+
+  @Test
+  public void testChunkedAssembly() throws Exception {
+
+    byte[] serializedTx = signedTx.bitcoinSerialize();
+
+    // Feed in small chunks so fields straddle chunk boundaries
+    for (int i = 0; i < serializedTx.length; i += 7) {
+      testObject.appendSerializedTx(Arrays.copyOfRange(serializedTx, i, Math.min(i + 7, serializedTx.length)));
+    }
+    testObject.appendSignature(0, signatures.get(0));
+    testObject.appendSignature(1, signatures.get(1));
+
+    assertThat(testObject.isComplete()).isTrue();
+    assertThat(testObject.getVerifiedInputCount()).isEqualTo(2);
+
+    Transaction tx = testObject.finish();
+
+    assertThat(tx.getHash()).isEqualTo(signedTx.getHash());
+    assertThat(tx.bitcoinSerialize()).isEqualTo(serializedTx);
+    assertThat(testObject.getSignedTx().get()).isSameAs(tx);
+
+  }
+
+  @Test
+  public void testSignatureBeforeInput() throws Exception {
+
+    testObject.appendSignature(0, signatures.get(0));
+    assertThat(testObject.getVerifiedInputCount()).isEqualTo(0);
+
+    testObject.appendSerializedTx(signedTx.bitcoinSerialize());
+
+    assertThat(testObject.getVerifiedInputCount()).isEqualTo(2);
+
+  }
+
+  @Test
+  public void testTamperedOutputFailsFast() throws Exception {
+
+    byte[] serializedTx = signedTx.bitcoinSerialize();
+
+    // Value of the only output precedes its P2PKH script (1 + 25 bytes) and the lock time (4 bytes)
+    int valueOffset = serializedTx.length - 4 - 26 - 8;
+    serializedTx[valueOffset] ^= 0x01;
+
+    try {
+      testObject.appendSerializedTx(serializedTx);
+      fail("Expected tampered output to be rejected");
+    } catch (HardwareWalletException e) {
+      assertThat(e.getMessage()).contains("Output 0");
+    }
+
+    // Inputs were verified before the output was reached
+    assertThat(testObject.getVerifiedInputCount()).isEqualTo(2);
+
+  }
+
+  @Test(expected = HardwareWalletException.class)
+  public void testSignatureOverDifferentTransaction() throws Exception {
+
+    // Sign a transaction with a different output
+    Transaction otherTx = new Transaction(PARAMS);
+    otherTx.addInput(parent1.getOutput(0));
+    otherTx.addInput(parent2.getOutput(0));
+    otherTx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+    sign(otherTx);
+
+    // Only feed the inputs so the output mismatch is not reached first
+    byte[] serializedTx = otherTx.bitcoinSerialize();
+    testObject.appendSerializedTx(Arrays.copyOf(serializedTx, serializedTx.length - 4 - 26 - 8 - 1));
+
+  }
+
+  @Test(expected = HardwareWalletException.class)
+  public void testMismatchedSignature() throws Exception {
+
+    testObject.appendSerializedTx(signedTx.bitcoinSerialize());
+    testObject.appendSignature(0, signatures.get(1));
+
+  }
+
+  @Test
+  public void testMalformedSignature() throws Exception {
+
+    // Signature that is not valid DER followed by SIGHASH_ALL
+    signedTx.getInput(0).setScriptSig(new ScriptBuilder()
+      .data(new byte[]{0x30, 0x03, 0x02, 0x01, 0x01})
+      .data(KEY.getPubKey())
+      .build());
+
+    try {
+      testObject.appendSerializedTx(signedTx.bitcoinSerialize());
+      fail("Expected malformed signature to be rejected");
+    } catch (HardwareWalletException e) {
+      assertThat(e.getMessage()).contains("Input 0");
+    }
+
+  }
+
+  @Test(expected = HardwareWalletException.class)
+  public void testIncomplete() throws Exception {
+
+    byte[] serializedTx = signedTx.bitcoinSerialize();
+    testObject.appendSerializedTx(Arrays.copyOf(serializedTx, serializedTx.length / 2));
+
+    testObject.finish();
+
+  }
+
+  private Transaction buildUnsignedTx() {
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent1.getOutput(0));
+    tx.addInput(parent2.getOutput(0));
+    tx.addOutput(Coin.CENT, ADDRESS);
+
+    return tx;
+  }
+
+  /**
+   * @return The DER signatures (no SIGHASH byte) as provided by the device
+   */
+  private static List<byte[]> sign(Transaction tx) {
+
+    List<byte[]> derSignatures = Lists.newArrayList();
+    for (int i = 0; i < tx.getInputs().size(); i++) {
+      TransactionInput input = tx.getInput(i);
+      byte[] connectedScript = input.getOutpoint().getConnectedOutput().getScriptBytes();
+      TransactionSignature signature = tx.calculateSignature(i, KEY, connectedScript, Transaction.SigHash.ALL, false);
+      derSignatures.add(signature.encodeToDER());
+      // The sighash ignores script signatures so they can be applied as we go
+      input.setScriptSig(ScriptBuilder.createInputScript(signature, KEY));
+    }
+
+    return derSignatures;
+  }
+
+}
@@ -0,0 +1,47 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TxSigningSessionTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final Address ADDRESS1 = new ECKey().toAddress(PARAMS);
+
+  @Test
+  public void testParentLookup() throws Exception {
+
+    Transaction parent1 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, ADDRESS1);
+    Transaction parent2 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, ADDRESS1);
+
+    // Two inputs from the first parent and one from the second
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent1.getOutput(0));
+    tx.addInput(parent1.getOutput(1));
+    tx.addInput(parent2.getOutput(0));
+    tx.addOutput(Coin.COIN, ADDRESS1);
+
+    TxSigningSession testObject = new TxSigningSession(
+      tx,
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    );
+
+    assertThat(testObject.getParentTransactions()).hasSize(2);
+
+    assertThat(testObject.getTransactionByHash(tx.getHash().getBytes()).get()).isSameAs(tx);
+    assertThat(testObject.getTransactionByHash(parent1.getHash().getBytes()).get()).isSameAs(parent1);
+    assertThat(testObject.getTransactionByHash(parent2.getHash().getBytes()).get()).isSameAs(parent2);
+    assertThat(testObject.getTransactionByHash(new byte[32]).isPresent()).isFalse();
+
+  }
+
+}
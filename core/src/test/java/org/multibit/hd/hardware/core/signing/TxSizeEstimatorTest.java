@@ -0,0 +1,174 @@
+package org.multibit.hd.hardware.core.signing;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TxSizeEstimatorTest {
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  /**
+   * SPENDADDRESS transaction shapes as {inputs, outputs}
+   */
+  private static final int[][] TX_SHAPES = {
+    {1, 1},
+    {1, 2},
+    {2, 2},
+    {5, 2},
+    {10, 3},
+    {20, 2}
+  };
+
+  /**
+   * The estimate assumes a 73 byte signature but low S signatures are at most 72 bytes (71 when r needs no
+   * padding and a byte less for each of r and s with a leading zero byte) so the estimate is between 1 and
+   * 4 bytes high for each input
+   */
+  private static final int MINIMUM_EXCESS_PER_INPUT = 1;
+  private static final int MAXIMUM_EXCESS_PER_INPUT = 4;
+
+  /**
+   * <p>The device signs with RFC 6979 deterministic nonces and low S values, as does bitcoinj, so with fixed keys
+   * and parents the signed transactions here are byte for byte those the device returns</p>
+   */
+  @Test
+  public void testSpendAddressAgainstSignedSize() throws Exception {
+
+    for (int[] shape : TX_SHAPES) {
+
+      int inputCount = shape[0];
+      int outputCount = shape[1];
+
+      ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1000 + inputCount * 10 + outputCount));
+      Transaction tx = buildSpendAddressTx(key, inputCount, outputCount);
+
+      TxSizeEstimate estimate = TxSizeEstimator.estimate(tx);
+      assertThat(estimate.isExact()).isFalse();
+      assertThat(estimate.getSize()).isEqualTo(TxSizeEstimator.estimateSpendAddressSize(inputCount, pkhScripts(outputCount)));
+
+      for (int i = 0; i < tx.getInputs().size(); i++) {
+        TransactionSignature signature = tx.calculateSignature(i, key, tx.getInput(i).getOutpoint().getConnectedOutput().getScriptBytes(), Transaction.SigHash.ALL, false);
+        tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+      }
+      int signedSize = tx.bitcoinSerialize().length;
+
+      // Within tolerance on both sides (only the signature lengths are unknown)
+      assertThat(estimate.getSize() - signedSize).isGreaterThanOrEqualTo(MINIMUM_EXCESS_PER_INPUT * inputCount);
+      assertThat(estimate.getSize() - signedSize).isLessThanOrEqualTo(MAXIMUM_EXCESS_PER_INPUT * inputCount);
+
+      // Once signed the estimate is exact
+      TxSizeEstimate signedEstimate = TxSizeEstimator.estimate(tx);
+      assertThat(signedEstimate.isExact()).isTrue();
+      assertThat(signedEstimate.getSize()).isEqualTo(signedSize);
+    }
+
+  }
+
+  @Test
+  public void testP2SHMultisig() throws Exception {
+
+    List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
+    Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, keys);
+
+    Transaction parent = new Transaction(PARAMS);
+    parent.addOutput(Coin.COIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent.getOutput(0));
+    tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+
+    TxSizeEstimate estimate = TxSizeEstimator.estimate(tx, ImmutableMap.of(0, redeemScript));
+    assertThat(estimate.isExact()).isFalse();
+
+    List<TransactionSignature> signatures = Lists.newArrayList();
+    for (ECKey key : keys.subList(0, 2)) {
+      signatures.add(tx.calculateSignature(0, key, redeemScript, Transaction.SigHash.ALL, false));
+    }
+    tx.getInput(0).setScriptSig(ScriptBuilder.createP2SHMultiSigInputScript(signatures, redeemScript));
+    int signedSize = tx.bitcoinSerialize().length;
+
+    assertThat(estimate.getSize()).isGreaterThanOrEqualTo(signedSize);
+    // Signature lengths plus the script signature length prefix (256 bytes at most)
+    assertThat(estimate.getSize() - signedSize).isLessThanOrEqualTo(2 * 3 + 2);
+
+    // Redeem script length is derived from m and n when the script itself is not at hand
+    assertThat(TxSizeEstimator.maximumP2SHMultisigScriptSigBytes(2, 3))
+      .isEqualTo(1 + 2 * (1 + 73) + 2 + redeemScript.getProgram().length);
+
+  }
+
+  @Test
+  public void testBareMultisig() throws Exception {
+
+    List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey());
+    Script multisigScript = ScriptBuilder.createMultiSigOutputScript(1, keys);
+
+    Transaction parent = new Transaction(PARAMS);
+    parent.addOutput(Coin.COIN, multisigScript);
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent.getOutput(0));
+    tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+
+    TxSizeEstimate estimate = TxSizeEstimator.estimate(tx);
+
+    TransactionSignature signature = tx.calculateSignature(0, keys.get(0), multisigScript, Transaction.SigHash.ALL, false);
+    tx.getInput(0).setScriptSig(ScriptBuilder.createMultiSigInputScript(signature));
+
+    assertThat(estimate.getSize()).isGreaterThanOrEqualTo(tx.bitcoinSerialize().length);
+
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testP2SHWithoutRedeemScript() throws Exception {
+
+    Script redeemScript = ScriptBuilder.createMultiSigOutputScript(1, Lists.newArrayList(new ECKey()));
+
+    Transaction parent = new Transaction(PARAMS);
+    parent.addOutput(Coin.COIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+
+    Transaction tx = new Transaction(PARAMS);
+    tx.addInput(parent.getOutput(0));
+
+    TxSizeEstimator.estimate(tx);
+
+  }
+
+  /**
+   * @return A transaction with fixed parents and recipients so the signatures are repeatable
+   */
+  private static Transaction buildSpendAddressTx(ECKey key, int inputCount, int outputCount) {
+
+    Transaction tx = new Transaction(PARAMS);
+    for (int i = 0; i < inputCount; i++) {
+      Transaction parent = new Transaction(PARAMS);
+      parent.addOutput(Coin.valueOf(Coin.COIN.value + i), key.toAddress(PARAMS));
+      tx.addInput(parent.getOutput(0));
+    }
+    for (int i = 0; i < outputCount; i++) {
+      tx.addOutput(Coin.CENT, ECKey.fromPrivate(BigInteger.valueOf(2000 + i)).toAddress(PARAMS));
+    }
+
+    return tx;
+  }
+
+  private static int[] pkhScripts(int outputCount) {
+    int[] scripts = new int[outputCount];
+    for (int i = 0; i < outputCount; i++) {
+      scripts[i] = 25;
+    }
+    return scripts;
+  }
+
+}
@@ -29,4 +29,18 @@ public class IdentityUtilsTest {
 
   }
 
+  @Test
+  public void testBuildAddressN_Memoised() throws Exception {
+
+    URI identityUri = URI.create("https://satoshi@bitcoin.org/login");
+
+    List<Integer> first = IdentityUtils.buildAddressN(identityUri, 0);
+    first.clear();
+
+    // Modifying a result does not affect the memoised path
+    assertThat(IdentityUtils.buildAddressN(identityUri, 0)).hasSize(5);
+    assertThat(IdentityUtils.buildAddressN(identityUri, 1)).isNotEqualTo(IdentityUtils.buildAddressN(identityUri, 0));
+
+  }
+
 }
\ No newline at end of file
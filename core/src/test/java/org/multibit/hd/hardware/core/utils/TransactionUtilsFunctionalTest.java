@@ -0,0 +1,107 @@
+package org.multibit.hd.hardware.core.utils;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * <p>Benchmark of {@link TransactionUtils#checkEssentiallyEqual} for payout sized transactions</p>
+ *
+ * <p>Excluded from the normal build (see the surefire configuration) since timings depend on the host.</p>
+ */
+public class TransactionUtilsFunctionalTest {
+
+  private static final Logger log = LoggerFactory.getLogger(TransactionUtilsFunctionalTest.class);
+
+  private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+  private static final int[] SIZES = {500, 1_000, 2_000, 4_000, 8_000};
+
+  private static final int WARM_UP_ROUNDS = 5;
+
+  private static final int ROUNDS = 20;
+
+  @Test
+  public void testScaling() throws Exception {
+
+    Random random = new Random(1234);
+
+    // Warm up the JIT on a mid sized transaction
+    Transaction[] warmUp = buildTransactionPair(1_000, random);
+    for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+      assertThat(TransactionUtils.checkEssentiallyEqual(warmUp[0], warmUp[1])).isTrue();
+    }
+
+    long previousNanos = 0;
+    for (int size : SIZES) {
+
+      Transaction[] pair = buildTransactionPair(size, random);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < ROUNDS; i++) {
+        assertThat(TransactionUtils.checkEssentiallyEqual(pair[0], pair[1])).isTrue();
+      }
+      long nanos = (System.nanoTime() - start) / ROUNDS;
+
+      log.info(
+        "{} inputs and {} outputs: {} us per comparison{}",
+        size,
+        size,
+        TimeUnit.NANOSECONDS.toMicros(nanos),
+        previousNanos == 0 ? "" : String.format(" (x%.1f for x2 size)", (double) nanos / previousNanos)
+      );
+
+      previousNanos = nanos;
+    }
+
+  }
+
+  /**
+   * @param size   The number of inputs and outputs
+   * @param random The source of output scripts
+   *
+   * @return An "unsigned" transaction and a copy with the inputs and outputs in reverse order
+   */
+  private static Transaction[] buildTransactionPair(int size, Random random) {
+
+    // A single parent provides all the outputs being spent
+    Transaction parent = new Transaction(PARAMS);
+    for (int i = 0; i < size; i++) {
+      parent.addOutput(Coin.CENT, randomAddress(random));
+    }
+
+    Transaction unsignedTx = new Transaction(PARAMS);
+    Transaction signedTx = new Transaction(PARAMS);
+
+    Address[] payees = new Address[size];
+    for (int i = 0; i < size; i++) {
+      payees[i] = randomAddress(random);
+    }
+
+    for (int i = 0; i < size; i++) {
+      unsignedTx.addInput(parent.getOutput(i));
+      unsignedTx.addOutput(Coin.valueOf(1_000 + i), payees[i]);
+    }
+    for (int i = size - 1; i >= 0; i--) {
+      signedTx.addInput(parent.getOutput(i));
+      signedTx.addOutput(Coin.valueOf(1_000 + i), payees[i]);
+    }
+
+    return new Transaction[]{unsignedTx, signedTx};
+  }
+
+  private static Address randomAddress(Random random) {
+
+    byte[] hash160 = new byte[20];
+    random.nextBytes(hash160);
+
+    return new Address(PARAMS, hash160);
+  }
+}
@@ -55,4 +55,50 @@ public class TransactionUtilsTest {
     assertThat(TransactionUtils.checkEssentiallyEqual(tx1, tx3)).isFalse();
     assertThat(TransactionUtils.checkEssentiallyEqual(tx3, tx1)).isFalse();
   }
+
+  /**
+   * Check that inputs and outputs are compared as multisets (order ignored, duplicates counted)
+   */
+  @Test
+  public void testCheckEssentiallyEqual_Multiset() throws Exception {
+
+    Transaction dummy1 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, ADDRESS1);
+    Transaction dummy2 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, ADDRESS2);
+
+    Transaction tx1 = new Transaction(PARAMS);
+    tx1.addInput(dummy1.getOutput(0));
+    tx1.addInput(dummy2.getOutput(0));
+    tx1.addOutput(Coin.COIN, ADDRESS1);
+    tx1.addOutput(Coin.CENT, ADDRESS2);
+
+    // Same inputs and outputs in a different order
+    Transaction tx2 = new Transaction(PARAMS);
+    tx2.addInput(dummy2.getOutput(0));
+    tx2.addInput(dummy1.getOutput(0));
+    tx2.addOutput(Coin.CENT, ADDRESS2);
+    tx2.addOutput(Coin.COIN, ADDRESS1);
+
+    // Same scripts but a different value
+    Transaction tx3 = new Transaction(PARAMS);
+    tx3.addInput(dummy1.getOutput(0));
+    tx3.addInput(dummy2.getOutput(0));
+    tx3.addOutput(Coin.CENT, ADDRESS1);
+    tx3.addOutput(Coin.CENT, ADDRESS2);
+
+    // Same number of outputs but one duplicated in place of another
+    Transaction tx4 = new Transaction(PARAMS);
+    tx4.addInput(dummy1.getOutput(0));
+    tx4.addInput(dummy2.getOutput(0));
+    tx4.addOutput(Coin.COIN, ADDRESS1);
+    tx4.addOutput(Coin.COIN, ADDRESS1);
+
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx1, tx2)).isTrue();
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx2, tx1)).isTrue();
+
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx1, tx3)).isFalse();
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx3, tx1)).isFalse();
+
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx1, tx4)).isFalse();
+    assertThat(TransactionUtils.checkEssentiallyEqual(tx4, tx1)).isFalse();
+  }
 }
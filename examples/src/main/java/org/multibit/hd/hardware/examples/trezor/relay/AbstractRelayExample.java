@@ -1,10 +1,8 @@
 package org.multibit.hd.hardware.examples.trezor.relay;
 
-import com.google.common.base.Optional;
 import com.google.common.util.concurrent.Uninterruptibles;
 import org.multibit.hd.hardware.trezor.clients.TrezorRelayClient;
 import org.multibit.hd.hardware.trezor.clients.TrezorRelayServer;
-import org.multibit.hd.hardware.trezor.wallets.v1.TrezorV1HidHardwareWallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -107,14 +105,9 @@ public class AbstractRelayExample {
     switch (mode) {
       case SERVER:
       case BOTH:
-        // Create a Trezor V1 USB client for use by the server
-        TrezorV1HidHardwareWallet hardwareWallet = new TrezorV1HidHardwareWallet(
-          Optional.<Integer>absent(),
-          Optional.<Integer>absent(),
-          Optional.<String>absent()
-        );
+        // The server relays every attached Trezor V1 USB device
         try {
-          server = new TrezorRelayServer(hardwareWallet, TrezorRelayServer.DEFAULT_PORT_NUMBER);
+          server = new TrezorRelayServer(TrezorRelayServer.DEFAULT_PORT_NUMBER);
         } catch (IOException e) {
           log.error("Could not start the relay server", e);
           return false;
@@ -229,8 +229,8 @@ public class TrezorV1WatchingWalletExample {
           log.info("DeviceTx payload:\n{}", Utils.HEX.encode(deviceTxPayload));
           log.info("DeviceTx signature0:\n{}", Utils.HEX.encode(signature0));
 
-          // Load deviceTx
-          Transaction deviceTx = new Transaction(MainNetParams.get(), deviceTxPayload);
+          // Already parsed and verified against the unsigned transaction during signing
+          Transaction deviceTx = hardwareWalletService.getContext().getSignedTxAssembler().get().getSignedTx().get();
           log.info("deviceTx:\n{}", deviceTx.toString());
 
           keyboard = new Scanner(System.in);
@@ -3,6 +3,8 @@ package org.multibit.hd.hardware.keepkey.clients;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.keepkey.protobuf.KeepKeyMessage;
@@ -15,8 +17,9 @@ import org.multibit.hd.hardware.core.HardwareWalletClient;
 import org.multibit.hd.hardware.core.domain.Identity;
 import org.multibit.hd.hardware.core.events.MessageEvent;
 import org.multibit.hd.hardware.core.messages.TxRequest;
+import org.multibit.hd.hardware.core.messages.TxRequestType;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
 import org.multibit.hd.hardware.core.utils.IdentityUtils;
-import org.multibit.hd.hardware.core.utils.TransactionUtils;
 import org.multibit.hd.hardware.keepkey.utils.KeepKeyMessageUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,6 +43,16 @@ public abstract class AbstractKeepKeyHardwareWalletClient implements HardwareWal
 
   private static final Logger log = LoggerFactory.getLogger(AbstractKeepKeyHardwareWalletClient.class);
 
+  /**
+   * The response plan for the current signing session
+   */
+  private volatile Optional<KeepKeyTxResponsePlan> txResponsePlan = Optional.absent();
+
+  /**
+   * The response plan for the next signing session in a batch
+   */
+  private volatile Optional<KeepKeyTxResponsePlan> preparedTxResponsePlan = Optional.absent();
+
   @Override
   public Optional<MessageEvent> initialise() {
     return sendMessage(
@@ -48,6 +62,15 @@ public abstract class AbstractKeepKeyHardwareWalletClient implements HardwareWal
     );
   }
 
+  @Override
+  public Optional<MessageEvent> getFeatures() {
+    return sendMessage(
+      KeepKeyMessage.GetFeatures
+        .newBuilder()
+        .build()
+    );
+  }
+
   @Override
   public Optional<MessageEvent> ping() {
     return sendMessage(
@@ -195,65 +218,70 @@ public abstract class AbstractKeepKeyHardwareWalletClient implements HardwareWal
   }
 
   @Override
-  public Optional<MessageEvent> simpleSignTx(Transaction tx) {
+  public Optional<MessageEvent> signTx(TxSigningSession session) {
+
+    // Use the responses prepared during the previous transaction of a batch if available
+    KeepKeyTxResponsePlan plan = preparedTxResponsePlan.orNull();
+    preparedTxResponsePlan = Optional.absent();
+    if (plan == null || plan.getSession() != session) {
+      // Build the responses while the user confirms the transaction on the device
+      plan = new KeepKeyTxResponsePlan(session);
+      plan.start();
+    }
+    txResponsePlan = Optional.of(plan);
 
-    KeepKeyMessage.SimpleSignTx.Builder builder = KeepKeyMessage.SimpleSignTx.newBuilder();
-    builder.setCoinName("Bitcoin");
+    return signTx(session.getTransaction());
 
-    // Explore the current tx inputs
-    for (TransactionInput input : tx.getInputs()) {
+  }
 
-      // Build a TxInputType message
+  @Override
+  public void prepareSignTx(TxSigningSession session) {
 
-      int prevIndex = (int) input.getOutpoint().getIndex();
-      byte[] prevHash = input.getOutpoint().getHash().getBytes();
+    KeepKeyTxResponsePlan plan = new KeepKeyTxResponsePlan(session);
+    plan.start();
+    preparedTxResponsePlan = Optional.of(plan);
 
-      // No multisig support in MBHD yet
-      KeepKeyType.InputScriptType inputScriptType = KeepKeyType.InputScriptType.SPENDADDRESS;
+  }
 
-      KeepKeyType.TxInputType txInputType = KeepKeyType.TxInputType
-        .newBuilder()
-        .setSequence((int) input.getSequenceNumber())
-        .setScriptSig(ByteString.copyFrom(input.getScriptSig().getProgram()))
-        .setScriptType(inputScriptType)
-        .setPrevIndex(prevIndex)
-        .setPrevHash(ByteString.copyFrom(prevHash))
-        .build();
-
-      builder.addInputs(txInputType);
-    }
+  @Override
+  public Optional<MessageEvent> simpleSignTx(Transaction tx) {
 
-    // Explore the current tx outputs
-    for (TransactionOutput output : tx.getOutputs()) {
+    // Without the address paths the device cannot tell which inputs and outputs are its own
+    return simpleSignTx(new TxSigningSession(
+      tx,
+      Maps.<Integer, ImmutableList<ChildNumber>>newHashMap(),
+      Maps.<Address, ImmutableList<ChildNumber>>newHashMap()
+    ));
 
-      // Build a TxOutputType message
+  }
 
-      // Address
-      Address address = output.getAddressFromP2PKHScript(MainNetParams.get());
-      if (address == null) {
-        throw new IllegalArgumentException("'address' must be present");
-      }
-      // Is it pay-to-script-hash (P2SH) or pay-to-address (P2PKH)?
-      final KeepKeyType.OutputScriptType outputScriptType;
-      if (address.isP2SHAddress()) {
-        // Paying to "multisig" P2SH address (3...)
-        outputScriptType = KeepKeyType.OutputScriptType.PAYTOSCRIPTHASH;
-      } else {
-        // Paying to "standard" P2PKH address (1...)
-        outputScriptType = KeepKeyType.OutputScriptType.PAYTOADDRESS;
+  @Override
+  public Optional<MessageEvent> simpleSignTx(TxSigningSession session) {
+
+    Transaction tx = session.getTransaction();
+
+    KeepKeyMessage.SimpleSignTx.Builder builder = KeepKeyMessage.SimpleSignTx.newBuilder();
+    builder.setCoinName("Bitcoin");
+
+    // Explore the current tx inputs (each is described by the path to its receiving address)
+    for (int i = 0; i < tx.getInputs().size(); i++) {
+
+      List<Integer> addressN = Lists.newArrayList();
+      ImmutableList<ChildNumber> receivingAddressPath = session.getReceivingAddressPathMap().get(i);
+      if (receivingAddressPath != null) {
+        addressN = KeepKeyMessageUtils.buildAddressN(receivingAddressPath);
       }
 
-      KeepKeyType.TxOutputType txOutputType = KeepKeyType.TxOutputType
-        .newBuilder()
-        .setAddress(String.valueOf(address))
-        .setAmount(output.getValue().value)
-        .setScriptType(outputScriptType)
-        .build();
+      builder.addInputs(KeepKeyMessageUtils.buildTxInputType(tx.getInput(i), addressN));
+    }
 
-      builder.addOutputs(txOutputType);
+    // Explore the current tx outputs (known change addresses are described by their path)
+    for (int i = 0; i < tx.getOutputs().size(); i++) {
+      builder.addOutputs(KeepKeyMessageUtils.buildTxOutputType(tx.getOutput(i), i, session.getChangeAddressPathMap()));
     }
 
-    // Explore the current tx inputs
+    // Explore the current tx inputs (each parent is included once however many inputs spend it)
+    Set<Sha256Hash> includedParents = Sets.newHashSet();
     for (TransactionInput input : tx.getInputs()) {
 
       // Fail fast
@@ -269,49 +297,11 @@ public abstract class AbstractKeepKeyHardwareWalletClient implements HardwareWal
 
       // Get the previous Tx
       Transaction prevTx = input.getOutpoint().getConnectedOutput().getParentTransaction();
-
-      // Previous Tx builder
-      KeepKeyType.TransactionType.Builder prevBuilder = KeepKeyType.TransactionType.newBuilder();
-
-      // Explore the current tx inputs
-      for (TransactionInput prevInput : prevTx.getInputs()) {
-
-        // Build a TxInputType message
-
-        int prevIndex = (int) prevInput.getOutpoint().getIndex();
-        byte[] prevHash = prevInput.getOutpoint().getHash().getBytes();
-
-        // No multisig support in MBHD yet so all input scripts will be to addresses (P2PKH)
-        KeepKeyType.InputScriptType inputScriptType = KeepKeyType.InputScriptType.SPENDADDRESS;
-
-        KeepKeyType.TxInputType txInputType = KeepKeyType.TxInputType
-          .newBuilder()
-          .setSequence((int) prevInput.getSequenceNumber())
-          .setScriptSig(ByteString.copyFrom(prevInput.getScriptSig().getProgram()))
-          .setScriptType(inputScriptType)
-          .setPrevIndex(prevIndex)
-          .setPrevHash(ByteString.copyFrom(prevHash))
-          .build();
-
-        prevBuilder.addInputs(txInputType);
-      }
-
-      // Explore the current tx outputs
-      for (TransactionOutput prevOutput : prevTx.getOutputs()) {
-
-        // Build a TxOutputType message
-
-        KeepKeyType.TxOutputBinType txOutputBinType = KeepKeyType.TxOutputBinType
-          .newBuilder()
-          .setAmount(prevOutput.getValue().value)
-          .setScriptPubkey(ByteString.copyFrom(prevOutput.getScriptPubKey().getProgram()))
-          .build();
-
-        prevBuilder.addBinOutputs(txOutputBinType);
+      if (!includedParents.add(prevTx.getHash())) {
+        continue;
       }
 
-
-      builder.addTransactions(prevBuilder.build());
+      builder.addTransactions(KeepKeyMessageUtils.buildParentTransactionType(prevTx));
     }
 
 
@@ -326,55 +316,34 @@ public abstract class AbstractKeepKeyHardwareWalletClient implements HardwareWal
     Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap,
     Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
 
-    KeepKeyType.TransactionType txType = null;
-
-    // Get the transaction hash (if present)
-    Optional<byte[]> txHash = txRequest.getTxRequestDetailsType().getTxHash();
-
-    // Assume we're working with the current (child) transaction to start with
-    Optional<Transaction> requestedTx = Optional.of(tx);
+    return txAck(txRequest, new TxSigningSession(tx, receivingAddressPathMap, changeAddressPathMap));
 
-    // Check if the requested transaction is different to the current
-    boolean binOutputType = txHash.isPresent();
-    if (binOutputType) {
-      // Need to look up a transaction by hash
-      requestedTx = TransactionUtils.getTransactionByHash(tx, txHash.get());
+  }
 
-      // Check if the transaction was found
-      if (!requestedTx.isPresent()) {
-        log.error("Device requested unknown hash: {}", Utils.HEX.encode(txHash.get()));
-        throw new IllegalArgumentException("Device requested unknown hash.");
-      }
+  @Override
+  public Optional<MessageEvent> txAck(TxRequest txRequest, TxSigningSession session) {
 
+    // Use the plan built at the start of signing (or start one on demand)
+    KeepKeyTxResponsePlan plan = txResponsePlan.orNull();
+    if (plan == null || plan.getSession() != session) {
+      plan = new KeepKeyTxResponsePlan(session);
+      txResponsePlan = Optional.of(plan);
     }
 
-    // Have the required transaction at this point
-
-    switch (txRequest.getTxRequestType()) {
-      case TX_META:
-        txType = KeepKeyMessageUtils.buildTxMetaResponse(requestedTx);
-        break;
-      case TX_INPUT:
-        txType = KeepKeyMessageUtils.buildTxInputResponse(txRequest, requestedTx, binOutputType, receivingAddressPathMap);
-        break;
-      case TX_OUTPUT:
-        txType = KeepKeyMessageUtils.buildTxOutputResponse(txRequest, requestedTx, binOutputType, changeAddressPathMap);
-        break;
-      case TX_FINISHED:
-        log.info("TxSign workflow complete.");
-        break;
-      default:
-        log.error("Unknown TxReturnType: {}", txRequest.getTxRequestType().name());
-        return Optional.absent();
+    if (txRequest.getTxRequestType() == TxRequestType.TX_FINISHED) {
+      log.info("TxSign workflow complete.");
+      txResponsePlan = Optional.absent();
+      return Optional.absent();
     }
 
-    // Must have fully processed the message to be here
+    // Have the required response at this point (unknown hashes are rejected)
+    Optional<KeepKeyType.TransactionType> txType = plan.getResponse(txRequest);
 
-    if (txType != null) {
+    if (txType.isPresent()) {
       return sendMessage(
         KeepKeyMessage.TxAck
           .newBuilder()
-          .setTx(txType)
+          .setTx(txType.get())
           .build()
       );
     }
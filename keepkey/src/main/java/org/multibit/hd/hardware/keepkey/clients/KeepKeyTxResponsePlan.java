@@ -0,0 +1,60 @@
+package org.multibit.hd.hardware.keepkey.clients;
+
+import com.google.common.base.Optional;
+import com.keepkey.protobuf.KeepKeyType;
+import org.bitcoinj.core.Transaction;
+import org.multibit.hd.hardware.core.signing.AbstractTxResponsePlan;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
+import org.multibit.hd.hardware.keepkey.utils.KeepKeyMessageUtils;
+
+/**
+ * <p>Response plan to provide the following to KeepKey clients:</p>
+ * <ul>
+ * <li>Precomputed KeepKey TxAck payloads for a signing session</li>
+ * <li>Parent inputs and bin outputs taken from the encoded parent rather than rebuilt</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class KeepKeyTxResponsePlan extends AbstractTxResponsePlan<KeepKeyType.TransactionType> {
+
+  /**
+   * @param session The signing session
+   */
+  public KeepKeyTxResponsePlan(TxSigningSession session) {
+    super(session);
+  }
+
+  @Override
+  protected KeepKeyType.TransactionType buildMetaResponse(Transaction tx) {
+    return KeepKeyMessageUtils.buildTxMetaResponse(Optional.of(tx));
+  }
+
+  @Override
+  protected KeepKeyType.TransactionType buildParentTransaction(Transaction parentTx) {
+    return KeepKeyMessageUtils.buildParentTransactionType(parentTx);
+  }
+
+  @Override
+  protected KeepKeyType.TransactionType buildInputResponse(Transaction tx, int index, boolean binOutputType) {
+    if (binOutputType && index >= 0 && index < tx.getInputs().size()) {
+      return KeepKeyType.TransactionType
+        .newBuilder()
+        .addInputs(getEncodedParent(tx).getInputs(index))
+        .build();
+    }
+    return KeepKeyMessageUtils.buildTxInputResponse(index, tx, binOutputType, getSession().getReceivingAddressPathMap());
+  }
+
+  @Override
+  protected KeepKeyType.TransactionType buildOutputResponse(Transaction tx, int index, boolean binOutputType) {
+    if (binOutputType && index >= 0 && index < tx.getOutputs().size()) {
+      return KeepKeyType.TransactionType
+        .newBuilder()
+        .addBinOutputs(getEncodedParent(tx).getBinOutputs(index))
+        .build();
+    }
+    return KeepKeyMessageUtils.buildTxOutputResponse(index, tx, binOutputType, getSession().getChangeAddressPathMap());
+  }
+}
@@ -0,0 +1,341 @@
+package org.multibit.hd.hardware.sshagent;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.hd.hardware.core.HardwareWalletException;
+import org.multibit.hd.hardware.core.HardwareWalletService;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvent;
+import org.multibit.hd.hardware.core.events.HardwareWalletEvents;
+import org.multibit.hd.hardware.core.identity.IdentityCryptoService;
+import org.multibit.hd.hardware.core.identity.IdentityKeyService;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>Pipeline to provide the following to the SSH agent:</p>
+ * <ul>
+ * <li>A queue of sign identity and identity public key requests for a single device</li>
+ * <li>One request with the device at a time so concurrent SSH sessions never interrupt each other</li>
+ * </ul>
+ *
+ * <p>The device handles one use case at a time. Requests are therefore taken from the queue by a single
+ * worker which issues {@link HardwareWalletService#signIdentity(Identity)} and awaits the
+ * <code>SIGNED_IDENTITY</code> (or failure) event from this device before issuing the next. The device
+ * session, PIN and passphrase are retained by the service between requests. Identity public keys that are not
+ * yet cached are fetched through the same queue so they never replace a sign identity use case in flight.</p>
+ *
+ * <p>A <code>SIGNED_IDENTITY</code> event is only accepted if its signature is over the challenge of the request
+ * with the device so a late reply to an abandoned request is never returned for the next one. A request the
+ * device has not answered within the timeout is cancelled on the device before the next is issued.</p>
+ *
+ * <p>PIN, passphrase and button events continue to be delivered to the application as usual.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class IdentitySigningPipeline {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentitySigningPipeline.class);
+
+  /**
+   * Allows for the user to enter a PIN and confirm on the device
+   */
+  private static final long DEFAULT_TIMEOUT_SECONDS = 120;
+
+  /**
+   * Allows for the device to report the failure following a cancel
+   */
+  private static final long CANCEL_TIMEOUT_SECONDS = 5;
+
+  private final HardwareWalletService hardwareWalletService;
+
+  private final String source;
+
+  private final long timeoutSeconds;
+
+  private final ExecutorService worker;
+
+  /**
+   * The request currently with the device
+   */
+  private volatile SigningRequest current;
+
+  /**
+   * @param hardwareWalletService The hardware wallet service for the device
+   */
+  public IdentitySigningPipeline(HardwareWalletService hardwareWalletService) {
+    this(hardwareWalletService, DEFAULT_TIMEOUT_SECONDS);
+  }
+
+  /**
+   * @param hardwareWalletService The hardware wallet service for the device
+   * @param timeoutSeconds        The time allowed for the device (and the user) to sign each request
+   */
+  public IdentitySigningPipeline(HardwareWalletService hardwareWalletService, long timeoutSeconds) {
+
+    Preconditions.checkNotNull(hardwareWalletService, "'hardwareWalletService' must be present");
+    Preconditions.checkArgument(timeoutSeconds > 0, "'timeoutSeconds' must be positive");
+
+    this.hardwareWalletService = hardwareWalletService;
+    this.source = hardwareWalletService.getContext().getClient().name();
+    this.timeoutSeconds = timeoutSeconds;
+    this.worker = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder()
+        .setNameFormat("identity-signing-" + source + "-%d")
+        .setDaemon(true)
+        .build()
+    );
+  }
+
+  /**
+   * <p>Start receiving events from the device</p>
+   */
+  public void start() {
+    HardwareWalletEvents.subscribe(this);
+  }
+
+  /**
+   * <p>Stop receiving events and abandon any queued requests (their futures are cancelled)</p>
+   */
+  public void stop() {
+
+    HardwareWalletEvents.unsubscribe(this);
+    for (Runnable queued : worker.shutdownNow()) {
+      if (queued instanceof PipelineTask) {
+        ((PipelineTask<?>) queued).result.cancel(false);
+      }
+    }
+
+    SigningRequest inFlight = current;
+    if (inFlight != null) {
+      inFlight.outcome.setException(new HardwareWalletException("Signing pipeline stopped"));
+    }
+
+  }
+
+  /**
+   * @param identity The identity (with the challenge) to sign
+   *
+   * @return A future providing the signed identity once the device has signed it
+   */
+  public ListenableFuture<SignedIdentity> sign(final Identity identity) {
+
+    Preconditions.checkNotNull(identity, "'identity' must be present");
+
+    PipelineTask<SignedIdentity> task = new PipelineTask<SignedIdentity>() {
+      @Override
+      protected void execute() {
+
+        SigningRequest request = new SigningRequest(identity);
+        current = request;
+
+        try {
+          hardwareWalletService.signIdentity(identity);
+          await(request.outcome);
+        } finally {
+          current = null;
+        }
+
+      }
+    };
+    worker.execute(task);
+
+    return task.result;
+  }
+
+  /**
+   * <p>Provide the identity public key, fetching it from the device in turn with any sign requests</p>
+   *
+   * @param identityKeyService The identity key service for the device
+   * @param identityUri        The identity URI
+   * @param index              The index of the identity
+   * @param ecdsaCurveName     The ECDSA curve name
+   *
+   * @return A future providing the identity public key
+   */
+  public ListenableFuture<byte[]> requestPublicKey(
+    final IdentityKeyService identityKeyService,
+    final URI identityUri,
+    final int index,
+    final String ecdsaCurveName) {
+
+    Preconditions.checkNotNull(identityKeyService, "'identityKeyService' must be present");
+
+    // Cached keys need no device round trip so are not queued
+    Optional<byte[]> cached = identityKeyService.getCachedPublicKey(identityUri, index, ecdsaCurveName);
+    if (cached.isPresent()) {
+      return Futures.immediateFuture(cached.get());
+    }
+
+    PipelineTask<byte[]> task = new PipelineTask<byte[]>() {
+      @Override
+      protected void execute() {
+        await(identityKeyService.getPublicKeyForIdentity(identityUri, index, ecdsaCurveName));
+      }
+    };
+    worker.execute(task);
+
+    return task.result;
+  }
+
+  /**
+   * <p>Cancel a request the device has not answered and await the resulting failure so it cannot be taken
+   * as the outcome of the next request</p>
+   *
+   * @param outcome The outcome of the request with the device
+   */
+  private void cancel(Future<?> outcome) {
+
+    hardwareWalletService.requestCancel();
+
+    try {
+      outcome.get(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      log.debug("Device reported cancel as: {}", e.getClass().getSimpleName());
+    }
+
+  }
+
+  /**
+   * @param event The hardware wallet event
+   */
+  @Subscribe
+  public void onHardwareWalletEvent(HardwareWalletEvent event) {
+
+    SigningRequest request = current;
+    if (request == null || !source.equals(event.getSource())) {
+      return;
+    }
+
+    switch (event.getEventType()) {
+      case SIGNED_IDENTITY:
+        if (!event.getMessage().isPresent() || !(event.getMessage().get() instanceof SignedIdentity)) {
+          break;
+        }
+        SignedIdentity signedIdentity = (SignedIdentity) event.getMessage().get();
+        if (isSignatureOverChallenge(request.identity, signedIdentity)) {
+          request.outcome.set(signedIdentity);
+        } else {
+          log.warn("Ignoring signed identity that does not match the request with the device");
+        }
+        break;
+      case SHOW_OPERATION_FAILED:
+      case SHOW_DEVICE_FAILED:
+      case SHOW_DEVICE_DETACHED:
+      case SHOW_DEVICE_STOPPED:
+        request.outcome.setException(new HardwareWalletException("Identity not signed: " + event.getEventType().name()));
+        break;
+      default:
+        // Ignore
+    }
+
+  }
+
+  /**
+   * @param identity       The identity presented to the device
+   * @param signedIdentity The result from the device
+   *
+   * @return True if the signature is over the challenge of the identity
+   */
+  private static boolean isSignatureOverChallenge(Identity identity, SignedIdentity signedIdentity) {
+
+    if (!"ssh".equals(identity.getProto())) {
+      return IdentityCryptoService.getInstance().verify(identity, signedIdentity);
+    }
+
+    if (!signedIdentity.getPublicKeyBytes().isPresent() || !signedIdentity.getSignatureBytes().isPresent()) {
+      return false;
+    }
+
+    // The device signs the SSH session data (the hidden challenge) directly
+    try {
+      return IdentityCryptoService.getInstance().verify(
+        signedIdentity.getPublicKeyBytes().get(),
+        identity.getChallengeHidden(),
+        IdentityCryptoService.toDerSignature(signedIdentity.getSignatureBytes().get())
+      );
+    } catch (GeneralSecurityException e) {
+      log.debug("Identity signature could not be verified: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Request taken from the queue by the worker with the result provided to the caller
+   *
+   * @param <T> The type of the result
+   */
+  private abstract class PipelineTask<T> implements Runnable {
+
+    private final SettableFuture<T> result = SettableFuture.create();
+
+    @Override
+    public void run() {
+
+      try {
+        execute();
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+
+    }
+
+    /**
+     * <p>Issue the request to the device and {@link #await(Future)} its outcome</p>
+     */
+    protected abstract void execute();
+
+    /**
+     * @param outcome The outcome of the request with the device
+     */
+    protected void await(Future<T> outcome) {
+
+      try {
+        result.set(outcome.get(timeoutSeconds, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        result.setException(e);
+      } catch (ExecutionException e) {
+        result.setException(e.getCause());
+      } catch (TimeoutException e) {
+        log.warn("Device did not respond within {} seconds", timeoutSeconds);
+        cancel(outcome);
+        result.setException(e);
+      }
+
+    }
+  }
+
+  /**
+   * Sign identity request with the outcome reported by the device
+   */
+  private static class SigningRequest {
+
+    private final Identity identity;
+
+    private final SettableFuture<SignedIdentity> outcome = SettableFuture.create();
+
+    private SigningRequest(Identity identity) {
+      this.identity = identity;
+    }
+  }
+
+}
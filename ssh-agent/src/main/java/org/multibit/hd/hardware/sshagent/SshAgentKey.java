@@ -0,0 +1,147 @@
+package org.multibit.hd.hardware.sshagent;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.multibit.hd.hardware.core.domain.Identity;
+import org.multibit.hd.hardware.core.identity.IdentityCryptoService;
+import org.multibit.hd.hardware.core.identity.IdentityKeyService;
+import org.multibit.hd.hardware.core.utils.IdentityUtils;
+import org.spongycastle.util.encoders.Base64;
+
+import java.net.URI;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+/**
+ * <p>Key to provide the following to the SSH agent:</p>
+ * <ul>
+ * <li>The binding of an SSH identity to a device identity (URI and index)</li>
+ * <li>The public key blob from the cached identity public key</li>
+ * <li>Signing through the signing pipeline of the device</li>
+ * </ul>
+ *
+ * <p>Call {@link #requestPublicKey()} once the device is ready so the key can be listed without a device
+ * round trip.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SshAgentKey {
+
+  /**
+   * SSH uses the NIST P-256 curve
+   */
+  public static final String ECDSA_CURVE_NAME = "nist256p1";
+
+  /**
+   * The largest challenge the device accepts
+   */
+  public static final int MAXIMUM_CHALLENGE_BYTES = 256;
+
+  private final URI identityUri;
+  private final int index;
+  private final String comment;
+  private final IdentityKeyService identityKeyService;
+  private final IdentitySigningPipeline signingPipeline;
+
+  /**
+   * The public key the blob was built from
+   */
+  private volatile byte[] blobPublicKey;
+  private volatile byte[] keyBlob;
+
+  /**
+   * @param identityUri        The identity URI (e.g. "ssh://user@example.org")
+   * @param index              The index of the identity
+   * @param comment            The comment presented to SSH clients
+   * @param identityKeyService The identity key service for the device
+   * @param signingPipeline    The signing pipeline for the device
+   */
+  public SshAgentKey(
+    URI identityUri,
+    int index,
+    String comment,
+    IdentityKeyService identityKeyService,
+    IdentitySigningPipeline signingPipeline) {
+
+    Preconditions.checkNotNull(identityUri, "'identityUri' must be present");
+    Preconditions.checkNotNull(comment, "'comment' must be present");
+    Preconditions.checkNotNull(identityKeyService, "'identityKeyService' must be present");
+    Preconditions.checkNotNull(signingPipeline, "'signingPipeline' must be present");
+
+    this.identityUri = identityUri;
+    this.index = index;
+    this.comment = comment;
+    this.identityKeyService = identityKeyService;
+    this.signingPipeline = signingPipeline;
+  }
+
+  public URI getIdentityUri() {
+    return identityUri;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  public IdentitySigningPipeline getSigningPipeline() {
+    return signingPipeline;
+  }
+
+  /**
+   * @return A future providing the identity public key (from the cache or the device through the signing pipeline)
+   */
+  public ListenableFuture<byte[]> requestPublicKey() {
+    return signingPipeline.requestPublicKey(identityKeyService, identityUri, index, ECDSA_CURVE_NAME);
+  }
+
+  /**
+   * @return The ecdsa-sha2-nistp256 public key blob, absent if the identity public key has not been cached
+   */
+  public Optional<byte[]> getKeyBlob() {
+
+    Optional<byte[]> publicKey = identityKeyService.getCachedPublicKey(identityUri, index, ECDSA_CURVE_NAME);
+    if (!publicKey.isPresent()) {
+      return Optional.absent();
+    }
+
+    if (keyBlob == null || !Arrays.equals(blobPublicKey, publicKey.get())) {
+      try {
+        String base64Blob = IdentityUtils.decompressSSHKeyFromNistp256(IdentityCryptoService.getInstance().getPublicKey(publicKey.get()));
+        keyBlob = Base64.decode(base64Blob);
+        blobPublicKey = publicKey.get();
+      } catch (InvalidKeySpecException e) {
+        return Optional.absent();
+      }
+    }
+
+    return Optional.of(keyBlob);
+  }
+
+  /**
+   * @param data The data from the SSH sign request
+   *
+   * @return The identity to present to the device with the data as the hidden challenge
+   */
+  public Identity buildIdentity(byte[] data) {
+
+    Preconditions.checkArgument(data.length <= MAXIMUM_CHALLENGE_BYTES, "'data' must be 256 bytes or less");
+
+    return new Identity(identityUri, index, data, "", ECDSA_CURVE_NAME);
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringBuilder(this)
+      .append("identityUri", identityUri)
+      .append("index", index)
+      .append("comment", comment)
+      .toString();
+  }
+}
@@ -0,0 +1,241 @@
+package org.multibit.hd.hardware.sshagent;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.multibit.hd.hardware.core.utils.IdentityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Utility class to provide the following to the SSH agent:</p>
+ * <ul>
+ * <li>Framing of SSH agent protocol messages (uint32 length followed by the message)</li>
+ * <li>Encoding of identity answers, sign responses and failures</li>
+ * <li>Conversion of device identity signatures into SSH signature blobs</li>
+ * </ul>
+ *
+ * <p>See draft-miller-ssh-agent for the wire protocol.</p>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SshAgentMessages {
+
+  public static final byte SSH_AGENT_FAILURE = 5;
+  public static final byte SSH_AGENTC_REQUEST_IDENTITIES = 11;
+  public static final byte SSH_AGENT_IDENTITIES_ANSWER = 12;
+  public static final byte SSH_AGENTC_SIGN_REQUEST = 13;
+  public static final byte SSH_AGENT_SIGN_RESPONSE = 14;
+
+  /**
+   * Guards against a corrupt length field causing a huge allocation (OpenSSH uses the same limit)
+   */
+  public static final int MAXIMUM_MESSAGE_SIZE = 256 * 1024;
+
+  /**
+   * Size of each of the R and S components of a P-256 signature
+   */
+  private static final int COMPONENT_BYTES = 32;
+
+  /**
+   * Utilities have private constructors
+   */
+  private SshAgentMessages() {
+  }
+
+  /**
+   * @param in The input stream
+   *
+   * @return The message (type followed by contents)
+   *
+   * @throws EOFException If the client closed the connection
+   * @throws IOException  If the message is malformed
+   */
+  public static byte[] readMessage(InputStream in) throws IOException {
+
+    DataInputStream dataIn = new DataInputStream(in);
+
+    int length = dataIn.readInt();
+    if (length <= 0 || length > MAXIMUM_MESSAGE_SIZE) {
+      throw new IOException("Invalid message length " + length);
+    }
+
+    byte[] message = new byte[length];
+    dataIn.readFully(message);
+
+    return message;
+  }
+
+  /**
+   * @param out     The output stream
+   * @param message The message (type followed by contents)
+   *
+   * @throws IOException If the message cannot be written
+   */
+  public static void writeMessage(OutputStream out, byte[] message) throws IOException {
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(message.length);
+    dataOut.write(message);
+    dataOut.flush();
+
+  }
+
+  /**
+   * @return The SSH_AGENT_FAILURE message
+   */
+  public static byte[] buildFailure() {
+    return new byte[]{SSH_AGENT_FAILURE};
+  }
+
+  /**
+   * @param keyBlobs The public key blobs
+   * @param comments The corresponding comments
+   *
+   * @return The SSH_AGENT_IDENTITIES_ANSWER message
+   */
+  public static byte[] buildIdentitiesAnswer(List<byte[]> keyBlobs, List<String> comments) {
+
+    Preconditions.checkArgument(keyBlobs.size() == comments.size(), "'keyBlobs' and 'comments' must be the same size");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(SSH_AGENT_IDENTITIES_ANSWER);
+    writeUint32(baos, keyBlobs.size());
+    for (int i = 0; i < keyBlobs.size(); i++) {
+      writeString(baos, keyBlobs.get(i));
+      writeString(baos, comments.get(i).getBytes(Charsets.UTF_8));
+    }
+
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param signatureBlob The SSH signature blob
+   *
+   * @return The SSH_AGENT_SIGN_RESPONSE message
+   */
+  public static byte[] buildSignResponse(byte[] signatureBlob) {
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(SSH_AGENT_SIGN_RESPONSE);
+    writeString(baos, signatureBlob);
+
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param message The SSH_AGENTC_SIGN_REQUEST message
+   *
+   * @return The key blob and data to sign
+   *
+   * @throws IOException If the message is malformed
+   */
+  public static SignRequest parseSignRequest(byte[] message) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.wrap(message);
+    if (buffer.get() != SSH_AGENTC_SIGN_REQUEST) {
+      throw new IOException("Not a sign request");
+    }
+
+    byte[] keyBlob = readString(buffer);
+    byte[] data = readString(buffer);
+    int flags = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+
+    return new SignRequest(keyBlob, data, flags);
+  }
+
+  /**
+   * @param deviceSignature The identity signature from the device (R and S optionally preceded by a header byte)
+   *
+   * @return The ecdsa-sha2-nistp256 signature blob
+   */
+  public static byte[] buildSignatureBlob(byte[] deviceSignature) {
+
+    Preconditions.checkNotNull(deviceSignature, "'deviceSignature' must be present");
+    Preconditions.checkArgument(
+      deviceSignature.length == 2 * COMPONENT_BYTES || deviceSignature.length == 2 * COMPONENT_BYTES + 1,
+      "'deviceSignature' must be 64 or 65 bytes"
+    );
+
+    int offset = deviceSignature.length - 2 * COMPONENT_BYTES;
+    BigInteger r = new BigInteger(1, Arrays.copyOfRange(deviceSignature, offset, offset + COMPONENT_BYTES));
+    BigInteger s = new BigInteger(1, Arrays.copyOfRange(deviceSignature, offset + COMPONENT_BYTES, offset + 2 * COMPONENT_BYTES));
+
+    // Signature is itself a string of mpint R and mpint S
+    ByteArrayOutputStream rs = new ByteArrayOutputStream();
+    writeString(rs, r.toByteArray());
+    writeString(rs, s.toByteArray());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeString(baos, IdentityUtils.KEY_PREFIX.getBytes(Charsets.UTF_8));
+    writeString(baos, rs.toByteArray());
+
+    return baos.toByteArray();
+  }
+
+  private static void writeUint32(ByteArrayOutputStream baos, int value) {
+    baos.write(value >>> 24);
+    baos.write(value >>> 16);
+    baos.write(value >>> 8);
+    baos.write(value);
+  }
+
+  private static void writeString(ByteArrayOutputStream baos, byte[] value) {
+    writeUint32(baos, value.length);
+    baos.write(value, 0, value.length);
+  }
+
+  private static byte[] readString(ByteBuffer buffer) throws IOException {
+
+    if (buffer.remaining() < 4) {
+      throw new IOException("Truncated string length");
+    }
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Truncated string");
+    }
+
+    byte[] value = new byte[length];
+    buffer.get(value);
+    return value;
+  }
+
+  /**
+   * Parsed SSH_AGENTC_SIGN_REQUEST
+   */
+  public static class SignRequest {
+
+    private final byte[] keyBlob;
+    private final byte[] data;
+    private final int flags;
+
+    public SignRequest(byte[] keyBlob, byte[] data, int flags) {
+      this.keyBlob = keyBlob;
+      this.data = data;
+      this.flags = flags;
+    }
+
+    public byte[] getKeyBlob() {
+      return keyBlob;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+  }
+
+}
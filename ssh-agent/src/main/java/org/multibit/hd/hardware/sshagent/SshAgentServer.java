@@ -0,0 +1,291 @@
+package org.multibit.hd.hardware.sshagent;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.multibit.hd.hardware.core.messages.SignedIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Server to provide the following to SSH clients:</p>
+ * <ul>
+ * <li>The SSH agent protocol on a loopback socket</li>
+ * <li>Identity listing answered from the cached identity public keys (any missing are fetched through the signing pipeline)</li>
+ * <li>Sign requests routed to the signing pipeline of the device holding the key</li>
+ * </ul>
+ *
+ * <p>Each connection is served on its own thread so many SSH sessions can be open at once. Sign
+ * requests for the same device are queued by its {@link IdentitySigningPipeline}.</p>
+ *
+ * <p>Java 7 has no UNIX domain sockets so the agent listens on the loopback interface only. OpenSSH
+ * expects <code>SSH_AUTH_SOCK</code> to be a UNIX socket so bridge to it, for example:</p>
+ * <pre>
+ * socat UNIX-LISTEN:$SSH_AUTH_SOCK,fork TCP:127.0.0.1:&lt;port&gt;
+ * </pre>
+ *
+ * @since 0.8.0
+ *
+ */
+public class SshAgentServer {
+
+  private static final Logger log = LoggerFactory.getLogger(SshAgentServer.class);
+
+  private final List<SshAgentKey> keys;
+
+  private final ExecutorService connectionExecutorService = Executors.newCachedThreadPool(
+    new ThreadFactoryBuilder()
+      .setNameFormat("ssh-agent-connection-%d")
+      .setDaemon(true)
+      .build()
+  );
+
+  /**
+   * Open client connections (closed on stop since interrupting a thread does not unblock a socket read)
+   */
+  private final Set<Socket> connections = Collections.newSetFromMap(Maps.<Socket, Boolean>newConcurrentMap());
+
+  private Optional<ServerSocket> serverSocket = Optional.absent();
+
+  /**
+   * @param keys The keys offered to SSH clients
+   */
+  public SshAgentServer(List<SshAgentKey> keys) {
+
+    Preconditions.checkNotNull(keys, "'keys' must be present");
+
+    this.keys = ImmutableList.copyOf(keys);
+  }
+
+  /**
+   * @param port The loopback port (0 to choose a free port)
+   *
+   * @return The port the agent is listening on
+   *
+   * @throws IOException If the port cannot be bound
+   */
+  public synchronized int start(int port) throws IOException {
+
+    Preconditions.checkState(!serverSocket.isPresent(), "Server is already started");
+
+    final ServerSocket socket = new ServerSocket();
+    socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    serverSocket = Optional.of(socket);
+
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept(socket);
+      }
+    }, "ssh-agent-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    log.info("SSH agent listening on {}", socket.getLocalSocketAddress());
+
+    return socket.getLocalPort();
+  }
+
+  /**
+   * <p>Stop accepting connections and close those that are open</p>
+   */
+  public synchronized void stop() {
+
+    if (serverSocket.isPresent()) {
+      try {
+        serverSocket.get().close();
+      } catch (IOException e) {
+        log.warn("Could not close SSH agent socket", e);
+      }
+      serverSocket = Optional.absent();
+    }
+
+    for (Socket connection : connections) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        log.warn("Could not close SSH agent connection", e);
+      }
+    }
+
+    connectionExecutorService.shutdownNow();
+
+  }
+
+  /**
+   * @param message The request (type followed by contents)
+   *
+   * @return The response (type followed by contents)
+   */
+  public byte[] handleMessage(byte[] message) {
+
+    switch (message[0]) {
+      case SshAgentMessages.SSH_AGENTC_REQUEST_IDENTITIES:
+        return handleRequestIdentities();
+      case SshAgentMessages.SSH_AGENTC_SIGN_REQUEST:
+        return handleSignRequest(message);
+      default:
+        log.debug("Unsupported SSH agent message type {}", message[0]);
+        return SshAgentMessages.buildFailure();
+    }
+
+  }
+
+  private byte[] handleRequestIdentities() {
+
+    List<byte[]> keyBlobs = Lists.newArrayList();
+    List<String> comments = Lists.newArrayList();
+    for (SshAgentKey key : keys) {
+      Optional<byte[]> keyBlob = key.getKeyBlob();
+      if (!keyBlob.isPresent() && awaitPublicKey(key)) {
+        keyBlob = key.getKeyBlob();
+      }
+      if (keyBlob.isPresent()) {
+        keyBlobs.add(keyBlob.get());
+        comments.add(key.getComment());
+      }
+    }
+
+    return SshAgentMessages.buildIdentitiesAnswer(keyBlobs, comments);
+  }
+
+  /**
+   * @param key The key
+   *
+   * @return True if the identity public key was provided by the device
+   */
+  private boolean awaitPublicKey(SshAgentKey key) {
+
+    try {
+      key.requestPublicKey().get();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | RuntimeException e) {
+      log.debug("Identity public key not available for {}: {}", key, e.getMessage());
+      return false;
+    }
+
+  }
+
+  private byte[] handleSignRequest(byte[] message) {
+
+    SshAgentMessages.SignRequest signRequest;
+    try {
+      signRequest = SshAgentMessages.parseSignRequest(message);
+    } catch (IOException e) {
+      log.warn("Malformed sign request: {}", e.getMessage());
+      return SshAgentMessages.buildFailure();
+    }
+
+    Optional<SshAgentKey> key = findKey(signRequest.getKeyBlob());
+    if (!key.isPresent()) {
+      log.debug("Sign request for an unknown key");
+      return SshAgentMessages.buildFailure();
+    }
+
+    if (signRequest.getData().length > SshAgentKey.MAXIMUM_CHALLENGE_BYTES) {
+      log.warn("Sign request data is {} bytes which exceeds the device limit", signRequest.getData().length);
+      return SshAgentMessages.buildFailure();
+    }
+
+    try {
+      SignedIdentity signedIdentity = key.get()
+        .getSigningPipeline()
+        .sign(key.get().buildIdentity(signRequest.getData()))
+        .get();
+
+      if (!signedIdentity.getSignatureBytes().isPresent()) {
+        return SshAgentMessages.buildFailure();
+      }
+
+      return SshAgentMessages.buildSignResponse(SshAgentMessages.buildSignatureBlob(signedIdentity.getSignatureBytes().get()));
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return SshAgentMessages.buildFailure();
+    } catch (ExecutionException | RuntimeException e) {
+      log.warn("Identity signing failed for {}", key.get(), e);
+      return SshAgentMessages.buildFailure();
+    }
+
+  }
+
+  private Optional<SshAgentKey> findKey(byte[] keyBlob) {
+
+    for (SshAgentKey key : keys) {
+      Optional<byte[]> candidate = key.getKeyBlob();
+      if (candidate.isPresent() && Arrays.equals(candidate.get(), keyBlob)) {
+        return Optional.of(key);
+      }
+    }
+
+    return Optional.absent();
+  }
+
+  private void accept(ServerSocket socket) {
+
+    while (!socket.isClosed()) {
+      try {
+        final Socket connection = socket.accept();
+        connections.add(connection);
+        connectionExecutorService.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(connection);
+          }
+        });
+      } catch (SocketException e) {
+        // Closed by stop()
+        break;
+      } catch (IOException e) {
+        log.warn("Could not accept SSH agent connection", e);
+      }
+    }
+
+  }
+
+  private void serve(Socket connection) {
+
+    try (Socket closeable = connection) {
+
+      InputStream in = closeable.getInputStream();
+      OutputStream out = closeable.getOutputStream();
+
+      while (!Thread.currentThread().isInterrupted()) {
+        byte[] request = SshAgentMessages.readMessage(in);
+        SshAgentMessages.writeMessage(out, handleMessage(request));
+      }
+
+    } catch (EOFException e) {
+      // Client has finished
+    } catch (IOException e) {
+      log.debug("SSH agent connection closed: {}", e.getMessage());
+    } finally {
+      connections.remove(connection);
+    }
+
+  }
+
+}
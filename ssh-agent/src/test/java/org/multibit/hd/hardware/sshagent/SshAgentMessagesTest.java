@@ -0,0 +1,118 @@
+package org.multibit.hd.hardware.sshagent;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SshAgentMessagesTest {
+
+  @Test
+  public void testFraming() throws Exception {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SshAgentMessages.writeMessage(out, new byte[]{SshAgentMessages.SSH_AGENTC_REQUEST_IDENTITIES});
+    SshAgentMessages.writeMessage(out, SshAgentMessages.buildFailure());
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertThat(SshAgentMessages.readMessage(in)).isEqualTo(new byte[]{SshAgentMessages.SSH_AGENTC_REQUEST_IDENTITIES});
+    assertThat(SshAgentMessages.readMessage(in)).isEqualTo(new byte[]{SshAgentMessages.SSH_AGENT_FAILURE});
+
+    try {
+      SshAgentMessages.readMessage(in);
+    } catch (EOFException e) {
+      return;
+    }
+    throw new AssertionError("Expected end of stream");
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testOversizedMessage() throws Exception {
+
+    byte[] frame = ByteBuffer.allocate(4).putInt(SshAgentMessages.MAXIMUM_MESSAGE_SIZE + 1).array();
+
+    SshAgentMessages.readMessage(new ByteArrayInputStream(frame));
+
+  }
+
+  @Test
+  public void testIdentitiesAnswer() throws Exception {
+
+    byte[] answer = SshAgentMessages.buildIdentitiesAnswer(
+      Lists.newArrayList(new byte[]{1, 2, 3}),
+      Lists.newArrayList("user1")
+    );
+
+    ByteBuffer buffer = ByteBuffer.wrap(answer);
+    assertThat(buffer.get()).isEqualTo(SshAgentMessages.SSH_AGENT_IDENTITIES_ANSWER);
+    assertThat(buffer.getInt()).isEqualTo(1);
+    assertThat(buffer.getInt()).isEqualTo(3);
+    buffer.position(buffer.position() + 3);
+    assertThat(buffer.getInt()).isEqualTo(5);
+    assertThat(buffer.remaining()).isEqualTo(5);
+
+  }
+
+  @Test
+  public void testParseSignRequest() throws Exception {
+
+    ByteBuffer request = ByteBuffer.allocate(1 + 4 + 2 + 4 + 3 + 4);
+    request.put(SshAgentMessages.SSH_AGENTC_SIGN_REQUEST);
+    request.putInt(2).put(new byte[]{9, 8});
+    request.putInt(3).put(new byte[]{7, 6, 5});
+    request.putInt(0);
+
+    SshAgentMessages.SignRequest signRequest = SshAgentMessages.parseSignRequest(request.array());
+
+    assertThat(signRequest.getKeyBlob()).isEqualTo(new byte[]{9, 8});
+    assertThat(signRequest.getData()).isEqualTo(new byte[]{7, 6, 5});
+    assertThat(signRequest.getFlags()).isEqualTo(0);
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedSignRequest() throws Exception {
+
+    ByteBuffer request = ByteBuffer.allocate(1 + 4 + 1);
+    request.put(SshAgentMessages.SSH_AGENTC_SIGN_REQUEST);
+    request.putInt(10).put((byte) 1);
+
+    SshAgentMessages.parseSignRequest(request.array());
+
+  }
+
+  @Test
+  public void testSignatureBlob() throws Exception {
+
+    // Header byte, R with the high bit set and S with a leading zero
+    byte[] deviceSignature = new byte[65];
+    Arrays.fill(deviceSignature, 1, 33, (byte) 0x80);
+    Arrays.fill(deviceSignature, 34, 65, (byte) 0x01);
+
+    ByteBuffer blob = ByteBuffer.wrap(SshAgentMessages.buildSignatureBlob(deviceSignature));
+
+    byte[] keyType = new byte[blob.getInt()];
+    blob.get(keyType);
+    assertThat(new String(keyType, "UTF-8")).isEqualTo("ecdsa-sha2-nistp256");
+
+    assertThat(blob.getInt()).isEqualTo(4 + 33 + 4 + 31);
+
+    // R is padded so it remains positive
+    assertThat(blob.getInt()).isEqualTo(33);
+    assertThat(blob.get()).isEqualTo((byte) 0);
+    blob.position(blob.position() + 32);
+
+    // S is minimal
+    assertThat(blob.getInt()).isEqualTo(31);
+
+  }
+
+}
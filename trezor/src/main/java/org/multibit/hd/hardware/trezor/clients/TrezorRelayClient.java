@@ -2,22 +2,33 @@ package org.multibit.hd.hardware.trezor.clients;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Message;
+import com.satoshilabs.trezor.protobuf.TrezorMessage;
 import org.multibit.commons.concurrent.SafeExecutors;
 import org.multibit.hd.hardware.core.HardwareWalletException;
 import org.multibit.hd.hardware.core.events.MessageEvent;
 import org.multibit.hd.hardware.core.events.MessageEventType;
 import org.multibit.hd.hardware.core.events.MessageEvents;
 import org.multibit.hd.hardware.core.messages.Features;
+import org.multibit.hd.hardware.core.relay.RelayControlMessages;
+import org.multibit.hd.hardware.core.relay.RelayDeviceStatus;
+import org.multibit.hd.hardware.core.relay.RelayFrame;
+import org.multibit.hd.hardware.core.relay.RelayFrameDecoder;
+import org.multibit.hd.hardware.core.relay.RelayProtocol;
 import org.multibit.hd.hardware.trezor.utils.TrezorMessageUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Client to provide the following to applications:</p>
@@ -25,6 +36,10 @@ import java.util.concurrent.TimeUnit;
  * <li>A client that enables communication of Trezor wire messages with a remote Trezor. Locally you
  * generate and consume Trezor messages. These are 'teleported' to a remote machine where a physical Trezor is.</li>
  * <li>The RelayClient talks to a RelayServer on a remote machine via a ServerSocket</li>
+ * <li>The RelayServer may have several devices attached so the RelayClient requests an exclusive session on a
+ * device (by serial number or any device) and is queued until it becomes available</li>
+ * <li>Relay protocol v2 (one length prefixed frame per message) when the server supports it, otherwise
+ * emulated HID packets</li>
  * </ul>
  *
  * @since 0.0.1
@@ -34,6 +49,11 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
 
   private static final Logger log = LoggerFactory.getLogger(TrezorRelayClient.class);
 
+  /**
+   * How long to wait for the server to accept relay protocol v2 before falling back to HID packets
+   */
+  private static final int NEGOTIATION_TIMEOUT_MILLIS = 2000;
+
   /**
    * The location of the RelayServer (an IP address or server name
    */
@@ -44,6 +64,31 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
    */
   private final int relayServerPort;
 
+  /**
+   * The serial number of the remote device, absent for any device
+   */
+  private final Optional<String> serialNumber;
+
+  /**
+   * The most recent device availability reported by the server
+   */
+  private volatile List<RelayDeviceStatus> deviceStatus = ImmutableList.of();
+
+  /**
+   * The wire format negotiated with the server
+   */
+  private volatile RelayProtocol protocol = RelayProtocol.HID_PACKETS;
+
+  /**
+   * The relay device ID of the session (0 until granted or if the server only speaks HID packets)
+   */
+  private volatile int deviceId = 0;
+
+  /**
+   * The sequence number of the last frame sent to the server
+   */
+  private final AtomicInteger sequence = new AtomicInteger();
+
   /**
    * The socket connection to the server
    */
@@ -68,8 +113,48 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
    * @param relayServerPort     The port number of the server
    */
   public TrezorRelayClient(String relayServerLocation, int relayServerPort) {
+    this(relayServerLocation, relayServerPort, Optional.<String>absent());
+  }
+
+  /**
+   * @param relayServerLocation The location of the RelayServer
+   * @param relayServerPort     The port number of the server
+   * @param serialNumber        The serial number of the remote device (absent for the first available device)
+   */
+  public TrezorRelayClient(String relayServerLocation, int relayServerPort, Optional<String> serialNumber) {
+
+    Preconditions.checkNotNull(serialNumber, "'serialNumber' must be present");
+
     this.relayServerLocation = relayServerLocation;
     this.relayServerPort = relayServerPort;
+    this.serialNumber = serialNumber;
+  }
+
+  /**
+   * @return The most recent device availability reported by the server (see {@link #requestDeviceStatus()})
+   */
+  public List<RelayDeviceStatus> getDeviceStatus() {
+    return deviceStatus;
+  }
+
+  /**
+   * <p>Ask the server for the device availability (it also reports changes as they happen)</p>
+   *
+   * <p>Older servers (HID packets) have no device listing so the request is not sent.</p>
+   */
+  public void requestDeviceStatus() {
+
+    if (protocol != RelayProtocol.LENGTH_PREFIXED) {
+      log.debug("Relay server does not support device listing");
+      return;
+    }
+
+    try {
+      writeFrame(RelayControlMessages.buildListDevices());
+    } catch (IOException e) {
+      log.warn("I/O error during write.", e);
+    }
+
   }
 
   @Override
@@ -81,6 +166,10 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
   public boolean attach() {
     try {
       socket = new Socket(relayServerLocation, relayServerPort);
+      protocol = negotiate();
+      deviceId = 0;
+      sequence.set(0);
+
       outputToServer = new BufferedOutputStream(socket.getOutputStream(), 1024);
       inputFromServer = new BufferedInputStream(socket.getInputStream(), 1024);
 
@@ -89,6 +178,11 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
       // Start the monitoring service
       monitorServer(inputFromServer);
 
+      // Queue for a session on the device (older servers have no control messages and grant one on the first message)
+      if (protocol == RelayProtocol.LENGTH_PREFIXED) {
+        writeFrame(RelayControlMessages.buildAcquire(serialNumber));
+      }
+
       return true;
     } catch (UnknownHostException e) {
       log.error("Unknown host '{}'", relayServerLocation, e);
@@ -187,13 +281,42 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
 
       @Override
       public void run() {
+
+        RelayFrameDecoder decoder = protocol.newDecoder();
+        byte[] buffer = new byte[1024];
+
         while (true) {
           try {
-            // Blocking read to get the client message (e.g. "Initialize") formatted as HID packets for simplicity
+            // Blocking read to get the server messages (e.g. "Features") in the negotiated format
             log.debug("Waiting for server message...");
-            MessageEvent messageFromServer = TrezorMessageUtils.parseAsHIDPackets(inputFromServer);
-
-            MessageEvents.fireMessageEvent(messageFromServer);
+            int received = inputFromServer.read(buffer);
+            if (received == -1) {
+              throw new IOException("Read buffer is closed");
+            }
+
+            // A read may end part way through a frame so let the decoder reassemble them
+            for (RelayFrame frame : decoder.decode(ByteBuffer.wrap(buffer, 0, received))) {
+              if (RelayControlMessages.isControlType(frame.getType())) {
+                handleControlFrame(frame);
+                continue;
+              }
+
+              TrezorMessage.MessageType messageType = TrezorMessage.MessageType.valueOf(frame.getType());
+              if (messageType == null) {
+                log.warn("Skipping frame with unknown message type {}", frame.getType());
+                continue;
+              }
+
+              final MessageEvent messageFromServer;
+              try {
+                messageFromServer = TrezorMessageUtils.parse(messageType, frame.getPayload());
+              } catch (RuntimeException e) {
+                log.warn("Skipping frame that could not be parsed as {}", messageType, e);
+                continue;
+              }
+
+              MessageEvents.fireMessageEvent(messageFromServer);
+            }
 
           } catch (HardwareWalletException | IOException e) {
             log.error("Failed to read back from server", e);
@@ -217,7 +340,7 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
 
     try {
       // Apply the message to the data output stream
-      TrezorMessageUtils.writeAsHIDPackets(message, outputToServer);
+      writeFrame(new RelayFrame(TrezorMessageUtils.getMessageType(message), message.toByteArray()));
 
     } catch (IOException e) {
       log.warn("I/O error during write. Closing socket.", e);
@@ -233,7 +356,7 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
 
     try {
       // Apply the message to the data output stream
-      TrezorMessageUtils.writeAsHIDPackets(message, outputToServer);
+      writeFrame(new RelayFrame(TrezorMessageUtils.getMessageType(message), message.toByteArray()));
 
     } catch (IOException e) {
       log.warn("I/O error during write. Closing socket.", e);
@@ -246,4 +369,90 @@ public class TrezorRelayClient extends AbstractTrezorHardwareWalletClient {
   public boolean verifyFeatures(Features features) {
     return true;
   }
+
+  /**
+   * @param frame The relay control message from the server
+   *
+   * @throws IOException If the control message is malformed
+   */
+  private void handleControlFrame(RelayFrame frame) throws IOException {
+
+    switch (frame.getType()) {
+      case RelayControlMessages.RELAY_DEVICES:
+        deviceStatus = ImmutableList.copyOf(RelayControlMessages.parseDevices(frame.getPayload()));
+        log.debug("Relay server devices: {}", deviceStatus);
+        break;
+      case RelayControlMessages.RELAY_QUEUED:
+        log.info("Waiting for device. Position in queue: {}", RelayControlMessages.parseQueuePosition(frame.getPayload()));
+        break;
+      case RelayControlMessages.RELAY_ACQUIRED:
+        deviceId = frame.getDeviceId();
+        log.info("Session granted on device '{}'", RelayControlMessages.parseString(frame.getPayload()));
+        break;
+      case RelayControlMessages.RELAY_FAILURE:
+        log.warn("Relay server failure: {}", RelayControlMessages.parseString(frame.getPayload()));
+        // Only an unknown or detached device ends the session, a refused request leaves it in place
+        if (RelayControlMessages.isDeviceFailure(frame.getPayload())) {
+          MessageEvents.fireMessageEvent(MessageEventType.DEVICE_FAILED, name());
+        }
+        break;
+      default:
+        log.debug("Ignoring relay control message {}", frame.getType());
+    }
+
+  }
+
+  /**
+   * <p>Offer relay protocol v2 to the server, falling back to HID packets on the same socket if it is not accepted</p>
+   *
+   * <p>Older servers accept a single connection so the fallback cannot reconnect. They discard the hello as
+   * it lacks the HID packet header and it is read in full before the first HID packet is sent.</p>
+   *
+   * @return The protocol to use on the socket
+   *
+   * @throws IOException If the socket fails
+   */
+  private RelayProtocol negotiate() throws IOException {
+
+    OutputStream out = socket.getOutputStream();
+    out.write(RelayProtocol.hello());
+    out.flush();
+
+    byte[] reply = new byte[RelayProtocol.helloLength()];
+    try {
+      socket.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+      // Unbuffered so nothing beyond the reply is consumed
+      new DataInputStream(socket.getInputStream()).readFully(reply);
+      if (RelayProtocol.isHello(reply)) {
+        socket.setSoTimeout(0);
+        log.debug("Using relay protocol v2");
+        return RelayProtocol.LENGTH_PREFIXED;
+      }
+    } catch (SocketTimeoutException e) {
+      // No reply within the timeout is how an older server responds
+      socket.setSoTimeout(0);
+      log.info("Relay server does not support protocol v2. Falling back to HID packets.");
+      return RelayProtocol.HID_PACKETS;
+    }
+
+    throw new IOException("Unexpected reply to relay protocol v2 hello");
+  }
+
+  /**
+   * @param frame The frame to send to the server (the device ID and sequence number are applied here)
+   *
+   * @throws IOException If the socket fails
+   */
+  private void writeFrame(RelayFrame frame) throws IOException {
+
+    Preconditions.checkState(outputToServer != null, "Relay client is not attached");
+
+    synchronized (outputToServer) {
+      // Encode the whole message so it leaves in a single write
+      ByteBuffer buffer = protocol.encode(frame.withHeader(deviceId, sequence.incrementAndGet()));
+      outputToServer.write(buffer.array(), 0, buffer.limit());
+      outputToServer.flush();
+    }
+
+  }
 }
@@ -0,0 +1,98 @@
+package org.multibit.hd.hardware.trezor.clients;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+import com.satoshilabs.trezor.protobuf.TrezorMessage;
+import org.hid4java.HidDevice;
+import org.hid4java.HidManager;
+import org.multibit.hd.hardware.core.events.MessageEvent;
+import org.multibit.hd.hardware.core.relay.RelayDeviceProvider;
+import org.multibit.hd.hardware.core.wallets.HardwareWallet;
+import org.multibit.hd.hardware.trezor.utils.TrezorMessageUtils;
+import org.multibit.hd.hardware.trezor.wallets.v1.TrezorV1HidHardwareWallet;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Relay device provider to provide the following to the relay server:</p>
+ * <ul>
+ * <li>Discovery of attached Trezor V1 devices by serial number</li>
+ * <li>A Trezor V1 HID hardware wallet per device with its own message event source</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class TrezorRelayDeviceProvider implements RelayDeviceProvider {
+
+  private static final int SATOSHI_LABS_VENDOR_ID = 0x534c;
+  private static final int TREZOR_V1_PRODUCT_ID = 0x01;
+
+  @Override
+  public String name() {
+    return "TREZOR";
+  }
+
+  @Override
+  public List<String> findAttachedSerialNumbers() {
+
+    List<String> serialNumbers = Lists.newArrayList();
+    for (HidDevice hidDevice : HidManager.getHidServices().getAttachedHidDevices()) {
+      if ((int) hidDevice.getVendorId() == SATOSHI_LABS_VENDOR_ID
+        && (int) hidDevice.getProductId() == TREZOR_V1_PRODUCT_ID
+        && hidDevice.getSerialNumber() != null) {
+        serialNumbers.add(hidDevice.getSerialNumber());
+      }
+    }
+
+    return serialNumbers;
+  }
+
+  @Override
+  public HardwareWallet buildHardwareWallet(String serialNumber) {
+
+    final String source = name() + ":" + serialNumber;
+
+    return new TrezorV1HidHardwareWallet(
+      Optional.<Integer>absent(),
+      Optional.<Integer>absent(),
+      Optional.of(serialNumber)
+    ) {
+
+      @Override
+      public String name() {
+        return source;
+      }
+
+      @Override
+      public Optional<MessageEvent> readMessage(int duration, TimeUnit timeUnit) {
+
+        // Attribute messages to this device rather than to any Trezor
+        Optional<MessageEvent> messageEvent = super.readMessage(duration, timeUnit);
+        if (!messageEvent.isPresent()) {
+          return messageEvent;
+        }
+
+        return Optional.of(new MessageEvent(
+          messageEvent.get().getEventType(),
+          messageEvent.get().getMessage(),
+          messageEvent.get().getRawMessage(),
+          source
+        ));
+      }
+    };
+  }
+
+  @Override
+  public int getMessageType(Message message) {
+    return TrezorMessageUtils.getMessageType(message);
+  }
+
+  @Override
+  public MessageEvent parseMessage(int type, byte[] payload) {
+    return TrezorMessageUtils.parse(TrezorMessage.MessageType.valueOf(type), payload);
+  }
+
+}
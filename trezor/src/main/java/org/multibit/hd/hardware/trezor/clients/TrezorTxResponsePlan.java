@@ -0,0 +1,60 @@
+package org.multibit.hd.hardware.trezor.clients;
+
+import com.google.common.base.Optional;
+import com.satoshilabs.trezor.protobuf.TrezorType;
+import org.bitcoinj.core.Transaction;
+import org.multibit.hd.hardware.core.signing.AbstractTxResponsePlan;
+import org.multibit.hd.hardware.core.signing.TxSigningSession;
+import org.multibit.hd.hardware.trezor.utils.TrezorMessageUtils;
+
+/**
+ * <p>Response plan to provide the following to Trezor clients:</p>
+ * <ul>
+ * <li>Precomputed Trezor TxAck payloads for a signing session</li>
+ * <li>Parent inputs and bin outputs taken from the encoded parent rather than rebuilt</li>
+ * </ul>
+ *
+ * @since 0.8.0
+ *
+ */
+public class TrezorTxResponsePlan extends AbstractTxResponsePlan<TrezorType.TransactionType> {
+
+  /**
+   * @param session The signing session
+   */
+  public TrezorTxResponsePlan(TxSigningSession session) {
+    super(session);
+  }
+
+  @Override
+  protected TrezorType.TransactionType buildMetaResponse(Transaction tx) {
+    return TrezorMessageUtils.buildTxMetaResponse(Optional.of(tx));
+  }
+
+  @Override
+  protected TrezorType.TransactionType buildParentTransaction(Transaction parentTx) {
+    return TrezorMessageUtils.buildParentTransactionType(parentTx);
+  }
+
+  @Override
+  protected TrezorType.TransactionType buildInputResponse(Transaction tx, int index, boolean binOutputType) {
+    if (binOutputType && index >= 0 && index < tx.getInputs().size()) {
+      return TrezorType.TransactionType
+        .newBuilder()
+        .addInputs(getEncodedParent(tx).getInputs(index))
+        .build();
+    }
+    return TrezorMessageUtils.buildTxInputResponse(index, tx, binOutputType, getSession().getReceivingAddressPathMap());
+  }
+
+  @Override
+  protected TrezorType.TransactionType buildOutputResponse(Transaction tx, int index, boolean binOutputType) {
+    if (binOutputType && index >= 0 && index < tx.getOutputs().size()) {
+      return TrezorType.TransactionType
+        .newBuilder()
+        .addBinOutputs(getEncodedParent(tx).getBinOutputs(index))
+        .build();
+    }
+    return TrezorMessageUtils.buildTxOutputResponse(index, tx, binOutputType, getSession().getChangeAddressPathMap());
+  }
+}
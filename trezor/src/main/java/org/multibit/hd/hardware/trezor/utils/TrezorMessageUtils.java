@@ -364,6 +364,7 @@ public final class TrezorMessageUtils {
     messageBuffer.rewind();
 
     // HID requires 64 byte packets with 63 bytes of payload
+    byte[] packetBuffer = new byte[packets * 64];
     for (int i = 0; i < packets; i++) {
 
       byte[] buffer = new byte[64];
@@ -380,13 +381,23 @@ public final class TrezorMessageUtils {
         log.trace(s);
       }
 
-      out.write(buffer);
-
-      // Flush to ensure bytes are available immediately
-      out.flush();
+      System.arraycopy(buffer, 0, packetBuffer, i * 64, 64);
 
     }
 
+    // Write all packets at once and flush to ensure bytes are available immediately
+    out.write(packetBuffer);
+    out.flush();
+
+  }
+
+  /**
+   * @param message The Trezor protobuf message
+   *
+   * @return The wire protocol message type
+   */
+  public static int getMessageType(Message message) {
+    return TrezorMessage.MessageType.valueOf("MessageType_" + message.getClass().getSimpleName()).getNumber();
   }
 
   /**
@@ -399,8 +410,7 @@ public final class TrezorMessageUtils {
   public static ByteBuffer formatAsHIDPackets(Message message) {
 
     int msgSize = message.getSerializedSize();
-    String msgName = message.getClass().getSimpleName();
-    int msgId = TrezorMessage.MessageType.valueOf("MessageType_" + msgName).getNumber();
+    int msgId = getMessageType(message);
 
     // There is a security risk to raising this logging level beyond trace
     log.trace("> Message: {}, ({} bytes)", ToStringBuilder.reflectionToString(message, new TrezorMessageToStringStyle()), msgSize);
@@ -534,6 +544,47 @@ public final class TrezorMessageUtils {
 
   }
 
+  /**
+   * @param prevTx A parent transaction providing outputs to the current transaction
+   *
+   * @return A Trezor transaction type containing all the inputs and bin outputs of the parent
+   */
+  public static TrezorType.TransactionType buildParentTransactionType(Transaction prevTx) {
+
+    TrezorType.TransactionType.Builder prevBuilder = TrezorType.TransactionType.newBuilder();
+
+    // Explore the parent tx inputs
+    for (int i = 0; i < prevTx.getInputs().size(); i++) {
+      prevBuilder.addInputs(buildTxInputType(prevTx.getInput(i), Lists.<Integer>newArrayList()));
+    }
+
+    // Explore the parent tx outputs
+    for (TransactionOutput prevOutput : prevTx.getOutputs()) {
+      prevBuilder.addBinOutputs(buildTxOutputBinType(prevOutput));
+    }
+
+    return prevBuilder.build();
+
+  }
+
+  /**
+   * @param output An output of a parent transaction
+   *
+   * @return A Trezor description of the output as required for a parent transaction
+   */
+  public static TrezorType.TxOutputBinType buildTxOutputBinType(TransactionOutput output) {
+
+    // Require the output script program
+    byte[] scriptPubKey = output.getScriptPubKey().getProgram();
+
+    return TrezorType.TxOutputBinType
+      .newBuilder()
+      .setAmount(output.getValue().value)
+      .setScriptPubkey(ByteString.copyFrom(scriptPubKey))
+      .build();
+
+  }
+
   /**
    * @param txRequest               The Trezor request
    * @param requestedTx             The requested tx (either current or a previous one providing inputs)
@@ -555,19 +606,53 @@ public final class TrezorMessageUtils {
       return null;
     }
 
+    return buildTxInputResponse(requestIndex.get(), requestedTx.get(), binOutputType, receivingAddressPathMap);
+
+  }
+
+  /**
+   * @param requestIndex            The index of the requested input
+   * @param requestedTx             The requested tx (either current or a previous one providing inputs)
+   * @param binOutputType           True if the requested tx is a parent (the receiving address map does not apply)
+   * @param receivingAddressPathMap A map of paths for rapid address lookup (called AddressN in Trezor protobuf)
+   *
+   * @return A Trezor transaction type containing a description of an input
+   */
+  public static TrezorType.TransactionType buildTxInputResponse(
+    int requestIndex,
+    Transaction requestedTx,
+    boolean binOutputType,
+    Map<Integer, ImmutableList<ChildNumber>> receivingAddressPathMap
+  ) {
+
     // Get the transaction input indicated by the request index
-    TransactionInput input = requestedTx.get().getInput(requestIndex.get());
+    TransactionInput input = requestedTx.getInput(requestIndex);
 
     List<Integer> addressN = Lists.newArrayList();
     if (!binOutputType) {
       // We are the current transaction so look up the path of the receiving address
-      ImmutableList<ChildNumber> receivingAddressPath = receivingAddressPathMap.get(requestIndex.get());
-      Preconditions.checkNotNull(receivingAddressPath, "The receiving address path has no entry for index " + requestIndex.get() + ". Signing will fail.");
+      ImmutableList<ChildNumber> receivingAddressPath = receivingAddressPathMap.get(requestIndex);
+      Preconditions.checkNotNull(receivingAddressPath, "The receiving address path has no entry for index " + requestIndex + ". Signing will fail.");
       addressN = TrezorMessageUtils.buildAddressN(receivingAddressPath);
     }
 
     // Must be OK to be here
 
+    return TrezorType.TransactionType
+      .newBuilder()
+      .addInputs(buildTxInputType(input, addressN))
+      .build();
+
+  }
+
+  /**
+   * @param input    The transaction input
+   * @param addressN The path to the receiving address (empty for a parent transaction)
+   *
+   * @return A Trezor description of the input
+   */
+  public static TrezorType.TxInputType buildTxInputType(TransactionInput input, List<Integer> addressN) {
+
     // Build a TxInputType message
     int prevIndex = (int) input.getOutpoint().getIndex();
     byte[] prevHash = input.getOutpoint().getHash().getBytes();
@@ -575,7 +660,7 @@ public final class TrezorMessageUtils {
     // No multisig support in MBHD yet
     TrezorType.InputScriptType inputScriptType = TrezorType.InputScriptType.SPENDADDRESS;
 
-    TrezorType.TxInputType txInputType = TrezorType.TxInputType
+    return TrezorType.TxInputType
       .newBuilder()
       .addAllAddressN(addressN)
       .setSequence((int) input.getSequenceNumber())
@@ -585,11 +670,6 @@ public final class TrezorMessageUtils {
       .setPrevHash(ByteString.copyFrom(prevHash))
       .build();
 
-    return TrezorType.TransactionType
-      .newBuilder()
-      .addInputs(txInputType)
-      .build();
-
   }
 
   /**
@@ -613,30 +693,60 @@ public final class TrezorMessageUtils {
       return null;
     }
 
-    // Get the transaction output indicated by the request index
-    TransactionOutput output = requestedTx.get().getOutput(requestIndex.get());
+    return buildTxOutputResponse(requestIndex.get(), requestedTx.get(), binOutputType, changeAddressPathMap);
 
-    if (binOutputType) {
+  }
 
-      // Build a TxOutputBinType representing a previous transaction
+  /**
+   * @param requestIndex         The index of the requested output
+   * @param requestedTx          The requested tx (either current or a previous one providing inputs)
+   * @param binOutputType        True if the requested tx is a parent (bin output rather than output)
+   * @param changeAddressPathMap A map of paths for rapid address lookup (called AddressN in Trezor protobuf)
+   *
+   * @return A Trezor transaction type containing a description of an output
+   */
+  public static TrezorType.TransactionType buildTxOutputResponse(
+    int requestIndex,
+    Transaction requestedTx,
+    boolean binOutputType,
+    Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
 
-      // Require the output script program
-      byte[] scriptPubKey = output.getScriptPubKey().getProgram();
+    Preconditions.checkNotNull(changeAddressPathMap, "'changeAddressPathMap' must be present");
 
-      TrezorType.TxOutputBinType txOutputBinType = TrezorType.TxOutputBinType
-        .newBuilder()
-        .setAmount(output.getValue().value)
-        .setScriptPubkey(ByteString.copyFrom(scriptPubKey))
-        .build();
+    // Get the transaction output indicated by the request index
+    TransactionOutput output = requestedTx.getOutput(requestIndex);
+
+    if (binOutputType) {
 
+      // Build a TxOutputBinType representing a previous transaction
       return TrezorType.TransactionType
         .newBuilder()
-        .addBinOutputs(txOutputBinType)
+        .addBinOutputs(buildTxOutputBinType(output))
         .build();
 
     }
 
     // Build a TxOutputType representing the current transaction
+    return TrezorType.TransactionType
+      .newBuilder()
+      .addOutputs(buildTxOutputType(output, requestIndex, changeAddressPathMap))
+      .build();
+
+  }
+
+  /**
+   * @param output               The transaction output
+   * @param index                The index of the output within the current transaction
+   * @param changeAddressPathMap A map of paths for rapid address lookup (called AddressN in Trezor protobuf)
+   *
+   * @return A Trezor description of the output (change outputs are described by their path)
+   */
+  public static TrezorType.TxOutputType buildTxOutputType(
+    TransactionOutput output,
+    int index,
+    Map<Address, ImmutableList<ChildNumber>> changeAddressPathMap) {
+
+    Preconditions.checkNotNull(changeAddressPathMap, "'changeAddressPathMap' must be present");
 
     // P2PKH are the most common addresses so try that first
     Address address = output.getAddressFromP2PKHScript(MainNetParams.get());
@@ -645,7 +755,7 @@ public final class TrezorMessageUtils {
       address = output.getAddressFromP2SH(MainNetParams.get());
     }
     if (address == null) {
-      throw new IllegalArgumentException("TxOutput " + requestIndex + " does not resolve to P2PKH or P2SH.");
+      throw new IllegalArgumentException("TxOutput " + index + " does not resolve to P2PKH or P2SH.");
     }
 
     // Is it pay-to-script-hash (P2SH) or pay-to-address (P2PKH)?
@@ -684,10 +794,7 @@ public final class TrezorMessageUtils {
 
     }
 
-    return TrezorType.TransactionType
-      .newBuilder()
-      .addOutputs(txOutputType)
-      .build();
+    return txOutputType;
 
   }
 
@@ -2,6 +2,7 @@ package org.multibit.hd.hardware.trezor.wallets.v1;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.Message;
 import com.satoshilabs.trezor.protobuf.TrezorMessage;
@@ -20,6 +21,7 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -55,6 +57,22 @@ public class TrezorV1HidHardwareWallet extends AbstractTrezorHardwareWallet impl
    */
   private final HidServices hidServices;
 
+  /**
+   * How long a negotiated HID version is trusted before the device is probed again
+   */
+  private static final long HID_VERSION_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * The HID version negotiated with each device keyed on serial number (reached from the HID event thread
+   * so must be concurrent, and retained across detach so a reattach avoids the probe writes)
+   */
+  private final Map<String, NegotiatedHidVersion> hidVersionCache = Maps.newConcurrentMap();
+
+  /**
+   * True if the HID version in use was taken from the cache rather than probed on this connection
+   */
+  private volatile boolean hidVersionFromCache = false;
+
   /**
    * Monitor the USB HID read buffer and handle the firing of low level messages when a message is found
    * A new one is required after a detach
@@ -206,8 +224,22 @@ public class TrezorV1HidHardwareWallet extends AbstractTrezorHardwareWallet impl
 
     }
 
-        log.info("Determining HID version...");
-        saveHidVersion(); // Trezor firmware 1.3.6+ uses different (marked as hid_version=2) packet length
+    // Reuse a recently negotiated HID version if the device still reports the same release (avoids probe writes on reconnect)
+    String locatedSerialNumber = locatedDevice.get().getSerialNumber();
+    int releaseNumber = locatedDevice.get().getReleaseNumber();
+    NegotiatedHidVersion cachedHidVersion = locatedSerialNumber == null ? null : hidVersionCache.get(locatedSerialNumber);
+    if (cachedHidVersion != null && cachedHidVersion.isValidFor(releaseNumber)) {
+      hid_version = cachedHidVersion.hidVersion;
+      hidVersionFromCache = true;
+      log.info("Trezor device - HID version {} (previously negotiated).", hid_version);
+    } else {
+      log.info("Determining HID version...");
+      saveHidVersion(); // Trezor firmware 1.3.6+ uses different (marked as hid_version=2) packet length
+      hidVersionFromCache = false;
+      if (locatedSerialNumber != null) {
+        hidVersionCache.put(locatedSerialNumber, new NegotiatedHidVersion(hid_version, releaseNumber));
+      }
+    }
 
     // Ensure any pre-existing monitors are terminated
     if (monitorHidExecutorService != null && !monitorHidExecutorService.isShutdown()) {
@@ -279,6 +311,15 @@ public class TrezorV1HidHardwareWallet extends AbstractTrezorHardwareWallet impl
 
     log.debug("Wrote {} bytes to USB pipe.", bytesSent);
 
+    if (bytesSent != calculateHidPacketLength() && hidVersionFromCache) {
+      // The firmware may have changed the packet length so probe again on the next connect
+      log.warn("Write failed using previously negotiated HID version {}. Discarding it.", hid_version);
+      if (locatedDevice.get().getSerialNumber() != null) {
+        hidVersionCache.remove(locatedDevice.get().getSerialNumber());
+      }
+      hidVersionFromCache = false;
+    }
+
     return bytesSent;
 
   }
@@ -451,4 +492,31 @@ public class TrezorV1HidHardwareWallet extends AbstractTrezorHardwareWallet impl
             }
         }
     }
+
+  /**
+   * <p>A HID version negotiated with a device along with the device release at the time</p>
+   */
+  private static class NegotiatedHidVersion {
+
+    private final int hidVersion;
+
+    private final int releaseNumber;
+
+    private final long negotiatedMillis = System.currentTimeMillis();
+
+    private NegotiatedHidVersion(int hidVersion, int releaseNumber) {
+      this.hidVersion = hidVersion;
+      this.releaseNumber = releaseNumber;
+    }
+
+    /**
+     * @param currentReleaseNumber The release number the device now reports
+     *
+     * @return True if the version can be used without probing (same release and not expired)
+     */
+    private boolean isValidFor(int currentReleaseNumber) {
+      return releaseNumber == currentReleaseNumber
+        && System.currentTimeMillis() - negotiatedMillis < HID_VERSION_MAX_AGE_MILLIS;
+    }
+  }
 }